@@ -3,6 +3,7 @@ public abstract class AccountClass {
     private double balance;
     private String accountType;
     private String customerId;
+    private long version; // Row version as read from the database, for compare-and-set updates
     
     public AccountClass(String accountNumber, String customerId, String accountType) {
         this.accountNumber = accountNumber;
@@ -51,6 +52,14 @@ public abstract class AccountClass {
         this.customerId = customerId;
     }
     
+    public long getVersion() {
+        return version;
+    }
+    
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
     // Business Logic
     public boolean deposit(double amount) {
         if (amount > 0) {
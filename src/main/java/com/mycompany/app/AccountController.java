@@ -1,11 +1,52 @@
 import javafx.stage.Stage;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AccountController {
     private Stage stage;
     private BankSystemWithDAO bankSystem;
     private CustomerClass currentCustomer;
     private AccountView accountView;
+    private long retryAfterMillis;
+    // When each customer's last successful write committed, so the dashboard shows it; shared
+    // because every login gets a new controller
+    private static final ConcurrentHashMap<String, Long> LAST_WRITE_MILLIS = new ConcurrentHashMap<>();
+    // The last money movement submitted that has not succeeded yet, and its idempotency key
+    private String pendingSubmission;
+    private String pendingKey;
+    private long pendingAt;
+    
+    // How long a resubmission of the same movement counts as a retry of it
+    private static final long RETRY_WINDOW_MILLIS = 120_000;
+    
+    //Outcome of a request: done, refused by the bank, or turned away by admission control
+    //with a hint of when to retry
+    public static final class Result {
+        static final Result DONE = new Result(true, 0);
+        static final Result FAILED = new Result(false, 0);
+        
+        private final boolean succeeded;
+        private final long retryAfterMillis;
+        
+        private Result(boolean succeeded, long retryAfterMillis) {
+            this.succeeded = succeeded;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+        
+        static Result of(boolean succeeded) {
+            return succeeded ? DONE : FAILED;
+        }
+        
+        static Result rateLimited(long retryAfterMillis) {
+            return new Result(false, retryAfterMillis);
+        }
+        
+        public boolean isSucceeded() { return succeeded; }
+        public boolean isRateLimited() { return retryAfterMillis > 0; }
+        public long getRetryAfterMillis() { return retryAfterMillis; }
+    }
     
     public AccountController(Stage stage, BankSystemWithDAO bankSystem, CustomerClass customer) {
         this.stage = stage;
@@ -22,97 +63,140 @@ public class AccountController {
     }
     
     //Handle deposit request - validation only, business logic in model
-
-    public boolean handleDeposit(String accountNumber, double amount) {
+    
+    public Result handleDeposit(String accountNumber, double amount) {
         // Input validation
         if (accountNumber == null || accountNumber.isEmpty()) {
-            return false;
+            return Result.FAILED;
         }
         
         if (amount <= 0) {
-            return false;
+            return Result.FAILED;
         }
         
         // Delegate to business logic layer
-        return bankSystem.deposit(accountNumber, amount);
+        String key = keyFor("DEPOSIT|" + accountNumber + "|" + amount);
+        try {
+            return settle(wrote(bankSystem.deposit(accountNumber, amount, key)));
+        } catch (AdmissionControl.RejectedException e) {
+            return Result.rateLimited(e.getRetryAfterMillis());
+        }
     }
     
     //Handle withdrawal request
-
-    public boolean handleWithdraw(String accountNumber, double amount) {
+    
+    public Result handleWithdraw(String accountNumber, double amount) {
         // Input validation
         if (accountNumber == null || accountNumber.isEmpty()) {
-            return false;
+            return Result.FAILED;
         }
         
         if (amount <= 0) {
-            return false;
+            return Result.FAILED;
         }
         
         // Delegate to business logic layer
-        return bankSystem.withdraw(accountNumber, amount);
+        String key = keyFor("WITHDRAW|" + accountNumber + "|" + amount);
+        try {
+            return settle(wrote(bankSystem.withdraw(accountNumber, amount, key)));
+        } catch (AdmissionControl.RejectedException e) {
+            return Result.rateLimited(e.getRetryAfterMillis());
+        }
     }
     
     //Handle transfer request
-    public boolean handleTransfer(String fromAccount, String toAccount, double amount) {
+    public Result handleTransfer(String fromAccount, String toAccount, double amount) {
         // Input validation
         if (fromAccount == null || toAccount == null || 
             fromAccount.isEmpty() || toAccount.isEmpty()) {
-            return false;
+            return Result.FAILED;
         }
         
         if (amount <= 0) {
-            return false;
+            return Result.FAILED;
         }
         
         if (fromAccount.equals(toAccount)) {
-            return false; // Can't transfer to same account
+            return Result.FAILED; // Can't transfer to same account
         }
         
         // Delegate to business logic layer
-        return bankSystem.transfer(fromAccount, toAccount, amount);
+        String key = keyFor("TRANSFER|" + fromAccount + "|" + toAccount + "|" + amount);
+        try {
+            return settle(wrote(bankSystem.transfer(fromAccount, toAccount, amount, key)));
+        } catch (AdmissionControl.RejectedException e) {
+            return Result.rateLimited(e.getRetryAfterMillis());
+        }
     }
     
     //Handle create account request
-    public boolean handleCreateAccount(String customerId, String accountType, double initialDeposit) {
+    public Result handleCreateAccount(String customerId, String accountType, double initialDeposit) {
         // Input validation
         if (customerId == null || accountType == null) {
-            return false;
+            return Result.FAILED;
         }
         
         // Delegate to business logic layer based on type
-        switch (accountType) {
-            case "Savings":
-                return bankSystem.createSavingsAccount(customerId, initialDeposit) != null;
-            case "Cheque":
-                AccountClass cheque = bankSystem.createChequeAccount(customerId);
-                if (cheque != null && initialDeposit > 0) {
-                    bankSystem.deposit(cheque.getAccountNumber(), initialDeposit);
-                }
-                return cheque != null;
-            case "Investment":
-                return bankSystem.createInvestmentAccount(customerId, "Fixed Deposit", 
-                                                         initialDeposit) != null;
-            default:
-                return false;
+        try {
+            switch (accountType) {
+                case "Savings":
+                    return wrote(bankSystem.createSavingsAccount(customerId, initialDeposit) != null);
+                case "Cheque":
+                    AccountClass cheque = bankSystem.createChequeAccount(customerId);
+                    if (cheque != null && initialDeposit > 0) {
+                        try {
+                            bankSystem.deposit(cheque.getAccountNumber(), initialDeposit);
+                        } catch (AdmissionControl.RejectedException e) {
+                            // The account exists; only its opening deposit was turned away
+                            wrote(true);
+                            throw e;
+                        }
+                    }
+                    return wrote(cheque != null);
+                case "Investment":
+                    return wrote(bankSystem.createInvestmentAccount(customerId, "Fixed Deposit", 
+                                                                   initialDeposit) != null);
+                default:
+                    return Result.FAILED;
+            }
+        } catch (AdmissionControl.RejectedException e) {
+            return Result.rateLimited(e.getRetryAfterMillis());
         }
     }
     
-    //Get customer accounts - delegates to DAO
-    public List<AccountClass> getCustomerAccounts(String customerId) {
-        AccountDAO accountDAO = new AccountDAO();
-        return accountDAO.getAccountsByCustomerId(customerId);
+    //Get the customer's dashboard summary - delegates to business logic
+    //Null if admission control turned the read away (see getRetryAfterMillis)
+    public CustomerSummaryDAO.CustomerSummary getCustomerSummary() {
+        retryAfterMillis = 0;
+        try {
+            return bankSystem.getCustomerSummary(currentCustomer.getCustomerId(),
+                LAST_WRITE_MILLIS.getOrDefault(currentCustomer.getCustomerId(), 0L));
+        } catch (AdmissionControl.RejectedException e) {
+            retryAfterMillis = e.getRetryAfterMillis();
+            return null;
+        }
     }
     
     //Get account by number - delegates to business logic
     public AccountClass getAccountByNumber(String accountNumber) {
-        return bankSystem.findAccountByNumber(accountNumber);
+        retryAfterMillis = 0;
+        try {
+            return bankSystem.findAccountByNumber(accountNumber);
+        } catch (AdmissionControl.RejectedException e) {
+            retryAfterMillis = e.getRetryAfterMillis();
+            return null;
+        }
     }
     
-    //Get recent transactions - delegates to DAO
+    //Get recent transactions - delegates to business logic
     public List<TransactionDAO.Transaction> getRecentTransactions(String accountNumber, int limit) {
-        TransactionDAO transactionDAO = new TransactionDAO();
-        return transactionDAO.getRecentTransactions(accountNumber, limit);
+        retryAfterMillis = 0;
+        try {
+            return bankSystem.getRecentTransactions(accountNumber, limit);
+        } catch (AdmissionControl.RejectedException e) {
+            retryAfterMillis = e.getRetryAfterMillis();
+            return new ArrayList<>();
+        }
     }
     
     //Show account statement
@@ -120,6 +204,41 @@ public class AccountController {
         bankSystem.printAccountStatement(accountNumber);
     }
     
+    //Milliseconds to wait before retrying if the last read was turned away by admission control, else 0
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+    
+    //Idempotency key for a money movement submitted from the view
+    //Each submission gets a new key, except that submitting the same movement again within
+    //RETRY_WINDOW_MILLIS of an attempt that did not succeed reuses that attempt's key: if the
+    //attempt failed after its commit, or was rate limited, the retry cannot move the money twice
+    private String keyFor(String submission) {
+        long now = System.currentTimeMillis();
+        if (!submission.equals(pendingSubmission) || now - pendingAt > RETRY_WINDOW_MILLIS) {
+            pendingSubmission = submission;
+            pendingKey = UUID.randomUUID().toString();
+        }
+        pendingAt = now;
+        return pendingKey;
+    }
+    
+    //Retire the pending key once its movement succeeded, so the next submission gets a new one
+    private Result settle(Result result) {
+        if (result.isSucceeded()) {
+            pendingSubmission = null;
+        }
+        return result;
+    }
+    
+    //Remember when a write succeeded and pass its result through
+    private Result wrote(boolean succeeded) {
+        if (succeeded) {
+            LAST_WRITE_MILLIS.merge(currentCustomer.getCustomerId(), System.currentTimeMillis(), Math::max);
+        }
+        return Result.of(succeeded);
+    }
+    
     //Handle logout
     public void handleLogout() {
         LoginController loginController = new LoginController(stage, bankSystem);
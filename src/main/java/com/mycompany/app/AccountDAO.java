@@ -1,70 +1,105 @@
 import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 
 public class AccountDAO {
     
+    static final String INSERT_ACCOUNT_SQL =
+        "INSERT INTO accounts (account_number, customer_id, account_type, balance, " +
+        "interest_rate, withdrawal_limit, overdraft_limit, minimum_balance, " +
+        "investment_type, term_months, start_date, maturity_date) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    
+    //An optimistic update found the account row changed since it was read
+    public static class VersionConflictException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        
+        public VersionConflictException(String accountNumber, long expectedVersion) {
+            super("Account " + accountNumber + " changed since version " + expectedVersion);
+        }
+    }
+    
     //Create a new account in the database
     public boolean createAccount(AccountClass account) {
-        String sql = "INSERT INTO accounts (account_number, customer_id, account_type, balance, " +
-                     "interest_rate, withdrawal_limit, overdraft_limit, minimum_balance, " +
-                     "investment_type, term_months) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.createAccount");
+        try (sample;
+             Connection conn = ShardRouter.getConnection(account.getAccountNumber());
+             PreparedStatement pstmt = conn.prepareStatement(INSERT_ACCOUNT_SQL)) {
             
-            pstmt.setString(1, account.getAccountNumber());
-            pstmt.setString(2, account.getCustomerId());
-            pstmt.setString(3, account.getAccountType());
-            pstmt.setDouble(4, account.getBalance());
-            
-            // Set type-specific attributes
-            if (account instanceof SavingsAccountClass) {
-                SavingsAccountClass savings = (SavingsAccountClass) account;
-                pstmt.setDouble(5, savings.getInterestRate());
-                pstmt.setDouble(6, savings.getWithdrawalLimit());
-                pstmt.setNull(7, Types.DECIMAL);
-                pstmt.setDouble(8, savings.getMinimumBalance());
-                pstmt.setNull(9, Types.VARCHAR);
-                pstmt.setNull(10, Types.INTEGER);
-            } else if (account instanceof ChequeAccountClass) {
-                ChequeAccountClass cheque = (ChequeAccountClass) account;
-                pstmt.setNull(5, Types.DECIMAL);
-                pstmt.setDouble(6, cheque.getWithdrawalLimit());
-                pstmt.setDouble(7, cheque.getOverdraftLimit());
-                pstmt.setNull(8, Types.DECIMAL);
-                pstmt.setNull(9, Types.VARCHAR);
-                pstmt.setNull(10, Types.INTEGER);
-            } else if (account instanceof InvestmentAccountClass) {
-                InvestmentAccountClass investment = (InvestmentAccountClass) account;
-                pstmt.setDouble(5, investment.getInterestRate());
-                pstmt.setNull(6, Types.DECIMAL);
-                pstmt.setNull(7, Types.DECIMAL);
-                pstmt.setNull(8, Types.DECIMAL);
-                pstmt.setString(9, investment.getInvestmentType());
-                pstmt.setInt(10, investment.getTermMonths());
-            } else {
-                // Generic account
-                for (int i = 5; i <= 10; i++) {
-                    pstmt.setNull(i, Types.NULL);
-                }
-            }
+            bindAccount(pstmt, account);
             
+            conn.setAutoCommit(false);
             int rowsAffected = pstmt.executeUpdate();
+            if (rowsAffected > 0) {
+                ChangeLog.record(conn, ChangeLog.ACCOUNTS, account.getAccountNumber());
+            }
+            conn.commit();
             return rowsAffected > 0;
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error creating account: " + e.getMessage());
             return false;
         }
     }
     
+    //Bind an account's columns to a statement prepared from INSERT_ACCOUNT_SQL
+    void bindAccount(PreparedStatement pstmt, AccountClass account) throws SQLException {
+        pstmt.setString(1, account.getAccountNumber());
+        pstmt.setString(2, account.getCustomerId());
+        pstmt.setString(3, account.getAccountType());
+        pstmt.setDouble(4, account.getBalance());
+        
+        // Set type-specific attributes
+        if (account instanceof SavingsAccountClass) {
+            SavingsAccountClass savings = (SavingsAccountClass) account;
+            pstmt.setDouble(5, savings.getInterestRate());
+            pstmt.setDouble(6, savings.getWithdrawalLimit());
+            pstmt.setNull(7, Types.DECIMAL);
+            pstmt.setDouble(8, savings.getMinimumBalance());
+            pstmt.setNull(9, Types.VARCHAR);
+            pstmt.setNull(10, Types.INTEGER);
+            pstmt.setNull(11, Types.DATE);
+            pstmt.setNull(12, Types.DATE);
+        } else if (account instanceof ChequeAccountClass) {
+            ChequeAccountClass cheque = (ChequeAccountClass) account;
+            pstmt.setNull(5, Types.DECIMAL);
+            pstmt.setDouble(6, cheque.getWithdrawalLimit());
+            pstmt.setDouble(7, cheque.getOverdraftLimit());
+            pstmt.setNull(8, Types.DECIMAL);
+            pstmt.setNull(9, Types.VARCHAR);
+            pstmt.setNull(10, Types.INTEGER);
+            pstmt.setNull(11, Types.DATE);
+            pstmt.setNull(12, Types.DATE);
+        } else if (account instanceof InvestmentAccountClass) {
+            InvestmentAccountClass investment = (InvestmentAccountClass) account;
+            pstmt.setDouble(5, investment.getInterestRate());
+            pstmt.setNull(6, Types.DECIMAL);
+            pstmt.setNull(7, Types.DECIMAL);
+            pstmt.setNull(8, Types.DECIMAL);
+            pstmt.setString(9, investment.getInvestmentType());
+            pstmt.setInt(10, investment.getTermMonths());
+            pstmt.setDate(11, Date.valueOf(investment.getStartDate()));
+            pstmt.setDate(12, Date.valueOf(investment.getMaturityDate()));
+        } else {
+            // Generic account
+            for (int i = 5; i <= 12; i++) {
+                pstmt.setNull(i, Types.NULL);
+            }
+        }
+    }
+    
     //Retrieve an account by account number
     public AccountClass getAccountByNumber(String accountNumber) {
         String sql = "SELECT * FROM accounts WHERE account_number = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAccountByNumber");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, accountNumber);
@@ -73,81 +108,103 @@ public class AccountDAO {
             if (rs.next()) {
                 return extractAccountFromResultSet(rs);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving account: " + e.getMessage());
         }
         
         return null;
     }
     
-    //Retrieve all accounts for a specific customer
-    public List<AccountClass> getAccountsByCustomerId(String customerId) {
-        List<AccountClass> accounts = new ArrayList<>();
-        String sql = "SELECT * FROM accounts WHERE customer_id = ? ORDER BY account_number";
+    //Read an account on the caller's connection without locking it, or null if missing
+    //Changes are written back with updateAccountBalance(conn, account), which checks the version read here
+    public AccountClass readAccount(Connection conn, String accountNumber) throws SQLException {
+        String sql = "SELECT * FROM accounts WHERE account_number = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.readAccount");
+        try (sample;
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, customerId);
-            ResultSet rs = pstmt.executeQuery();
-            
-            while (rs.next()) {
-                accounts.add(extractAccountFromResultSet(rs));
+            pstmt.setString(1, accountNumber);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? extractAccountFromResultSet(rs) : null;
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
+            throw e;
+        }
+    }
+    
+    //Retrieve all accounts for a specific customer
+    public List<AccountClass> getAccountsByCustomerId(String customerId) {
+        List<AccountClass> accounts = new ArrayList<>();
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAccountsByCustomerId");
+        try (sample) {
+            accounts = queryEveryShard("SELECT * FROM accounts WHERE customer_id = ? ORDER BY account_number",
+                                       customerId);
+        } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving customer accounts: " + e.getMessage());
         }
         
-        return accounts;
+        return sample.rows(accounts);
     }
     
     //Retrieve all accounts
     public List<AccountClass> getAllAccounts() {
         List<AccountClass> accounts = new ArrayList<>();
-        String sql = "SELECT * FROM accounts ORDER BY account_number";
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            
-            while (rs.next()) {
-                accounts.add(extractAccountFromResultSet(rs));
-            }
-            
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAllAccounts");
+        try (sample) {
+            accounts = queryEveryShard("SELECT * FROM accounts ORDER BY account_number", null);
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving all accounts: " + e.getMessage());
         }
         
-        return accounts;
+        return sample.rows(accounts);
     }
     
-    //Update account balance
-    public boolean updateAccountBalance(String accountNumber, double newBalance) {
-        String sql = "UPDATE accounts SET balance = ? WHERE account_number = ?";
+    //Write an account's balance on the caller's connection if nobody changed the row since it was read
+    //Compare-and-set on the version column; on success the account carries the new version,
+    //otherwise VersionConflictException is thrown and the caller should re-read and retry
+    public void updateAccountBalance(Connection conn, AccountClass account) throws SQLException {
+        String sql = "UPDATE accounts SET balance = ?, version = version + 1 " +
+                     "WHERE account_number = ? AND version = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.updateAccountBalance");
+        try (sample;
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setDouble(1, newBalance);
-            pstmt.setString(2, accountNumber);
-            
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
+            pstmt.setDouble(1, account.getBalance());
+            pstmt.setString(2, account.getAccountNumber());
+            pstmt.setLong(3, account.getVersion());
             
+            if (pstmt.executeUpdate() == 0) {
+                throw new VersionConflictException(account.getAccountNumber(), account.getVersion());
+            }
+            ChangeLog.record(conn, ChangeLog.ACCOUNTS, account.getAccountNumber());
+            account.setVersion(account.getVersion() + 1);
+        
         } catch (SQLException e) {
-            System.err.println("Error updating account balance: " + e.getMessage());
-            return false;
+            sample.error();
+            throw e;
         }
     }
     
     //Update complete account information
+    //Compare-and-set on the version the account was read with; returns false if the row changed since
     public boolean updateAccount(AccountClass account) {
         String sql = "UPDATE accounts SET balance = ?, interest_rate = ?, withdrawal_limit = ?, " +
-                     "overdraft_limit = ?, minimum_balance = ? WHERE account_number = ?";
+                     "overdraft_limit = ?, minimum_balance = ?, version = version + 1 " +
+                     "WHERE account_number = ? AND version = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.updateAccount");
+        try (sample;
+             Connection conn = ShardRouter.getConnection(account.getAccountNumber());
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setDouble(1, account.getBalance());
@@ -173,11 +230,19 @@ public class AccountDAO {
             }
             
             pstmt.setString(6, account.getAccountNumber());
+            pstmt.setLong(7, account.getVersion());
             
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
-            
+            conn.setAutoCommit(false);
+            if (pstmt.executeUpdate() == 0) {
+                return false;
+            }
+            ChangeLog.record(conn, ChangeLog.ACCOUNTS, account.getAccountNumber());
+            conn.commit();
+            account.setVersion(account.getVersion() + 1);
+            return true;
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error updating account: " + e.getMessage());
             return false;
         }
@@ -187,14 +252,21 @@ public class AccountDAO {
     public boolean deleteAccount(String accountNumber) {
         String sql = "DELETE FROM accounts WHERE account_number = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.deleteAccount");
+        try (sample;
+             Connection conn = ShardRouter.getConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, accountNumber);
+            conn.setAutoCommit(false);
+            // Recorded first, while the account can still be traced to its customer
+            ChangeLog.record(conn, ChangeLog.ACCOUNTS, accountNumber);
             int rowsAffected = pstmt.executeUpdate();
+            conn.commit();
             return rowsAffected > 0;
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error deleting account: " + e.getMessage());
             return false;
         }
@@ -203,67 +275,246 @@ public class AccountDAO {
     //Get accounts by type
     public List<AccountClass> getAccountsByType(String accountType) {
         List<AccountClass> accounts = new ArrayList<>();
-        String sql = "SELECT * FROM accounts WHERE account_type = ? ORDER BY account_number";
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, accountType);
-            ResultSet rs = pstmt.executeQuery();
-            
-            while (rs.next()) {
-                accounts.add(extractAccountFromResultSet(rs));
-            }
-            
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAccountsByType");
+        try (sample) {
+            accounts = queryEveryShard("SELECT * FROM accounts WHERE account_type = ? ORDER BY account_number",
+                                       accountType);
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving accounts by type: " + e.getMessage());
         }
         
-        return accounts;
+        return sample.rows(accounts);
     }
     
     //Get total balance for a customer
     public double getTotalBalanceByCustomerId(String customerId) {
-        String sql = "SELECT SUM(balance) FROM accounts WHERE customer_id = ?";
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getTotalBalanceByCustomerId");
+        try (sample) {
+            return sumEveryShard("SELECT SUM(balance) FROM accounts WHERE customer_id = ?", customerId);
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error calculating total balance: " + e.getMessage());
+        }
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        return 0.0;
+    }
+    
+    //Get total number of accounts
+    public int getAccountCount() {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAccountCount");
+        try (sample) {
+            return (int) sumEveryShard("SELECT COUNT(*) FROM accounts", null);
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error counting accounts: " + e.getMessage());
+        }
+        
+        return 0;
+    }
+    
+    //Run an account query with at most one parameter on every shard (see ShardRouter.scatter)
+    //and merge the results in account number order
+    private List<AccountClass> queryEveryShard(String sql, String param) throws SQLException {
+        List<AccountClass> accounts = new ArrayList<>();
+        for (List<AccountClass> part : ShardRouter.scatter(conn -> {
+            List<AccountClass> found = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                if (param != null) {
+                    pstmt.setString(1, param);
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        found.add(extractAccountFromResultSet(rs));
+                    }
+                }
+            }
+            return found;
+        })) {
+            accounts.addAll(part);
+        }
+        if (ShardRouter.shardCount() > 1) {
+            accounts.sort(Comparator.comparing(AccountClass::getAccountNumber));
+        }
+        return accounts;
+    }
+    
+    //Add up a single-value aggregate over every shard
+    private double sumEveryShard(String sql, String param) throws SQLException {
+        double total = 0.0;
+        for (double part : ShardRouter.scatter(conn -> {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                if (param != null) {
+                    pstmt.setString(1, param);
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getDouble(1) : 0.0;
+                }
+            }
+        })) {
+            total += part;
+        }
+        return total;
+    }
+    
+    //Balance of an account at a point in time, or null if the account is unknown
+    //Seeks the latest balance checkpoint at or before asOf, then only the ledger rows after it;
+    //the newest of those carries the answer in its balance_after column
+    public Double getBalanceAsOf(String accountNumber, Timestamp asOf) {
+        String checkpointSql = "SELECT checkpoint_date, last_transaction_id, balance FROM balance_checkpoints " +
+                               "WHERE account_number = ? AND checkpoint_date <= ? " +
+                               "ORDER BY checkpoint_date DESC, checkpoint_id DESC LIMIT 1";
+        String branch = " WHERE account_number = ? AND transaction_date <= ? " +
+                        "AND (transaction_date > ? OR (transaction_date = ? AND transaction_id > ?)) " +
+                        "ORDER BY transaction_date DESC, transaction_id DESC LIMIT 1";
+        String ledgerSql = "SELECT balance_after FROM (" +
+                           "(SELECT balance_after, transaction_date, transaction_id FROM transactions" + branch + ") " +
+                           "UNION ALL (SELECT balance_after, transaction_date, transaction_id " +
+                           "FROM transactions_archive" + branch + ")) t " +
+                           "ORDER BY transaction_date DESC, transaction_id DESC LIMIT 1";
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getBalanceAsOf");
+        try (sample;
+             Connection conn = ShardRouter.getConnection(accountNumber);
+             PreparedStatement exists = conn.prepareStatement(
+                 "SELECT 1 FROM accounts WHERE account_number = ?");
+             PreparedStatement checkpoint = conn.prepareStatement(checkpointSql);
+             PreparedStatement ledger = conn.prepareStatement(ledgerSql)) {
             
-            pstmt.setString(1, customerId);
-            ResultSet rs = pstmt.executeQuery();
+            exists.setString(1, accountNumber);
+            try (ResultSet rs = exists.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+            }
             
-            if (rs.next()) {
-                return rs.getDouble(1);
+            // Without a checkpoint the account's balance starts at zero before its first row
+            Timestamp fromDate = new Timestamp(0);
+            long fromId = 0;
+            double balance = 0.0;
+            
+            checkpoint.setString(1, accountNumber);
+            checkpoint.setTimestamp(2, asOf);
+            try (ResultSet rs = checkpoint.executeQuery()) {
+                if (rs.next()) {
+                    fromDate = rs.getTimestamp("checkpoint_date");
+                    fromId = rs.getLong("last_transaction_id");
+                    balance = rs.getDouble("balance");
+                }
             }
             
+            for (int tier = 0; tier < 2; tier++) {
+                int offset = tier * 5;
+                ledger.setString(offset + 1, accountNumber);
+                ledger.setTimestamp(offset + 2, asOf);
+                ledger.setTimestamp(offset + 3, fromDate);
+                ledger.setTimestamp(offset + 4, fromDate);
+                ledger.setLong(offset + 5, fromId);
+            }
+            try (ResultSet rs = ledger.executeQuery()) {
+                if (rs.next()) {
+                    balance = rs.getDouble(1);
+                }
+            }
+            return balance;
+        
         } catch (SQLException e) {
-            System.err.println("Error calculating total balance: " + e.getMessage());
+            sample.error();
+            System.err.println("Error retrieving balance as of " + asOf + ": " + e.getMessage());
+            return null;
         }
+    }
+    
+    public Double getBalanceAsOf(String accountNumber, Instant asOf) {
+        return getBalanceAsOf(accountNumber, Timestamp.from(asOf));
+    }
+    
+    //Get investment accounts whose maturity date falls within [fromDate, toDate], from every shard
+    //Served by idx_accounts_maturity, so only due accounts are read
+    public List<AccountClass> getAccountsMaturingBetween(LocalDate fromDate, LocalDate toDate) {
+        List<AccountClass> accounts = new ArrayList<>();
+        String sql = "SELECT * FROM accounts WHERE maturity_date BETWEEN ? AND ? " +
+                     "ORDER BY maturity_date, account_number";
         
-        return 0.0;
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAccountsMaturingBetween");
+        try (sample) {
+            for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+                try (Connection conn = DatabaseConnection.getConnection(shard);
+                     PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    
+                    pstmt.setDate(1, Date.valueOf(fromDate));
+                    pstmt.setDate(2, Date.valueOf(toDate));
+                    ResultSet rs = pstmt.executeQuery();
+                    
+                    while (rs.next()) {
+                        accounts.add(extractAccountFromResultSet(rs));
+                    }
+                }
+            }
+        
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error retrieving maturing accounts: " + e.getMessage());
+        }
+        
+        return sample.rows(accounts);
     }
     
-    //Get total number of accounts
-    public int getAccountCount() {
-        String sql = "SELECT COUNT(*) FROM accounts";
+    //Split the accounts of the given types into contiguous account number ranges, on every shard
+    //Each shard is split into its share of the partitions, at least one range each
+    public List<AccountRange> getAccountRanges(String typeFilter, int partitions) throws SQLException {
+        int shards = ShardRouter.shardCount();
+        int perShard = Math.max(1, (partitions + shards - 1) / shards);
+        List<AccountRange> ranges = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            ranges.addAll(getAccountRanges(typeFilter, perShard, shard));
+        }
+        return ranges;
+    }
+    
+    //Split one shard's accounts of the given types into contiguous account number ranges
+    //Boundaries are found with OFFSET seeks so the key space is never loaded into memory
+    public List<AccountRange> getAccountRanges(String typeFilter, int partitions, int shard)
+            throws SQLException {
+        List<AccountRange> ranges = new ArrayList<>();
+        String countSql = "SELECT COUNT(*) FROM accounts WHERE " + typeFilter;
+        String boundarySql = "SELECT account_number FROM accounts WHERE " + typeFilter +
+                             " ORDER BY account_number LIMIT 1 OFFSET ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("AccountDAO.getAccountRanges");
+        try (sample;
+             Connection conn = DatabaseConnection.getConnection(shard);
              Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             ResultSet countRs = stmt.executeQuery(countSql);
+             PreparedStatement pstmt = conn.prepareStatement(boundarySql)) {
             
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
+            int total = countRs.next() ? countRs.getInt(1) : 0;
+            int parts = Math.max(1, Math.min(partitions, total));
+            String lowExclusive = null;
             
+            for (int i = 1; i < parts; i++) {
+                pstmt.setInt(1, (int) ((long) total * i / parts) - 1);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        String highInclusive = rs.getString(1);
+                        ranges.add(new AccountRange(shard, lowExclusive, highInclusive));
+                        lowExclusive = highInclusive;
+                    }
+                }
+            }
+            ranges.add(new AccountRange(shard, lowExclusive, null));
+        
         } catch (SQLException e) {
-            System.err.println("Error counting accounts: " + e.getMessage());
+            sample.error();
+            throw new SQLException("Error partitioning accounts on shard " + shard + ": " + e.getMessage(), e);
         }
         
-        return 0;
+        return sample.rows(ranges);
     }
     
     //Helper method to extract account from ResultSet
-    private AccountClass extractAccountFromResultSet(ResultSet rs) throws SQLException {
+    AccountClass extractAccountFromResultSet(ResultSet rs) throws SQLException {
         String accountNumber = rs.getString("account_number");
         String customerId = rs.getString("customer_id");
         String accountType = rs.getString("account_type");
@@ -281,7 +532,7 @@ public class AccountDAO {
                 ((SavingsAccountClass) account).setWithdrawalLimit(withdrawalLimit);
                 ((SavingsAccountClass) account).setMinimumBalance(minimumBalance);
                 break;
-                
+            
             case "Cheque":
                 account = new ChequeAccountClass(accountNumber, customerId, balance);
                 double withdrawalLimitCheque = rs.getDouble("withdrawal_limit");
@@ -289,17 +540,24 @@ public class AccountDAO {
                 ((ChequeAccountClass) account).setWithdrawalLimit(withdrawalLimitCheque);
                 ((ChequeAccountClass) account).setOverdraftLimit(overdraftLimit);
                 break;
-                
+            
             case "Investment":
                 String investmentType = rs.getString("investment_type");
                 account = new InvestmentAccountClass(accountNumber, customerId, investmentType, balance);
                 double investmentInterestRate = rs.getDouble("interest_rate");
                 int termMonths = rs.getInt("term_months");
+                Date startDate = rs.getDate("start_date");
                 ((InvestmentAccountClass) account).setInterestRate(investmentInterestRate);
                 ((InvestmentAccountClass) account).setTermMonths(termMonths);
+                if (startDate != null) {
+                    ((InvestmentAccountClass) account).setStartDate(startDate.toLocalDate());
+                }
                 break;
         }
         
+        if (account != null) {
+            account.setVersion(rs.getLong("version"));
+        }
         return account;
     }
 }
@@ -0,0 +1,62 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+//A contiguous slice of the account number key space on one shard: (lowExclusive, highInclusive]
+//A null bound means the range is open on that side
+public class AccountRange {
+    private final int shard;
+    private final String lowExclusive;
+    private final String highInclusive;
+    
+    public AccountRange(String lowExclusive, String highInclusive) {
+        this(0, lowExclusive, highInclusive);
+    }
+    
+    public AccountRange(int shard, String lowExclusive, String highInclusive) {
+        this.shard = shard;
+        this.lowExclusive = lowExclusive;
+        this.highInclusive = highInclusive;
+    }
+    
+    //Shard whose accounts the range covers (see ShardRouter)
+    public int getShard() {
+        return shard;
+    }
+    
+    public String getLowExclusive() {
+        return lowExclusive;
+    }
+    
+    public String getHighInclusive() {
+        return highInclusive;
+    }
+    
+    //SQL predicate for this range over the given column; bind the bounds with bind()
+    public String toSql(String column) {
+        StringBuilder sql = new StringBuilder("1 = 1");
+        if (lowExclusive != null) {
+            sql.append(" AND ").append(column).append(" > ?");
+        }
+        if (highInclusive != null) {
+            sql.append(" AND ").append(column).append(" <= ?");
+        }
+        return sql.toString();
+    }
+    
+    //Bind the bounds starting at the given parameter index, returns the next free index
+    public int bind(PreparedStatement pstmt, int index) throws SQLException {
+        if (lowExclusive != null) {
+            pstmt.setString(index++, lowExclusive);
+        }
+        if (highInclusive != null) {
+            pstmt.setString(index++, highInclusive);
+        }
+        return index;
+    }
+    
+    @Override
+    public String toString() {
+        return "AccountRange [" + (shard > 0 ? "shard " + shard + ": " : "") + (lowExclusive != null ? lowExclusive : "-inf") + 
+               ", " + (highInclusive != null ? highInclusive : "+inf") + "]";
+    }
+}
@@ -212,12 +212,18 @@ public class AccountView {
     
     public void refreshAccountList() {
         ObservableList<String> accounts = FXCollections.observableArrayList();
-        var accountsList = controller.getCustomerAccounts(currentCustomer.getCustomerId());
+        var summary = controller.getCustomerSummary();
         
-        for (AccountClass account : accountsList) {
-            accounts.add(account.getAccountNumber() + " - " + 
-                        account.getAccountType() + " - $" + 
-                        String.format("%.2f", account.getBalance()));
+        if (summary != null) {
+            for (var account : summary.getAccounts()) {
+                accounts.add(account.getAccountNumber() + " - " + 
+                            account.getAccountType() + " - $" + 
+                            String.format("%.2f", account.getBalance()));
+            }
+        } else if (controller.getRetryAfterMillis() > 0) {
+            // Keep the current list rather than blanking it while rate limited
+            accountDetailsLabel.setText(retryMessage(controller.getRetryAfterMillis()));
+            return;
         }
         
         accountListView.setItems(accounts);
@@ -226,6 +232,10 @@ public class AccountView {
     private void handleAccountSelection(String selection) {
         String accountNumber = selection.split(" - ")[0];
         AccountClass account = controller.getAccountByNumber(accountNumber);
+        if (account == null && controller.getRetryAfterMillis() > 0) {
+            accountDetailsLabel.setText(retryMessage(controller.getRetryAfterMillis()));
+            return;
+        }
         
         if (account != null) {
             accountDetailsLabel.setText(
@@ -269,13 +279,14 @@ public class AccountView {
             double amount = Double.parseDouble(amountField.getText());
             String accountNumber = selected.split(" - ")[0];
             
-            if (controller.handleDeposit(accountNumber, amount)) {
+            AccountController.Result result = controller.handleDeposit(accountNumber, amount);
+            if (result.isSucceeded()) {
                 showAlert("Success", "Deposit successful!");
                 refreshAccountList();
                 handleAccountSelection(selected);
                 amountField.clear();
             } else {
-                showAlert("Error", "Deposit failed");
+                showAlert("Error", failureMessage(result, "Deposit failed"));
             }
         } catch (NumberFormatException e) {
             showAlert("Error", "Please enter a valid amount");
@@ -293,13 +304,14 @@ public class AccountView {
             double amount = Double.parseDouble(amountField.getText());
             String accountNumber = selected.split(" - ")[0];
             
-            if (controller.handleWithdraw(accountNumber, amount)) {
+            AccountController.Result result = controller.handleWithdraw(accountNumber, amount);
+            if (result.isSucceeded()) {
                 showAlert("Success", "Withdrawal successful!");
                 refreshAccountList();
                 handleAccountSelection(selected);
                 amountField.clear();
             } else {
-                showAlert("Error", "Withdrawal failed - insufficient funds or exceeds limits");
+                showAlert("Error", failureMessage(result, "Withdrawal failed - insufficient funds or exceeds limits"));
             }
         } catch (NumberFormatException e) {
             showAlert("Error", "Please enter a valid amount");
@@ -339,10 +351,13 @@ public class AccountView {
                 double initialDeposit = Double.parseDouble(initialDepositField.getText());
                 String type = typeCombo.getValue();
                 
-                if (controller.handleCreateAccount(currentCustomer.getCustomerId(), 
-                                                   type, initialDeposit)) {
+                AccountController.Result created =
+                    controller.handleCreateAccount(currentCustomer.getCustomerId(), type, initialDeposit);
+                if (created.isSucceeded()) {
                     showAlert("Success", "Account created successfully!");
                     refreshAccountList();
+                } else {
+                    showAlert("Error", failureMessage(created, "Account could not be created"));
                 }
             } catch (NumberFormatException e) {
                 showAlert("Error", "Invalid deposit amount");
@@ -358,6 +373,15 @@ public class AccountView {
         }
     }
     
+    //Message for a failed request, telling the customer when to retry if it was rate limited
+    private String failureMessage(AccountController.Result result, String message) {
+        return result.isRateLimited() ? retryMessage(result.getRetryAfterMillis()) : message;
+    }
+    
+    private static String retryMessage(long retryAfterMillis) {
+        return "Too many requests - please try again in " + (retryAfterMillis + 999) / 1000 + " seconds";
+    }
+    
     private void showAlert(String title, String content) {
         Alert alert = new Alert(Alert.AlertType.INFORMATION);
         alert.setTitle(title);
@@ -0,0 +1,197 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//Admission control in front of BankSystemWithDAO, so one runaway client cannot saturate the database.
+//
+//BankSystemWithDAO admits every money movement, account opening and customer-facing read
+//through it, keyed by the customer the request is for (the owner, for a request on an account),
+//and throws RejectedException for a request turned away. Each key gets a token bucket per operation type, implemented as
+//GCRA: one AtomicLong holds the time the bucket will next be full, and admitting a request is
+//a single CAS that pushes it forward by one emission interval. A global semaphore caps the requests running
+//against the database at once, by default the connection pool size. Both checks are
+//non-blocking; a rejected request gets a retry-after hint straight away instead of queueing
+//behind the spike, which keeps tail latency bounded for everyone else.
+//
+//Bucket sizes come from -Dbank.admission.<operation>=<requests per second>/<burst>, e.g.
+//-Dbank.admission.withdraw=5/10, and the concurrency cap from -Dbank.admission.maxConcurrent.
+public class AdmissionControl {
+    public enum Operation {
+        DEPOSIT(5, 10),
+        WITHDRAW(5, 10),
+        TRANSFER(5, 10),
+        OPEN_ACCOUNT(1, 3),
+        READ(20, 40);
+        
+        final double defaultRate;
+        final int defaultBurst;
+        
+        Operation(double defaultRate, int defaultBurst) {
+            this.defaultRate = defaultRate;
+            this.defaultBurst = defaultBurst;
+        }
+    }
+    
+    // Hint given when the concurrency cap is hit; roughly one database round trip
+    private static final long BUSY_RETRY_NANOS = 50_000_000;
+    // Value of a bucket cell the sweep has retired; a request that finds it looks the cell up again
+    private static final long RETIRED = Long.MIN_VALUE;
+    private static final long SWEEP_INTERVAL_NANOS = 60_000_000_000L;
+    
+    private static final AdmissionControl INSTANCE = new AdmissionControl(
+        Integer.getInteger("bank.admission.maxConcurrent", DatabaseConnection.POOL_SIZE), System::nanoTime);
+    
+    private final Map<Operation, Bucket> buckets = new EnumMap<>(Operation.class);
+    private final Semaphore inFlight;
+    private final LongSupplier clock;
+    private final AtomicLong lastSweep;
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    
+    //Per-key token buckets for one operation type
+    private static final class Bucket {
+        final long intervalNanos;  // Time to earn one request
+        final long toleranceNanos; // How far ahead of schedule a burst may run
+        final ConcurrentHashMap<String, AtomicLong> fullAt = new ConcurrentHashMap<>();
+        
+        Bucket(double ratePerSecond, int burst) {
+            this.intervalNanos = (long) (1_000_000_000L / ratePerSecond);
+            this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        }
+        
+        //0 if admitted, otherwise nanoseconds until a request would be
+        long tryTake(String key, long now) {
+            AtomicLong cell = fullAt.get(key);
+            if (cell == null) {
+                cell = fullAt.computeIfAbsent(key, k -> new AtomicLong(now));
+            }
+            while (true) {
+                long current = cell.get();
+                if (current == RETIRED) {
+                    AtomicLong fresh = new AtomicLong(now);
+                    cell = fullAt.replace(key, cell, fresh) ? fresh :
+                           fullAt.computeIfAbsent(key, k -> new AtomicLong(now));
+                    continue;
+                }
+                long start = Math.max(current, now);
+                long wait = start - now - toleranceNanos;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (cell.compareAndSet(current, start + intervalNanos)) {
+                    return 0;
+                }
+            }
+        }
+    }
+    
+    public AdmissionControl(int maxConcurrent, LongSupplier nanoClock) {
+        for (Operation operation : Operation.values()) {
+            String setting = System.getProperty("bank.admission." + operation.name().toLowerCase());
+            double rate = operation.defaultRate;
+            int burst = operation.defaultBurst;
+            if (setting != null) {
+                String[] parts = setting.split("/");
+                rate = Double.parseDouble(parts[0].trim());
+                burst = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : (int) Math.ceil(rate);
+            }
+            buckets.put(operation, new Bucket(rate, burst));
+        }
+        this.inFlight = new Semaphore(maxConcurrent);
+        this.clock = nanoClock;
+        this.lastSweep = new AtomicLong(nanoClock.getAsLong());
+    }
+    
+    public static AdmissionControl getInstance() {
+        return INSTANCE;
+    }
+    
+    //A request turned away by admit; the caller may retry after getRetryAfterMillis
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterMillis;
+        
+        public RejectedException(long retryAfterMillis) {
+            super("Too many requests, retry in " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+        
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+    
+    //Admit a request or throw RejectedException; once admitted the caller must call release() when done
+    public void admit(String key, Operation operation) {
+        long retryAfterMillis = tryAdmit(key, operation);
+        if (retryAfterMillis > 0) {
+            throw new RejectedException(retryAfterMillis);
+        }
+    }
+    
+    //Try to admit a request without waiting
+    //Returns 0 if admitted, and the caller must then call release() when done;
+    //otherwise returns how many milliseconds to wait before retrying
+    public long tryAdmit(String key, Operation operation) {
+        long now = clock.getAsLong();
+        sweepIfDue(now);
+        
+        // Permit first, so a request turned away for overload does not use up the key's tokens
+        if (!inFlight.tryAcquire()) {
+            overloaded.increment();
+            return toRetryMillis(BUSY_RETRY_NANOS);
+        }
+        long wait = buckets.get(operation).tryTake(key, now);
+        if (wait > 0) {
+            inFlight.release();
+            rateLimited.increment();
+            return toRetryMillis(wait);
+        }
+        return 0;
+    }
+    
+    //Finish a request admitted by admit or tryAdmit
+    public void release() {
+        inFlight.release();
+    }
+    
+    public int getAvailablePermits() {
+        return inFlight.availablePermits();
+    }
+    
+    //Requests rejected by a key's rate limit
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+    
+    //Requests rejected because the concurrency cap was reached
+    public long getOverloadedCount() {
+        return overloaded.sum();
+    }
+    
+    private static long toRetryMillis(long nanos) {
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+    
+    //Forget buckets that have refilled completely; they behave exactly like new ones
+    //A cell is retired by CAS before it is removed, so a request racing the sweep either lands
+    //before the retirement (and the cell is kept) or sees it and starts a fresh cell
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (Bucket bucket : buckets.values()) {
+            bucket.fullAt.forEach((key, cell) -> {
+                long full = cell.get();
+                if (full <= now && full != RETIRED && cell.compareAndSet(full, RETIRED)) {
+                    bucket.fullAt.remove(key, cell);
+                }
+            });
+        }
+    }
+}
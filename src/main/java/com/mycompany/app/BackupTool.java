@@ -0,0 +1,513 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+//Compact binary backup and restore of the whole bank database.
+//
+//File layout: an 8-byte magic header followed by a deflate-compressed stream holding, per
+//table, its name and column descriptors and then one length-prefixed record per row, ended
+//by a -1 length. Tables are read through forward-only cursors and written through a
+//FileChannel.
+//
+//Restore loads the whole file with batched inserts into fresh tables in a staging schema,
+//checking every record against its length prefix. Only once that has succeeded are the live
+//tables recreated without indexes and filled from staging in one transaction; the secondary
+//indexes are built once at the end. A corrupt or truncated file therefore leaves the live
+//data untouched. Should the final copy itself fail, the staging schema is kept so the
+//loaded backup is not lost.
+//
+//With more than one shard every shard is backed up to its own file: shard 0 to the given
+//file and shard i to the file name with ".shard<i>" appended. Each file is a snapshot of its
+//shard; a restore stages every shard's file before it replaces any live table.
+public class BackupTool {
+    private static final byte[] MAGIC = {'B', 'A', 'N', 'K', 'B', 'A', 'K', '1'};
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int FETCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int COMMIT_ROWS = 50_000;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final String STAGING_SCHEMA = "restore_staging";
+    
+    // Value tags inside a row record
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte TIMESTAMP = 5;
+    private static final byte DATE = 6;
+    private static final byte BOOLEAN = 7;
+    
+    //Column descriptor stored in the backup header of each table
+    private static class Column {
+        final String name;
+        final int sqlType;
+        final boolean autoIncrement;
+        
+        Column(String name, int sqlType, boolean autoIncrement) {
+            this.name = name;
+            this.sqlType = sqlType;
+            this.autoIncrement = autoIncrement;
+        }
+    }
+    
+    //Backup file of one shard
+    static Path shardFile(Path file, int shard) {
+        return shard == 0 ? file : file.resolveSibling(file.getFileName() + ".shard" + shard);
+    }
+    
+    //Write every table of every shard to the backup files, returns the number of rows written
+    public long backup(Path file) throws IOException, SQLException {
+        long totalRows = 0;
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            totalRows += backup(shardFile(file, shard), shard);
+        }
+        return totalRows;
+    }
+    
+    private long backup(Path file, int shard) throws IOException, SQLException {
+        long start = System.nanoTime();
+        long totalRows = 0;
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+             Connection conn = DatabaseConnection.openConnection(shard)) {
+            
+            BufferedOutputStream raw = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            raw.write(MAGIC);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DataOutputStream out = new DataOutputStream(
+                new DeflaterOutputStream(raw, deflater, BUFFER_SIZE));
+            
+            // Read a consistent snapshot of all tables
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            
+            out.writeInt(DatabaseConnection.TABLES.length);
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(512);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            
+            for (String table : DatabaseConnection.TABLES) {
+                long rows = 0;
+                try (Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                                           ResultSet.CONCUR_READ_ONLY)) {
+                    stmt.setFetchSize(FETCH_SIZE);
+                    try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table)) {
+                        List<Column> columns = describe(rs.getMetaData());
+                        out.writeUTF(table);
+                        out.writeInt(columns.size());
+                        for (Column column : columns) {
+                            out.writeUTF(column.name);
+                            out.writeInt(column.sqlType);
+                            out.writeBoolean(column.autoIncrement);
+                        }
+                        
+                        while (rs.next()) {
+                            recordBytes.reset();
+                            for (int i = 0; i < columns.size(); i++) {
+                                writeValue(record, rs, i + 1, columns.get(i).sqlType);
+                            }
+                            out.writeInt(recordBytes.size());
+                            recordBytes.writeTo(out);
+                            rows++;
+                        }
+                        out.writeInt(-1);
+                    }
+                }
+                totalRows += rows;
+                System.out.println("  " + table + ": " + rows + " rows");
+            }
+            
+            conn.commit();
+            out.close();
+            deflater.end();
+        }
+        
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Backup written to " + file + ": " + totalRows + " rows in " +
+                           elapsedMillis + " ms");
+        return totalRows;
+    }
+    
+    //Replace the database contents with the backup, returns the number of rows restored
+    public long restore(Path file) throws IOException, SQLException {
+        long start = System.nanoTime();
+        long totalRows = 0;
+        int shards = ShardRouter.shardCount();
+        Connection[] conns = new Connection[shards];
+        List<Map<String, String>> identityRestarts = new ArrayList<>();
+        
+        try {
+            // Every shard's file must load before any live table is replaced
+            for (int shard = 0; shard < shards; shard++) {
+                conns[shard] = DatabaseConnection.openConnection(shard);
+                identityRestarts.add(new LinkedHashMap<>());
+                try {
+                    totalRows += stage(conns[shard], shardFile(file, shard), identityRestarts.get(shard));
+                } catch (IOException | SQLException e) {
+                    for (int staged = 0; staged < shard; staged++) {
+                        dropStaging(conns[staged]);
+                    }
+                    throw e;
+                }
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                swapIn(conns[shard], identityRestarts.get(shard));
+            }
+        } finally {
+            for (Connection conn : conns) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+            CustomerSearchIndex.getInstance().invalidate();
+        }
+        
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Backup restored from " + file + ": " + totalRows + " rows in " +
+                           elapsedMillis + " ms");
+        return totalRows;
+    }
+    
+    //Load one shard's backup file into the staging schema, returns the number of rows loaded
+    //A failure drops the staging schema again and leaves the live tables as they were
+    private long stage(Connection conn, Path file, Map<String, String> identityRestarts)
+            throws IOException, SQLException {
+        long totalRows = 0;
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BufferedInputStream raw = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            if (raw.read(magic) != MAGIC.length || !Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a bank backup file: " + file);
+            }
+            Inflater inflater = new Inflater();
+            DataInputStream in = new DataInputStream(new InflaterInputStream(raw, inflater, BUFFER_SIZE));
+            
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP SCHEMA IF EXISTS " + STAGING_SCHEMA + " CASCADE");
+                stmt.execute("CREATE SCHEMA " + STAGING_SCHEMA);
+                stmt.execute("SET SCHEMA " + STAGING_SCHEMA);
+                DatabaseConnection.createTables(stmt);
+            }
+            try {
+                conn.setAutoCommit(false);
+                int tableCount = in.readInt();
+                for (int t = 0; t < tableCount; t++) {
+                    String table = in.readUTF();
+                    int columnCount = in.readInt();
+                    List<Column> columns = new ArrayList<>();
+                    for (int i = 0; i < columnCount; i++) {
+                        columns.add(new Column(in.readUTF(), in.readInt(), in.readBoolean()));
+                    }
+                    long rows = restoreTable(conn, in, table, columns, identityRestarts);
+                    totalRows += rows;
+                    System.out.println("  " + table + ": " + rows + " rows");
+                }
+                if (in.read() != -1) {
+                    throw new IOException("Corrupt backup: data after the last table");
+                }
+                conn.commit();
+            } catch (IOException | SQLException e) {
+                conn.rollback();
+                dropStaging(conn);
+                throw e;
+            } finally {
+                inflater.end();
+            }
+        }
+        return totalRows;
+    }
+    
+    //Discard a staged backup that will not be swapped in
+    private void dropStaging(Connection conn) throws SQLException {
+        conn.setAutoCommit(true);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET SCHEMA PUBLIC");
+            stmt.execute("DROP SCHEMA " + STAGING_SCHEMA + " CASCADE");
+        }
+    }
+    
+    //Replace the live tables with the staged ones, then drop the staging schema
+    private void swapIn(Connection conn, Map<String, String> identityRestarts) throws SQLException {
+        conn.setAutoCommit(true);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET SCHEMA PUBLIC");
+            DatabaseConnection.dropTables(stmt);
+            DatabaseConnection.createTables(stmt);
+            
+            // Creation order puts referenced tables first. The data now has the current layout,
+            // so the version history from the backup is replaced by the current version.
+            conn.setAutoCommit(false);
+            try {
+                for (String table : DatabaseConnection.TABLES) {
+                    if (!table.equals("schema_version")) {
+                        stmt.executeUpdate("INSERT INTO " + table + " SELECT * FROM " + STAGING_SCHEMA + "." + table);
+                    }
+                }
+                SchemaManager.stamp(stmt, SchemaManager.CURRENT_VERSION);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Copying the restored tables failed; the loaded backup is kept in schema " +
+                                       STAGING_SCHEMA + ": " + e.getMessage(), e);
+            }
+            conn.setAutoCommit(true);
+            
+            for (String restart : identityRestarts.values()) {
+                stmt.execute(restart);
+            }
+            // Deferred index build over the loaded data
+            DatabaseConnection.createIndexes(stmt);
+            stmt.execute("DROP SCHEMA " + STAGING_SCHEMA + " CASCADE");
+        }
+    }
+    
+    //Load one table's records into the staging schema, noting how to continue its generated keys
+    private long restoreTable(Connection conn, DataInputStream in, String table, List<Column> columns,
+                              Map<String, String> identityRestarts) throws IOException, SQLException {
+        StringBuilder names = new StringBuilder();
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            names.append(i == 0 ? "" : ", ").append(columns.get(i).name);
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        String sql = "INSERT INTO " + table + " (" + names + ") VALUES (" + placeholders + ")";
+        
+        long rows = 0;
+        long maxIdentity = 0;
+        String identityColumn = null;
+        byte[] buffer = new byte[512];
+        try (PreparedStatement insert = conn.prepareStatement(sql)) {
+            int length;
+            while ((length = in.readInt()) >= 0) {
+                if (length > MAX_RECORD_BYTES) {
+                    throw new IOException("Corrupt backup: record of " + length + " bytes in " + table);
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                
+                // The values must fill the record exactly, or the file is out of step
+                ByteArrayInputStream recordBytes = new ByteArrayInputStream(buffer, 0, length);
+                DataInputStream record = new DataInputStream(recordBytes);
+                try {
+                    for (int i = 0; i < columns.size(); i++) {
+                        Object value = readValue(record, insert, i + 1, columns.get(i).sqlType);
+                        if (columns.get(i).autoIncrement && value instanceof Long) {
+                            identityColumn = columns.get(i).name;
+                            maxIdentity = Math.max(maxIdentity, (Long) value);
+                        }
+                    }
+                } catch (EOFException e) {
+                    throw new IOException("Corrupt backup: record shorter than its values in " + table, e);
+                }
+                if (recordBytes.available() != 0) {
+                    throw new IOException("Corrupt backup: record longer than its values in " + table);
+                }
+                insert.addBatch();
+                rows++;
+                if (rows % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+                if (rows % COMMIT_ROWS == 0) {
+                    conn.commit();
+                }
+            }
+            insert.executeBatch();
+        }
+        
+        if (identityColumn != null) {
+            // Continue generated keys after the restored ones
+            identityRestarts.put(table, "ALTER TABLE " + table + " ALTER COLUMN " + identityColumn +
+                                        " RESTART WITH " + (maxIdentity + 1));
+        }
+        return rows;
+    }
+    
+    private List<Column> describe(ResultSetMetaData meta) throws SQLException {
+        List<Column> columns = new ArrayList<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            columns.add(new Column(meta.getColumnName(i), meta.getColumnType(i), meta.isAutoIncrement(i)));
+        }
+        return columns;
+    }
+    
+    private void writeValue(DataOutputStream out, ResultSet rs, int index, int sqlType)
+            throws IOException, SQLException {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT: {
+                long value = rs.getLong(index);
+                if (rs.wasNull()) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(LONG);
+                    out.writeLong(value);
+                }
+                break;
+            }
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE: {
+                double value = rs.getDouble(index);
+                if (rs.wasNull()) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble(value);
+                }
+                break;
+            }
+            case Types.DECIMAL:
+            case Types.NUMERIC: {
+                BigDecimal value = rs.getBigDecimal(index);
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(DECIMAL);
+                    out.writeUTF(value.toPlainString());
+                }
+                break;
+            }
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE: {
+                Timestamp value = rs.getTimestamp(index);
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(TIMESTAMP);
+                    out.writeLong(value.getTime());
+                    out.writeInt(value.getNanos());
+                }
+                break;
+            }
+            case Types.DATE: {
+                Date value = rs.getDate(index);
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(DATE);
+                    out.writeLong(value.toLocalDate().toEpochDay());
+                }
+                break;
+            }
+            case Types.BOOLEAN:
+            case Types.BIT: {
+                boolean value = rs.getBoolean(index);
+                if (rs.wasNull()) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(BOOLEAN);
+                    out.writeBoolean(value);
+                }
+                break;
+            }
+            default: {
+                String value = rs.getString(index);
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(STRING);
+                    out.writeUTF(value);
+                }
+                break;
+            }
+        }
+    }
+    
+    //Read one value and bind it, returning the value for identity tracking
+    private Object readValue(DataInputStream in, PreparedStatement pstmt, int index, int sqlType)
+            throws IOException, SQLException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                pstmt.setNull(index, sqlType);
+                return null;
+            case LONG: {
+                long value = in.readLong();
+                pstmt.setLong(index, value);
+                return value;
+            }
+            case DOUBLE: {
+                double value = in.readDouble();
+                pstmt.setDouble(index, value);
+                return value;
+            }
+            case DECIMAL: {
+                BigDecimal value = new BigDecimal(in.readUTF());
+                pstmt.setBigDecimal(index, value);
+                return value;
+            }
+            case TIMESTAMP: {
+                Timestamp value = new Timestamp(in.readLong());
+                value.setNanos(in.readInt());
+                pstmt.setTimestamp(index, value);
+                return value;
+            }
+            case DATE: {
+                Date value = Date.valueOf(LocalDate.ofEpochDay(in.readLong()));
+                pstmt.setDate(index, value);
+                return value;
+            }
+            case BOOLEAN: {
+                boolean value = in.readBoolean();
+                pstmt.setBoolean(index, value);
+                return value;
+            }
+            case STRING: {
+                String value = in.readUTF();
+                pstmt.setString(index, value);
+                return value;
+            }
+            default:
+                throw new IOException("Corrupt backup: unknown value tag " + tag);
+        }
+    }
+    
+    //Command line entry point: BackupTool backup|restore <file>
+    public static void main(String[] args) {
+        if (args.length != 2 || !(args[0].equals("backup") || args[0].equals("restore"))) {
+            System.err.println("Usage: BackupTool backup|restore <file>");
+            return;
+        }
+        
+        BackupTool tool = new BackupTool();
+        Path file = Paths.get(args[1]);
+        try {
+            if (args[0].equals("backup")) {
+                tool.backup(file);
+            } else {
+                tool.restore(file);
+            }
+        } catch (IOException | SQLException e) {
+            System.err.println("Error during " + args[0] + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Writes balance_checkpoints rows so AccountDAO.getBalanceAsOf never has to walk a long history.
+//Every account gets a checkpoint from the daily snapshot, and busy accounts get an extra one
+//every CHECKPOINT_INTERVAL transactions, so the rows between a checkpoint and any point in
+//time stay few. The per-account count lives in memory but is seeded from the ledger the first
+//time an account is seen, so a restart does not reset it.
+public class BalanceCheckpointWriter {
+    static final int CHECKPOINT_INTERVAL = 100;
+    private static final int CHUNK_SIZE = 1000;
+    
+    // Transactions recorded per account since its last checkpoint, for accounts seen by this process
+    private static final ConcurrentHashMap<String, Integer> sinceCheckpoint = new ConcurrentHashMap<>();
+    
+    private ScheduledExecutorService scheduler;
+    
+    //Count a new ledger row and checkpoint the account on the caller's connection when it is due
+    static void onTransaction(Connection conn, String accountNumber, long transactionId) throws SQLException {
+        int count;
+        if (sinceCheckpoint.containsKey(accountNumber)) {
+            count = sinceCheckpoint.merge(accountNumber, 1, Integer::sum);
+        } else {
+            // The ledger count already includes the new row; if another thread seeded meanwhile, just add it
+            int seeded = countSinceCheckpoint(conn, accountNumber);
+            count = sinceCheckpoint.merge(accountNumber, seeded, (current, ignored) -> current + 1);
+        }
+        if (count < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        sinceCheckpoint.remove(accountNumber);
+        
+        String sql = "INSERT INTO balance_checkpoints (account_number, checkpoint_date, " +
+                     "last_transaction_id, balance) SELECT account_number, transaction_date, " +
+                     "transaction_id, balance_after FROM transactions WHERE transaction_id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, transactionId);
+            pstmt.executeUpdate();
+        }
+    }
+    
+    //Count the rows a batched insert into transactions just added, given their accounts in batch order
+    //The insert must have been prepared with RETURN_GENERATED_KEYS
+    static void onTransactions(Connection conn, PreparedStatement insert, List<String> accountNumbers)
+            throws SQLException {
+        try (ResultSet keys = insert.getGeneratedKeys()) {
+            for (String accountNumber : accountNumbers) {
+                if (!keys.next()) {
+                    throw new SQLException("No transaction ID generated");
+                }
+                onTransaction(conn, accountNumber, keys.getLong(1));
+            }
+        }
+    }
+    
+    //Ledger rows of an account after its newest checkpoint
+    private static int countSinceCheckpoint(Connection conn, String accountNumber) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM transactions WHERE account_number = ? AND transaction_id > " +
+                     "COALESCE((SELECT MAX(last_transaction_id) FROM balance_checkpoints " +
+                     "WHERE account_number = ?), 0)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, accountNumber);
+            pstmt.setString(2, accountNumber);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 1;
+            }
+        }
+    }
+    
+    //Run the daily snapshot on a daemon thread
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "balance-checkpoints");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(this::writeDailyCheckpoints, 1, 24, TimeUnit.HOURS);
+    }
+    
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    //Snapshot every account's balance and last ledger row on every shard, in chunks of accounts
+    //Archived rows are older than live ones, so the archive only counts when nothing is live
+    //Returns the number of checkpoints written
+    public int writeDailyCheckpoints() {
+        int written = 0;
+        long start = System.nanoTime();
+        boolean complete = true;
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            try {
+                written += writeDailyCheckpoints(shard);
+            } catch (SQLException e) {
+                System.err.println("Error writing balance checkpoints on shard " + shard + ": " + e.getMessage());
+                complete = false;
+            }
+        }
+        if (complete) {
+            sinceCheckpoint.clear();
+        }
+        
+        System.out.println("Balance checkpoints written for " + written + " accounts in " +
+                           (System.nanoTime() - start) / 1_000_000 + " ms");
+        return written;
+    }
+    
+    private int writeDailyCheckpoints(int shard) throws SQLException {
+        String sql = "INSERT INTO balance_checkpoints (account_number, checkpoint_date, " +
+                     "last_transaction_id, balance) " +
+                     "SELECT a.account_number, CURRENT_TIMESTAMP, " +
+                     "COALESCE((SELECT MAX(t.transaction_id) FROM transactions t " +
+                     "WHERE t.account_number = a.account_number), " +
+                     "(SELECT MAX(x.transaction_id) FROM transactions_archive x " +
+                     "WHERE x.account_number = a.account_number)), a.balance " +
+                     "FROM accounts a WHERE a.account_number > ? AND a.account_number <= ?";
+        String chunkEndSql = "SELECT MAX(account_number) FROM (SELECT account_number FROM accounts " +
+                             "WHERE account_number > ? ORDER BY account_number LIMIT ?) t";
+        
+        int written = 0;
+        String lastAccount = "";
+        
+        try (Connection conn = DatabaseConnection.openConnection(shard);
+             PreparedStatement chunkEnd = conn.prepareStatement(chunkEndSql);
+             PreparedStatement insert = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            
+            while (true) {
+                chunkEnd.setString(1, lastAccount);
+                chunkEnd.setInt(2, CHUNK_SIZE);
+                String endAccount;
+                try (ResultSet rs = chunkEnd.executeQuery()) {
+                    endAccount = rs.next() ? rs.getString(1) : null;
+                }
+                if (endAccount == null) {
+                    break;
+                }
+                
+                // Lock the chunk so balances and ledger rows are read at the same point
+                try (PreparedStatement lock = conn.prepareStatement(
+                         "SELECT account_number FROM accounts WHERE account_number > ? " +
+                         "AND account_number <= ? FOR UPDATE")) {
+                    lock.setString(1, lastAccount);
+                    lock.setString(2, endAccount);
+                    lock.executeQuery().close();
+                    
+                    insert.setString(1, lastAccount);
+                    insert.setString(2, endAccount);
+                    written += insert.executeUpdate();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                lastAccount = endAccount;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,369 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+//Microbenchmark harness for the domain classes, BankSystemClass and the DAOs.
+//
+//Each benchmark is run for every data size and thread count it depends on: a number of
+//timed warmup iterations, then measured iterations during which every thread calls the
+//operation in a loop until the iteration time is up. Results are reported as throughput
+//(mean and standard deviation over the measured iterations) and average time per call.
+//Results are folded into a sink so the JIT cannot drop the calls being measured.
+//DAO benchmarks run against the database named by -Dbank.db.url; use an in-memory H2 URL
+//(the "bench" Maven profile sets one) so the bank's own database is never touched.
+//
+//Usage: BankBenchmarks [--filter=regex] [--sizes=1000,100000] [--threads=1,4]
+//                      [--warmup=3] [--iterations=5] [--time=1000]
+public class BankBenchmarks {
+    private static final double LARGE_BALANCE = 1e12;
+    private static final int LEDGER_ROWS_PER_ACCOUNT = 5;
+    private static final int SEED_BATCH = 1000;
+    
+    private static volatile long sink;
+    
+    //One call of the code being measured; threadIndex lets benchmarks keep per-thread state
+    interface Operation {
+        Object run(int threadIndex);
+    }
+    
+    //Builds the operation for a data size and thread count
+    interface Setup {
+        Operation create(int size, int threads) throws Exception;
+    }
+    
+    private static class Benchmark {
+        final String name;
+        final boolean sized;
+        final boolean threaded;
+        final Setup setup;
+        
+        Benchmark(String name, boolean sized, boolean threaded, Setup setup) {
+            this.name = name;
+            this.sized = sized;
+            this.threaded = threaded;
+            this.setup = setup;
+        }
+    }
+    
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationMillis;
+    
+    public BankBenchmarks(int warmupIterations, int measuredIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationMillis = iterationMillis;
+        registerDomainBenchmarks();
+        registerBankSystemBenchmarks();
+        registerDaoBenchmarks();
+    }
+    
+    private void add(String name, boolean sized, boolean threaded, Setup setup) {
+        benchmarks.add(new Benchmark(name, sized, threaded, setup));
+    }
+    
+    //Account deposit and the per-type withdraw rules, one account per thread
+    private void registerDomainBenchmarks() {
+        add("AccountClass.deposit", false, true, (size, threads) -> {
+            AccountClass[] accounts = new AccountClass[threads];
+            for (int i = 0; i < threads; i++) {
+                accounts[i] = new ChequeAccountClass("CHQ" + i, "CUST" + i);
+            }
+            return t -> accounts[t].deposit(0.01);
+        });
+        
+        add("ChequeAccountClass.withdraw", false, true, (size, threads) -> {
+            AccountClass[] accounts = new AccountClass[threads];
+            for (int i = 0; i < threads; i++) {
+                accounts[i] = new ChequeAccountClass("CHQ" + i, "CUST" + i, LARGE_BALANCE);
+            }
+            return t -> accounts[t].withdraw(0.01);
+        });
+        
+        add("SavingsAccountClass.withdraw", false, true, (size, threads) -> {
+            AccountClass[] accounts = new AccountClass[threads];
+            for (int i = 0; i < threads; i++) {
+                accounts[i] = new SavingsAccountClass("SAV" + i, "CUST" + i, LARGE_BALANCE);
+            }
+            return t -> accounts[t].withdraw(0.01);
+        });
+        
+        // Investments only allow a full withdrawal, so the balance is put back after each one
+        add("InvestmentAccountClass.withdraw", false, true, (size, threads) -> {
+            AccountClass[] accounts = new AccountClass[threads];
+            for (int i = 0; i < threads; i++) {
+                accounts[i] = new InvestmentAccountClass("INV" + i, "CUST" + i, "Bond", 5000.0);
+            }
+            return t -> {
+                AccountClass account = accounts[t];
+                boolean withdrawn = account.withdraw(5000.0);
+                account.setBalance(5000.0);
+                return withdrawn;
+            };
+        });
+    }
+    
+    //In-memory lookups and transfers between random accounts of a populated bank
+    private void registerBankSystemBenchmarks() {
+        add("BankSystemClass.findAccountByNumber", true, true, (size, threads) -> {
+            BankSystemClass bank = populatedBank(size);
+            String[] numbers = bank.getAccounts().keySet().toArray(new String[0]);
+            return t -> bank.findAccountByNumber(numbers[ThreadLocalRandom.current().nextInt(numbers.length)]);
+        });
+        
+        add("BankSystemClass.transfer", true, true, (size, threads) -> {
+            BankSystemClass bank = populatedBank(size);
+            String[] numbers = bank.getAccounts().keySet().toArray(new String[0]);
+            return t -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                return bank.transfer(numbers[random.nextInt(numbers.length)],
+                                     numbers[random.nextInt(numbers.length)], 0.01);
+            };
+        });
+        
+        add("VelocityEngine.tryAcquire", true, true, (size, threads) -> {
+            // Limits high enough that every debit is counted, so this measures the full check and update
+            VelocityEngine velocity = new VelocityEngine(
+                VelocityEngine.parseRules("account:1m:count=2000000000;customer:24h:amount=1e15"),
+                System::currentTimeMillis);
+            String[] numbers = new String[size];
+            String[] customers = new String[size];
+            for (int i = 0; i < size; i++) {
+                numbers[i] = "CHQ" + (10001 + i);
+                customers[i] = "CUST" + (1001 + i / 3);
+            }
+            return t -> {
+                int i = ThreadLocalRandom.current().nextInt(size);
+                return velocity.tryAcquire(numbers[i], customers[i], 0.01);
+            };
+        });
+    }
+    
+    //DAO calls against a seeded database; single-threaded because the DAOs share one connection
+    private void registerDaoBenchmarks() {
+        AccountDAO accountDAO = new AccountDAO();
+        TransactionDAO transactionDAO = new TransactionDAO();
+        
+        add("AccountDAO.getAccountByNumber", true, false, (size, threads) -> {
+            String[] numbers = seedDatabase(size);
+            return t -> accountDAO.getAccountByNumber(numbers[ThreadLocalRandom.current().nextInt(size)]);
+        });
+        
+        // Read the account, then compare-and-set its balance, as a deposit does
+        add("AccountDAO.updateAccountBalance", true, false, (size, threads) -> {
+            String[] numbers = seedDatabase(size);
+            return t -> {
+                AccountClass account = accountDAO.getAccountByNumber(numbers[ThreadLocalRandom.current().nextInt(size)]);
+                account.deposit(0.01);
+                try (Connection conn = ShardRouter.getConnection(account.getAccountNumber())) {
+                    accountDAO.updateAccountBalance(conn, account);
+                    return true;
+                } catch (SQLException e) {
+                    return false;
+                }
+            };
+        });
+        
+        add("TransactionDAO.recordTransaction", true, false, (size, threads) -> {
+            String[] numbers = seedDatabase(size);
+            return t -> transactionDAO.recordTransaction(
+                numbers[ThreadLocalRandom.current().nextInt(size)], "DEPOSIT", 0.01, LARGE_BALANCE, "Benchmark");
+        });
+        
+        add("TransactionDAO.getRecentTransactions", true, false, (size, threads) -> {
+            String[] numbers = seedDatabase(size);
+            return t -> transactionDAO.getRecentTransactions(numbers[ThreadLocalRandom.current().nextInt(size)], 20);
+        });
+    }
+    
+    //A bank with one customer per cheque account, every account holding a large balance
+    static BankSystemClass populatedBank(int accounts) {
+        BankSystemClass bank = new BankSystemClass("Benchmark Bank");
+        for (int i = 0; i < accounts; i++) {
+            CustomerClass customer = bank.createCustomer("First" + i, "Last" + i,
+                                                         "user" + i + "@example.com", "555-0100", "1 Main St");
+            // Added directly: createChequeAccount scans the customer list, which would make setup quadratic
+            ChequeAccountClass account = new ChequeAccountClass("CHQ" + (100000 + i), customer.getCustomerId(),
+                                                                LARGE_BALANCE);
+            bank.getAccounts().put(account.getAccountNumber(), account);
+            customer.addAccount(account);
+        }
+        return bank;
+    }
+    
+    //Recreate the schema and load accounts with a few ledger rows each; returns the account numbers
+    static String[] seedDatabase(int accounts) throws SQLException {
+        DatabaseConnection.initializeDatabase();
+        
+        CustomerDAO customerDAO = new CustomerDAO();
+        AccountDAO accountDAO = new AccountDAO();
+        String[] numbers = new String[accounts];
+        
+        try (Connection conn = DatabaseConnection.openConnection();
+             PreparedStatement customers = conn.prepareStatement(CustomerDAO.INSERT_CUSTOMER_SQL);
+             PreparedStatement accountRows = conn.prepareStatement(AccountDAO.INSERT_ACCOUNT_SQL);
+             PreparedStatement ledger = conn.prepareStatement(
+                 "INSERT INTO transactions (account_number, transaction_type, amount, " +
+                 "balance_after, description) VALUES (?, 'DEPOSIT', 100, ?, 'Seed')")) {
+            conn.setAutoCommit(false);
+            
+            for (int i = 0; i < accounts; i++) {
+                String customerId = "CUST" + (100000 + i);
+                numbers[i] = "CHQ" + (100000 + i);
+                customerDAO.bindCustomer(customers, new CustomerClass(customerId, "First" + i, "Last" + i,
+                                                                      "user" + i + "@example.com",
+                                                                      "555-0100", "1 Main St"));
+                customers.addBatch();
+                accountDAO.bindAccount(accountRows,
+                                       new ChequeAccountClass(numbers[i], customerId, LARGE_BALANCE));
+                accountRows.addBatch();
+                for (int r = 1; r <= LEDGER_ROWS_PER_ACCOUNT; r++) {
+                    ledger.setString(1, numbers[i]);
+                    ledger.setDouble(2, 100.0 * r);
+                    ledger.addBatch();
+                }
+                
+                if ((i + 1) % SEED_BATCH == 0 || i == accounts - 1) {
+                    customers.executeBatch();
+                    accountRows.executeBatch();
+                    ledger.executeBatch();
+                    conn.commit();
+                }
+            }
+        }
+        return numbers;
+    }
+    
+    //Run every benchmark whose name matches filter for each of its sizes and thread counts
+    public void run(Pattern filter, int[] sizes, int[] threadCounts) throws Exception {
+        System.out.printf("%-38s %8s %7s %14s %12s %12s%n",
+                          "Benchmark", "Size", "Threads", "ops/s", "error", "ns/op");
+        for (Benchmark benchmark : benchmarks) {
+            if (!filter.matcher(benchmark.name).find()) {
+                continue;
+            }
+            for (int size : benchmark.sized ? sizes : new int[] {0}) {
+                for (int threads : benchmark.threaded ? threadCounts : new int[] {1}) {
+                    Operation operation = benchmark.setup.create(size, threads);
+                    double[] throughput = measure(operation, threads);
+                    System.out.printf("%-38s %8s %7d %14.0f %12.0f %12.1f%n", benchmark.name,
+                                      benchmark.sized ? String.valueOf(size) : "-", threads,
+                                      throughput[0], throughput[1], threads * 1e9 / throughput[0]);
+                }
+            }
+        }
+    }
+    
+    //Warm up, then return the mean and standard deviation of ops/s over the measured iterations
+    private double[] measure(Operation operation, int threads) throws InterruptedException {
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation, threads);
+        }
+        double[] samples = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            samples[i] = runIteration(operation, threads);
+        }
+        
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= samples.length;
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double deviation = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0;
+        return new double[] {mean, deviation};
+    }
+    
+    //One timed iteration with all threads started together; returns total ops/s
+    private double runIteration(Operation operation, int threads) throws InterruptedException {
+        AtomicLongArray counts = new AtomicLongArray(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        
+        for (int i = 0; i < threads; i++) {
+            final int threadIndex = i;
+            workers[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long end = deadline[0];
+                long ops = 0;
+                long fold = 0;
+                do {
+                    // Check the clock every 64 calls so timing stays out of the measured loop
+                    for (int n = 0; n < 64; n++) {
+                        Object result = operation.run(threadIndex);
+                        fold += result == null ? 0 : result.hashCode();
+                    }
+                    ops += 64;
+                } while (System.nanoTime() < end);
+                counts.set(threadIndex, ops);
+                sink += fold;
+            }, "bench-" + i);
+            workers[i].start();
+        }
+        
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = start + iterationMillis * 1_000_000;
+        go.countDown();
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            total += counts.get(i);
+        }
+        return total * 1e9 / (System.nanoTime() - start);
+    }
+    
+    private static int[] parseList(String value) {
+        String[] parts = value.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        }
+        return numbers;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("filter", ".*");
+        options.put("sizes", "1000,100000");
+        options.put("threads", "1,4");
+        options.put("warmup", "3");
+        options.put("iterations", "5");
+        options.put("time", "1000");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = arg.startsWith("--") && eq > 2 ? arg.substring(2, eq) : null;
+            if (key == null || !options.containsKey(key)) {
+                System.err.println("Usage: BankBenchmarks [--filter=regex] [--sizes=1000,100000] " +
+                                   "[--threads=1,4] [--warmup=3] [--iterations=5] [--time=1000]");
+                return;
+            }
+            options.put(key, arg.substring(eq + 1));
+        }
+        
+        BankLogger.setLevel(BankLogger.Level.ERROR);
+        BankBenchmarks harness = new BankBenchmarks(Integer.parseInt(options.get("warmup")),
+                                                    Integer.parseInt(options.get("iterations")),
+                                                    Long.parseLong(options.get("time")));
+        harness.run(Pattern.compile(options.get("filter")),
+                    parseList(options.get("sizes")), parseList(options.get("threads")));
+        System.out.println("(sink " + sink + ")");
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//Asynchronous logging facade for hot paths.
+//Callers only claim a slot in a preallocated ring buffer and store the pattern and arguments;
+//a single background appender formats "{}" placeholders and writes to the console, so request
+//threads never contend on PrintStream. A disabled level returns after one volatile read.
+//When the buffer is full, messages are dropped and counted instead of blocking the caller.
+//Level: -Dbank.log.level (default INFO). Buffer size: -Dbank.log.buffer (default 8192).
+//
+//Request paths, including the outcome of each request, log through the asynchronous methods.
+//console() writes on the caller's thread and is only for interactive output, such as a
+//printed statement; it does not wait for queued log lines, which may appear after it.
+public final class BankLogger {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+    
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("bank.log.buffer", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    
+    private static volatile int threshold = Level.valueOf(
+        System.getProperty("bank.log.level", "INFO").toUpperCase()).ordinal();
+    
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong head = new AtomicLong(); // Next sequence to claim
+    private static volatile long tail;                        // Next sequence to write out
+    private static final AtomicLong dropped = new AtomicLong();
+    
+    // Block-buffered console streams owned by the appender thread; flushed whenever it goes idle
+    private static final PrintStream OUT =
+        new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static final PrintStream ERR =
+        new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 16), false);
+    
+    //Preallocated entry; published when sequence is set to the claimed value
+    private static final class Slot {
+        volatile long sequence = -1;
+        Level level;
+        long timeMillis;
+        String thread;
+        String pattern;
+        Object arg0;
+        Object arg1;
+        Object[] args;
+    }
+    
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+        }
+        Thread appender = new Thread(BankLogger::drainLoop, "bank-logger");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "bank-logger-flush"));
+    }
+    
+    private BankLogger() {
+    }
+    
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+    
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+    
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    public static void debug(String pattern, Object arg0) {
+        if (Level.DEBUG.ordinal() >= threshold) {
+            publish(Level.DEBUG, pattern, arg0, null, null);
+        }
+    }
+    
+    public static void info(String pattern) {
+        if (Level.INFO.ordinal() >= threshold) {
+            publish(Level.INFO, pattern, null, null, null);
+        }
+    }
+    
+    public static void info(String pattern, Object arg0) {
+        if (Level.INFO.ordinal() >= threshold) {
+            publish(Level.INFO, pattern, arg0, null, null);
+        }
+    }
+    
+    public static void info(String pattern, Object arg0, Object arg1) {
+        if (Level.INFO.ordinal() >= threshold) {
+            publish(Level.INFO, pattern, arg0, arg1, null);
+        }
+    }
+    
+    public static void info(String pattern, Object... args) {
+        if (Level.INFO.ordinal() >= threshold) {
+            publish(Level.INFO, pattern, null, null, args);
+        }
+    }
+    
+    public static void warn(String pattern) {
+        if (Level.WARN.ordinal() >= threshold) {
+            publish(Level.WARN, pattern, null, null, null);
+        }
+    }
+    
+    public static void warn(String pattern, Object arg0) {
+        if (Level.WARN.ordinal() >= threshold) {
+            publish(Level.WARN, pattern, arg0, null, null);
+        }
+    }
+    
+    public static void warn(String pattern, Object arg0, Object arg1) {
+        if (Level.WARN.ordinal() >= threshold) {
+            publish(Level.WARN, pattern, arg0, arg1, null);
+        }
+    }
+    
+    public static void error(String pattern) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            publish(Level.ERROR, pattern, null, null, null);
+        }
+    }
+    
+    public static void error(String pattern, Object arg0) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            publish(Level.ERROR, pattern, arg0, null, null);
+        }
+    }
+    
+    public static void error(String pattern, Object arg0, Object arg1) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            publish(Level.ERROR, pattern, arg0, arg1, null);
+        }
+    }
+    
+    //Write interactive output now, without timestamp: INFO to System.out, WARN and above to System.err
+    public static void console(Level level, String message) {
+        if (level.ordinal() >= threshold) {
+            write(level, message);
+        }
+    }
+    
+    public static void console(Level level, String pattern, Object arg0) {
+        if (level.ordinal() >= threshold) {
+            StringBuilder line = new StringBuilder(pattern.length() + 16);
+            format(line, pattern, arg0, null, null);
+            write(level, line.toString());
+        }
+    }
+    
+    private static void write(Level level, String line) {
+        (level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out).println(line);
+    }
+    
+    //Wait up to timeoutMillis for everything logged so far to be written
+    public static void flush(long timeoutMillis) {
+        long target = head.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (tail < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(100_000);
+        }
+        OUT.flush();
+        ERR.flush();
+    }
+    
+    //Claim the next free slot, fill it and publish it; drop the message if the buffer is full
+    private static void publish(Level level, String pattern, Object arg0, Object arg1, Object[] args) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        
+        Slot slot = slots[(int) (sequence & MASK)];
+        slot.level = level;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.pattern = pattern;
+        slot.arg0 = arg0;
+        slot.arg1 = arg1;
+        slot.args = args;
+        slot.sequence = sequence;
+    }
+    
+    //Appender thread: write published slots in sequence order, flushing when the buffer runs dry
+    private static void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        boolean pending = false;
+        
+        while (true) {
+            long next = tail;
+            Slot slot = slots[(int) (next & MASK)];
+            if (slot.sequence != next) {
+                if (pending) {
+                    OUT.flush();
+                    ERR.flush();
+                    pending = false;
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    ERR.println("bank-logger: " + (drops - reportedDrops) + " messages dropped");
+                    ERR.flush();
+                    reportedDrops = drops;
+                }
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            
+            line.setLength(0);
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(slot.timeMillis), line);
+            line.append(' ').append(slot.level).append(" [").append(slot.thread).append("] ");
+            format(line, slot.pattern, slot.arg0, slot.arg1, slot.args);
+            PrintStream out = slot.level.ordinal() >= Level.WARN.ordinal() ? ERR : OUT;
+            
+            // Release the references before handing the slot back to producers
+            slot.arg0 = null;
+            slot.arg1 = null;
+            slot.args = null;
+            tail = next + 1;
+            
+            out.println(line);
+            pending = true;
+        }
+    }
+    
+    //Replace each "{}" in pattern with the next argument
+    static void format(StringBuilder out, String pattern, Object arg0, Object arg1, Object[] args) {
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while ((at = pattern.indexOf("{}", from)) >= 0) {
+            out.append(pattern, from, at);
+            Object arg;
+            if (args != null) {
+                arg = argIndex < args.length ? args[argIndex] : "{}";
+            } else {
+                arg = argIndex == 0 ? arg0 : argIndex == 1 ? arg1 : "{}";
+            }
+            out.append(arg);
+            argIndex++;
+            from = at + 2;
+        }
+        out.append(pattern, from, pattern.length());
+    }
+}
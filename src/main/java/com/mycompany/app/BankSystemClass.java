@@ -1,8 +1,12 @@
 import java.util.ArrayList;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+//In-memory bank. Safe for concurrent use: balance changes lock the accounts involved
+//(transfers take both locks in account number order), and customer/account creation and
+//removal are serialised on the bank.
 public class BankSystemClass {
     private String bankName;
     private List<CustomerClass> customers;
@@ -12,8 +16,8 @@ public class BankSystemClass {
     
     public BankSystemClass(String bankName) {
         this.bankName = bankName;
-        this.customers = new ArrayList<>();
-        this.accounts = new HashMap<>();
+        this.customers = new CopyOnWriteArrayList<>();
+        this.accounts = new ConcurrentHashMap<>();
         this.nextCustomerId = 1001;
         this.nextAccountNumber = 10001;
     }
@@ -36,7 +40,7 @@ public class BankSystemClass {
     }
     
     // Customer Management
-    public CustomerClass createCustomer(String firstName, String lastName, 
+    public synchronized CustomerClass createCustomer(String firstName, String lastName, 
                                        String email, String phone, String address) {
         String customerId = "CUST" + nextCustomerId++;
         CustomerClass customer = new CustomerClass(customerId, firstName, lastName, 
@@ -54,7 +58,7 @@ public class BankSystemClass {
         return null;
     }
     
-    public boolean removeCustomer(String customerId) {
+    public synchronized boolean removeCustomer(String customerId) {
         CustomerClass customer = findCustomerById(customerId);
         if (customer != null) {
             // Remove all accounts associated with this customer
@@ -69,7 +73,7 @@ public class BankSystemClass {
     }
     
     // Account Management
-    public ChequeAccountClass createChequeAccount(String customerId) {
+    public synchronized ChequeAccountClass createChequeAccount(String customerId) {
         CustomerClass customer = findCustomerById(customerId);
         if (customer != null) {
             String accountNumber = "CHQ" + nextAccountNumber++;
@@ -81,7 +85,7 @@ public class BankSystemClass {
         return null;
     }
     
-    public SavingsAccountClass createSavingsAccount(String customerId, double initialDeposit) {
+    public synchronized SavingsAccountClass createSavingsAccount(String customerId, double initialDeposit) {
         CustomerClass customer = findCustomerById(customerId);
         if (customer != null && initialDeposit >= 100.0) {
             String accountNumber = "SAV" + nextAccountNumber++;
@@ -94,7 +98,7 @@ public class BankSystemClass {
         return null;
     }
     
-    public InvestmentAccountClass createInvestmentAccount(String customerId, 
+    public synchronized InvestmentAccountClass createInvestmentAccount(String customerId, 
                                                           String investmentType, 
                                                           double initialDeposit) {
         CustomerClass customer = findCustomerById(customerId);
@@ -115,7 +119,7 @@ public class BankSystemClass {
         return accounts.get(accountNumber);
     }
     
-    public boolean removeAccount(String accountNumber) {
+    public synchronized boolean removeAccount(String accountNumber) {
         AccountClass account = accounts.remove(accountNumber);
         if (account != null) {
             CustomerClass customer = findCustomerById(account.getCustomerId());
@@ -131,7 +135,9 @@ public class BankSystemClass {
     public boolean deposit(String accountNumber, double amount) {
         AccountClass account = findAccountByNumber(accountNumber);
         if (account != null) {
-            return account.deposit(amount);
+            synchronized (account) {
+                return account.deposit(amount);
+            }
         }
         return false;
     }
@@ -139,7 +145,9 @@ public class BankSystemClass {
     public boolean withdraw(String accountNumber, double amount) {
         AccountClass account = findAccountByNumber(accountNumber);
         if (account != null) {
-            return account.withdraw(amount);
+            synchronized (account) {
+                return account.withdraw(amount);
+            }
         }
         return false;
     }
@@ -149,12 +157,18 @@ public class BankSystemClass {
         AccountClass toAccount = findAccountByNumber(toAccountNumber);
         
         if (fromAccount != null && toAccount != null) {
-            if (fromAccount.withdraw(amount)) {
-                if (toAccount.deposit(amount)) {
-                    return true;
-                } else {
-                    // Rollback withdrawal if deposit fails
-                    fromAccount.deposit(amount);
+            // Lock in account number order so opposite transfers cannot deadlock
+            boolean fromFirst = fromAccountNumber.compareTo(toAccountNumber) <= 0;
+            synchronized (fromFirst ? fromAccount : toAccount) {
+                synchronized (fromFirst ? toAccount : fromAccount) {
+                    if (fromAccount.withdraw(amount)) {
+                        if (toAccount.deposit(amount)) {
+                            return true;
+                        } else {
+                            // Rollback withdrawal if deposit fails
+                            fromAccount.deposit(amount);
+                        }
+                    }
                 }
             }
         }
@@ -165,7 +179,9 @@ public class BankSystemClass {
     public void calculateInterestForAllAccounts() {
         for (AccountClass account : accounts.values()) {
             if (account instanceof InterestBearingInterface) {
-                ((InterestBearingInterface) account).calculateInterest();
+                synchronized (account) {
+                    ((InterestBearingInterface) account).calculateInterest();
+                }
             }
         }
     }
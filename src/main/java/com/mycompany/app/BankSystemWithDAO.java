@@ -3,16 +3,59 @@ public class BankSystemWithDAO {
     private CustomerDAO customerDAO;
     private AccountDAO accountDAO;
     private TransactionDAO transactionDAO;
-    private int nextCustomerId;
-    private int nextAccountNumber;
+    private MaturityScheduler maturityScheduler;
+    private TransactionArchiver transactionArchiver;
+    private BalanceCheckpointWriter balanceCheckpoints;
+    private IdBlockAllocator customerIds;
+    private IdBlockAllocator accountNumbers;
+    private VelocityEngine velocity;
+    private DailyWithdrawalTracker dailyWithdrawals;
+    private IdempotencyStore idempotencyKeys;
+    private TransferSaga transferSagas;
+    private CustomerSummaryDAO customerSummaryDAO;
+    private CustomerSummaryProjector customerSummaries;
+    private AdmissionControl admission;
+    // Owning customer of each account admitted so far; accounts never change owner
+    private final java.util.concurrent.ConcurrentHashMap<String, String> accountOwners =
+        new java.util.concurrent.ConcurrentHashMap<>();
+    
+    // Business rules shared with the bulk importer
+    static final double MIN_SAVINGS_DEPOSIT = 100.0;
+    
+    // Optimistic transactions: attempts before giving up on a contended account, and the first backoff cap
+    private static final int MAX_ATTEMPTS = Integer.getInteger("bank.occ.maxAttempts", 8);
+    private static final long RETRY_BASE_MICROS = 200;
+    // Version conflicts retried, and operations that ran out of attempts
+    private static final MetricCounter CONFLICT_RETRIES = MetricsRegistry.counter("BankSystemWithDAO.conflictRetries");
+    private static final MetricCounter CONFLICT_GIVE_UPS = MetricsRegistry.counter("BankSystemWithDAO.conflictGiveUps");
     
     public BankSystemWithDAO(String bankName) {
         this.bankName = bankName;
         this.customerDAO = new CustomerDAO();
         this.accountDAO = new AccountDAO();
         this.transactionDAO = new TransactionDAO();
-        this.nextCustomerId = 1001;
-        this.nextAccountNumber = 10001;
+        this.maturityScheduler = new MaturityScheduler(accountDAO);
+        this.transactionArchiver = new TransactionArchiver();
+        this.balanceCheckpoints = new BalanceCheckpointWriter();
+        this.customerIds = new IdBlockAllocator("CUSTOMER", 1001, 50);
+        this.accountNumbers = new IdBlockAllocator("ACCOUNT", 10001, 50);
+        this.velocity = VelocityEngine.getInstance();
+        this.dailyWithdrawals = DailyWithdrawalTracker.getInstance();
+        this.idempotencyKeys = IdempotencyStore.getInstance();
+        this.transferSagas = new TransferSaga(accountDAO, transactionDAO);
+        // A refunded cross-shard debit no longer counts against the source account's limits
+        this.transferSagas.setRefundListener(
+            (account, amount, debitedAt) -> releaseDebit(new ScreenedDebit(account, amount, debitedAt)));
+        this.customerSummaryDAO = new CustomerSummaryDAO();
+        this.customerSummaries = CustomerSummaryProjector.getInstance();
+        this.admission = AdmissionControl.getInstance();
+    }
+    
+    //Admission control for money movements, account openings and customer reads (see AdmissionControl)
+    //Those calls throw AdmissionControl.RejectedException when it turns them away; null turns it
+    //off, for harnesses that drive the bank as fast as they can
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
     }
     
     // Getters
@@ -27,284 +70,882 @@ public class BankSystemWithDAO {
     // Customer Management with Database Persistence
     public CustomerClass createCustomer(String firstName, String lastName, 
                                        String email, String phone, String address) {
-        // Check if email already exists
-        if (customerDAO.emailExists(email)) {
-            System.err.println("Error: Email already exists!");
-            return null;
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.createCustomer")) {
+            // Check if email already exists
+            if (customerDAO.emailExists(email)) {
+                BankLogger.warn("Error: Email already exists!");
+                sample.error();
+                return null;
+            }
+            
+            long customerNumber = customerIds.next();
+            if (customerNumber == IdBlockAllocator.UNAVAILABLE) {
+                BankLogger.error("Failed to allocate a customer ID");
+                sample.error();
+                return null;
+            }
+            String customerId = "CUST" + customerNumber;
+            CustomerClass customer = new CustomerClass(customerId, firstName, lastName, 
+                                                       email, phone, address);
+            
+            if (customerDAO.createCustomer(customer)) {
+                BankLogger.info("Customer created successfully in database: {}", customerId);
+                return customer;
+            } else {
+                BankLogger.error("Failed to create customer in database");
+                sample.error();
+                return null;
+            }
         }
-        
-        String customerId = "CUST" + nextCustomerId++;
-        CustomerClass customer = new CustomerClass(customerId, firstName, lastName, 
-                                                   email, phone, address);
-        
-        if (customerDAO.createCustomer(customer)) {
-            System.out.println("Customer created successfully in database: " + customerId);
-            return customer;
-        } else {
-            System.err.println("Failed to create customer in database");
-            return null;
+    }
+    
+    // Validate the opening balance for a new account, returns an error message or null
+    static String validateInitialDeposit(String accountType, double initialDeposit) {
+        switch (accountType) {
+            case "Savings":
+                return initialDeposit < MIN_SAVINGS_DEPOSIT ?
+                    "Minimum initial deposit for savings account is 100.00" : null;
+            case "Investment":
+                return initialDeposit <= 0 ? "Initial deposit must be greater than 0" : null;
+            case "Cheque":
+                return initialDeposit < 0 ? "Initial deposit cannot be negative" : null;
+            default:
+                return "Unknown account type: " + accountType;
         }
     }
     
     public CustomerClass findCustomerById(String customerId) {
-        return customerDAO.getCustomerById(customerId);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.findCustomerById");
+        try (sample) {
+            return customerDAO.getCustomerById(customerId);
+        }
     }
     
     public CustomerClass findCustomerByEmail(String email) {
-        return customerDAO.getCustomerByEmail(email);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.findCustomerByEmail");
+        try (sample) {
+            return customerDAO.getCustomerByEmail(email);
+        }
     }
     
     public boolean updateCustomer(CustomerClass customer) {
-        return customerDAO.updateCustomer(customer);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.updateCustomer");
+        try (sample) {
+            return customerDAO.updateCustomer(customer);
+        }
     }
     
     public boolean removeCustomer(String customerId) {
-        return customerDAO.deleteCustomer(customerId);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.removeCustomer");
+        try (sample) {
+            return customerDAO.deleteCustomer(customerId);
+        }
     }
     
     // Account Management with Database Persistence
     public ChequeAccountClass createChequeAccount(String customerId) {
-        CustomerClass customer = findCustomerById(customerId);
-        if (customer == null) {
-            System.err.println("Error: Customer not found!");
-            return null;
-        }
-        
-        String accountNumber = "CHQ" + nextAccountNumber++;
-        ChequeAccountClass account = new ChequeAccountClass(accountNumber, customerId);
-        
-        if (accountDAO.createAccount(account)) {
-            System.out.println("Cheque account created successfully: " + accountNumber);
-            return account;
-        } else {
-            System.err.println("Failed to create cheque account in database");
-            return null;
+        AdmissionControl gate = admit(customerId, AdmissionControl.Operation.OPEN_ACCOUNT);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.createChequeAccount")) {
+            CustomerClass customer = findCustomerById(customerId);
+            if (customer == null) {
+                BankLogger.warn("Error: Customer not found!");
+                sample.error();
+                return null;
+            }
+            
+            long number = accountNumbers.next();
+            if (number == IdBlockAllocator.UNAVAILABLE) {
+                BankLogger.error("Failed to allocate an account number");
+                sample.error();
+                return null;
+            }
+            String accountNumber = "CHQ" + number;
+            ChequeAccountClass account = new ChequeAccountClass(accountNumber, customerId);
+            
+            if (accountDAO.createAccount(account)) {
+                BankLogger.info("Cheque account created successfully: {}", accountNumber);
+                return account;
+            } else {
+                BankLogger.error("Failed to create cheque account in database");
+                sample.error();
+                return null;
+            }
+        } finally {
+            release(gate);
         }
     }
     
     public SavingsAccountClass createSavingsAccount(String customerId, double initialDeposit) {
-        CustomerClass customer = findCustomerById(customerId);
-        if (customer == null) {
-            System.err.println("Error: Customer not found!");
-            return null;
-        }
-        
-        if (initialDeposit < 100.0) {
-            System.err.println("Error: Minimum initial deposit for savings account is 100.00");
-            return null;
-        }
-        
-        String accountNumber = "SAV" + nextAccountNumber++;
-        SavingsAccountClass account = new SavingsAccountClass(accountNumber, customerId, 
-                                                              initialDeposit);
-        
-        if (accountDAO.createAccount(account)) {
-            // Record initial deposit transaction
-            transactionDAO.recordTransaction(accountNumber, "DEPOSIT", initialDeposit, 
-                                           initialDeposit, "Initial deposit");
-            System.out.println("Savings account created successfully: " + accountNumber);
-            return account;
-        } else {
-            System.err.println("Failed to create savings account in database");
-            return null;
+        AdmissionControl gate = admit(customerId, AdmissionControl.Operation.OPEN_ACCOUNT);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.createSavingsAccount")) {
+            CustomerClass customer = findCustomerById(customerId);
+            if (customer == null) {
+                BankLogger.warn("Error: Customer not found!");
+                sample.error();
+                return null;
+            }
+            
+            String error = validateInitialDeposit("Savings", initialDeposit);
+            if (error != null) {
+                BankLogger.warn("Error: {}", error);
+                sample.error();
+                return null;
+            }
+            
+            long number = accountNumbers.next();
+            if (number == IdBlockAllocator.UNAVAILABLE) {
+                BankLogger.error("Failed to allocate an account number");
+                sample.error();
+                return null;
+            }
+            String accountNumber = "SAV" + number;
+            SavingsAccountClass account = new SavingsAccountClass(accountNumber, customerId, 
+                                                                  initialDeposit);
+            
+            if (accountDAO.createAccount(account)) {
+                // Record initial deposit transaction
+                transactionDAO.recordTransaction(accountNumber, "DEPOSIT", initialDeposit, 
+                                               initialDeposit, "Initial deposit");
+                BankLogger.info("Savings account created successfully: {}", accountNumber);
+                return account;
+            } else {
+                BankLogger.error("Failed to create savings account in database");
+                sample.error();
+                return null;
+            }
+        } finally {
+            release(gate);
         }
     }
     
     public InvestmentAccountClass createInvestmentAccount(String customerId, 
                                                           String investmentType, 
                                                           double initialDeposit) {
-        CustomerClass customer = findCustomerById(customerId);
-        if (customer == null) {
-            System.err.println("Error: Customer not found!");
-            return null;
-        }
-        
-        if (initialDeposit <= 0) {
-            System.err.println("Error: Initial deposit must be greater than 0");
-            return null;
-        }
-        
-        String accountNumber = "INV" + nextAccountNumber++;
-        InvestmentAccountClass account = new InvestmentAccountClass(accountNumber, 
-                                                                    customerId, 
-                                                                    investmentType, 
-                                                                    initialDeposit);
-        
-        if (accountDAO.createAccount(account)) {
-            // Record initial deposit transaction
-            transactionDAO.recordTransaction(accountNumber, "DEPOSIT", initialDeposit, 
-                                           initialDeposit, "Initial investment");
-            System.out.println("Investment account created successfully: " + accountNumber);
-            return account;
-        } else {
-            System.err.println("Failed to create investment account in database");
-            return null;
+        AdmissionControl gate = admit(customerId, AdmissionControl.Operation.OPEN_ACCOUNT);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.createInvestmentAccount")) {
+            CustomerClass customer = findCustomerById(customerId);
+            if (customer == null) {
+                BankLogger.warn("Error: Customer not found!");
+                sample.error();
+                return null;
+            }
+            
+            String error = validateInitialDeposit("Investment", initialDeposit);
+            if (error != null) {
+                BankLogger.warn("Error: {}", error);
+                sample.error();
+                return null;
+            }
+            
+            long number = accountNumbers.next();
+            if (number == IdBlockAllocator.UNAVAILABLE) {
+                BankLogger.error("Failed to allocate an account number");
+                sample.error();
+                return null;
+            }
+            String accountNumber = "INV" + number;
+            InvestmentAccountClass account = new InvestmentAccountClass(accountNumber, 
+                                                                        customerId, 
+                                                                        investmentType, 
+                                                                        initialDeposit);
+            
+            if (accountDAO.createAccount(account)) {
+                // Record initial deposit transaction
+                transactionDAO.recordTransaction(accountNumber, "DEPOSIT", initialDeposit, 
+                                               initialDeposit, "Initial investment");
+                maturityScheduler.register(account);
+                BankLogger.info("Investment account created successfully: {}", accountNumber);
+                return account;
+            } else {
+                BankLogger.error("Failed to create investment account in database");
+                sample.error();
+                return null;
+            }
+        } finally {
+            release(gate);
         }
     }
     
     public AccountClass findAccountByNumber(String accountNumber) {
-        return accountDAO.getAccountByNumber(accountNumber);
+        AdmissionControl gate = admitForAccount(accountNumber, AdmissionControl.Operation.READ);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.findAccountByNumber");
+        try (sample) {
+            return accountDAO.getAccountByNumber(accountNumber);
+        } finally {
+            release(gate);
+        }
     }
     
     public boolean removeAccount(String accountNumber) {
-        return accountDAO.deleteAccount(accountNumber);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.removeAccount");
+        try (sample) {
+            return accountDAO.deleteAccount(accountNumber);
+        }
     }
     
     // Transaction Operations with Database Persistence
+    // Each runs in one database transaction so the ledger row commits together with the
+    // balance it records. Accounts are read without locks and written back with a version
+    // check; if another operation changed an account in between, the whole transaction is
+    // retried (see inTransaction), so concurrent operations never overwrite each other
     public boolean deposit(String accountNumber, double amount) {
-        AccountClass account = findAccountByNumber(accountNumber);
-        if (account == null) {
-            System.err.println("Error: Account not found!");
+        return deposit(accountNumber, amount, null);
+    }
+    
+    // With an idempotency key, a retry of the same deposit returns the first outcome instead of depositing again
+    public boolean deposit(String accountNumber, double amount, String idempotencyKey) {
+        AdmissionControl gate = admitForAccount(accountNumber, AdmissionControl.Operation.DEPOSIT);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.deposit")) {
+            boolean done = inTransaction("Deposit", idempotencyKey, ShardRouter.shardOf(accountNumber), conn -> {
+                AccountClass account = accountDAO.readAccount(conn, accountNumber);
+                if (account == null) {
+                    BankLogger.warn("Error: Account not found!");
+                    return false;
+                }
+                if (!account.deposit(amount)) {
+                    return false;
+                }
+                accountDAO.updateAccountBalance(conn, account);
+                transactionDAO.recordTransaction(conn, accountNumber, "DEPOSIT", amount,
+                                                 account.getBalance(), "Deposit", null);
+                return true;
+            });
+            
+            if (done) {
+                BankLogger.info("Deposit successful: {}", amount);
+            } else {
+                sample.error();
+            }
+            return done;
+        } finally {
+            release(gate);
+        }
+    }
+    
+    public boolean withdraw(String accountNumber, double amount) {
+        return withdraw(accountNumber, amount, null);
+    }
+    
+    public boolean withdraw(String accountNumber, double amount, String idempotencyKey) {
+        AdmissionControl gate = admitForAccount(accountNumber, AdmissionControl.Operation.WITHDRAW);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.withdraw")) {
+            java.util.List<ScreenedDebit> screened = new java.util.ArrayList<>();
+            boolean done = inTransaction("Withdrawal", idempotencyKey, ShardRouter.shardOf(accountNumber), screened, conn -> {
+                AccountClass account = accountDAO.readAccount(conn, accountNumber);
+                if (account == null) {
+                    BankLogger.warn("Error: Account not found!");
+                    return false;
+                }
+                if (!account.withdraw(amount)) {
+                    BankLogger.warn("Withdrawal failed: Insufficient funds or exceeds limits");
+                    return false;
+                }
+                if (!screenDebit(account, amount, screened)) {
+                    return false;
+                }
+                accountDAO.updateAccountBalance(conn, account);
+                transactionDAO.recordTransaction(conn, accountNumber, "WITHDRAWAL", amount,
+                                                 account.getBalance(), "Withdrawal", null);
+                return true;
+            });
+            
+            if (done) {
+                BankLogger.info("Withdrawal successful: {}", amount);
+            } else {
+                sample.error();
+            }
+            return done;
+        } finally {
+            release(gate);
+        }
+    }
+    
+    public boolean transfer(String fromAccountNumber, String toAccountNumber, double amount) {
+        return transfer(fromAccountNumber, toAccountNumber, amount, null);
+    }
+    
+    public boolean transfer(String fromAccountNumber, String toAccountNumber, double amount, String idempotencyKey) {
+        AdmissionControl gate = admitForAccount(fromAccountNumber, AdmissionControl.Operation.TRANSFER);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.transfer")) {
+            if (fromAccountNumber.equals(toAccountNumber)) {
+                BankLogger.warn("Transfer failed: source and destination are the same account");
+                sample.error();
+                return false;
+            }
+            
+            int shard = ShardRouter.shardOf(fromAccountNumber);
+            if (shard != ShardRouter.shardOf(toAccountNumber)) {
+                return transferAcrossShards(fromAccountNumber, toAccountNumber, amount, idempotencyKey, sample);
+            }
+            
+            java.util.List<ScreenedDebit> screened = new java.util.ArrayList<>();
+            boolean done = inTransaction("Transfer", idempotencyKey, shard, screened, conn -> {
+                AccountClass fromAccount = accountDAO.readAccount(conn, fromAccountNumber);
+                AccountClass toAccount = accountDAO.readAccount(conn, toAccountNumber);
+                
+                if (fromAccount == null || toAccount == null) {
+                    BankLogger.warn("Error: One or both accounts not found!");
+                    return false;
+                }
+                if (!fromAccount.withdraw(amount) || !toAccount.deposit(amount)) {
+                    return false;
+                }
+                if (!screenDebit(fromAccount, amount, screened)) {
+                    return false;
+                }
+                
+                // Update both accounts and record both legs in the same transaction; the updates
+                // go in account number order so opposite transfers cannot deadlock on the row locks
+                boolean fromFirst = fromAccountNumber.compareTo(toAccountNumber) < 0;
+                accountDAO.updateAccountBalance(conn, fromFirst ? fromAccount : toAccount);
+                accountDAO.updateAccountBalance(conn, fromFirst ? toAccount : fromAccount);
+                transactionDAO.recordTransaction(conn, fromAccountNumber, "TRANSFER_OUT", amount,
+                                                 fromAccount.getBalance(),
+                                                 "Transfer to " + toAccountNumber, toAccountNumber);
+                transactionDAO.recordTransaction(conn, toAccountNumber, "TRANSFER_IN", amount,
+                                                 toAccount.getBalance(),
+                                                 "Transfer from " + fromAccountNumber, fromAccountNumber);
+                return true;
+            });
+            
+            if (done) {
+                BankLogger.info("Transfer successful: {}", amount);
+            } else {
+                BankLogger.warn("Transfer failed");
+                sample.error();
+            }
+            return done;
+        } finally {
+            release(gate);
+        }
+    }
+    
+    //Transfer between accounts on different shards as a saga (see TransferSaga): the debit and
+    //the saga record commit on the source shard, then the destination is credited on its own shard
+    //If the credit is refused the debit is refunded. If a shard is unreachable the transfer is
+    //reported as not done, and recovery completes or refunds it later; a retry with the same
+    //idempotency key reports which
+    private boolean transferAcrossShards(String fromAccountNumber, String toAccountNumber, double amount,
+                                         String idempotencyKey, MetricsRegistry.Sample sample) {
+        // Refuse up front what the destination would refuse, so most failures never debit
+        AccountClass toAccount = accountDAO.getAccountByNumber(toAccountNumber);
+        if (toAccount == null) {
+            BankLogger.warn("Error: One or both accounts not found!");
+            sample.error();
+            return false;
+        }
+        if (!toAccount.deposit(amount)) {
+            BankLogger.warn("Transfer failed");
+            sample.error();
             return false;
         }
         
-        if (account.deposit(amount)) {
-            // Update database
-            accountDAO.updateAccountBalance(accountNumber, account.getBalance());
-            // Record transaction
-            transactionDAO.recordTransaction(accountNumber, "DEPOSIT", amount, 
-                                           account.getBalance(), "Deposit");
-            System.out.println("Deposit successful: " + amount);
+        String sagaId = TransferSaga.sagaIdFor(idempotencyKey);
+        java.util.List<ScreenedDebit> screened = new java.util.ArrayList<>();
+        boolean done = inTransaction("Transfer", idempotencyKey, ShardRouter.shardOf(fromAccountNumber), screened, conn -> {
+            AccountClass fromAccount = accountDAO.readAccount(conn, fromAccountNumber);
+            if (fromAccount == null) {
+                BankLogger.warn("Error: One or both accounts not found!");
+                return false;
+            }
+            if (!fromAccount.withdraw(amount) || !screenDebit(fromAccount, amount, screened)) {
+                return false;
+            }
+            accountDAO.updateAccountBalance(conn, fromAccount);
+            transactionDAO.recordTransaction(conn, fromAccountNumber, "TRANSFER_OUT", amount,
+                                             fromAccount.getBalance(),
+                                             "Transfer to " + toAccountNumber, toAccountNumber);
+            transferSagas.begin(conn, sagaId, fromAccountNumber, toAccountNumber, amount);
             return true;
+        });
+        if (!done) {
+            BankLogger.warn("Transfer failed");
+            sample.error();
+            return false;
+        }
+        if (screened.isEmpty()) {
+            return replayTransfer(sagaId, fromAccountNumber, toAccountNumber, amount, sample);
         }
         
-        return false;
+        switch (transferSagas.finish(sagaId, fromAccountNumber, toAccountNumber, amount)) {
+            case COMPENSATED:
+                BankLogger.warn("Transfer failed");
+                sample.error();
+                return false;
+            case PENDING:
+                BankLogger.warn("Transfer {} debited but not confirmed; recovery will complete or refund it",
+                                sagaId);
+                sample.error();
+                return false;
+            default:
+                BankLogger.info("Transfer successful: {}", amount);
+                return true;
+        }
     }
     
-    public boolean withdraw(String accountNumber, double amount) {
-        AccountClass account = findAccountByNumber(accountNumber);
-        if (account == null) {
-            System.err.println("Error: Account not found!");
-            return false;
+    //Answer a repeated idempotency key of a cross-shard transfer from the saga it started
+    //Only a completed saga counts as success; one still pending is finished here if it can be,
+    //which is safe to do alongside the original call or recovery
+    private boolean replayTransfer(String sagaId, String fromAccountNumber, String toAccountNumber,
+                                   double amount, MetricsRegistry.Sample sample) {
+        TransferSaga.Outcome outcome;
+        try {
+            outcome = transferSagas.readOutcome(sagaId, fromAccountNumber);
+        } catch (java.sql.SQLException e) {
+            BankLogger.error("Transfer {} could not be looked up: {}", sagaId, e.getMessage());
+            outcome = TransferSaga.Outcome.PENDING;
         }
-        
-        if (account.withdraw(amount)) {
-            // Update database
-            accountDAO.updateAccountBalance(accountNumber, account.getBalance());
-            // Record transaction
-            transactionDAO.recordTransaction(accountNumber, "WITHDRAWAL", amount, 
-                                           account.getBalance(), "Withdrawal");
-            System.out.println("Withdrawal successful: " + amount);
-            return true;
-        } else {
-            System.err.println("Withdrawal failed: Insufficient funds or exceeds limits");
+        if (outcome == null) {
+            // The key's saga predates key-derived IDs, so it cannot be confirmed as completed
+            BankLogger.warn("Transfer {} cannot be confirmed", sagaId);
+            sample.error();
             return false;
         }
+        if (outcome == TransferSaga.Outcome.PENDING) {
+            outcome = transferSagas.finish(sagaId, fromAccountNumber, toAccountNumber, amount);
+        }
+        switch (outcome) {
+            case COMPLETED:
+                BankLogger.info("Transfer successful: {}", amount);
+                return true;
+            case PENDING:
+                BankLogger.warn("Transfer {} is still in progress", sagaId);
+                sample.error();
+                return false;
+            default:
+                BankLogger.warn("Transfer failed");
+                sample.error();
+                return false;
+        }
     }
     
-    public boolean transfer(String fromAccountNumber, String toAccountNumber, double amount) {
-        AccountClass fromAccount = findAccountByNumber(fromAccountNumber);
-        AccountClass toAccount = findAccountByNumber(toAccountNumber);
+    //Let a request through admission control or throw AdmissionControl.RejectedException
+    //Returns the controller to release once the request is done, null if admission is off
+    private AdmissionControl admit(String key, AdmissionControl.Operation operation) {
+        AdmissionControl gate = admission;
+        if (gate != null) {
+            gate.admit(key, operation);
+        }
+        return gate;
+    }
+    
+    //As above for a request on an account, keyed by the customer who owns it, so a client cannot
+    //multiply its budget by spreading requests over several accounts
+    private AdmissionControl admitForAccount(String accountNumber, AdmissionControl.Operation operation) {
+        if (admission == null) {
+            return null;
+        }
+        return admit(ownerOf(accountNumber), operation);
+    }
+    
+    //Customer owning an account, read once and then remembered; the account number itself for an
+    //unknown account, which the request will then refuse
+    private String ownerOf(String accountNumber) {
+        String owner = accountOwners.get(accountNumber);
+        if (owner == null) {
+            AccountClass account = accountDAO.getAccountByNumber(accountNumber);
+            if (account == null) {
+                return accountNumber;
+            }
+            owner = account.getCustomerId();
+            accountOwners.put(accountNumber, owner);
+        }
+        return owner;
+    }
+    
+    private static void release(AdmissionControl gate) {
+        if (gate != null) {
+            gate.release();
+        }
+    }
+    
+    //A debit counted by screenDebit, kept so it can be taken back if its transaction does not commit
+    private static final class ScreenedDebit {
+        final AccountClass account;
+        final double amount;
+        final long screenedAt;
         
-        if (fromAccount == null || toAccount == null) {
-            System.err.println("Error: One or both accounts not found!");
+        ScreenedDebit(AccountClass account, double amount, long screenedAt) {
+            this.account = account;
+            this.amount = amount;
+            this.screenedAt = screenedAt;
+        }
+    }
+    
+    //Count a debit against the daily withdrawal limit and the velocity rules before it is written
+    //Returns false if either blocks it; otherwise adds it to screened, which inTransaction releases
+    //unless the transaction commits
+    private boolean screenDebit(AccountClass account, double amount, java.util.List<ScreenedDebit> screened) {
+        String accountNumber = account.getAccountNumber();
+        long now = velocity.currentTimeMillis();
+        if (account instanceof WithdrawableInterface &&
+            !dailyWithdrawals.tryReserve(accountNumber, amount,
+                                         ((WithdrawableInterface) account).getWithdrawalLimit(), now)) {
+            BankLogger.warn("Debit from {} exceeds its daily withdrawal limit", accountNumber);
+            return false;
+        }
+        VelocityEngine.Rule broken = velocity.tryAcquire(accountNumber, account.getCustomerId(), amount, now);
+        if (broken != null) {
+            dailyWithdrawals.release(accountNumber, amount, now);
+            BankLogger.warn("Debit from {} blocked by velocity check: {}", accountNumber, broken);
             return false;
         }
+        screened.add(new ScreenedDebit(account, amount, now));
+        return true;
+    }
+    
+    //Undo screenDebit for a debit that was never written or has been refunded
+    private void releaseDebit(ScreenedDebit debit) {
+        AccountClass account = debit.account;
+        if (account instanceof WithdrawableInterface) {
+            dailyWithdrawals.release(account.getAccountNumber(), debit.amount, debit.screenedAt);
+        }
+        velocity.release(account.getAccountNumber(), account.getCustomerId(), debit.amount, debit.screenedAt);
+    }
+    
+    //Work done inside inTransaction; returning false rolls it back
+    private interface TransactionWork {
+        boolean run(java.sql.Connection conn) throws java.sql.SQLException;
+    }
+    
+    //Run work in its own database transaction, committing only if it returns true
+    //With an idempotency key, a repeated key returns the first outcome instead (see IdempotencyStore)
+    //A version conflict rolls back and reruns the work after a jittered backoff, up to MAX_ATTEMPTS
+    //The transaction runs on the given shard, which must hold every account the work touches
+    private boolean inTransaction(String operation, String idempotencyKey, int shard, TransactionWork work) {
+        return inTransaction(operation, idempotencyKey, shard, new java.util.ArrayList<>(), work);
+    }
+    
+    //As above for work that screens debits into screened; an attempt that does not commit,
+    //including one whose commit fails, releases the debits it screened before any rerun
+    //Reruns happen inside IdempotencyStore.execute, so a duplicate of a keyed call waits for the
+    //final outcome rather than seeing a conflict the original then retries past
+    private boolean inTransaction(String operation, String idempotencyKey, int shard,
+                                  java.util.List<ScreenedDebit> screened, TransactionWork work) {
+        IdempotencyStore.Retry retry = (e, attempt) -> {
+            releaseDebits(screened);
+            if (!(e instanceof AccountDAO.VersionConflictException)) {
+                return false;
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                CONFLICT_GIVE_UPS.increment();
+                BankLogger.warn("{} gave up after {} conflicting updates", operation, attempt);
+                return false;
+            }
+            CONFLICT_RETRIES.increment();
+            backOff(attempt);
+            return true;
+        };
         
-        if (fromAccount.withdraw(amount)) {
-            if (toAccount.deposit(amount)) {
-                // Update both accounts in database
-                accountDAO.updateAccountBalance(fromAccountNumber, fromAccount.getBalance());
-                accountDAO.updateAccountBalance(toAccountNumber, toAccount.getBalance());
-                
-                // Record transactions for both accounts
-                transactionDAO.recordTransaction(fromAccountNumber, "TRANSFER_OUT", amount, 
-                                               fromAccount.getBalance(), 
-                                               "Transfer to " + toAccountNumber, 
-                                               toAccountNumber);
-                transactionDAO.recordTransaction(toAccountNumber, "TRANSFER_IN", amount, 
-                                               toAccount.getBalance(), 
-                                               "Transfer from " + fromAccountNumber, 
-                                               fromAccountNumber);
-                
-                System.out.println("Transfer successful: " + amount);
-                return true;
+        boolean committed = false;
+        try {
+            if (idempotencyKey != null) {
+                committed = idempotencyKeys.execute(idempotencyKey, operation, shard, work::run, retry);
             } else {
-                // Rollback withdrawal if deposit fails
-                fromAccount.deposit(amount);
+                committed = runTransaction(shard, work, retry);
+            }
+            return committed;
+        } catch (AccountDAO.VersionConflictException e) {
+            // Gave up, already counted and logged by retry
+            return false;
+        } catch (java.sql.SQLException e) {
+            BankLogger.error("{} failed: {}", operation, e.getMessage());
+            return false;
+        } finally {
+            if (!committed) {
+                releaseDebits(screened);
             }
         }
-        
-        System.err.println("Transfer failed");
-        return false;
+    }
+    
+    private void releaseDebits(java.util.List<ScreenedDebit> screened) {
+        for (ScreenedDebit debit : screened) {
+            releaseDebit(debit);
+        }
+        screened.clear();
+    }
+    
+    private boolean runTransaction(int shard, TransactionWork work, IdempotencyStore.Retry retry)
+            throws java.sql.SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return runTransaction(shard, work);
+            } catch (java.sql.SQLException e) {
+                if (!retry.again(e, attempt)) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private boolean runTransaction(int shard, TransactionWork work) throws java.sql.SQLException {
+        try (java.sql.Connection conn = DatabaseConnection.getConnection(shard)) {
+            conn.setAutoCommit(false);
+            try {
+                if (work.run(conn)) {
+                    conn.commit();
+                    return true;
+                }
+                conn.rollback();
+                return false;
+            } catch (java.sql.SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    //Sleep a random time up to an exponentially growing cap, so conflicting retries spread out
+    private static void backOff(int attempt) {
+        long capMicros = RETRY_BASE_MICROS << Math.min(attempt - 1, 10);
+        long micros = java.util.concurrent.ThreadLocalRandom.current().nextLong(capMicros + 1);
+        java.util.concurrent.locks.LockSupport.parkNanos(micros * 1000);
     }
     
     // Interest Calculation for all eligible accounts
+    // One run per business day: rerunning the same day resumes from its checkpoints
     public void calculateInterestForAllAccounts() {
-        var accounts = accountDAO.getAllAccounts();
-        int count = 0;
-        
-        for (AccountClass account : accounts) {
-            if (account instanceof InterestBearingInterface) {
-                double oldBalance = account.getBalance();
-                ((InterestBearingInterface) account).calculateInterest();
-                double newBalance = account.getBalance();
-                double interest = newBalance - oldBalance;
-                
-                // Update database
-                accountDAO.updateAccountBalance(account.getAccountNumber(), newBalance);
-                // Record transaction
-                transactionDAO.recordTransaction(account.getAccountNumber(), "INTEREST", 
-                                               interest, newBalance, "Interest credited");
-                count++;
-            }
+        calculateInterestForAllAccounts("INTEREST-" + java.time.LocalDate.now());
+    }
+    
+    public InterestBatchEngine.RunResult calculateInterestForAllAccounts(String runId) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.calculateInterestForAllAccounts");
+        try (sample) {
+            InterestBatchEngine engine = new InterestBatchEngine(accountDAO);
+            InterestBatchEngine.RunResult result = engine.run(runId);
+            BankLogger.info("Interest calculated for {} accounts", result.getAccountsProcessed());
+            BankLogger.info("{}", result);
+            return result;
+        }
+    }
+    
+    // Check every balance against its ledger; safe to run hourly since only new rows are read
+    public ReconciliationEngine.RunResult reconcileLedger() {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.reconcileLedger");
+        try (sample) {
+            ReconciliationEngine.RunResult result = new ReconciliationEngine(accountDAO).run();
+            BankLogger.info("{}", result);
+            return result;
+        }
+    }
+    
+    // End-of-day job: post compound interest only for investments maturing on businessDate
+    public int postMaturityInterest(java.time.LocalDate businessDate) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.postMaturityInterest");
+        try (sample) {
+            return maturityScheduler.runEndOfDay(businessDate);
+        }
+    }
+    
+    // Move transactions older than the hot window to the archive table in the background
+    public void startTransactionArchiving() {
+        transactionArchiver.start(1, java.util.concurrent.TimeUnit.HOURS);
+    }
+    
+    public void stopTransactionArchiving() {
+        transactionArchiver.stop();
+    }
+    
+    // Daily balance snapshots that keep point-in-time balance lookups short
+    public void startBalanceCheckpoints() {
+        balanceCheckpoints.start();
+    }
+    
+    public void stopBalanceCheckpoints() {
+        balanceCheckpoints.stop();
+    }
+    
+    // Hourly purge of idempotency keys past their time-to-live
+    public void startIdempotencyKeyExpiry() {
+        idempotencyKeys.start(1, java.util.concurrent.TimeUnit.HOURS);
+    }
+    
+    public void stopIdempotencyKeyExpiry() {
+        idempotencyKeys.stop();
+    }
+    
+    // Finish cross-shard transfers interrupted by a crash or an unreachable shard, every minute,
+    // and once at start customer deletes left part way (see CustomerDAO.deleteCustomer)
+    public void startTransferRecovery() {
+        transferSagas.start(1, java.util.concurrent.TimeUnit.MINUTES);
+        if (ShardRouter.shardCount() > 1) {
+            Thread repair = new Thread(customerDAO::removeOrphanedCopies, "customer-copy-repair");
+            repair.setDaemon(true);
+            repair.start();
+        }
+    }
+    
+    public void stopTransferRecovery() {
+        transferSagas.stop();
+    }
+    
+    // Keep the customer_summary read model current from the outbox
+    public void startCustomerSummaries() {
+        customerSummaries.start();
+    }
+    
+    public void stopCustomerSummaries() {
+        customerSummaries.stop();
+    }
+    
+    // Balance of an account as it stood at the given moment, or null if the account is unknown
+    public Double getBalanceAsOf(String accountNumber, java.time.Instant asOf) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getBalanceAsOf");
+        try (sample) {
+            return accountDAO.getBalanceAsOf(accountNumber, asOf);
         }
-        
-        System.out.println("Interest calculated for " + count + " accounts");
     }
     
     // Reporting Methods
     public double getTotalBankBalance() {
-        double total = 0.0;
-        for (AccountClass account : accountDAO.getAllAccounts()) {
-            total += account.getBalance();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getTotalBankBalance");
+        try (sample) {
+            double total = 0.0;
+            for (AccountClass account : accountDAO.getAllAccounts()) {
+                total += account.getBalance();
+            }
+            return total;
         }
-        return total;
     }
     
     public int getTotalCustomers() {
-        return customerDAO.getCustomerCount();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getTotalCustomers");
+        try (sample) {
+            return customerDAO.getCustomerCount();
+        }
     }
     
     public int getTotalAccounts() {
-        return accountDAO.getAccountCount();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getTotalAccounts");
+        try (sample) {
+            return accountDAO.getAccountCount();
+        }
     }
     
     // Get customer's complete information with accounts
     public CustomerClass getCustomerWithAccounts(String customerId) {
-        CustomerClass customer = customerDAO.getCustomerById(customerId);
-        if (customer != null) {
-            var accounts = accountDAO.getAccountsByCustomerId(customerId);
-            for (AccountClass account : accounts) {
-                customer.addAccount(account);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getCustomerWithAccounts");
+        try (sample) {
+            CustomerClass customer = customerDAO.getCustomerById(customerId);
+            if (customer != null) {
+                var accounts = accountDAO.getAccountsByCustomerId(customerId);
+                for (AccountClass account : accounts) {
+                    customer.addAccount(account);
+                }
             }
+            return customer;
+        }
+    }
+    
+    // Customer dashboard: accounts, balances by type, last activity and recent transactions
+    public CustomerSummaryDAO.CustomerSummary getCustomerSummary(String customerId) {
+        return getCustomerSummary(customerId, 0);
+    }
+    
+    // Served from the customer_summary read model with one key lookup while the projection is
+    // within its lag bound and already includes the caller's last write (committed at
+    // lastWriteMillis, 0 for none); otherwise assembled from the source tables
+    public CustomerSummaryDAO.CustomerSummary getCustomerSummary(String customerId, long lastWriteMillis) {
+        AdmissionControl gate = admit(customerId, AdmissionControl.Operation.READ);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getCustomerSummary");
+        try (sample) {
+            if (customerSummaries.covers(lastWriteMillis)) {
+                CustomerSummaryDAO.CustomerSummary summary = customerSummaryDAO.getSummary(customerId);
+                if (summary != null) {
+                    return summary;
+                }
+            }
+            return customerSummaryDAO.buildSummary(customerId);
+        } finally {
+            release(gate);
+        }
+    }
+    
+    // Most recent transactions of an account, newest first
+    public java.util.List<TransactionDAO.Transaction> getRecentTransactions(String accountNumber, int limit) {
+        AdmissionControl gate = admitForAccount(accountNumber, AdmissionControl.Operation.READ);
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.getRecentTransactions")) {
+            return sample.rows(transactionDAO.getRecentTransactions(accountNumber, limit));
+        } finally {
+            release(gate);
         }
-        return customer;
     }
     
     // Get account transaction history
     public void printAccountStatement(String accountNumber) {
-        AccountClass account = findAccountByNumber(accountNumber);
-        if (account == null) {
-            System.out.println("Account not found!");
-            return;
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.printAccountStatement");
+        try (sample) {
+            AccountClass account = findAccountByNumber(accountNumber);
+            if (account == null) {
+                BankLogger.console(BankLogger.Level.INFO, "Account not found!");
+                return;
+            }
+            
+            BankLogger.console(BankLogger.Level.INFO, "\n=== Account Statement ===");
+            BankLogger.console(BankLogger.Level.INFO, "Account Number: {}", accountNumber);
+            BankLogger.console(BankLogger.Level.INFO, "Account Type: {}", account.getAccountType());
+            BankLogger.console(BankLogger.Level.INFO, "Current Balance: {}",
+                               String.format("%.2f", account.getBalance()));
+            BankLogger.console(BankLogger.Level.INFO, "\nTransaction History:");
+            
+            var transactions = transactionDAO.getTransactionsByAccountNumber(accountNumber);
+            if (transactions.isEmpty()) {
+                BankLogger.console(BankLogger.Level.INFO, "No transactions found.");
+            } else {
+                for (var transaction : transactions) {
+                    BankLogger.console(BankLogger.Level.INFO, "{}", transaction);
+                }
+            }
+            BankLogger.console(BankLogger.Level.INFO, "========================\n");
         }
-        
-        System.out.println("\n=== Account Statement ===");
-        System.out.println("Account Number: " + accountNumber);
-        System.out.println("Account Type: " + account.getAccountType());
-        System.out.println("Current Balance: " + String.format("%.2f", account.getBalance()));
-        System.out.println("\nTransaction History:");
-        
-        var transactions = transactionDAO.getTransactionsByAccountNumber(accountNumber);
-        if (transactions.isEmpty()) {
-            System.out.println("No transactions found.");
-        } else {
-            for (var transaction : transactions) {
-                System.out.println(transaction);
+    }
+    
+    // Month-end run: one statement file per account (CSV or text) under outputDir
+    public int generateAllStatements(java.nio.file.Path outputDir, boolean csv) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.generateAllStatements");
+        try (sample) {
+            StatementGenerator generator = new StatementGenerator(accountDAO, transactionDAO, csv);
+            try {
+                int count = generator.generateAll(outputDir);
+                BankLogger.info("Statements generated for {} accounts in {}", count, outputDir);
+                return count;
+            } catch (java.io.IOException e) {
+                BankLogger.error("Error writing statements: {}", e.getMessage());
+                return 0;
+            } catch (java.sql.SQLException e) {
+                BankLogger.error("Error generating statements: {}", e.getMessage());
+                return 0;
+            }
+        }
+    }
+    
+    // Onboard a migrated book from CSV files; any of the paths may be null to skip that file
+    // Returns false if a file did not load completely; later files then wait for the rerun
+    public boolean importBook(java.nio.file.Path customersCsv, java.nio.file.Path accountsCsv,
+                              java.nio.file.Path transactionsCsv) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("BankSystemWithDAO.importBook");
+        try (sample) {
+            BulkImporter importer = new BulkImporter(accountDAO, customerDAO);
+            try {
+                if (customersCsv != null && !importer.importCustomers(customersCsv).isCompleted()) {
+                    sample.error();
+                    return false;
+                }
+                if (accountsCsv != null && !importer.importAccounts(accountsCsv).isCompleted()) {
+                    sample.error();
+                    return false;
+                }
+                if (transactionsCsv != null && !importer.importTransactions(transactionsCsv).isCompleted()) {
+                    sample.error();
+                    return false;
+                }
+                return true;
+            } catch (java.io.IOException e) {
+                sample.error();
+                BankLogger.error("Error reading import file: {}", e.getMessage());
+                return false;
             }
         }
-        System.out.println("========================\n");
     }
     
     @Override
@@ -1,5 +1,8 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.stage.Stage;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
 
 
 public class BankingApplication extends Application {
@@ -8,93 +11,100 @@ public class BankingApplication extends Application {
     
     @Override
     public void start(Stage primaryStage) {
+        long startNanos = System.nanoTime();
         try {
-            // Initialize database and create sample data
+            // Bring the database up to date and seed it only if it is empty
             initializeSystem();
             
             // Create and show login view
             LoginController loginController = new LoginController(primaryStage, bankSystem);
             loginController.showLoginView();
             
+            // Interactive once the FX thread is free to handle input on the login view
+            Platform.runLater(() -> {
+                long jvmMillis = System.currentTimeMillis() -
+                                 ManagementFactory.getRuntimeMXBean().getStartTime();
+                System.out.println("✓ Time to interactive: " + (System.nanoTime() - startNanos) / 1_000_000 +
+                                   " ms (" + jvmMillis + " ms since JVM start)");
+            });
+            warmCachesInBackground();
+            
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Application startup failed: " + e.getMessage());
         }
     }
     
-    //Initialize the banking system with database and sample data
-    private void initializeSystem() {
+    //Initialize the banking system: migrate the schema if needed and seed an empty database
+    //Existing data is kept, so restarting the application no longer wipes the bank
+    private void initializeSystem() throws SQLException {
         System.out.println("=== Initializing Banking System ===");
         
-        // Step 1: Initialize database
-        DatabaseConnection.initializeDatabase();
-        System.out.println("✓ Database initialized");
+        // Step 1: Create or migrate the schema
+        long stepStart = System.nanoTime();
+        int foundVersion = SchemaManager.ensureSchema();
+        if (foundVersion == 0) {
+            System.out.println("✓ Database created at schema version " + SchemaManager.CURRENT_VERSION);
+        } else if (foundVersion < SchemaManager.CURRENT_VERSION) {
+            System.out.println("✓ Database migrated from schema version " + foundVersion + " to " +
+                               SchemaManager.CURRENT_VERSION);
+        } else {
+            System.out.println("✓ Database schema up to date (version " + foundVersion + ")");
+        }
+        System.out.println("  (" + (System.nanoTime() - stepStart) / 1_000_000 + " ms)");
         
         // Step 2: Create bank system
         bankSystem = new BankSystemWithDAO("FirstBank Digital");
         System.out.println("✓ Bank system created: " + bankSystem.getBankName());
         
-        // Step 3: Create sample customers and accounts
-        createSampleData();
-        System.out.println("✓ Sample data created");
+        // Step 3: Sample customers and accounts, only on a new database
+        stepStart = System.nanoTime();
+        if (SampleDataSeeder.seedIfEmpty()) {
+            System.out.println("✓ Sample data created (" + (System.nanoTime() - stepStart) / 1_000_000 + " ms)");
+        } else {
+            System.out.println("✓ Existing data kept");
+        }
+        
+        // Step 4: Daily withdrawal totals from the last 24 hours of the ledger
+        stepStart = System.nanoTime();
+        DailyWithdrawalTracker.getInstance().ensureLoaded();
+        System.out.println("✓ Daily withdrawal totals loaded (" + (System.nanoTime() - stepStart) / 1_000_000 + " ms)");
+        
+        // Step 5: Background ledger maintenance
+        bankSystem.startTransactionArchiving();
+        bankSystem.startBalanceCheckpoints();
+        bankSystem.startIdempotencyKeyExpiry();
+        bankSystem.startTransferRecovery();
+        bankSystem.startCustomerSummaries();
+        MetricsRegistry.startReporter(1, java.util.concurrent.TimeUnit.MINUTES);
         
         System.out.println("=== System Ready ===\n");
     }
     
-    //Create sample data for testing
-    private void createSampleData() {
-        // Create customers
-        CustomerClass customer1 = bankSystem.createCustomer(
-            "John", "Doe",
-            "john.doe@email.com",
-            "555-0101",
-            "123 Main Street, Cityville"
-        );
-        
-        CustomerClass customer2 = bankSystem.createCustomer(
-            "Jane", "Smith",
-            "jane.smith@email.com",
-            "555-0102",
-            "456 Oak Avenue, Townsburg"
-        );
-        
-        if (customer1 != null) {
-            // Create accounts for customer1
-            ChequeAccountClass cheque1 = bankSystem.createChequeAccount(customer1.getCustomerId());
-            SavingsAccountClass savings1 = bankSystem.createSavingsAccount(
-                customer1.getCustomerId(), 1000.0
-            );
-            InvestmentAccountClass invest1 = bankSystem.createInvestmentAccount(
-                customer1.getCustomerId(), "Fixed Deposit", 5000.0
-            );
-            
-            // Add some transactions
-            if (cheque1 != null) {
-                bankSystem.deposit(cheque1.getAccountNumber(), 2000.0);
-                bankSystem.withdraw(cheque1.getAccountNumber(), 500.0);
-            }
-        }
-        
-        if (customer2 != null) {
-            // Create accounts for customer2
-            ChequeAccountClass cheque2 = bankSystem.createChequeAccount(customer2.getCustomerId());
-            SavingsAccountClass savings2 = bankSystem.createSavingsAccount(
-                customer2.getCustomerId(), 500.0
-            );
-            
-            if (cheque2 != null) {
-                bankSystem.deposit(cheque2.getAccountNumber(), 1500.0);
-            }
-        }
-        
-        System.out.println("Sample users created:");
-        System.out.println("  - john.doe@email.com (password: any)");
-        System.out.println("  - jane.smith@email.com (password: any)");
+    //Build the customer search index and prime the login query while the login view is up
+    private void warmCachesInBackground() {
+        Thread warmer = new Thread(() -> {
+            long start = System.nanoTime();
+            CustomerSearchIndex.getInstance().ensureBuilt();
+            bankSystem.findCustomerByEmail("");
+            BankLogger.info("Caches warmed in {} ms", (System.nanoTime() - start) / 1_000_000);
+        }, "cache-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
     }
     
     @Override
     public void stop() {
         System.out.println("\n=== Shutting Down ===");
+        if (bankSystem != null) {
+            bankSystem.stopTransactionArchiving();
+            bankSystem.stopBalanceCheckpoints();
+        }
+        MetricsRegistry.stopReporter();
+        System.out.print(MetricsRegistry.dump());
+        if (DatabaseConnection.isTracing()) {
+            System.out.print(JdbcTracer.report());
+        }
         DatabaseConnection.closeConnection();
         System.out.println("✓ Database connection closed");
         System.out.println("=== Goodbye ===");
@@ -0,0 +1,757 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Bulk loader for migrated books: customers, accounts and transactions from CSV files.
+//Each file is split into newline-aligned chunks that are memory-mapped, parsed, validated
+//with the same rules as BankSystemWithDAO and loaded with JDBC batches in parallel. Every
+//chunk commits together with its import_checkpoints row, so rerunning an interrupted import
+//skips the chunks that already made it into the database. Rows that fail validation, including
+//IDs that already exist, are reported one by one and skipped; the rest of their chunk loads.
+//
+//An imported account gets an opening balance deposit so its ledger matches its balance. A
+//transactions file is the full history of its accounts: it replaces that opening deposit, and
+//each account ends with the balance_after of its last row. Transaction chunks load one at a
+//time, in file order, so ledger IDs follow the history.
+//
+//With more than one shard every row goes to the shard its account number routes to, and
+//customers to every shard (see ShardRouter). A chunk then commits on each shard it touches
+//with that shard's own checkpoint, shard 0 last, and a rerun only loads the part of a chunk a
+//shard does not have yet. Should a chunk fail between two shard commits, its rows that were
+//given no account number can be loaded again under a new number by the rerun.
+public class BulkImporter {
+    private static final int DEFAULT_CHUNK_BYTES = 8 * 1024 * 1024;
+    private static final int BATCH_SIZE = 1000;
+    private static final int LOOKUP_SIZE = 500;
+    private static final String OPENING_DESCRIPTION = "Opening balance (import)";
+    
+    private final AccountDAO accountDAO;
+    private final CustomerDAO customerDAO;
+    private final IdBlockAllocator customerIds;
+    private final IdBlockAllocator accountNumbers;
+    private final int parallelism;
+    private final int chunkBytes;
+    private final Set<String> importedEmails = ConcurrentHashMap.newKeySet();
+    // Every ID loaded or allocated by this importer, so two rows never get the same one
+    private final Set<String> importedCustomerIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> importedAccountNumbers = ConcurrentHashMap.newKeySet();
+    
+    //Summary of one import
+    public static class ImportResult {
+        private final String importId;
+        private final int rowsLoaded;
+        private final int rowsRejected;
+        private final int chunksSkipped;
+        private final long elapsedMillis;
+        private final boolean completed;
+        
+        public ImportResult(String importId, int rowsLoaded, int rowsRejected,
+                            int chunksSkipped, long elapsedMillis, boolean completed) {
+            this.importId = importId;
+            this.rowsLoaded = rowsLoaded;
+            this.rowsRejected = rowsRejected;
+            this.chunksSkipped = chunksSkipped;
+            this.elapsedMillis = elapsedMillis;
+            this.completed = completed;
+        }
+        
+        public String getImportId() { return importId; }
+        public int getRowsLoaded() { return rowsLoaded; }
+        public int getRowsRejected() { return rowsRejected; }
+        public int getChunksSkipped() { return chunksSkipped; }
+        public long getElapsedMillis() { return elapsedMillis; }
+        //False if a chunk failed; rerunning the same file loads only the chunks still missing
+        public boolean isCompleted() { return completed; }
+        
+        public double getRowsPerSecond() {
+            return elapsedMillis > 0 ? rowsLoaded * 1000.0 / elapsedMillis : rowsLoaded;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Import %s%s: %d rows loaded, %d rejected, %d chunks already done, " +
+                    "%d ms (%.0f rows/s)", importId, completed ? "" : " (incomplete, rerun to resume)",
+                    rowsLoaded, rowsRejected, chunksSkipped, elapsedMillis, getRowsPerSecond());
+        }
+    }
+    
+    //Loads the parsed rows of one chunk on the connections of every shard, indexed by shard
+    //A shard that already committed its part of the chunk has no connection (null)
+    //Returns the number of rows rejected by validation
+    private interface ChunkLoader {
+        int load(Connection[] shards, List<String[]> rows, int chunkNo, int[] loaded) throws SQLException;
+    }
+    
+    public BulkImporter(AccountDAO accountDAO, CustomerDAO customerDAO) {
+        this(accountDAO, customerDAO, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_BYTES);
+    }
+    
+    public BulkImporter(AccountDAO accountDAO, CustomerDAO customerDAO, int parallelism, int chunkBytes) {
+        this.accountDAO = accountDAO;
+        this.customerDAO = customerDAO;
+        this.customerIds = new IdBlockAllocator("CUSTOMER", 1001, BATCH_SIZE);
+        this.accountNumbers = new IdBlockAllocator("ACCOUNT", 10001, BATCH_SIZE);
+        this.parallelism = Math.max(1, parallelism);
+        this.chunkBytes = Math.max(4096, chunkBytes);
+    }
+    
+    //customer_id,first_name,last_name,email,phone,address (blank customer_id = allocate one)
+    public ImportResult importCustomers(Path file) throws IOException {
+        try {
+            return importFile("customers", file, this::loadCustomers, parallelism);
+        } finally {
+            CustomerSearchIndex.getInstance().invalidate();
+        }
+    }
+    
+    //account_number,customer_id,account_type,balance,investment_type (blank number = allocate one)
+    public ImportResult importAccounts(Path file) throws IOException {
+        return importFile("accounts", file, this::loadAccounts, parallelism);
+    }
+    
+    //account_number,transaction_type,amount,balance_after,description,transaction_date,to_account_number
+    //Rows must be in date order per account
+    public ImportResult importTransactions(Path file) throws IOException {
+        return importFile("transactions", file, this::loadTransactions, 1);
+    }
+    
+    private ImportResult importFile(String kind, Path file, ChunkLoader loader, int threads) throws IOException {
+        long start = System.nanoTime();
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The id changes when the file does, so a modified file is never treated as resumed
+            String importId = kind + ":" + file.toAbsolutePath() + ":" + channel.size();
+            List<long[]> chunks = splitChunks(channel);
+            Map<Integer, Set<Integer>> done;
+            try {
+                done = loadCompletedChunks(importId);
+            } catch (SQLException e) {
+                // Without the checkpoints a chunk already loaded would be loaded again
+                BankLogger.error("Error reading import checkpoints: {}", e.getMessage());
+                return new ImportResult(importId, 0, 0, 0, 0, false);
+            }
+            int skipped = 0;
+            boolean completed = true;
+            
+            AtomicInteger loaded = new AtomicInteger();
+            AtomicInteger rejected = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < chunks.size(); i++) {
+                    Set<Integer> doneShards = done.getOrDefault(i, Collections.emptySet());
+                    if (doneShards.contains(0)) {
+                        skipped++;
+                        continue;
+                    }
+                    int chunkNo = i;
+                    long[] bounds = chunks.get(i);
+                    futures.add(executor.submit(() -> {
+                        loadChunk(channel, importId, chunkNo, bounds, doneShards, loader, loaded, rejected);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+                BankLogger.error("Import interrupted; rerun to resume {}", importId);
+            } catch (ExecutionException e) {
+                completed = false;
+                BankLogger.error("Import chunk failed; rerun to resume {}: {}", importId,
+                                 e.getCause().getMessage());
+            } finally {
+                executor.shutdownNow();
+            }
+            
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            ImportResult result = new ImportResult(importId, loaded.get(), rejected.get(),
+                                                   skipped, elapsedMillis, completed);
+            BankLogger.info("{}", result);
+            return result;
+        }
+    }
+    
+    //Split the file into [start, end) byte ranges that each end on a line break
+    private List<long[]> splitChunks(FileChannel channel) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long size = channel.size();
+        long start = 0;
+        
+        while (start < size) {
+            long end = Math.min(start + chunkBytes, size);
+            if (end < size) {
+                // Extend to the next newline so no row straddles two chunks
+                MappedByteBuffer probe = channel.map(FileChannel.MapMode.READ_ONLY, end,
+                                                     Math.min(64 * 1024, size - end));
+                while (probe.hasRemaining() && probe.get() != '\n') {
+                    end++;
+                }
+                end = Math.min(end + 1, size);
+            }
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+    
+    //Shards that have committed each chunk of an import; shard 0 commits last, so with it a chunk is done
+    private Map<Integer, Set<Integer>> loadCompletedChunks(String importId) throws SQLException {
+        Map<Integer, Set<Integer>> done = new HashMap<>();
+        String sql = "SELECT chunk_no FROM import_checkpoints WHERE import_id = ?";
+        
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            try (Connection conn = DatabaseConnection.openConnection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, importId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        done.computeIfAbsent(rs.getInt(1), k -> new HashSet<>()).add(shard);
+                    }
+                }
+            }
+        }
+        return done;
+    }
+    
+    //Map, parse and load one chunk in a single transaction per shard together with its checkpoints
+    private void loadChunk(FileChannel channel, String importId, int chunkNo, long[] bounds,
+                           Set<Integer> doneShards, ChunkLoader loader, AtomicInteger loaded,
+                           AtomicInteger rejected)
+            throws IOException, SQLException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, bounds[0],
+                                              bounds[1] - bounds[0]);
+        String text = StandardCharsets.UTF_8.decode(mapped).toString();
+        
+        List<String[]> rows = new ArrayList<>();
+        int lineStart = 0;
+        boolean header = bounds[0] == 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            String line = text.substring(lineStart, lineEnd).trim();
+            lineStart = lineEnd + 1;
+            if (header) {
+                header = false;
+                continue;
+            }
+            if (!line.isEmpty()) {
+                rows.add(parseCsvLine(line));
+            }
+        }
+        
+        String checkpointSql = "INSERT INTO import_checkpoints (import_id, chunk_no, rows_loaded, " +
+                               "rows_rejected) VALUES (?, ?, ?, ?)";
+        Connection[] shards = new Connection[ShardRouter.shardCount()];
+        try {
+            for (int shard = 0; shard < shards.length; shard++) {
+                if (!doneShards.contains(shard)) {
+                    shards[shard] = DatabaseConnection.openConnection(shard);
+                    shards[shard].setAutoCommit(false);
+                }
+            }
+            try {
+                int[] chunkLoaded = new int[1];
+                int chunkRejected = loader.load(shards, rows, chunkNo, chunkLoaded);
+                
+                for (int shard = shards.length - 1; shard >= 0; shard--) {
+                    if (shards[shard] == null) {
+                        continue;
+                    }
+                    try (PreparedStatement checkpoint = shards[shard].prepareStatement(checkpointSql)) {
+                        checkpoint.setString(1, importId);
+                        checkpoint.setInt(2, chunkNo);
+                        checkpoint.setInt(3, chunkLoaded[0]);
+                        checkpoint.setInt(4, chunkRejected);
+                        checkpoint.executeUpdate();
+                    }
+                    shards[shard].commit();
+                }
+                
+                loaded.addAndGet(chunkLoaded[0]);
+                rejected.addAndGet(chunkRejected);
+            } catch (SQLException e) {
+                for (Connection conn : shards) {
+                    if (conn != null) {
+                        conn.rollback();
+                    }
+                }
+                throw e;
+            }
+        } finally {
+            for (Connection conn : shards) {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+    
+    private int loadCustomers(Connection[] shards, List<String[]> rows, int chunkNo, int[] loaded)
+            throws SQLException {
+        Connection conn = shards[0];
+        List<String> emails = new ArrayList<>();
+        List<String> givenIds = new ArrayList<>();
+        for (String[] row : rows) {
+            emails.add(field(row, 3));
+            givenIds.add(field(row, 0));
+        }
+        Set<String> taken = findExisting(conn, "SELECT email FROM customers WHERE email IN ", emails);
+        Set<String> takenIds = findExisting(conn, "SELECT customer_id FROM customers WHERE customer_id IN ",
+                                            givenIds);
+        Set<Integer> duplicateIds = claimIds(givenIds, takenIds, importedCustomerIds);
+        
+        int rejected = 0;
+        long highestGiven = IdBlockAllocator.UNAVAILABLE;
+        List<CustomerClass> accepted = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            String[] row = rows.get(i);
+            String firstName = field(row, 1);
+            String lastName = field(row, 2);
+            String email = field(row, 3);
+            
+            String error = null;
+            if (duplicateIds.contains(i)) {
+                error = "Customer ID already exists: " + field(row, 0);
+            } else if (firstName == null || lastName == null) {
+                error = "First and last name are required";
+            } else if (email != null && (taken.contains(email) || !importedEmails.add(email))) {
+                // Same rule as createCustomer: email must be unique
+                error = "Email already exists: " + email;
+            }
+            if (error != null) {
+                reject(chunkNo, i, error);
+                rejected++;
+                continue;
+            }
+            
+            String customerId = field(row, 0);
+            if (customerId == null) {
+                customerId = allocate(customerIds, "CUST", takenIds, importedCustomerIds);
+                if (customerId == null) {
+                    reject(chunkNo, i, "No customer ID available");
+                    rejected++;
+                    continue;
+                }
+            } else {
+                highestGiven = Math.max(highestGiven, numberOf(customerId, "CUST"));
+            }
+            accepted.add(new CustomerClass(customerId, firstName, lastName,
+                                           email, field(row, 4), field(row, 5)));
+            loaded[0]++;
+        }
+        
+        // Every shard holds every customer
+        for (Connection shard : shards) {
+            if (shard != null) {
+                insertCustomers(shard, accepted);
+            }
+        }
+        if (highestGiven != IdBlockAllocator.UNAVAILABLE) {
+            customerIds.advancePast(conn, highestGiven);
+        }
+        return rejected;
+    }
+    
+    private void insertCustomers(Connection conn, List<CustomerClass> customers) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(CustomerDAO.INSERT_CUSTOMER_SQL);
+             ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+            int batched = 0;
+            for (CustomerClass customer : customers) {
+                customerDAO.bindCustomer(insert, customer);
+                insert.addBatch();
+                ChangeLog.addBatch(changes, ChangeLog.CUSTOMERS, customer.getCustomerId());
+                if (++batched % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            ChangeLog.executeBatch(changes);
+        }
+    }
+    
+    private int loadAccounts(Connection[] shards, List<String[]> rows, int chunkNo, int[] loaded)
+            throws SQLException {
+        List<String> customerIdsInChunk = new ArrayList<>();
+        List<String> givenNumbers = new ArrayList<>();
+        for (String[] row : rows) {
+            customerIdsInChunk.add(field(row, 1));
+            givenNumbers.add(field(row, 0));
+        }
+        Set<String> customers = findExisting(shards[0], "SELECT customer_id FROM customers WHERE customer_id IN ",
+                                             customerIdsInChunk);
+        Set<String> takenNumbers = findExistingAccounts(shards, "SELECT account_number FROM accounts " +
+                                                        "WHERE account_number IN ", givenNumbers);
+        Set<Integer> duplicateNumbers = claimIds(givenNumbers, takenNumbers, importedAccountNumbers);
+        
+        int rejected = 0;
+        long highestGiven = IdBlockAllocator.UNAVAILABLE;
+        List<List<AccountClass>> byShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            String[] row = rows.get(i);
+            if (field(row, 0) != null && shards[ShardRouter.shardOf(field(row, 0))] == null) {
+                // Its shard committed this chunk in an earlier attempt
+                continue;
+            }
+            String customerId = field(row, 1);
+            String accountType = field(row, 2);
+            double balance;
+            try {
+                balance = Double.parseDouble(field(row, 3) != null ? field(row, 3) : "0");
+            } catch (NumberFormatException e) {
+                reject(chunkNo, i, "Invalid balance: " + field(row, 3));
+                rejected++;
+                continue;
+            }
+            
+            String error = null;
+            if (duplicateNumbers.contains(i)) {
+                error = "Account number already exists: " + field(row, 0);
+            } else if (customerId == null || !customers.contains(customerId)) {
+                error = "Customer not found: " + customerId;
+            } else if (accountType == null) {
+                error = "Account type is required";
+            } else {
+                error = BankSystemWithDAO.validateInitialDeposit(accountType, balance);
+            }
+            if (error != null) {
+                reject(chunkNo, i, error);
+                rejected++;
+                continue;
+            }
+            
+            String prefix = accountType.equals("Savings") ? "SAV" :
+                            accountType.equals("Cheque") ? "CHQ" : "INV";
+            String accountNumber = field(row, 0);
+            if (accountNumber == null) {
+                do {
+                    accountNumber = allocate(accountNumbers, prefix, takenNumbers, importedAccountNumbers);
+                } while (accountNumber != null && shards[ShardRouter.shardOf(accountNumber)] == null);
+                if (accountNumber == null) {
+                    reject(chunkNo, i, "No account number available");
+                    rejected++;
+                    continue;
+                }
+            } else {
+                highestGiven = Math.max(highestGiven, numberOf(accountNumber, "SAV", "CHQ", "INV"));
+            }
+            AccountClass account;
+            switch (accountType) {
+                case "Savings":
+                    account = new SavingsAccountClass(accountNumber, customerId, balance);
+                    break;
+                case "Cheque":
+                    account = new ChequeAccountClass(accountNumber, customerId, balance);
+                    break;
+                default:
+                    String investmentType = field(row, 4) != null ? field(row, 4) : "Fixed Deposit";
+                    account = new InvestmentAccountClass(accountNumber, customerId, investmentType, balance);
+                    break;
+            }
+            byShard.get(ShardRouter.shardOf(accountNumber)).add(account);
+            loaded[0]++;
+        }
+        
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (!byShard.get(shard).isEmpty()) {
+                insertAccounts(shards[shard], byShard.get(shard));
+            }
+        }
+        if (highestGiven != IdBlockAllocator.UNAVAILABLE) {
+            accountNumbers.advancePast(shards[0], highestGiven);
+        }
+        return rejected;
+    }
+    
+    private void insertAccounts(Connection conn, List<AccountClass> accounts) throws SQLException {
+        String transactionSql = "INSERT INTO transactions (account_number, transaction_type, amount, " +
+                                "balance_after, description) VALUES (?, 'DEPOSIT', ?, ?, '" + OPENING_DESCRIPTION + "')";
+        try (PreparedStatement insert = conn.prepareStatement(AccountDAO.INSERT_ACCOUNT_SQL);
+             PreparedStatement opening = conn.prepareStatement(transactionSql);
+             ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+            int batched = 0;
+            for (AccountClass account : accounts) {
+                accountDAO.bindAccount(insert, account);
+                insert.addBatch();
+                ChangeLog.addBatch(changes, ChangeLog.ACCOUNTS, account.getAccountNumber());
+                if (account.getBalance() > 0) {
+                    // Keep the ledger in step with the opening balance
+                    opening.setString(1, account.getAccountNumber());
+                    opening.setDouble(2, account.getBalance());
+                    opening.setDouble(3, account.getBalance());
+                    opening.addBatch();
+                }
+                if (++batched % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                    opening.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            opening.executeBatch();
+            ChangeLog.executeBatch(changes);
+        }
+    }
+    
+    private int loadTransactions(Connection[] shards, List<String[]> rows, int chunkNo, int[] loaded)
+            throws SQLException {
+        List<List<Integer>> byShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            String accountNumber = field(rows.get(i), 0);
+            byShard.get(accountNumber != null ? ShardRouter.shardOf(accountNumber) : 0).add(i);
+        }
+        
+        int rejected = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            // A shard without a connection committed its rows of this chunk in an earlier attempt
+            if (shards[shard] != null && !byShard.get(shard).isEmpty()) {
+                rejected += loadTransactions(shards[shard], rows, byShard.get(shard), chunkNo, loaded);
+            }
+        }
+        return rejected;
+    }
+    
+    //Load the rows at the given indexes, which all belong to accounts on the connection's shard
+    private int loadTransactions(Connection conn, List<String[]> rows, List<Integer> indexes, int chunkNo,
+                                 int[] loaded) throws SQLException {
+        List<String> accountsInChunk = new ArrayList<>();
+        for (int i : indexes) {
+            accountsInChunk.add(field(rows.get(i), 0));
+        }
+        Set<String> accounts = findExisting(conn, "SELECT account_number FROM accounts WHERE account_number IN ",
+                                            accountsInChunk);
+        
+        String sql = "INSERT INTO transactions (account_number, transaction_type, amount, balance_after, " +
+                     "description, transaction_date, to_account_number) " +
+                     "VALUES (?, ?, ?, ?, ?, COALESCE(?, CURRENT_TIMESTAMP), ?)";
+        String openingSql = "DELETE FROM transactions WHERE account_number = ? AND transaction_type = 'DEPOSIT' " +
+                            "AND description = '" + OPENING_DESCRIPTION + "'";
+        String balanceSql = "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ?";
+        // Closing balance of each account in this chunk, in file order
+        Map<String, Double> closing = new LinkedHashMap<>();
+        int rejected = 0;
+        try (PreparedStatement insert = conn.prepareStatement(sql);
+             PreparedStatement opening = conn.prepareStatement(openingSql);
+             PreparedStatement balance = conn.prepareStatement(balanceSql);
+             ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+            for (int i : indexes) {
+                String[] row = rows.get(i);
+                String accountNumber = field(row, 0);
+                String type = field(row, 1);
+                try {
+                    double amount = Double.parseDouble(field(row, 2));
+                    double balanceAfter = Double.parseDouble(field(row, 3));
+                    String date = field(row, 5);
+                    
+                    String error = null;
+                    if (accountNumber == null || !accounts.contains(accountNumber)) {
+                        error = "Account not found: " + accountNumber;
+                    } else if (type == null) {
+                        error = "Transaction type is required";
+                    } else if (amount <= 0) {
+                        error = "Amount must be greater than 0";
+                    }
+                    if (error != null) {
+                        reject(chunkNo, i, error);
+                        rejected++;
+                        continue;
+                    }
+                    
+                    insert.setString(1, accountNumber);
+                    insert.setString(2, type);
+                    insert.setDouble(3, amount);
+                    insert.setDouble(4, balanceAfter);
+                    insert.setString(5, field(row, 4));
+                    insert.setTimestamp(6, date != null ? Timestamp.valueOf(date) : null);
+                    insert.setString(7, field(row, 6));
+                    insert.addBatch();
+                    closing.put(accountNumber, balanceAfter);
+                    if (++loaded[0] % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                } catch (IllegalArgumentException | NullPointerException e) {
+                    reject(chunkNo, i, "Invalid number or date: " + String.join(",", row));
+                    rejected++;
+                }
+            }
+            insert.executeBatch();
+            
+            // The history accounts for the opening balance, so the import's own deposit goes
+            for (Map.Entry<String, Double> entry : closing.entrySet()) {
+                opening.setString(1, entry.getKey());
+                opening.addBatch();
+                ChangeLog.addBatch(changes, ChangeLog.TRANSACTIONS, entry.getKey());
+                balance.setDouble(1, entry.getValue());
+                balance.setString(2, entry.getKey());
+                balance.addBatch();
+                ChangeLog.addBatch(changes, ChangeLog.ACCOUNTS, entry.getKey());
+            }
+            opening.executeBatch();
+            balance.executeBatch();
+            ChangeLog.executeBatch(changes);
+        }
+        return rejected;
+    }
+    
+    //Look up which of the given keys already exist, a few hundred keys per query
+    private Set<String> findExisting(Connection conn, String sqlPrefix, List<String> keys) throws SQLException {
+        Set<String> found = new HashSet<>();
+        List<String> distinct = new ArrayList<>(new HashSet<>(keys));
+        distinct.remove(null);
+        
+        for (int from = 0; from < distinct.size(); from += LOOKUP_SIZE) {
+            List<String> slice = distinct.subList(from, Math.min(from + LOOKUP_SIZE, distinct.size()));
+            StringBuilder placeholders = new StringBuilder("(");
+            for (int i = 0; i < slice.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            placeholders.append(")");
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(sqlPrefix + placeholders)) {
+                for (int i = 0; i < slice.size(); i++) {
+                    pstmt.setString(i + 1, slice.get(i));
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        found.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        return found;
+    }
+    
+    //Look up which of the given account numbers already exist, each on the shard it routes to
+    //Shards without a connection are not asked
+    private Set<String> findExistingAccounts(Connection[] shards, String sqlPrefix, List<String> numbers)
+            throws SQLException {
+        List<List<String>> byShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (String number : numbers) {
+            if (number != null) {
+                byShard.get(ShardRouter.shardOf(number)).add(number);
+            }
+        }
+        Set<String> found = new HashSet<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (shards[shard] != null) {
+                found.addAll(findExisting(shards[shard], sqlPrefix, byShard.get(shard)));
+            }
+        }
+        return found;
+    }
+    
+    //Claim the IDs given in a chunk for this import, returning the rows whose ID already exists
+    //in the database or was claimed earlier in the import
+    private static Set<Integer> claimIds(List<String> givenIds, Set<String> taken, Set<String> imported) {
+        Set<Integer> duplicates = new HashSet<>();
+        for (int i = 0; i < givenIds.size(); i++) {
+            String id = givenIds.get(i);
+            if (id != null && (taken.contains(id) || !imported.add(id))) {
+                duplicates.add(i);
+            }
+        }
+        return duplicates;
+    }
+    
+    //Allocate an ID that no row of this import or of the chunk's lookups uses, or null if none is available
+    private static String allocate(IdBlockAllocator allocator, String prefix, Set<String> taken,
+                                   Set<String> imported) {
+        while (true) {
+            long number = allocator.next();
+            if (number == IdBlockAllocator.UNAVAILABLE) {
+                return null;
+            }
+            String id = prefix + number;
+            if (!taken.contains(id) && imported.add(id)) {
+                return id;
+            }
+        }
+    }
+    
+    //Numeric part of an ID with one of the given prefixes, or UNAVAILABLE if it has another form
+    private static long numberOf(String id, String... prefixes) {
+        for (String prefix : prefixes) {
+            if (id.startsWith(prefix)) {
+                try {
+                    return Long.parseLong(id.substring(prefix.length()));
+                } catch (NumberFormatException e) {
+                    return IdBlockAllocator.UNAVAILABLE;
+                }
+            }
+        }
+        return IdBlockAllocator.UNAVAILABLE;
+    }
+    
+    private void reject(int chunkNo, int row, String error) {
+        BankLogger.warn("Rejected {}: {}", "chunk " + chunkNo + " row " + (row + 1), error);
+    }
+    
+    //Field value with surrounding whitespace removed, or null when missing or blank
+    private static String field(String[] row, int index) {
+        if (index >= row.length) {
+            return null;
+        }
+        String value = row[index].trim();
+        return value.isEmpty() ? null : value;
+    }
+    
+    //Split one CSV line, honouring double-quoted fields and "" escapes
+    static String[] parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        fields.add(current.toString());
+        return fields.toArray(new String[0]);
+    }
+}
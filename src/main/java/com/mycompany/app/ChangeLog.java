@@ -0,0 +1,130 @@
+import java.sql.*;
+
+//Change capture for the read replica and the customer summaries.
+//
+//Every write to customers, accounts or transactions adds a row to change_log naming the table
+//and the key it touched, on the writer's own connection, so the entry commits or rolls back
+//with the change itself. ReplicaFeeder follows the log in change_id order and copies the
+//current state of each named row to the replica. Keys are a customer ID for "customers" and
+//an account number for "accounts" and "transactions". Nothing is logged unless a replica is
+//configured (-Dbank.db.replicaUrl).
+//
+//With -Dbank.summary.enabled=true the same writes also add an event naming the affected
+//customer to outbox_events, the outbox CustomerSummaryProjector drains to keep
+//customer_summary current. An account's customer is looked up in the insert itself, so the
+//account must still exist when its change is recorded.
+class ChangeLog {
+    static final String CUSTOMERS = "customers";
+    // The account row and any transactions added to it since the replica last saw it
+    static final String ACCOUNTS = "accounts";
+    // Every transaction of the account, for changes that rewrite or remove existing ones
+    static final String TRANSACTIONS = "transactions";
+    
+    private static final String INSERT_SQL = "INSERT INTO change_log (table_name, row_key) VALUES (?, ?)";
+    private static final String CUSTOMER_EVENT_SQL =
+        "INSERT INTO outbox_events (customer_id, event_type) VALUES (?, ?)";
+    private static final String ACCOUNT_EVENT_SQL =
+        "INSERT INTO outbox_events (customer_id, event_type) " +
+        "SELECT customer_id, ? FROM accounts WHERE account_number = ?";
+    
+    //Statements for batch writers; any of them is null when that consumer is off
+    static final class Batch implements AutoCloseable {
+        private final PreparedStatement changes;
+        private final PreparedStatement customerEvents;
+        private final PreparedStatement accountEvents;
+        
+        private Batch(Connection conn) throws SQLException {
+            boolean outbox = CustomerSummaryProjector.ENABLED;
+            this.changes = isEnabled() ? conn.prepareStatement(INSERT_SQL) : null;
+            this.customerEvents = outbox ? conn.prepareStatement(CUSTOMER_EVENT_SQL) : null;
+            this.accountEvents = outbox ? conn.prepareStatement(ACCOUNT_EVENT_SQL) : null;
+        }
+        
+        @Override
+        public void close() throws SQLException {
+            for (PreparedStatement pstmt : new PreparedStatement[] {changes, customerEvents, accountEvents}) {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            }
+        }
+    }
+    
+    private ChangeLog() {
+    }
+    
+    static boolean isEnabled() {
+        return DatabaseConnection.isReplicated();
+    }
+    
+    //Log a change to one row in the caller's transaction and remember it for read-your-writes
+    static void record(Connection conn, String table, String rowKey) throws SQLException {
+        if (CustomerSummaryProjector.ENABLED) {
+            boolean customer = CUSTOMERS.equals(table);
+            try (PreparedStatement pstmt = conn.prepareStatement(customer ? CUSTOMER_EVENT_SQL : ACCOUNT_EVENT_SQL)) {
+                bindEvent(pstmt, customer, table, rowKey);
+                pstmt.executeUpdate();
+            }
+        }
+        if (!isEnabled()) {
+            return;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, rowKey);
+            pstmt.executeUpdate();
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                if (keys.next()) {
+                    DatabaseConnection.noteWrite(keys.getLong(1));
+                }
+            }
+        }
+    }
+    
+    //Statements for batch writers to log their rows with addBatch, or null when nothing is logged
+    //Batched entries are not tracked for read-your-writes
+    static Batch prepareBatch(Connection conn) throws SQLException {
+        return isEnabled() || CustomerSummaryProjector.ENABLED ? new Batch(conn) : null;
+    }
+    
+    static void addBatch(Batch batch, String table, String rowKey) throws SQLException {
+        if (batch == null) {
+            return;
+        }
+        if (batch.changes != null) {
+            batch.changes.setString(1, table);
+            batch.changes.setString(2, rowKey);
+            batch.changes.addBatch();
+        }
+        boolean customer = CUSTOMERS.equals(table);
+        PreparedStatement events = customer ? batch.customerEvents : batch.accountEvents;
+        if (events != null) {
+            bindEvent(events, customer, table, rowKey);
+            events.addBatch();
+        }
+    }
+    
+    //Run the batched entries; call after the rows they name have been written
+    static void executeBatch(Batch batch) throws SQLException {
+        if (batch == null) {
+            return;
+        }
+        for (PreparedStatement pstmt : new PreparedStatement[] {batch.changes, batch.customerEvents,
+                                                                 batch.accountEvents}) {
+            if (pstmt != null) {
+                pstmt.executeBatch();
+            }
+        }
+    }
+    
+    private static void bindEvent(PreparedStatement pstmt, boolean customer, String table,
+                                  String rowKey) throws SQLException {
+        if (customer) {
+            pstmt.setString(1, rowKey);
+            pstmt.setString(2, table);
+        } else {
+            pstmt.setString(1, table);
+            pstmt.setString(2, rowKey);
+        }
+    }
+}
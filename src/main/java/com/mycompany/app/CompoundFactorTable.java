@@ -0,0 +1,101 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+//Memoized compound growth factors keyed by (annual rate, term, compounding frequency).
+//A book of fixed deposits shares a handful of products, so Math.pow runs once per product
+//and large interest runs reduce to one multiply-add per balance.
+public final class CompoundFactorTable {
+    public static final int MONTHLY = 12;
+    public static final int QUARTERLY = 4;
+    public static final int ANNUALLY = 1;
+    
+    private static final ConcurrentHashMap<Product, Double> FACTORS = new ConcurrentHashMap<>();
+    
+    //Lookup key for one product
+    private static final class Product {
+        final long rateBits;
+        final int termMonths;
+        final int periodsPerYear;
+        
+        Product(double annualRate, int termMonths, int periodsPerYear) {
+            this.rateBits = Double.doubleToLongBits(annualRate);
+            this.termMonths = termMonths;
+            this.periodsPerYear = periodsPerYear;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Product)) {
+                return false;
+            }
+            Product other = (Product) o;
+            return rateBits == other.rateBits && termMonths == other.termMonths &&
+                   periodsPerYear == other.periodsPerYear;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = Long.hashCode(rateBits);
+            h = 31 * h + termMonths;
+            return 31 * h + periodsPerYear;
+        }
+    }
+    
+    private CompoundFactorTable() {
+    }
+    
+    //Growth factor (1 + rate/n)^(n * termMonths / 12), computed once per product
+    public static double factor(double annualRate, int termMonths, int periodsPerYear) {
+        return FACTORS.computeIfAbsent(new Product(annualRate, termMonths, periodsPerYear),
+            p -> Math.pow(1 + annualRate / periodsPerYear, periodsPerYear * termMonths / 12.0));
+    }
+    
+    //Warm the table for a product catalogue ahead of a large run
+    public static void precompute(double[] annualRates, int[] termMonths, int periodsPerYear) {
+        for (double rate : annualRates) {
+            for (int term : termMonths) {
+                factor(rate, term, periodsPerYear);
+            }
+        }
+    }
+    
+    public static int size() {
+        return FACTORS.size();
+    }
+    
+    //Apply one product's factor to every balance in place, returns the total interest
+    public static double applyInterest(double[] balances, double annualRate, int termMonths,
+                                       int periodsPerYear) {
+        double growth = factor(annualRate, termMonths, periodsPerYear) - 1;
+        double total = 0.0;
+        for (int i = 0; i < balances.length; i++) {
+            double interest = balances[i] * growth;
+            balances[i] += interest;
+            total += interest;
+        }
+        return total;
+    }
+    
+    //Apply per-account products in place, writing each account's interest to interestOut
+    //Consecutive accounts on the same product reuse the factor without a table lookup,
+    //so sorting the input by product makes the loop almost entirely multiply-adds
+    public static double applyInterest(double[] balances, double[] annualRates, int[] termMonths,
+                                       int periodsPerYear, double[] interestOut) {
+        double total = 0.0;
+        double lastRate = Double.NaN;
+        int lastTerm = -1;
+        double growth = 0.0;
+        
+        for (int i = 0; i < balances.length; i++) {
+            if (annualRates[i] != lastRate || termMonths[i] != lastTerm) {
+                lastRate = annualRates[i];
+                lastTerm = termMonths[i];
+                growth = factor(lastRate, lastTerm, periodsPerYear) - 1;
+            }
+            double interest = balances[i] * growth;
+            interestOut[i] = interest;
+            balances[i] += interest;
+            total += interest;
+        }
+        return total;
+    }
+}
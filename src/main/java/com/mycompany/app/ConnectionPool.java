@@ -0,0 +1,149 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Fixed-size pool of database connections behind DatabaseConnection.getConnection (and
+//getReadConnection when a read replica is configured).
+//DAOs open and close a connection around every call; here close() hands the physical
+//connection back to the pool instead, so concurrent callers each get their own connection
+//rather than sharing (and closing) a single one. Connections are opened lazily up to the
+//pool size; a caller that finds none free waits up to the borrow timeout.
+class ConnectionPool {
+    private final int size;
+    private final long borrowTimeoutMillis;
+    private final Opener opener;
+    private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean shutdown;
+    
+    //Opens the physical connections of one pool (the primary or a read replica)
+    interface Opener {
+        Connection open() throws SQLException;
+    }
+    
+    ConnectionPool(int size, long borrowTimeoutMillis, Opener opener) {
+        this.size = size;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.opener = opener;
+    }
+    
+    //Borrow a connection; closing it returns it to the pool
+    Connection borrow() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool is shut down");
+        }
+        Connection physical = idle.poll();
+        if (physical == null) {
+            physical = openIfBelowSize();
+        }
+        if (physical == null) {
+            try {
+                physical = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a database connection");
+            }
+            if (physical == null) {
+                throw new SQLException("Timed out after " + borrowTimeoutMillis +
+                                       " ms waiting for a database connection (pool size " + size + ")");
+            }
+        }
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, new PooledConnection(physical));
+    }
+    
+    private Connection openIfBelowSize() throws SQLException {
+        while (true) {
+            int count = opened.get();
+            if (count >= size) {
+                return null;
+            }
+            if (opened.compareAndSet(count, count + 1)) {
+                try {
+                    return opener.open();
+                } catch (SQLException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    //Take a connection back, resetting it; broken connections are dropped so a new one can be opened
+    private void release(Connection physical) {
+        try {
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+            if (!shutdown && !physical.isClosed()) {
+                idle.offer(physical);
+                return;
+            }
+        } catch (SQLException e) {
+            // Unusable; fall through and discard it
+        }
+        discard(physical);
+    }
+    
+    private void discard(Connection physical) {
+        opened.decrementAndGet();
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            // Already broken
+        }
+    }
+    
+    //Close idle connections now; borrowed ones are closed as they are returned
+    void shutdown() {
+        shutdown = true;
+        Connection physical;
+        while ((physical = idle.poll()) != null) {
+            discard(physical);
+        }
+    }
+    
+    //Connection handed to callers: close() returns the physical connection exactly once
+    private class PooledConnection implements InvocationHandler {
+        private Connection physical;
+        
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (physical != null) {
+                        Connection returned = physical;
+                        physical = null;
+                        release(returned);
+                    }
+                    return null;
+                case "isClosed":
+                    return physical == null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (physical == null) {
+                        throw new SQLException("Connection is closed");
+                    }
+                    try {
+                        return method.invoke(physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
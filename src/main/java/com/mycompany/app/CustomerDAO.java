@@ -1,38 +1,68 @@
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class CustomerDAO {
+    // A customer copy this old that shard 0 lacks was left by a delete, not a create in progress
+    private static final long ORPHAN_GRACE_MILLIS = 10 * 60_000;
+    private static final int ORPHAN_PAGE_SIZE = 500;
+    
+    static final String INSERT_CUSTOMER_SQL =
+        "INSERT INTO customers (customer_id, first_name, last_name, email, phone, address) " +
+        "VALUES (?, ?, ?, ?, ?, ?)";
     
     //Create a new customer in the database
     public boolean createCustomer(CustomerClass customer) {
-        String sql = "INSERT INTO customers (customer_id, first_name, last_name, email, phone, address) " +
-                     "VALUES (?, ?, ?, ?, ?, ?)";
-        
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, customer.getCustomerId());
-            pstmt.setString(2, customer.getFirstName());
-            pstmt.setString(3, customer.getLastName());
-            pstmt.setString(4, customer.getEmail());
-            pstmt.setString(5, customer.getPhone());
-            pstmt.setString(6, customer.getAddress());
-            
-            int rowsAffected = pstmt.executeUpdate();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.createCustomer");
+        try (sample) {
+            int rowsAffected = onEveryShard(conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_CUSTOMER_SQL)) {
+                    bindCustomer(pstmt, customer);
+                    int rows = pstmt.executeUpdate();
+                    if (rows > 0) {
+                        ChangeLog.record(conn, ChangeLog.CUSTOMERS, customer.getCustomerId());
+                    }
+                    return rows;
+                }
+            }, conn -> {
+                // Remove copies already written so they cannot hold on to the email
+                try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM customers WHERE customer_id = ?")) {
+                    pstmt.setString(1, customer.getCustomerId());
+                    return pstmt.executeUpdate();
+                }
+            });
+            if (rowsAffected > 0) {
+                CustomerSearchIndex.getInstance().put(customer);
+            }
             return rowsAffected > 0;
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error creating customer: " + e.getMessage());
             return false;
         }
     }
     
+    //Bind a customer's columns to a statement prepared from INSERT_CUSTOMER_SQL
+    void bindCustomer(PreparedStatement pstmt, CustomerClass customer) throws SQLException {
+        pstmt.setString(1, customer.getCustomerId());
+        pstmt.setString(2, customer.getFirstName());
+        pstmt.setString(3, customer.getLastName());
+        pstmt.setString(4, customer.getEmail());
+        pstmt.setString(5, customer.getPhone());
+        pstmt.setString(6, customer.getAddress());
+    }
+    
     //Retrieve a customer by ID
     public CustomerClass getCustomerById(String customerId) {
         String sql = "SELECT * FROM customers WHERE customer_id = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.getCustomerById");
+        try (sample;
+             Connection conn = DatabaseConnection.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, customerId);
@@ -41,8 +71,9 @@ public class CustomerDAO {
             if (rs.next()) {
                 return extractCustomerFromResultSet(rs);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving customer: " + e.getMessage());
         }
         
@@ -53,7 +84,9 @@ public class CustomerDAO {
     public CustomerClass getCustomerByEmail(String email) {
         String sql = "SELECT * FROM customers WHERE email = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.getCustomerByEmail");
+        try (sample;
+             Connection conn = DatabaseConnection.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, email);
@@ -62,8 +95,9 @@ public class CustomerDAO {
             if (rs.next()) {
                 return extractCustomerFromResultSet(rs);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving customer by email: " + e.getMessage());
         }
         
@@ -75,29 +109,52 @@ public class CustomerDAO {
         List<CustomerClass> customers = new ArrayList<>();
         String sql = "SELECT * FROM customers ORDER BY customer_id";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.getAllCustomers");
+        try (sample;
+             Connection conn = DatabaseConnection.getReadConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
             
             while (rs.next()) {
                 customers.add(extractCustomerFromResultSet(rs));
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving all customers: " + e.getMessage());
         }
         
-        return customers;
+        return sample.rows(customers);
     }
     
     //Update customer information
     public boolean updateCustomer(CustomerClass customer) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.updateCustomer");
+        try (sample) {
+            // Shard 0 holds the current values, which undo puts back on shards already written
+            CustomerClass previous = readPrimary(customer.getCustomerId());
+            if (previous == null) {
+                return false;
+            }
+            int rowsAffected = onEveryShard(conn -> writeCustomer(conn, customer),
+                                            conn -> writeCustomer(conn, previous));
+            if (rowsAffected > 0) {
+                CustomerSearchIndex.getInstance().put(customer);
+            }
+            return rowsAffected > 0;
+        
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error updating customer: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    //Overwrite the customer's columns on one shard's connection, returns rows affected
+    private int writeCustomer(Connection conn, CustomerClass customer) throws SQLException {
         String sql = "UPDATE customers SET first_name = ?, last_name = ?, email = ?, " +
                      "phone = ?, address = ? WHERE customer_id = ?";
-        
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, customer.getFirstName());
             pstmt.setString(2, customer.getLastName());
             pstmt.setString(3, customer.getEmail());
@@ -105,70 +162,200 @@ public class CustomerDAO {
             pstmt.setString(5, customer.getAddress());
             pstmt.setString(6, customer.getCustomerId());
             
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
-            
-        } catch (SQLException e) {
-            System.err.println("Error updating customer: " + e.getMessage());
-            return false;
+            int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                ChangeLog.record(conn, ChangeLog.CUSTOMERS, customer.getCustomerId());
+            }
+            return rows;
         }
     }
     
-    //Delete a customer from the database
-    public boolean deleteCustomer(String customerId) {
-        String sql = "DELETE FROM customers WHERE customer_id = ?";
-        
+    //The customer as shard 0 holds it, read from the primary rather than the replica
+    private CustomerClass readPrimary(String customerId) throws SQLException {
         try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
+             PreparedStatement pstmt = conn.prepareStatement("SELECT * FROM customers WHERE customer_id = ?")) {
             pstmt.setString(1, customerId);
-            int rowsAffected = pstmt.executeUpdate();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? extractCustomerFromResultSet(rs) : null;
+            }
+        }
+    }
+    
+    //Delete a customer from the database, with their accounts and ledger on every shard
+    //Deleting cascades, so it cannot be undone: shard 0 goes first and the customer is gone from
+    //then on. A copy a failure leaves on another shard keeps its accounts intact until the delete
+    //is repeated, which finishes it, or removeOrphanedCopies finds it
+    public boolean deleteCustomer(String customerId) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.deleteCustomer");
+        int rowsAffected = 0;
+        try (sample) {
+            for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+                try (Connection conn = DatabaseConnection.getConnection(shard)) {
+                    conn.setAutoCommit(false);
+                    int rows = deleteCopy(conn, customerId);
+                    conn.commit();
+                    if (shard == 0 && rows > 0) {
+                        CustomerSearchIndex.getInstance().remove(customerId);
+                    }
+                    rowsAffected += rows;
+                }
+            }
             return rowsAffected > 0;
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error deleting customer: " + e.getMessage());
             return false;
         }
     }
     
-    //Search customers by name (first or last name)
-    public List<CustomerClass> searchCustomersByName(String searchTerm) {
-        List<CustomerClass> customers = new ArrayList<>();
-        String sql = "SELECT * FROM customers WHERE first_name LIKE ? OR last_name LIKE ? " +
-                     "ORDER BY last_name, first_name";
+    private int deleteCopy(Connection conn, String customerId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM customers WHERE customer_id = ?")) {
+            pstmt.setString(1, customerId);
+            int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                ChangeLog.record(conn, ChangeLog.CUSTOMERS, customerId);
+            }
+            return rows;
+        }
+    }
+    
+    //Finish customer deletes that stopped part way: remove copies on shards other than 0 of
+    //customers shard 0 no longer has. Copies younger than ORPHAN_GRACE_MILLIS are skipped, since
+    //a customer being created reaches shard 0 last. Returns the number of copies removed
+    public int removeOrphanedCopies() {
+        String pageSql = "SELECT customer_id FROM customers WHERE customer_id > ? AND created_date < ? " +
+                         "ORDER BY customer_id LIMIT " + ORPHAN_PAGE_SIZE;
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - ORPHAN_GRACE_MILLIS);
+        int removed = 0;
         
+        for (int shard = 1; shard < ShardRouter.shardCount(); shard++) {
+            String lastId = "";
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 PreparedStatement page = conn.prepareStatement(pageSql)) {
+                while (true) {
+                    List<String> ids = new ArrayList<>();
+                    page.setString(1, lastId);
+                    page.setTimestamp(2, cutoff);
+                    try (ResultSet rs = page.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getString(1));
+                        }
+                    }
+                    if (ids.isEmpty()) {
+                        break;
+                    }
+                    lastId = ids.get(ids.size() - 1);
+                    
+                    ids.removeAll(existingOnShardZero(ids));
+                    for (String customerId : ids) {
+                        conn.setAutoCommit(false);
+                        removed += deleteCopy(conn, customerId);
+                        conn.commit();
+                        conn.setAutoCommit(true);
+                    }
+                }
+            } catch (SQLException e) {
+                System.err.println("Error removing orphaned customer copies on shard " + shard + ": " +
+                                   e.getMessage());
+            }
+        }
+        if (removed > 0) {
+            BankLogger.info("Removed {} customer copies left by interrupted deletes", removed);
+        }
+        return removed;
+    }
+    
+    //Which of the given customer IDs shard 0 has
+    private Set<String> existingOnShardZero(List<String> customerIds) throws SQLException {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < customerIds.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        Set<String> existing = new HashSet<>();
         try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            String searchPattern = "%" + searchTerm + "%";
-            pstmt.setString(1, searchPattern);
-            pstmt.setString(2, searchPattern);
-            
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                customers.add(extractCustomerFromResultSet(rs));
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT customer_id FROM customers WHERE customer_id IN (" + placeholders + ")")) {
+            for (int i = 0; i < customerIds.size(); i++) {
+                pstmt.setString(i + 1, customerIds.get(i));
             }
-            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString(1));
+                }
+            }
+        }
+        return existing;
+    }
+    
+    //Write to one shard's connection inside its transaction, returns rows affected
+    private interface ShardWrite {
+        int run(Connection conn) throws SQLException;
+    }
+    
+    //Apply a write to the customer's copy on every shard, each in its own transaction
+    //Shard 0, which serves customer reads, goes last, so a write that fails part way is never
+    //visible there; undo is applied to the shards already written so they match shard 0 again
+    //Returns the rows affected on shard 0
+    private int onEveryShard(ShardWrite write, ShardWrite undo) throws SQLException {
+        int rowsAffected = 0;
+        int shard = ShardRouter.shardCount() - 1;
+        try {
+            for (; shard >= 0; shard--) {
+                try (Connection conn = DatabaseConnection.getConnection(shard)) {
+                    conn.setAutoCommit(false);
+                    rowsAffected = write.run(conn);
+                    conn.commit();
+                }
+            }
+            return rowsAffected;
         } catch (SQLException e) {
-            System.err.println("Error searching customers: " + e.getMessage());
+            for (int done = shard + 1; done < ShardRouter.shardCount(); done++) {
+                try (Connection conn = DatabaseConnection.getConnection(done)) {
+                    undo.run(conn);
+                } catch (SQLException undoFailure) {
+                    System.err.println("Error undoing customer write on shard " + done + ": " +
+                                       undoFailure.getMessage());
+                }
+            }
+            throw e;
+        }
+    }
+    
+    //Search customers by name (first or last name) using the in-memory trigram index
+    public List<CustomerClass> searchCustomersByName(String searchTerm) {
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.searchCustomersByName")) {
+            List<CustomerClass> customers = CustomerSearchIndex.getInstance()
+                .search(searchTerm, Integer.MAX_VALUE, false);
+            customers.sort(Comparator.comparing(CustomerClass::getLastName)
+                                     .thenComparing(CustomerClass::getFirstName));
+            return sample.rows(customers);
+        }
+    }
+    
+    //Ranked search over names and emails: exact and prefix matches first, at most limit results
+    public List<CustomerClass> searchCustomers(String searchTerm, int limit) {
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.searchCustomers")) {
+            return sample.rows(CustomerSearchIndex.getInstance().search(searchTerm, limit));
         }
-        
-        return customers;
     }
     
     //Get total number of customers
     public int getCustomerCount() {
         String sql = "SELECT COUNT(*) FROM customers";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.getCustomerCount");
+        try (sample;
+             Connection conn = DatabaseConnection.getReadConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
             
             if (rs.next()) {
                 return rs.getInt(1);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error counting customers: " + e.getMessage());
         }
         
@@ -179,7 +366,9 @@ public class CustomerDAO {
     public boolean emailExists(String email) {
         String sql = "SELECT COUNT(*) FROM customers WHERE email = ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerDAO.emailExists");
+        try (sample;
+             Connection conn = DatabaseConnection.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, email);
@@ -188,8 +377,9 @@ public class CustomerDAO {
             if (rs.next()) {
                 return rs.getInt(1) > 0;
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error checking email: " + e.getMessage());
         }
         
@@ -0,0 +1,427 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//In-memory search index over customer names and emails.
+//Substring queries go through a trigram index: the rarest trigram of the query yields a
+//short candidate list that is verified and ranked, so a search touches only a handful of
+//customers instead of scanning the table. Two-character queries use a bigram index the same
+//way. A single character is too common to search for inside names, so it matches names and
+//emails that start with it, through an index of initials. The index is built lazily from the
+//database on first use and then kept current by CustomerDAO's create, update and delete
+//methods; bulk writers in this process (BulkImporter, BackupTool, SampleDataSeeder) invalidate
+//it instead.
+//
+//The index only sees writes made through this JVM. Customers written by another process,
+//such as an import or restore run from the command line, appear once the index is rebuilt:
+//it is rebuilt on the first search after it turns -Dbank.search.maxAgeMillis old (300000 by
+//default), or immediately if invalidate() is called. An aged index is rebuilt without holding
+//the index lock, so other searches and writes go on against it meanwhile; writes made during
+//the rebuild are applied to the new index before it replaces the old one.
+public class CustomerSearchIndex {
+    private static final CustomerSearchIndex INSTANCE = new CustomerSearchIndex();
+    private static final long MAX_AGE_MILLIS = Long.getLong("bank.search.maxAgeMillis", 300_000);
+    
+    // Posting list key tags; a trigram key uses the low 48 bits only
+    private static final long BIGRAM = 1L << 48;
+    private static final long INITIAL = 2L << 48;
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Held by the one thread that loads a new index from the database
+    private final ReentrantLock buildLock = new ReentrantLock();
+    // Null until the first build and after invalidate(); replaced, never cleared, by a rebuild
+    private volatile Tables tables;
+    // Writes made while a build is loading, by customer ID (null = removed); null when not building
+    private Map<String, CustomerClass> changedWhileBuilding;
+    // Bumped by invalidate(), so a build that started before it is thrown away
+    private long generation;
+    
+    //Indexed customer with its normalised search fields
+    private static class Entry {
+        final CustomerClass customer;
+        final String firstName;
+        final String lastName;
+        final String fullName;
+        final String email;
+        
+        Entry(CustomerClass customer) {
+            this.customer = customer;
+            this.firstName = normalise(customer.getFirstName());
+            this.lastName = normalise(customer.getLastName());
+            this.fullName = firstName + " " + lastName;
+            this.email = normalise(customer.getEmail());
+        }
+    }
+    
+    //Growable primitive int list used for posting lists
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+        
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+        
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+    }
+    
+    //One complete index; put and remove change it in place, a rebuild replaces it
+    private static class Tables {
+        final long builtAt;
+        final Map<String, Integer> slotsById = new HashMap<>();
+        final List<Entry> entries = new ArrayList<>();
+        final IntList freeSlots = new IntList();
+        final Map<Long, IntList> postings = new HashMap<>();
+        
+        Tables(long builtAt) {
+            this.builtAt = builtAt;
+        }
+        
+        void add(Entry entry) {
+            int slot;
+            if (freeSlots.size > 0) {
+                slot = freeSlots.values[--freeSlots.size];
+                entries.set(slot, entry);
+            } else {
+                slot = entries.size();
+                entries.add(entry);
+            }
+            slotsById.put(entry.customer.getCustomerId(), slot);
+            
+            for (long key : keysOf(entry)) {
+                postings.computeIfAbsent(key, k -> new IntList()).add(slot);
+            }
+        }
+        
+        void remove(String customerId) {
+            Integer slot = slotsById.remove(customerId);
+            if (slot == null) {
+                return;
+            }
+            Entry entry = entries.get(slot);
+            for (long key : keysOf(entry)) {
+                IntList posting = postings.get(key);
+                if (posting != null) {
+                    posting.remove(slot);
+                    if (posting.size == 0) {
+                        postings.remove(key);
+                    }
+                }
+            }
+            entries.set(slot, null);
+            freeSlots.add(slot);
+        }
+        
+        //Candidate slots for a query: the shortest trigram posting list, the bigram list for two
+        //characters, or the initials list for one
+        int[] candidates(String q) {
+            if (q.length() == 1) {
+                return distinct(postings.get(INITIAL | q.charAt(0)));
+            }
+            if (q.length() == 2) {
+                return distinct(postings.get(bigram(q, 0)));
+            }
+            
+            IntList shortest = null;
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                IntList posting = postings.get(trigram(q, i));
+                if (posting == null) {
+                    return new int[0];
+                }
+                if (shortest == null || posting.size < shortest.size) {
+                    shortest = posting;
+                }
+            }
+            return distinct(shortest);
+        }
+    }
+    
+    //Ranked search hit
+    private static class Hit {
+        final Entry entry;
+        final int score;
+        
+        Hit(Entry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+    
+    private static final Comparator<Hit> BEST_FIRST = Comparator
+        .comparingInt((Hit h) -> -h.score)
+        .thenComparing(h -> h.entry.lastName)
+        .thenComparing(h -> h.entry.firstName)
+        .thenComparing(h -> h.entry.customer.getCustomerId());
+    
+    public static CustomerSearchIndex getInstance() {
+        return INSTANCE;
+    }
+    
+    //Add or replace a customer after it has been written to the database
+    public void put(CustomerClass customer) {
+        CustomerClass copy = copyOf(customer);
+        lock.writeLock().lock();
+        try {
+            // With no index and no build loading, the database is the source of truth for the next build
+            if (changedWhileBuilding != null) {
+                changedWhileBuilding.put(copy.getCustomerId(), copy);
+            }
+            if (tables != null) {
+                tables.remove(copy.getCustomerId());
+                tables.add(new Entry(copy));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void remove(String customerId) {
+        lock.writeLock().lock();
+        try {
+            if (changedWhileBuilding != null) {
+                changedWhileBuilding.put(customerId, null);
+            }
+            if (tables != null) {
+                tables.remove(customerId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    //Drop the index after bulk writes that bypass CustomerDAO; the next search rebuilds it
+    public void invalidate() {
+        lock.writeLock().lock();
+        try {
+            generation++;
+            tables = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    //Ranked substring and prefix search over names and emails
+    public List<CustomerClass> search(String query, int limit) {
+        return search(query, limit, true);
+    }
+    
+    //Search names only (optionally emails too), best matches first, at most limit results
+    public List<CustomerClass> search(String query, int limit, boolean includeEmail) {
+        ensureBuilt();
+        String q = normalise(query);
+        List<CustomerClass> results = new ArrayList<>();
+        if (q.isEmpty() || limit <= 0) {
+            return results;
+        }
+        
+        lock.readLock().lock();
+        try {
+            Tables current = tables;
+            if (current == null) {
+                // Invalidated since ensureBuilt; the next search rebuilds
+                return results;
+            }
+            // Min-heap of the best `limit` hits so far, worst on top
+            PriorityQueue<Hit> best = new PriorityQueue<>(BEST_FIRST.reversed());
+            for (int slot : current.candidates(q)) {
+                Entry entry = current.entries.get(slot);
+                int score = score(entry, q, includeEmail);
+                if (score == 0) {
+                    continue;
+                }
+                best.add(new Hit(entry, score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            
+            List<Hit> hits = new ArrayList<>(best);
+            hits.sort(BEST_FIRST);
+            for (Hit hit : hits) {
+                results.add(copyOf(hit.entry.customer));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+    
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return tables != null ? tables.slotsById.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //Load every customer from the database the first time the index is used, and again once
+    //the index is older than the configured maximum age. Only the first build, or the first
+    //after invalidate(), makes callers wait; an aged index is rebuilt by one caller while the
+    //others keep searching the current one.
+    public void ensureBuilt() {
+        while (true) {
+            Tables current = tables;
+            if (current != null && System.currentTimeMillis() - current.builtAt <= MAX_AGE_MILLIS) {
+                return;
+            }
+            if (current == null) {
+                buildLock.lock();
+            } else if (!buildLock.tryLock()) {
+                return;
+            }
+            try {
+                current = tables;
+                if (current != null && System.currentTimeMillis() - current.builtAt <= MAX_AGE_MILLIS) {
+                    return;
+                }
+                if (rebuild() || current != null) {
+                    return;
+                }
+                // Invalidated while loading and no index to fall back on: load again
+            } finally {
+                buildLock.unlock();
+            }
+        }
+    }
+    
+    //Load a new index from the database without holding the index lock, then swap it in
+    //Returns false if invalidate() was called meanwhile, in which case it is discarded
+    private boolean rebuild() {
+        long startGeneration;
+        lock.writeLock().lock();
+        try {
+            startGeneration = generation;
+            changedWhileBuilding = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        long start = System.nanoTime();
+        Tables fresh = new Tables(System.currentTimeMillis());
+        boolean loaded = false;
+        boolean installed = false;
+        try {
+            for (CustomerClass customer : new CustomerDAO().getAllCustomers()) {
+                fresh.add(new Entry(customer));
+            }
+            loaded = true;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (loaded && generation == startGeneration) {
+                    for (Map.Entry<String, CustomerClass> change : changedWhileBuilding.entrySet()) {
+                        fresh.remove(change.getKey());
+                        if (change.getValue() != null) {
+                            fresh.add(new Entry(change.getValue()));
+                        }
+                    }
+                    tables = fresh;
+                    installed = true;
+                }
+                changedWhileBuilding = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        if (installed) {
+            BankLogger.info("Customer search index built: {} customers in {} ms", fresh.slotsById.size(),
+                            (System.nanoTime() - start) / 1_000_000);
+        }
+        return installed;
+    }
+    
+    //0 = no match; higher is better: exact name, name prefix, email prefix, substring
+    private int score(Entry entry, String q, boolean includeEmail) {
+        if (entry.firstName.equals(q) || entry.lastName.equals(q)) {
+            return 4;
+        }
+        if (entry.firstName.startsWith(q) || entry.lastName.startsWith(q) || entry.fullName.startsWith(q)) {
+            return 3;
+        }
+        if (includeEmail && entry.email.startsWith(q)) {
+            return 2;
+        }
+        if (q.length() == 1) {
+            // A single character only matches at the start, like its initials index
+            return 0;
+        }
+        if (entry.fullName.contains(q) || (includeEmail && entry.email.contains(q))) {
+            return 1;
+        }
+        return 0;
+    }
+    
+    //Distinct posting keys of an entry: trigrams and bigrams of the full name and email, and
+    //the initials of the first name, last name and email
+    private static long[] keysOf(Entry entry) {
+        Set<Long> keys = new HashSet<>();
+        for (String text : new String[] {entry.fullName, entry.email}) {
+            for (int i = 0; i + 2 <= text.length(); i++) {
+                keys.add(bigram(text, i));
+                if (i + 3 <= text.length()) {
+                    keys.add(trigram(text, i));
+                }
+            }
+        }
+        for (String text : new String[] {entry.firstName, entry.lastName, entry.email}) {
+            if (!text.isEmpty()) {
+                keys.add(INITIAL | text.charAt(0));
+            }
+        }
+        long[] result = new long[keys.size()];
+        int i = 0;
+        for (long key : keys) {
+            result[i++] = key;
+        }
+        return result;
+    }
+    
+    private static long trigram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) |
+               ((long) text.charAt(offset + 1) << 16) |
+               text.charAt(offset + 2);
+    }
+    
+    private static long bigram(String text, int offset) {
+        return BIGRAM | ((long) text.charAt(offset) << 16) | text.charAt(offset + 1);
+    }
+    
+    private static int[] distinct(IntList list) {
+        if (list == null) {
+            return new int[0];
+        }
+        return Arrays.stream(list.values, 0, list.size).distinct().toArray();
+    }
+    
+    private static String normalise(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+    
+    //Hand out copies so callers adding accounts to a result do not change the index
+    private static CustomerClass copyOf(CustomerClass customer) {
+        return new CustomerClass(customer.getCustomerId(), customer.getFirstName(),
+                                 customer.getLastName(), customer.getEmail(),
+                                 customer.getPhone(), customer.getAddress());
+    }
+}
@@ -0,0 +1,310 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+//Customer dashboard read model. Each customer_summary row holds everything a dashboard shows
+//for one customer: the account list, balances by account type, last activity and the most
+//recent transactions (-Dbank.summary.recentTransactions, 10 by default), so the dashboard is
+//one primary key lookup instead of joins and aggregates over every shard at read time.
+//CustomerSummaryProjector keeps the rows current; build assembles the same summary from the
+//source tables. The table lives on shard 0 with the customers and is not on the read replica.
+public class CustomerSummaryDAO {
+    static final int RECENT_TRANSACTIONS = Integer.getInteger("bank.summary.recentTransactions", 10);
+    
+    private static final String MERGE_SUMMARY_SQL =
+        "MERGE INTO customer_summary (customer_id, first_name, last_name, email, account_count, " +
+        "total_balance, cheque_balance, savings_balance, investment_balance, last_activity, " +
+        "accounts, recent_transactions, updated_date) KEY (customer_id) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    
+    private final TransactionDAO transactionDAO = new TransactionDAO();
+    
+    //One account as listed on the dashboard
+    public static class AccountLine {
+        private final String accountNumber;
+        private final String accountType;
+        private final double balance;
+        
+        public AccountLine(String accountNumber, String accountType, double balance) {
+            this.accountNumber = accountNumber;
+            this.accountType = accountType;
+            this.balance = balance;
+        }
+        
+        public String getAccountNumber() { return accountNumber; }
+        public String getAccountType() { return accountType; }
+        public double getBalance() { return balance; }
+    }
+    
+    //Everything the dashboard shows for one customer
+    public static class CustomerSummary {
+        private final String customerId;
+        private final String firstName;
+        private final String lastName;
+        private final String email;
+        private final List<AccountLine> accounts;
+        private final List<TransactionDAO.Transaction> recentTransactions;
+        private final Timestamp updatedDate;
+        
+        public CustomerSummary(String customerId, String firstName, String lastName, String email,
+                               List<AccountLine> accounts, List<TransactionDAO.Transaction> recentTransactions,
+                               Timestamp updatedDate) {
+            this.customerId = customerId;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.email = email;
+            this.accounts = accounts;
+            this.recentTransactions = recentTransactions;
+            this.updatedDate = updatedDate;
+        }
+        
+        // Getters
+        public String getCustomerId() { return customerId; }
+        public String getFirstName() { return firstName; }
+        public String getLastName() { return lastName; }
+        public String getEmail() { return email; }
+        public List<AccountLine> getAccounts() { return accounts; }
+        public List<TransactionDAO.Transaction> getRecentTransactions() { return recentTransactions; }
+        //When the summary was assembled from the source tables
+        public Timestamp getUpdatedDate() { return updatedDate; }
+        
+        public double getTotalBalance() {
+            double total = 0.0;
+            for (AccountLine account : accounts) {
+                total += account.getBalance();
+            }
+            return total;
+        }
+        
+        //Combined balance of the customer's accounts of one type ("Cheque", "Savings", "Investment")
+        public double getBalanceByType(String accountType) {
+            double total = 0.0;
+            for (AccountLine account : accounts) {
+                if (account.getAccountType().equals(accountType)) {
+                    total += account.getBalance();
+                }
+            }
+            return total;
+        }
+        
+        //Date of the newest transaction on any of the accounts, or null if there is none
+        public Timestamp getLastActivity() {
+            return recentTransactions.isEmpty() ? null : recentTransactions.get(0).getTransactionDate();
+        }
+    }
+    
+    //Read a customer's stored summary, or null if none has been projected yet
+    public CustomerSummary getSummary(String customerId) {
+        String sql = "SELECT * FROM customer_summary WHERE customer_id = ?";
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerSummaryDAO.getSummary");
+        try (sample;
+             Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, customerId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new CustomerSummary(rs.getString("customer_id"), rs.getString("first_name"),
+                                           rs.getString("last_name"), rs.getString("email"),
+                                           decodeAccounts(rs.getString("accounts")),
+                                           decodeTransactions(rs.getString("recent_transactions")),
+                                           rs.getTimestamp("updated_date"));
+            }
+        
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error retrieving customer summary: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    //Assemble a customer's summary from the source tables, or null if it cannot be read
+    public CustomerSummary buildSummary(String customerId) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerSummaryDAO.buildSummary");
+        try (sample) {
+            return build(customerId);
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error building customer summary: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    //Assemble a customer's summary from the primary of every shard, or null if the customer does not exist
+    CustomerSummary build(String customerId) throws SQLException {
+        Timestamp asOf = new Timestamp(System.currentTimeMillis());
+        String firstName;
+        String lastName;
+        String email;
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT first_name, last_name, email FROM customers WHERE customer_id = ?")) {
+            pstmt.setString(1, customerId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                firstName = rs.getString("first_name");
+                lastName = rs.getString("last_name");
+                email = rs.getString("email");
+            }
+        }
+        
+        List<AccountLine> accounts = new ArrayList<>();
+        List<TransactionDAO.Transaction> recent = new ArrayList<>();
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            try (Connection conn = DatabaseConnection.getConnection(shard)) {
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "SELECT account_number, account_type, balance FROM accounts WHERE customer_id = ?")) {
+                    pstmt.setString(1, customerId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            accounts.add(new AccountLine(rs.getString("account_number"),
+                                                         rs.getString("account_type"), rs.getDouble("balance")));
+                        }
+                    }
+                }
+                recent.addAll(transactionDAO.getRecentCustomerTransactions(conn, customerId, RECENT_TRANSACTIONS));
+            }
+        }
+        
+        accounts.sort(Comparator.comparing(AccountLine::getAccountNumber));
+        if (ShardRouter.shardCount() > 1) {
+            recent.sort(Comparator.comparing(TransactionDAO.Transaction::getTransactionDate).reversed());
+            if (recent.size() > RECENT_TRANSACTIONS) {
+                recent = new ArrayList<>(recent.subList(0, RECENT_TRANSACTIONS));
+            }
+        }
+        return new CustomerSummary(customerId, firstName, lastName, email, accounts, recent, asOf);
+    }
+    
+    //Store a summary in the caller's transaction, replacing any previous one
+    void save(Connection conn, CustomerSummary summary) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(MERGE_SUMMARY_SQL)) {
+            pstmt.setString(1, summary.getCustomerId());
+            pstmt.setString(2, summary.getFirstName());
+            pstmt.setString(3, summary.getLastName());
+            pstmt.setString(4, summary.getEmail());
+            pstmt.setInt(5, summary.getAccounts().size());
+            pstmt.setDouble(6, summary.getTotalBalance());
+            pstmt.setDouble(7, summary.getBalanceByType("Cheque"));
+            pstmt.setDouble(8, summary.getBalanceByType("Savings"));
+            pstmt.setDouble(9, summary.getBalanceByType("Investment"));
+            pstmt.setTimestamp(10, summary.getLastActivity());
+            pstmt.setString(11, encodeAccounts(summary.getAccounts()));
+            pstmt.setString(12, encodeTransactions(summary.getRecentTransactions()));
+            pstmt.setTimestamp(13, summary.getUpdatedDate());
+            pstmt.executeUpdate();
+        }
+    }
+    
+    //Remove a deleted customer's summary in the caller's transaction
+    void delete(Connection conn, String customerId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM customer_summary WHERE customer_id = ?")) {
+            pstmt.setString(1, customerId);
+            pstmt.executeUpdate();
+        }
+    }
+    
+    // The lists are stored as text: one line per entry, tab-separated fields, with backslash,
+    // tab and newline escaped inside fields and an empty field meaning null
+    
+    private static String encodeAccounts(List<AccountLine> accounts) {
+        StringBuilder text = new StringBuilder();
+        for (AccountLine account : accounts) {
+            appendLine(text, account.getAccountNumber(), account.getAccountType(),
+                       String.valueOf(account.getBalance()));
+        }
+        return text.toString();
+    }
+    
+    private static List<AccountLine> decodeAccounts(String text) {
+        List<AccountLine> accounts = new ArrayList<>();
+        for (String[] fields : parseLines(text)) {
+            accounts.add(new AccountLine(fields[0], fields[1], Double.parseDouble(fields[2])));
+        }
+        return accounts;
+    }
+    
+    private static String encodeTransactions(List<TransactionDAO.Transaction> transactions) {
+        StringBuilder text = new StringBuilder();
+        for (TransactionDAO.Transaction tx : transactions) {
+            appendLine(text, String.valueOf(tx.getTransactionId()), tx.getAccountNumber(),
+                       tx.getTransactionType(), String.valueOf(tx.getAmount()),
+                       String.valueOf(tx.getBalanceAfter()), tx.getDescription(),
+                       tx.getTransactionDate() == null ? null : tx.getTransactionDate().toString(),
+                       tx.getToAccountNumber());
+        }
+        return text.toString();
+    }
+    
+    private static List<TransactionDAO.Transaction> decodeTransactions(String text) {
+        List<TransactionDAO.Transaction> transactions = new ArrayList<>();
+        for (String[] f : parseLines(text)) {
+            transactions.add(new TransactionDAO.Transaction(Long.parseLong(f[0]), f[1], f[2],
+                                                            Double.parseDouble(f[3]), Double.parseDouble(f[4]),
+                                                            f[5], f[6] == null ? null : Timestamp.valueOf(f[6]),
+                                                            f[7]));
+        }
+        return transactions;
+    }
+    
+    private static void appendLine(StringBuilder text, String... fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                text.append('\t');
+            }
+            String field = fields[i];
+            if (field == null) {
+                continue;
+            }
+            for (int c = 0; c < field.length(); c++) {
+                char ch = field.charAt(c);
+                switch (ch) {
+                    case '\\': text.append("\\\\"); break;
+                    case '\t': text.append("\\t"); break;
+                    case '\n': text.append("\\n"); break;
+                    default: text.append(ch);
+                }
+            }
+        }
+        text.append('\n');
+    }
+    
+    private static List<String[]> parseLines(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String[]> lines = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            String[] fields = line.split("\t", -1);
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = fields[i].isEmpty() ? null : unescape(fields[i]);
+            }
+            lines.add(fields);
+        }
+        return lines;
+    }
+    
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder plain = new StringBuilder(field.length());
+        for (int c = 0; c < field.length(); c++) {
+            char ch = field.charAt(c);
+            if (ch == '\\' && c + 1 < field.length()) {
+                char next = field.charAt(++c);
+                plain.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                plain.append(ch);
+            }
+        }
+        return plain.toString();
+    }
+}
@@ -0,0 +1,192 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Keeps customer_summary (see CustomerSummaryDAO) current from the outbox_events ChangeLog writes.
+//
+//A daemon thread polls the outbox on every shard every -Dbank.summary.pollMillis (100 by
+//default), rebuilds the summary of each customer named from the source tables and then
+//deletes the events it handled. A rebuild reads the current state, so handling an event twice
+//or out of order is harmless, and an event committed while a poll runs is left for the next.
+//Customers without a summary, such as those created before the outbox existed, are queued
+//once at start.
+//
+//Events are only written with -Dbank.summary.enabled=true, and then by every process that
+//writes, so set it only where a projector runs, usually the main application. Events written
+//while no projector runs wait in the outbox; at start the projector first prunes that backlog
+//to the latest event of each customer, since one rebuild covers them all. Clear
+//customer_summary before turning writing back on after running without it.
+//
+//Lag is measured two ways. The time from each event's commit to its summary being written is
+//recorded as the latency of "CustomerSummaryProjector.lag" in MetricsRegistry. getStalenessMillis
+//is how long ago the last poll that emptied every outbox began: every write committed before
+//then is in the summaries. covers() lets readers use a summary only while that staleness is
+//within -Dbank.summary.maxLagMillis (2000 by default) and includes their own latest write.
+public class CustomerSummaryProjector {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("bank.summary.enabled", "false"));
+    private static final long POLL_MILLIS = Long.getLong("bank.summary.pollMillis", 100);
+    private static final long MAX_LAG_MILLIS = Long.getLong("bank.summary.maxLagMillis", 2000);
+    private static final int BATCH_SIZE = 500;
+    
+    private static final CustomerSummaryProjector INSTANCE = new CustomerSummaryProjector();
+    
+    private final CustomerSummaryDAO summaryDAO = new CustomerSummaryDAO();
+    private ScheduledExecutorService scheduler;
+    private boolean backfilled;
+    // Start of the last poll that found every outbox empty once it was done, 0 before the first
+    private volatile long caughtUpAt;
+    
+    private CustomerSummaryProjector() {
+    }
+    
+    public static CustomerSummaryProjector getInstance() {
+        return INSTANCE;
+    }
+    
+    //Follow the outbox on a daemon thread
+    public synchronized void start() {
+        if (scheduler != null || !ENABLED) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "customer-summary-projector");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        caughtUpAt = 0;
+    }
+    
+    //Milliseconds since the summaries last included every committed write, or -1 if they never have
+    public long getStalenessMillis() {
+        long caughtUp = caughtUpAt;
+        return caughtUp == 0 ? -1 : System.currentTimeMillis() - caughtUp;
+    }
+    
+    //Whether stored summaries may be read by a caller whose last write committed at the given time
+    //(0 for none): true if they include that write and lag by no more than the configured bound
+    public boolean covers(long lastWriteMillis) {
+        long caughtUp = caughtUpAt;
+        return caughtUp != 0 && caughtUp >= lastWriteMillis &&
+               System.currentTimeMillis() - caughtUp <= MAX_LAG_MILLIS;
+    }
+    
+    //One pass on the projector thread; a failure is retried on the next pass
+    private void poll() {
+        long pollStart = System.currentTimeMillis();
+        try {
+            if (!backfilled) {
+                for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+                    pruneBacklog(shard);
+                }
+                backfill();
+                backfilled = true;
+            }
+            for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+                while (drainBatch(shard) == BATCH_SIZE) {
+                    // Keep going while there is a backlog
+                }
+            }
+            caughtUpAt = pollStart;
+        } catch (SQLException e) {
+            BankLogger.error("Customer summary projection failed, retrying: {}", e.getMessage());
+        }
+    }
+    
+    //Drop every event of one shard's outbox but the latest of each customer
+    private void pruneBacklog(int shard) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             Statement stmt = conn.createStatement()) {
+            int pruned = stmt.executeUpdate(
+                "DELETE FROM outbox_events WHERE event_id NOT IN " +
+                "(SELECT MAX(event_id) FROM outbox_events GROUP BY customer_id)");
+            if (pruned > 0) {
+                BankLogger.info("Pruned {} superseded outbox events on shard {}", pruned, shard);
+            }
+        }
+    }
+    
+    //Queue every customer that has no summary yet
+    private void backfill() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection();
+             Statement stmt = conn.createStatement()) {
+            int queued = stmt.executeUpdate(
+                "INSERT INTO outbox_events (customer_id, event_type) " +
+                "SELECT c.customer_id, 'backfill' FROM customers c WHERE NOT EXISTS " +
+                "(SELECT 1 FROM customer_summary s WHERE s.customer_id = c.customer_id)");
+            if (queued > 0) {
+                BankLogger.info("Queued {} customers for summary backfill", queued);
+            }
+        }
+    }
+    
+    //Handle the oldest events in one shard's outbox, returns the number read
+    private int drainBatch(int shard) throws SQLException {
+        List<Long> eventIds = new ArrayList<>();
+        List<Long> eventTimes = new ArrayList<>();
+        Set<String> customers = new LinkedHashSet<>();
+        
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT event_id, customer_id, created_date FROM outbox_events " +
+                 "ORDER BY event_id LIMIT " + BATCH_SIZE)) {
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    eventIds.add(rs.getLong("event_id"));
+                    eventTimes.add(rs.getTimestamp("created_date").getTime());
+                    customers.add(rs.getString("customer_id"));
+                }
+            }
+        }
+        if (eventIds.isEmpty()) {
+            return 0;
+        }
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("CustomerSummaryProjector.apply");
+        try (sample) {
+            for (String customerId : customers) {
+                CustomerSummaryDAO.CustomerSummary summary = summaryDAO.build(customerId);
+                try (Connection conn = DatabaseConnection.getConnection()) {
+                    if (summary != null) {
+                        summaryDAO.save(conn, summary);
+                    } else {
+                        summaryDAO.delete(conn, customerId);
+                    }
+                }
+            }
+            sample.rows(customers.size());
+        } catch (SQLException e) {
+            sample.error();
+            throw e;
+        }
+        
+        long now = System.currentTimeMillis();
+        OperationMetrics lag = MetricsRegistry.metrics("CustomerSummaryProjector.lag");
+        for (long created : eventTimes) {
+            lag.recordCall(TimeUnit.MILLISECONDS.toNanos(Math.max(0, now - created)));
+        }
+        
+        // Only the events handled are deleted; any committed meanwhile are read on the next pass
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement pstmt = conn.prepareStatement("DELETE FROM outbox_events WHERE event_id = ?")) {
+            for (long eventId : eventIds) {
+                pstmt.setLong(1, eventId);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+        return eventIds.size();
+    }
+}
@@ -0,0 +1,187 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+//Rolling 24-hour withdrawal totals per account, used to enforce getWithdrawalLimit() as a
+//daily limit rather than a per-withdrawal one, so splitting a withdrawal no longer gets round it.
+//
+//Each account keeps 96 buckets of 15 minutes holding the cents debited (withdrawals and
+//outgoing transfers) plus a running total, so checking a limit is one array read and never
+//a SUM over transactions. Totals are rebuilt once from the ledger's last 24 hours on first
+//use (BankingApplication does it at startup) and kept current by every debit after that;
+//a refunded transfer comes back out of the bucket its debit went into. Only debits made
+//through this process are seen after the rebuild.
+public class DailyWithdrawalTracker {
+    private static final int BUCKETS = 96;
+    private static final long BUCKET_MILLIS = 15 * 60 * 1000;
+    static final long WINDOW_MILLIS = BUCKETS * BUCKET_MILLIS;
+    
+    private static final DailyWithdrawalTracker INSTANCE =
+        new DailyWithdrawalTracker(new TransactionDAO(), System::currentTimeMillis);
+    
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+    private final TransactionDAO transactionDAO;
+    private final LongSupplier clock;
+    private volatile boolean loaded;
+    private volatile boolean enabled = true;
+    
+    //Cents debited from one account per bucket, with the newest bucket number and the total
+    private static final class Window {
+        final long[] cents = new long[BUCKETS];
+        long head;
+        long total;
+        
+        //Move forward to the bucket holding now, dropping the buckets that fell out of the day
+        void advance(long bucket) {
+            if (bucket <= head) {
+                return;
+            }
+            long steps = Math.min(bucket - head, BUCKETS);
+            for (long b = head + 1; b <= head + steps; b++) {
+                int slot = (int) (b % BUCKETS);
+                total -= cents[slot];
+                cents[slot] = 0;
+            }
+            head = bucket;
+        }
+        
+        void add(long bucket, long amount) {
+            cents[(int) (bucket % BUCKETS)] += amount;
+            total += amount;
+        }
+        
+        //Take amount back out of bucket, unless that bucket has already left the day
+        void remove(long bucket, long amount) {
+            if (bucket <= head && bucket > head - BUCKETS) {
+                add(bucket, -amount);
+            }
+        }
+    }
+    
+    DailyWithdrawalTracker(TransactionDAO transactionDAO, LongSupplier clock) {
+        this.transactionDAO = transactionDAO;
+        this.clock = clock;
+    }
+    
+    public static DailyWithdrawalTracker getInstance() {
+        return INSTANCE;
+    }
+    
+    //Turn enforcement off (tryReserve always succeeds) or back on
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    //Count a debit against the account's daily limit if it fits
+    //Returns false, counting nothing, if the last 24 hours plus amount would exceed dailyLimit
+    public boolean tryReserve(String accountNumber, double amount, double dailyLimit) {
+        return tryReserve(accountNumber, amount, dailyLimit, clock.getAsLong());
+    }
+    
+    //As above with the time read by the caller, who passes the same time to release if the debit fails
+    public boolean tryReserve(String accountNumber, double amount, double dailyLimit, long now) {
+        if (!enabled) {
+            return true;
+        }
+        ensureLoaded();
+        long cents = Math.round(amount * 100);
+        long bucket = now / BUCKET_MILLIS;
+        Window window = windows.computeIfAbsent(accountNumber, k -> new Window());
+        synchronized (window) {
+            window.advance(bucket);
+            if (window.total + cents > Math.round(dailyLimit * 100)) {
+                return false;
+            }
+            window.add(bucket, cents);
+            return true;
+        }
+    }
+    
+    //Take back a debit counted by tryReserve at reservedAt whose write then failed or was refunded
+    //It comes out of the bucket it went into; once that bucket has left the day there is nothing to take back
+    public void release(String accountNumber, double amount, long reservedAt) {
+        if (!enabled) {
+            return;
+        }
+        Window window = windows.get(accountNumber);
+        if (window != null) {
+            synchronized (window) {
+                window.advance(clock.getAsLong() / BUCKET_MILLIS);
+                window.remove(reservedAt / BUCKET_MILLIS, Math.round(amount * 100));
+            }
+        }
+    }
+    
+    //Amount debited from the account in the last 24 hours
+    public double getWithdrawnToday(String accountNumber) {
+        ensureLoaded();
+        Window window = windows.get(accountNumber);
+        if (window == null) {
+            return 0.0;
+        }
+        synchronized (window) {
+            window.advance(clock.getAsLong() / BUCKET_MILLIS);
+            return window.total / 100.0;
+        }
+    }
+    
+    //Rebuild the totals from the ledger unless that has been done already
+    public void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    rebuild();
+                    loaded = true;
+                }
+            }
+        }
+    }
+    
+    //Replace all totals with the debits recorded in the last 24 hours; called under the ensureLoaded lock
+    //A transfer reversal is matched to the latest earlier transfer out of the same account to the
+    //same target for the same amount and taken out of that debit's bucket; one whose debit is
+    //older than the day has nothing to match and is skipped
+    //If the ledger cannot be read the totals start empty rather than blocking withdrawals
+    private void rebuild() {
+        long now = clock.getAsLong();
+        long currentBucket = now / BUCKET_MILLIS;
+        windows.clear();
+        
+        int count = 0;
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            // Buckets of the transfers read so far, by account, target and cents, newest last
+            Map<String, ArrayDeque<Long>> transfers = new HashMap<>();
+            try (Connection conn = DatabaseConnection.getConnection(shard)) {
+                count += transactionDAO.streamDebitsSince(conn, new Timestamp(now - WINDOW_MILLIS), transaction -> {
+                    long bucket = Math.min(transaction.getTransactionDate().getTime() / BUCKET_MILLIS, currentBucket);
+                    long cents = Math.round(transaction.getAmount() * 100);
+                    String transferKey = transaction.getAccountNumber() + "|" + transaction.getToAccountNumber() + "|" + cents;
+                    Window window = windows.computeIfAbsent(transaction.getAccountNumber(), k -> new Window());
+                    window.advance(currentBucket);
+                    if (transaction.getTransactionType().equals("TRANSFER_REVERSAL")) {
+                        ArrayDeque<Long> debits = transfers.get(transferKey);
+                        if (debits != null && !debits.isEmpty()) {
+                            window.remove(debits.pollLast(), cents);
+                        }
+                        return;
+                    }
+                    if (bucket > currentBucket - BUCKETS) {
+                        window.add(bucket, cents);
+                        if (transaction.getTransactionType().equals("TRANSFER_OUT")) {
+                            transfers.computeIfAbsent(transferKey, k -> new ArrayDeque<>()).addLast(bucket);
+                        }
+                    }
+                });
+            } catch (SQLException e) {
+                BankLogger.error("Could not rebuild daily withdrawal totals: {}", e.getMessage());
+            }
+        }
+        BankLogger.info("Daily withdrawal totals rebuilt from {} debits across {} accounts",
+                        count, windows.size());
+    }
+}
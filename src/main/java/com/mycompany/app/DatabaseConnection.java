@@ -2,13 +2,16 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
 
 public class DatabaseConnection {
     // Database configuration
     private static final String DB_TYPE = "H2"; // Change to "SQLITE", "MYSQL", or "POSTGRESQL"
     
     // H2 Database (In-memory or file-based)
-    private static final String H2_URL = "jdbc:h2:./bankdb;AUTO_SERVER=TRUE";
+    // -Dbank.db.url points the H2 setup at another database, e.g. an in-memory one for benchmarks
+    private static final String H2_URL = System.getProperty("bank.db.url", "jdbc:h2:./bankdb;AUTO_SERVER=TRUE");
     private static final String H2_USER = "sa";
     private static final String H2_PASSWORD = "";
     
@@ -25,133 +28,442 @@ public class DatabaseConnection {
     private static final String POSTGRESQL_USER = "postgres";
     private static final String POSTGRESQL_PASSWORD = "password";
     
-    private static Connection connection = null;
+    // Pool behind getConnection: -Dbank.db.poolSize (default 10), -Dbank.db.poolTimeoutMillis (default 5000)
+    static final int POOL_SIZE = Integer.getInteger("bank.db.poolSize", 10);
+    private static final long POOL_TIMEOUT_MILLIS = Long.getLong("bank.db.poolTimeoutMillis", 5000);
+    private static volatile ConnectionPool pool;
     
-    //Get a database connection based on the configured database type
+    // Shards: -Dbank.db.shards (default 1, unsharded). Shard 0 is the database above; shard i is
+    // -Dbank.db.shard.<i>.url, by default the H2 file bankdb-shard<i>. Each has its own pool (see ShardRouter)
+    static final int SHARD_COUNT = Math.max(1, Integer.getInteger("bank.db.shards", 1));
+    private static volatile ConnectionPool[] shardPools;
+    
+    // Read replica behind getReadConnection: -Dbank.db.replicaUrl, same credentials and pool size
+    // as the primary. Unset means every read goes to the primary; set, ReplicaFeeder keeps it current.
+    // Only used while the database is unsharded
+    private static final String REPLICA_URL = System.getProperty("bank.db.replicaUrl");
+    private static volatile ConnectionPool readPool;
+    private static volatile ReplicaFeeder replicaFeeder;
+    private static final ThreadLocal<ReadSession> SESSION = ThreadLocal.withInitial(ReadSession::new);
+    
+    static {
+        if (REPLICA_URL != null && SHARD_COUNT > 1) {
+            BankLogger.warn("Read replica {} is disabled: it only supports an unsharded database, " +
+                            "but -Dbank.db.shards is {}", REPLICA_URL, SHARD_COUNT);
+        }
+    }
+    
+    //Read-your-writes state of a session; a session is the calling thread
+    private static final class ReadSession {
+        boolean readYourWrites = true;
+        long lastChangeId;
+    }
+    
+    // Wrap new connections in JdbcTracer (-Dbank.jdbc.trace=true or setTracing)
+    private static volatile boolean tracing = Boolean.getBoolean("bank.jdbc.trace");
+    
+    public static void setTracing(boolean enabled) {
+        tracing = enabled;
+    }
+    
+    public static boolean isTracing() {
+        return tracing;
+    }
+    
+    //Borrow a pooled connection; closing it returns it to the pool
     public static Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            try {
-                switch (DB_TYPE.toUpperCase()) {
-                    case "H2":
-                        Class.forName("org.h2.Driver");
-                        connection = DriverManager.getConnection(H2_URL, H2_USER, H2_PASSWORD);
-                        break;
-                    
-                    case "SQLITE":
-                        Class.forName("org.sqlite.JDBC");
-                        connection = DriverManager.getConnection(SQLITE_URL);
-                        break;
-                    
-                    case "MYSQL":
-                        Class.forName("com.mysql.cj.jdbc.Driver");
-                        connection = DriverManager.getConnection(MYSQL_URL, MYSQL_USER, MYSQL_PASSWORD);
-                        break;
-                    
-                    case "POSTGRESQL":
-                        Class.forName("org.postgresql.Driver");
-                        connection = DriverManager.getConnection(POSTGRESQL_URL, 
-                                                                POSTGRESQL_USER, 
-                                                                POSTGRESQL_PASSWORD);
-                        break;
-                    
-                    default:
-                        throw new SQLException("Unsupported database type: " + DB_TYPE);
+        ConnectionPool current = pool;
+        if (current == null) {
+            synchronized (DatabaseConnection.class) {
+                if (pool == null) {
+                    pool = new ConnectionPool(POOL_SIZE, POOL_TIMEOUT_MILLIS, DatabaseConnection::openConnection);
+                    BankLogger.debug("Database connection pool created: {}", DB_TYPE);
+                }
+                current = pool;
+            }
+        }
+        return current.borrow();
+    }
+    
+    //Borrow a pooled connection to one shard; shard 0 is the database getConnection() uses
+    public static Connection getConnection(int shard) throws SQLException {
+        if (shard == 0) {
+            return getConnection();
+        }
+        ConnectionPool[] pools = shardPools;
+        if (pools == null) {
+            synchronized (DatabaseConnection.class) {
+                if (shardPools == null) {
+                    ConnectionPool[] created = new ConnectionPool[SHARD_COUNT];
+                    for (int i = 1; i < SHARD_COUNT; i++) {
+                        int s = i;
+                        created[i] = new ConnectionPool(POOL_SIZE, POOL_TIMEOUT_MILLIS, () -> openConnection(s));
+                    }
+                    shardPools = created;
+                    BankLogger.debug("Connection pools created for {} shards", SHARD_COUNT);
+                }
+                pools = shardPools;
+            }
+        }
+        return pools[shard].borrow();
+    }
+    
+    //Borrow a pooled connection for a read-only query on one shard
+    public static Connection getReadConnection(int shard) throws SQLException {
+        return shard == 0 ? getReadConnection() : getConnection(shard);
+    }
+    
+    //Borrow a pooled connection for a read-only query
+    //Served by the read replica when one is configured and has caught up with this session's
+    //own writes (unless read-your-writes is switched off); otherwise by the primary
+    public static Connection getReadConnection() throws SQLException {
+        if (!replicaServesSession()) {
+            return getConnection();
+        }
+        return readPool.borrow();
+    }
+    
+    //Open a new, independent connection based on the configured database type
+    //Used by batch jobs that need their own transaction per worker thread
+    public static Connection openConnection() throws SQLException {
+        Connection conn = openRawConnection(null);
+        return tracing ? JdbcTracer.wrap(conn) : conn;
+    }
+    
+    //Open a new, independent connection to one shard
+    public static Connection openConnection(int shard) throws SQLException {
+        if (shard == 0) {
+            return openConnection();
+        }
+        Connection conn = openRawConnection(System.getProperty("bank.db.shard." + shard + ".url",
+                                                               "jdbc:h2:./bankdb-shard" + shard + ";AUTO_SERVER=TRUE"));
+        return tracing ? JdbcTracer.wrap(conn) : conn;
+    }
+    
+    //Open a new, independent connection for long read-only work such as reports, routed like getReadConnection
+    public static Connection openReadConnection() throws SQLException {
+        return replicaServesSession() ? openReplicaConnection() : openConnection();
+    }
+    
+    //Open a new, independent connection for long read-only work on one shard
+    public static Connection openReadConnection(int shard) throws SQLException {
+        return shard == 0 ? openReadConnection() : openConnection(shard);
+    }
+    
+    //Open a new connection to the read replica; only meaningful when one is configured
+    static Connection openReplicaConnection() throws SQLException {
+        Connection conn = openRawConnection(REPLICA_URL);
+        return tracing ? JdbcTracer.wrap(conn) : conn;
+    }
+    
+    public static boolean isReplicated() {
+        return REPLICA_URL != null && SHARD_COUNT == 1;
+    }
+    
+    //Turn read-your-writes on (the default) or off for the calling thread's session
+    //Off, reads may go to a replica that has not yet applied this session's writes
+    public static void setReadYourWrites(boolean enabled) {
+        SESSION.get().readYourWrites = enabled;
+    }
+    
+    //Remember the change log position of a write made by the calling thread's session
+    static void noteWrite(long changeId) {
+        ReadSession session = SESSION.get();
+        session.lastChangeId = Math.max(session.lastChangeId, changeId);
+    }
+    
+    private static boolean replicaServesSession() {
+        if (!isReplicated()) {
+            return false;
+        }
+        ReplicaFeeder feeder = replicaFeeder;
+        if (feeder == null) {
+            synchronized (DatabaseConnection.class) {
+                if (replicaFeeder == null) {
+                    readPool = new ConnectionPool(POOL_SIZE, POOL_TIMEOUT_MILLIS,
+                                                  DatabaseConnection::openReplicaConnection);
+                    replicaFeeder = new ReplicaFeeder();
+                    replicaFeeder.start();
+                    BankLogger.debug("Read replica pool created: {}", REPLICA_URL);
                 }
+                feeder = replicaFeeder;
+            }
+        }
+        long applied = feeder.getAppliedChangeId();
+        ReadSession session = SESSION.get();
+        return applied >= 0 && !(session.readYourWrites &&
+                                 (session.lastChangeId > applied || feeder.isMissing(session.lastChangeId)));
+    }
+    
+    //url overrides the configured URL of the database type (used for the read replica)
+    private static Connection openRawConnection(String url) throws SQLException {
+        try {
+            switch (DB_TYPE.toUpperCase()) {
+                case "H2":
+                    Class.forName("org.h2.Driver");
+                    return DriverManager.getConnection(url != null ? url : H2_URL, H2_USER, H2_PASSWORD);
+                
+                case "SQLITE":
+                    Class.forName("org.sqlite.JDBC");
+                    return DriverManager.getConnection(url != null ? url : SQLITE_URL);
+                
+                case "MYSQL":
+                    Class.forName("com.mysql.cj.jdbc.Driver");
+                    return DriverManager.getConnection(url != null ? url : MYSQL_URL, MYSQL_USER, MYSQL_PASSWORD);
                 
-                System.out.println("Database connection established: " + DB_TYPE);
+                case "POSTGRESQL":
+                    Class.forName("org.postgresql.Driver");
+                    return DriverManager.getConnection(url != null ? url : POSTGRESQL_URL, 
+                                                       POSTGRESQL_USER, 
+                                                       POSTGRESQL_PASSWORD);
                 
-            } catch (ClassNotFoundException e) {
-                throw new SQLException("Database driver not found: " + e.getMessage());
+                default:
+                    throw new SQLException("Unsupported database type: " + DB_TYPE);
             }
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("Database driver not found: " + e.getMessage());
         }
-        return connection;
     }
     
-    //Close the database connection
-    public static void closeConnection() {
-        if (connection != null) {
-            try {
-                connection.close();
-                System.out.println("Database connection closed.");
-            } catch (SQLException e) {
-                System.err.println("Error closing database connection: " + e.getMessage());
+    //Close the pooled database connections
+    public static synchronized void closeConnection() {
+        if (replicaFeeder != null) {
+            replicaFeeder.stop();
+            replicaFeeder = null;
+            readPool.shutdown();
+            readPool = null;
+        }
+        if (shardPools != null) {
+            for (int i = 1; i < SHARD_COUNT; i++) {
+                shardPools[i].shutdown();
             }
+            shardPools = null;
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            System.out.println("Database connection closed.");
         }
     }
     
-    //Initialize database tables (run once)
+    // Tables in creation (foreign key) order; dropped in reverse and backed up in this order
+    static final String[] TABLES = {
+        "customers", "accounts", "transactions", "transactions_archive",
+        "balance_checkpoints", "interest_checkpoints", "id_sequences", "import_checkpoints",
+        "reconciliation_watermarks", "reconciliation_runs", "idempotency_keys", "change_log", "transfer_sagas", "transfer_credits",
+        "outbox_events", "customer_summary", "schema_version"
+    };
+    
+    //Drop and recreate every table on every shard, discarding all data
+    //The application starts through SchemaManager.ensureSchema instead; this is for demos and test harnesses
     public static void initializeDatabase() {
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement()) {
-            
-            // Drop existing tables
-            stmt.execute("DROP TABLE IF EXISTS transactions");
-            stmt.execute("DROP TABLE IF EXISTS accounts");
-            stmt.execute("DROP TABLE IF EXISTS customers");
-            
-            // Create customers table
-            stmt.execute("CREATE TABLE customers (" +
-                        "customer_id VARCHAR(50) PRIMARY KEY, " +
-                        "first_name VARCHAR(100) NOT NULL, " +
-                        "last_name VARCHAR(100) NOT NULL, " +
-                        "email VARCHAR(150) UNIQUE, " +
-                        "phone VARCHAR(20), " +
-                        "address VARCHAR(255), " +
-                        "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
-            
-            // Create accounts table
-            stmt.execute("CREATE TABLE accounts (" +
-                        "account_number VARCHAR(50) PRIMARY KEY, " +
-                        "customer_id VARCHAR(50) NOT NULL, " +
-                        "account_type VARCHAR(20) NOT NULL, " +
-                        "balance DECIMAL(15, 2) DEFAULT 0.00, " +
-                        "interest_rate DECIMAL(5, 4), " +
-                        "withdrawal_limit DECIMAL(15, 2), " +
-                        "overdraft_limit DECIMAL(15, 2), " +
-                        "minimum_balance DECIMAL(15, 2), " +
-                        "investment_type VARCHAR(50), " +
-                        "term_months INT, " +
-                        "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                        "FOREIGN KEY (customer_id) REFERENCES customers(customer_id) ON DELETE CASCADE)");
-            
-            // Create transactions table
-            String transactionSQL = DB_TYPE.equals("SQLITE") ?
-                "CREATE TABLE transactions (" +
-                "transaction_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "account_number VARCHAR(50) NOT NULL, " +
-                "transaction_type VARCHAR(20) NOT NULL, " +
-                "amount DECIMAL(15, 2) NOT NULL, " +
-                "balance_after DECIMAL(15, 2) NOT NULL, " +
-                "description VARCHAR(255), " +
-                "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "to_account_number VARCHAR(50), " +
-                "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)" :
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            try (Connection conn = getConnection(shard);
+                 Statement stmt = conn.createStatement()) {
                 
-                "CREATE TABLE transactions (" +
-                "transaction_id INT AUTO_INCREMENT PRIMARY KEY, " +
-                "account_number VARCHAR(50) NOT NULL, " +
-                "transaction_type VARCHAR(20) NOT NULL, " +
-                "amount DECIMAL(15, 2) NOT NULL, " +
-                "balance_after DECIMAL(15, 2) NOT NULL, " +
-                "description VARCHAR(255), " +
-                "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "to_account_number VARCHAR(50), " +
-                "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)";
-            
-            stmt.execute(transactionSQL);
+                dropTables(stmt);
+                createTables(stmt);
+                createIndexes(stmt);
+                SchemaManager.stamp(stmt, SchemaManager.CURRENT_VERSION);
             
-            System.out.println("Database tables initialized successfully!");
+            } catch (SQLException e) {
+                System.err.println("Error initializing database: " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+        }
+        System.out.println("Database tables initialized successfully!");
+    }
+    
+    //Drop all tables, dependants first
+    static void dropTables(Statement stmt) throws SQLException {
+        for (int i = TABLES.length - 1; i >= 0; i--) {
+            stmt.execute("DROP TABLE IF EXISTS " + TABLES[i]);
+        }
+    }
+    
+    //Create all tables without secondary indexes
+    static void createTables(Statement stmt) throws SQLException {
+        createTables(stmt, Collections.emptySet());
+    }
+    
+    //Create the tables not named in existing (lower-case names), leaving those that are untouched
+    static void createTables(Statement stmt, Set<String> existing) throws SQLException {
+        // Create customers table
+        create(stmt, existing, "CREATE TABLE customers (" +
+                    "customer_id VARCHAR(50) PRIMARY KEY, " +
+                    "first_name VARCHAR(100) NOT NULL, " +
+                    "last_name VARCHAR(100) NOT NULL, " +
+                    "email VARCHAR(150) UNIQUE, " +
+                    "phone VARCHAR(20), " +
+                    "address VARCHAR(255), " +
+                    "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        
+        // Create accounts table
+        create(stmt, existing, "CREATE TABLE accounts (" +
+                    "account_number VARCHAR(50) PRIMARY KEY, " +
+                    "customer_id VARCHAR(50) NOT NULL, " +
+                    "account_type VARCHAR(20) NOT NULL, " +
+                    "balance DECIMAL(15, 2) DEFAULT 0.00, " +
+                    "interest_rate DECIMAL(5, 4), " +
+                    "withdrawal_limit DECIMAL(15, 2), " +
+                    "overdraft_limit DECIMAL(15, 2), " +
+                    "minimum_balance DECIMAL(15, 2), " +
+                    "investment_type VARCHAR(50), " +
+                    "term_months INT, " +
+                    "start_date DATE, " +
+                    "maturity_date DATE, " +
+                    "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "version BIGINT DEFAULT 0 NOT NULL, " +
+                    "FOREIGN KEY (customer_id) REFERENCES customers(customer_id) ON DELETE CASCADE)");
+        
+        // Create transactions table
+        String transactionSQL = DB_TYPE.equals("SQLITE") ?
+            "CREATE TABLE transactions (" +
+            "transaction_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "account_number VARCHAR(50) NOT NULL, " +
+            "transaction_type VARCHAR(20) NOT NULL, " +
+            "amount DECIMAL(15, 2) NOT NULL, " +
+            "balance_after DECIMAL(15, 2) NOT NULL, " +
+            "description VARCHAR(255), " +
+            "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "to_account_number VARCHAR(50), " +
+            "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)" :
             
-        } catch (SQLException e) {
-            System.err.println("Error initializing database: " + e.getMessage());
-            e.printStackTrace();
+            "CREATE TABLE transactions (" +
+            "transaction_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "account_number VARCHAR(50) NOT NULL, " +
+            "transaction_type VARCHAR(20) NOT NULL, " +
+            "amount DECIMAL(15, 2) NOT NULL, " +
+            "balance_after DECIMAL(15, 2) NOT NULL, " +
+            "description VARCHAR(255), " +
+            "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "to_account_number VARCHAR(50), " +
+            "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)";
+        
+        create(stmt, existing, transactionSQL);
+        
+        // Create transactions archive table (cold tier; rows keep the IDs they had in transactions)
+        create(stmt, existing, "CREATE TABLE transactions_archive (" +
+                    "transaction_id BIGINT PRIMARY KEY, " +
+                    "account_number VARCHAR(50) NOT NULL, " +
+                    "transaction_type VARCHAR(20) NOT NULL, " +
+                    "amount DECIMAL(15, 2) NOT NULL, " +
+                    "balance_after DECIMAL(15, 2) NOT NULL, " +
+                    "description VARCHAR(255), " +
+                    "transaction_date TIMESTAMP, " +
+                    "to_account_number VARCHAR(50), " +
+                    "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)");
+        
+        // Create balance checkpoints table (known balance of an account at a point in the ledger)
+        create(stmt, existing, "CREATE TABLE balance_checkpoints (" +
+                    "checkpoint_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "account_number VARCHAR(50) NOT NULL, " +
+                    "checkpoint_date TIMESTAMP NOT NULL, " +
+                    "last_transaction_id BIGINT, " +
+                    "balance DECIMAL(15, 2) NOT NULL, " +
+                    "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)");
+        
+        // Create interest run checkpoints table (one row per partition of a run)
+        create(stmt, existing, "CREATE TABLE interest_checkpoints (" +
+                    "run_id VARCHAR(50) NOT NULL, " +
+                    "partition_no INT NOT NULL, " +
+                    "range_start VARCHAR(50), " +
+                    "range_end VARCHAR(50), " +
+                    "last_account_number VARCHAR(50), " +
+                    "accounts_processed INT DEFAULT 0, " +
+                    "interest_posted DECIMAL(15, 2) DEFAULT 0.00, " +
+                    "completed BOOLEAN DEFAULT FALSE, " +
+                    "PRIMARY KEY (run_id, partition_no))");
+        
+        // Create ID sequences table (customer and account numbers are handed out in blocks)
+        create(stmt, existing, "CREATE TABLE id_sequences (" +
+                    "sequence_name VARCHAR(50) PRIMARY KEY, " +
+                    "next_value BIGINT NOT NULL)");
+        
+        // Create bulk import checkpoints table (one row per committed chunk)
+        create(stmt, existing, "CREATE TABLE import_checkpoints (" +
+                    "import_id VARCHAR(255) NOT NULL, " +
+                    "chunk_no INT NOT NULL, " +
+                    "rows_loaded INT NOT NULL, " +
+                    "rows_rejected INT NOT NULL, " +
+                    "completed_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "PRIMARY KEY (import_id, chunk_no))");
+        
+        // Create reconciliation watermarks table (last verified ledger row and balance per account)
+        create(stmt, existing, "CREATE TABLE reconciliation_watermarks (" +
+                    "account_number VARCHAR(50) PRIMARY KEY, " +
+                    "last_transaction_id BIGINT NOT NULL, " +
+                    "last_balance DECIMAL(15, 2) NOT NULL, " +
+                    "checked_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "FOREIGN KEY (account_number) REFERENCES accounts(account_number) ON DELETE CASCADE)");
+        
+        // Create reconciliation runs table (the latest high_water_id is where the next run starts)
+        create(stmt, existing, "CREATE TABLE reconciliation_runs (" +
+                    "run_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "high_water_id BIGINT NOT NULL, " +
+                    "rows_checked INT NOT NULL, " +
+                    "accounts_checked INT NOT NULL, " +
+                    "mismatches INT NOT NULL, " +
+                    "completed_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        
+        // Create idempotency keys table (outcome of each keyed money movement, see IdempotencyStore)
+        create(stmt, existing, SchemaManager.CREATE_IDEMPOTENCY_KEYS_SQL);
+        
+        // Create change log table (rows changed, in order, for the read replica; see ChangeLog)
+        create(stmt, existing, SchemaManager.CREATE_CHANGE_LOG_SQL);
+        
+        // Create transfer saga tables (cross-shard transfer steps, see TransferSaga)
+        create(stmt, existing, SchemaManager.CREATE_TRANSFER_SAGAS_SQL);
+        create(stmt, existing, SchemaManager.CREATE_TRANSFER_CREDITS_SQL);
+        
+        // Create customer summary tables (outbox of changed customers and the read model it
+        // feeds, see CustomerSummaryProjector)
+        create(stmt, existing, SchemaManager.CREATE_OUTBOX_EVENTS_SQL);
+        create(stmt, existing, SchemaManager.CREATE_CUSTOMER_SUMMARY_SQL);
+        
+        // Create schema version table (one row per version applied, see SchemaManager)
+        create(stmt, existing, "CREATE TABLE schema_version (" +
+                    "version INT PRIMARY KEY, " +
+                    "applied_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+    }
+    
+    //Create secondary indexes; kept separate so a restore can build them after loading
+    static void createIndexes(Statement stmt) throws SQLException {
+        createIndexes(stmt, Collections.emptySet());
+    }
+    
+    //Create the indexes not named in existing (lower-case names)
+    static void createIndexes(Statement stmt, Set<String> existing) throws SQLException {
+        // Index maturities so the end-of-day job reads only accounts that are due
+        create(stmt, existing, "CREATE INDEX idx_accounts_maturity ON accounts (maturity_date)");
+        
+        // Account history reads on both ledger tiers, and the archiver's scan by date
+        create(stmt, existing, "CREATE INDEX idx_transactions_account_date ON transactions (account_number, transaction_date)");
+        create(stmt, existing, "CREATE INDEX idx_transactions_date ON transactions (transaction_date)");
+        create(stmt, existing, "CREATE INDEX idx_archive_account_date ON transactions_archive (account_number, transaction_date)");
+        
+        // Point-in-time balance lookups seek the latest checkpoint for an account
+        create(stmt, existing, "CREATE INDEX idx_checkpoints_account_date ON balance_checkpoints (account_number, checkpoint_date)");
+        
+        // Expiry purge of idempotency keys scans by age
+        create(stmt, existing, SchemaManager.CREATE_IDEMPOTENCY_KEYS_INDEX_SQL);
+        
+        // Saga recovery looks for unfinished transfers
+        create(stmt, existing, SchemaManager.CREATE_TRANSFER_SAGAS_INDEX_SQL);
+    }
+    
+    //Run a CREATE TABLE or CREATE INDEX statement unless the object it names is in existing
+    private static void create(Statement stmt, Set<String> existing, String sql) throws SQLException {
+        String name = sql.split("[\\s(]+", 4)[2];
+        if (!existing.contains(name.toLowerCase())) {
+            stmt.execute(sql);
         }
     }
     
     //Test database connection
     public static void testConnection() {
-        try {
-            Connection conn = getConnection();
+        try (Connection conn = getConnection()) {
             if (conn != null && !conn.isClosed()) {
                 System.out.println("Database connection test: SUCCESS");
                 System.out.println("Database: " + conn.getMetaData().getDatabaseProductName());
@@ -0,0 +1,107 @@
+import java.sql.*;
+
+//Hands out numeric IDs from a database sequence row in blocks.
+//One short transaction reserves a whole block, after which IDs are served from memory,
+//so bulk loads and concurrent sessions never collide and restarts never reuse a number.
+//A failure to reach the database is printed and reported as UNAVAILABLE instead of an ID.
+public class IdBlockAllocator {
+    static final long UNAVAILABLE = -1;
+    private static final String DUPLICATE_KEY_STATE = "23505";
+    
+    private final String sequenceName;
+    private final long initialValue;
+    private final int blockSize;
+    private long next;
+    private long limit; // Exclusive end of the current block
+    
+    public IdBlockAllocator(String sequenceName, long initialValue, int blockSize) {
+        this.sequenceName = sequenceName;
+        this.initialValue = initialValue;
+        this.blockSize = Math.max(1, blockSize);
+    }
+    
+    //Next ID from the current block, reserving a new block when it runs out
+    //Returns UNAVAILABLE if a new block could not be reserved
+    public synchronized long next() {
+        if (next >= limit) {
+            long first = reserve(blockSize);
+            if (first == UNAVAILABLE) {
+                return UNAVAILABLE;
+            }
+            next = first;
+            limit = first + blockSize;
+        }
+        return next++;
+    }
+    
+    //Reserve a contiguous block of count IDs and return its first value, or UNAVAILABLE on error
+    public long reserve(int count) {
+        String selectSql = "SELECT next_value FROM id_sequences WHERE sequence_name = ? FOR UPDATE";
+        String updateSql = "UPDATE id_sequences SET next_value = ? WHERE sequence_name = ?";
+        
+        try (Connection conn = DatabaseConnection.openConnection()) {
+            ensureRow(conn);
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(selectSql);
+                 PreparedStatement update = conn.prepareStatement(updateSql)) {
+                select.setString(1, sequenceName);
+                long first;
+                try (ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                    first = rs.getLong(1);
+                }
+                
+                update.setLong(1, first + count);
+                update.setString(2, sequenceName);
+                update.executeUpdate();
+                conn.commit();
+                return first;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error reserving IDs from " + sequenceName + ": " + e.getMessage());
+            return UNAVAILABLE;
+        }
+    }
+    
+    //Make sure the sequence will never hand out used or anything below it, for IDs assigned
+    //outside the allocator such as imported ones. The floor is raised in the caller's
+    //transaction; IDs still cached in this allocator at or below used are dropped.
+    public void advancePast(Connection conn, long used) throws SQLException {
+        try (Connection own = DatabaseConnection.openConnection()) {
+            ensureRow(own);
+        }
+        try (PreparedStatement update = conn.prepareStatement(
+                 "UPDATE id_sequences SET next_value = ? WHERE sequence_name = ? AND next_value <= ?")) {
+            update.setLong(1, used + 1);
+            update.setString(2, sequenceName);
+            update.setLong(3, used);
+            update.executeUpdate();
+        }
+        synchronized (this) {
+            if (used >= next) {
+                next = limit;
+            }
+        }
+    }
+    
+    //Create the sequence row at its initial value unless it exists; committed at once
+    //If another session creates it at the same moment the duplicate key is ignored
+    private void ensureRow(Connection conn) throws SQLException {
+        String mergeSql = "MERGE INTO id_sequences s USING (VALUES (CAST(? AS VARCHAR(50)), CAST(? AS BIGINT))) " +
+                          "v (sequence_name, next_value) ON s.sequence_name = v.sequence_name " +
+                          "WHEN NOT MATCHED THEN INSERT (sequence_name, next_value) " +
+                          "VALUES (v.sequence_name, v.next_value)";
+        try (PreparedStatement merge = conn.prepareStatement(mergeSql)) {
+            merge.setString(1, sequenceName);
+            merge.setLong(2, initialValue);
+            merge.executeUpdate();
+        } catch (SQLException e) {
+            if (!DUPLICATE_KEY_STATE.equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Deduplicates money movements retried with the same idempotency key.
+//
+//The first call with a key inserts it into idempotency_keys inside the same database
+//transaction as the movement, so the key commits exactly when the money moves. A retry
+//finds the outcome in a bounded LRU cache in O(1), or after a restart or cache eviction hits
+//the key's unique index and reads the stored outcome, without running the movement again.
+//A duplicate arriving while the original is still running waits for its result instead,
+//including any reruns the original makes after a version conflict.
+//Failed movements are recorded too, so a retry gets the same refusal. Keys expire after the
+//time-to-live (-Dbank.idempotency.ttlHours, 24 by default); a scheduled job purges them.
+//With a sharded database a key is stored on the shard the movement runs on.
+public class IdempotencyStore {
+    private static final long TTL_MILLIS =
+        TimeUnit.HOURS.toMillis(Long.getLong("bank.idempotency.ttlHours", 24));
+    private static final int CACHE_SIZE = Integer.getInteger("bank.idempotency.cacheSize", 10_000);
+    private static final String DUPLICATE_KEY_STATE = "23505";
+    
+    private static final IdempotencyStore INSTANCE = new IdempotencyStore(CACHE_SIZE, TTL_MILLIS);
+    
+    private final long ttlMillis;
+    private final Map<String, Outcome> cache;
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder replays = new LongAdder();
+    private ScheduledExecutorService scheduler;
+    
+    //Work done in the movement's transaction; returning false rolls it back
+    public interface Movement {
+        boolean run(Connection conn) throws SQLException;
+    }
+    
+    //Decides, after an attempt failed with e and was rolled back, whether to run the movement again
+    public interface Retry {
+        boolean again(SQLException e, int attempt);
+    }
+    
+    //Stored result of a keyed call
+    private static final class Outcome {
+        final String operation;
+        final boolean succeeded;
+        final long expiresAt;
+        
+        Outcome(String operation, boolean succeeded, long expiresAt) {
+            this.operation = operation;
+            this.succeeded = succeeded;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    IdempotencyStore(int cacheSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+    
+    public static IdempotencyStore getInstance() {
+        return INSTANCE;
+    }
+    
+    //Run a movement at most once per key, returning the original outcome for repeated keys
+    //An SQLException means nothing was committed or recorded, so the key may be retried
+    public boolean execute(String key, String operation, Movement movement) throws SQLException {
+        return execute(key, operation, 0, movement);
+    }
+    
+    //Same, with the movement's transaction on the given shard
+    public boolean execute(String key, String operation, int shard, Movement movement) throws SQLException {
+        return execute(key, operation, shard, movement, (e, attempt) -> false);
+    }
+    
+    //Same, running the movement again in a new transaction while retry says so
+    //A duplicate that arrives meanwhile waits for the last attempt, not the first
+    public boolean execute(String key, String operation, int shard, Movement movement,
+                           Retry retry) throws SQLException {
+        Outcome cached = cached(key);
+        if (cached != null) {
+            return replay(key, operation, cached);
+        }
+        
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            replays.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw new SQLException("Original request for idempotency key " + key + " failed",
+                                       e.getCause());
+            }
+        }
+        
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    boolean result = executeOnce(key, operation, shard, movement);
+                    mine.complete(result);
+                    return result;
+                } catch (SQLException e) {
+                    if (!retry.again(e, attempt)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+    
+    private boolean executeOnce(String key, String operation, int shard, Movement movement) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(shard)) {
+            conn.setAutoCommit(false);
+            try {
+                // Claiming the key first makes a concurrent duplicate in another process wait on
+                // the unique index until this transaction ends
+                if (!insertKey(conn, key, operation, true)) {
+                    conn.rollback();
+                    Outcome stored = readKey(conn, key);
+                    remember(key, stored);
+                    return replay(key, operation, stored);
+                }
+                
+                boolean succeeded = movement.run(conn);
+                if (!succeeded) {
+                    conn.rollback();
+                    insertKey(conn, key, operation, false);
+                }
+                conn.commit();
+                remember(key, new Outcome(operation, succeeded, System.currentTimeMillis() + ttlMillis));
+                return succeeded;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    private boolean replay(String key, String operation, Outcome outcome) {
+        replays.increment();
+        if (!outcome.operation.equals(operation)) {
+            BankLogger.warn("Idempotency key {} was already used for {}", key, outcome.operation);
+            return false;
+        }
+        return outcome.succeeded;
+    }
+    
+    //Returns false if the key already exists
+    private boolean insertKey(Connection conn, String key, String operation, boolean succeeded) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                 "INSERT INTO idempotency_keys (idempotency_key, operation, succeeded) VALUES (?, ?, ?)")) {
+            pstmt.setString(1, key);
+            pstmt.setString(2, operation);
+            pstmt.setBoolean(3, succeeded);
+            pstmt.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            if (DUPLICATE_KEY_STATE.equals(e.getSQLState())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+    
+    private Outcome readKey(Connection conn, String key) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT operation, succeeded, created_date FROM idempotency_keys WHERE idempotency_key = ?")) {
+            pstmt.setString(1, key);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Idempotency key " + key + " disappeared while being read");
+                }
+                return new Outcome(rs.getString("operation"), rs.getBoolean("succeeded"),
+                                   rs.getTimestamp("created_date").getTime() + ttlMillis);
+            }
+        }
+    }
+    
+    private synchronized Outcome cached(String key) {
+        Outcome outcome = cache.get(key);
+        if (outcome != null && outcome.expiresAt <= System.currentTimeMillis()) {
+            cache.remove(key);
+            return null;
+        }
+        return outcome;
+    }
+    
+    private synchronized void remember(String key, Outcome outcome) {
+        cache.put(key, outcome);
+    }
+    
+    //Number of calls answered from a stored outcome instead of being executed
+    public long getReplayCount() {
+        return replays.sum();
+    }
+    
+    //Purge expired keys periodically on a daemon thread
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idempotency-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::purgeExpired, period, period, unit);
+    }
+    
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    //Delete keys older than the time-to-live, returns the number deleted
+    public int purgeExpired() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            cache.values().removeIf(outcome -> outcome.expiresAt <= now);
+        }
+        
+        int deleted = 0;
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(
+                     "DELETE FROM idempotency_keys WHERE created_date < ?")) {
+                pstmt.setTimestamp(1, new Timestamp(now - ttlMillis));
+                deleted += pstmt.executeUpdate();
+            } catch (SQLException e) {
+                System.err.println("Error purging idempotency keys: " + e.getMessage());
+            }
+        }
+        BankLogger.debug("Purged {} expired idempotency keys", deleted);
+        return deleted;
+    }
+}
@@ -0,0 +1,300 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+
+//Posts interest for all savings accounts in parallel account partitions.
+//Each partition runs on its own connection, applies postings with JDBC batches and
+//commits in chunks together with its checkpoint, so a rerun of the same run id
+//resumes after the last committed account instead of crediting it twice. With more than one
+//shard every shard is split into its own partitions, whose checkpoints live on that shard.
+//Investments are not included: their interest is paid once, at maturity (see MaturityScheduler).
+public class InterestBatchEngine {
+    private static final String INTEREST_TYPES = "account_type = 'Savings'";
+    // Description of periodic postings, so maturity can tell them from its own
+    static final String PERIODIC_DESCRIPTION = "Interest credited";
+    
+    private final AccountDAO accountDAO;
+    private final int partitions;
+    private final int chunkSize;
+    
+    //Summary of a single interest run
+    public static class RunResult {
+        private final String runId;
+        private final int accountsProcessed;
+        private final double interestPosted;
+        private final long elapsedMillis;
+        private final boolean resumed;
+        private final boolean completed;
+        
+        public RunResult(String runId, int accountsProcessed, double interestPosted,
+                         long elapsedMillis, boolean resumed, boolean completed) {
+            this.runId = runId;
+            this.accountsProcessed = accountsProcessed;
+            this.interestPosted = interestPosted;
+            this.elapsedMillis = elapsedMillis;
+            this.resumed = resumed;
+            this.completed = completed;
+        }
+        
+        public String getRunId() { return runId; }
+        public int getAccountsProcessed() { return accountsProcessed; }
+        public double getInterestPosted() { return interestPosted; }
+        public long getElapsedMillis() { return elapsedMillis; }
+        public boolean isResumed() { return resumed; }
+        //False if a partition failed; rerunning the same run id resumes it
+        public boolean isCompleted() { return completed; }
+        
+        public double getAccountsPerSecond() {
+            return elapsedMillis > 0 ? accountsProcessed * 1000.0 / elapsedMillis : accountsProcessed;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Interest run %s%s%s: %d accounts, %.2f posted in %d ms (%.0f accounts/s)",
+                    runId, resumed ? " (resumed)" : "", completed ? "" : " (incomplete, rerun to resume)",
+                    accountsProcessed, interestPosted,
+                    elapsedMillis, getAccountsPerSecond());
+        }
+    }
+    
+    //Checkpoint row for one partition of a run
+    private static class Checkpoint {
+        final int shard;
+        final int partitionNo;
+        final String rangeEnd;
+        final String lastAccountNumber;
+        
+        Checkpoint(int shard, int partitionNo, String rangeEnd, String lastAccountNumber) {
+            this.shard = shard;
+            this.partitionNo = partitionNo;
+            this.rangeEnd = rangeEnd;
+            this.lastAccountNumber = lastAccountNumber;
+        }
+    }
+    
+    public InterestBatchEngine(AccountDAO accountDAO) {
+        this(accountDAO, Runtime.getRuntime().availableProcessors(), 500);
+    }
+    
+    public InterestBatchEngine(AccountDAO accountDAO, int partitions, int chunkSize) {
+        this.accountDAO = accountDAO;
+        this.partitions = Math.max(1, partitions);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+    
+    //Run (or resume) the interest posting identified by runId
+    public RunResult run(String runId) {
+        long start = System.nanoTime();
+        AtomicInteger processed = new AtomicInteger();
+        DoubleAdder interest = new DoubleAdder();
+        
+        List<Checkpoint> pending = new ArrayList<>();
+        boolean resumed;
+        try {
+            resumed = loadOrCreateCheckpoints(runId, pending);
+        } catch (SQLException e) {
+            System.err.println("Error preparing interest run: " + e.getMessage());
+            return new RunResult(runId, 0, 0.0, 0, false, false);
+        }
+        
+        boolean completed = true;
+        if (!pending.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(partitions, pending.size()));
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Checkpoint checkpoint : pending) {
+                    futures.add(executor.submit(() -> {
+                        processPartition(runId, checkpoint, processed, interest);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+                System.err.println("Interest run interrupted; rerun " + runId + " to resume");
+            } catch (ExecutionException e) {
+                completed = false;
+                System.err.println("Interest partition failed; rerun " + runId + " to resume: " +
+                                   e.getCause().getMessage());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        return new RunResult(runId, processed.get(), interest.sum(), elapsedMillis, resumed, completed);
+    }
+    
+    //Load the unfinished partitions of a run, creating them on the first attempt
+    //Returns true when an earlier attempt of this run already existed
+    private boolean loadOrCreateCheckpoints(String runId, List<Checkpoint> pending) throws SQLException {
+        String selectSql = "SELECT partition_no, range_end, last_account_number, completed " +
+                           "FROM interest_checkpoints WHERE run_id = ? ORDER BY partition_no";
+        String deleteSql = "DELETE FROM interest_checkpoints WHERE run_id = ?";
+        String insertSql = "INSERT INTO interest_checkpoints (run_id, partition_no, range_start, " +
+                           "range_end, last_account_number) VALUES (?, ?, ?, ?, ?)";
+        
+        // Shard 0 is written last, so a run it has checkpoints for has them on every shard
+        boolean exists;
+        try (Connection conn = DatabaseConnection.openConnection();
+             PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+            pstmt.setString(1, runId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                exists = rs.next();
+            }
+        }
+        if (exists) {
+            for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+                try (Connection conn = DatabaseConnection.openConnection(shard);
+                     PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+                    pstmt.setString(1, runId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            if (!rs.getBoolean("completed")) {
+                                pending.add(new Checkpoint(shard, rs.getInt("partition_no"),
+                                                           rs.getString("range_end"),
+                                                           rs.getString("last_account_number")));
+                            }
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+        
+        // Partition boundaries are stored with the run so a resume sees the same split
+        List<AccountRange> ranges = accountDAO.getAccountRanges(INTEREST_TYPES, partitions);
+        for (int shard = ShardRouter.shardCount() - 1; shard >= 0; shard--) {
+            try (Connection conn = DatabaseConnection.openConnection(shard);
+                 PreparedStatement delete = conn.prepareStatement(deleteSql);
+                 PreparedStatement pstmt = conn.prepareStatement(insertSql)) {
+                // Left over from an attempt that stopped before shard 0 was written
+                delete.setString(1, runId);
+                delete.executeUpdate();
+                for (int i = 0; i < ranges.size(); i++) {
+                    AccountRange range = ranges.get(i);
+                    if (range.getShard() != shard) {
+                        continue;
+                    }
+                    pstmt.setString(1, runId);
+                    pstmt.setInt(2, i);
+                    pstmt.setString(3, range.getLowExclusive());
+                    pstmt.setString(4, range.getHighInclusive());
+                    pstmt.setString(5, range.getLowExclusive());
+                    pstmt.addBatch();
+                    pending.add(new Checkpoint(shard, i, range.getHighInclusive(), range.getLowExclusive()));
+                }
+                pstmt.executeBatch();
+            }
+        }
+        return false;
+    }
+    
+    //Post interest for one partition, committing every chunkSize accounts
+    //A failure rolls back the current chunk and leaves the partition unfinished for a rerun
+    private void processPartition(String runId, Checkpoint checkpoint,
+                                  AtomicInteger processed, DoubleAdder interest) throws SQLException {
+        String selectSql = "SELECT * FROM accounts WHERE " + INTEREST_TYPES +
+                           " AND account_number > COALESCE(?, '')" +
+                           (checkpoint.rangeEnd != null ? " AND account_number <= ?" : "") +
+                           " ORDER BY account_number LIMIT ? FOR UPDATE";
+        String updateSql = "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ?";
+        String insertSql = "INSERT INTO transactions (account_number, transaction_type, amount, " +
+                           "balance_after, description) VALUES (?, 'INTEREST', ?, ?, '" + PERIODIC_DESCRIPTION + "')";
+        String checkpointSql = "UPDATE interest_checkpoints SET last_account_number = ?, " +
+                               "accounts_processed = accounts_processed + ?, " +
+                               "interest_posted = interest_posted + ?, completed = ? " +
+                               "WHERE run_id = ? AND partition_no = ?";
+        
+        try (Connection conn = DatabaseConnection.openConnection(checkpoint.shard)) {
+            conn.setAutoCommit(false);
+            String lastKey = checkpoint.lastAccountNumber;
+            
+            try (PreparedStatement select = conn.prepareStatement(selectSql);
+                 PreparedStatement update = conn.prepareStatement(updateSql);
+                 PreparedStatement insert = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement mark = conn.prepareStatement(checkpointSql);
+                 ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+                
+                List<String> postedTo = new ArrayList<>();
+                boolean more = true;
+                while (more) {
+                    postedTo.clear();
+                    int index = 1;
+                    select.setString(index++, lastKey);
+                    if (checkpoint.rangeEnd != null) {
+                        select.setString(index++, checkpoint.rangeEnd);
+                    }
+                    select.setInt(index, chunkSize);
+                    
+                    int rows = 0;
+                    int credited = 0;
+                    double chunkInterest = 0.0;
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            rows++;
+                            AccountClass account = accountDAO.extractAccountFromResultSet(rs);
+                            lastKey = account.getAccountNumber();
+                            if (!(account instanceof InterestBearingInterface)) {
+                                continue;
+                            }
+                            
+                            double oldBalance = account.getBalance();
+                            ((InterestBearingInterface) account).calculateInterest();
+                            double amount = account.getBalance() - oldBalance;
+                            if (amount <= 0) {
+                                continue;
+                            }
+                            
+                            update.setDouble(1, account.getBalance());
+                            update.setString(2, account.getAccountNumber());
+                            update.addBatch();
+                            insert.setString(1, account.getAccountNumber());
+                            insert.setDouble(2, amount);
+                            insert.setDouble(3, account.getBalance());
+                            insert.addBatch();
+                            postedTo.add(account.getAccountNumber());
+                            ChangeLog.addBatch(changes, ChangeLog.ACCOUNTS, account.getAccountNumber());
+                            credited++;
+                            chunkInterest += amount;
+                        }
+                    }
+                    
+                    more = rows == chunkSize;
+                    if (credited > 0) {
+                        update.executeBatch();
+                        insert.executeBatch();
+                        BalanceCheckpointWriter.onTransactions(conn, insert, postedTo);
+                        ChangeLog.executeBatch(changes);
+                    }
+                    
+                    // Checkpoint commits atomically with the postings it covers
+                    mark.setString(1, lastKey);
+                    mark.setInt(2, credited);
+                    mark.setDouble(3, chunkInterest);
+                    mark.setBoolean(4, !more);
+                    mark.setString(5, runId);
+                    mark.setInt(6, checkpoint.partitionNo);
+                    mark.executeUpdate();
+                    conn.commit();
+                    
+                    processed.addAndGet(credited);
+                    interest.add(chunkInterest);
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Error posting interest for partition " + checkpoint.partitionNo +
+                                       ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
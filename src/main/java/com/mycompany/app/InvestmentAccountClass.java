@@ -1,13 +1,17 @@
+import java.time.LocalDate;
+
 public class InvestmentAccountClass extends AccountClass implements InterestBearingInterface {
     private double interestRate;
     private String investmentType;
     private int termMonths; // Lock-in period in months
+    private LocalDate startDate; // Start of the current term
     
     public InvestmentAccountClass(String accountNumber, String customerId, String investmentType) {
         super(accountNumber, customerId, "Investment");
         this.investmentType = investmentType;
         this.interestRate = 0.05; // 5% default interest rate
         this.termMonths = 12; // Default 12-month term
+        this.startDate = LocalDate.now();
     }
     
     public InvestmentAccountClass(String accountNumber, String customerId, 
@@ -16,6 +20,7 @@ public class InvestmentAccountClass extends AccountClass implements InterestBear
         this.investmentType = investmentType;
         this.interestRate = 0.05;
         this.termMonths = 12;
+        this.startDate = LocalDate.now();
     }
     
     // Getters and Setters
@@ -45,6 +50,23 @@ public class InvestmentAccountClass extends AccountClass implements InterestBear
         this.termMonths = termMonths;
     }
     
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+    
+    public void setStartDate(LocalDate startDate) {
+        this.startDate = startDate;
+    }
+    
+    public LocalDate getMaturityDate() {
+        return startDate.plusMonths(termMonths);
+    }
+    
+    //Start a new term of the same length at the end of the current one
+    public void rollOver() {
+        this.startDate = getMaturityDate();
+    }
+    
     // Business Logic
     @Override
     public boolean withdraw(double amount) {
@@ -65,10 +87,10 @@ public class InvestmentAccountClass extends AccountClass implements InterestBear
     }
     
     public void calculateCompoundInterest() {
-        // Monthly compound interest calculation
-        double monthlyRate = interestRate / 12;
-        double compoundedAmount = getBalance() * Math.pow(1 + monthlyRate, termMonths);
-        double interest = compoundedAmount - getBalance();
+        // Monthly compound interest calculation using the shared factor table
+        double factor = CompoundFactorTable.factor(interestRate, termMonths, 
+                                                   CompoundFactorTable.MONTHLY);
+        double interest = getBalance() * (factor - 1);
         deposit(interest);
     }
     
@@ -76,6 +98,6 @@ public class InvestmentAccountClass extends AccountClass implements InterestBear
     public String toString() {
         return super.toString() + " [Investment Type=" + investmentType + 
                ", Interest Rate=" + String.format("%.2f%%", interestRate * 100) + 
-               ", Term=" + termMonths + " months]";
+               ", Term=" + termMonths + " months, Matures=" + getMaturityDate() + "]";
     }
 }
\ No newline at end of file
@@ -0,0 +1,296 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+//Tracing wrapper for JDBC connections, switched on by DatabaseConnection.setTracing or -Dbank.jdbc.trace=true.
+//Statements created through a traced connection are timed for execution and for fetching their
+//results. Bound parameters are kept in redacted form (type and length only, never values).
+//Per-SQL latency histograms and a bounded list of the slowest executions are kept, and anything
+//over the slow threshold (-Dbank.jdbc.slowMillis, default 100) is logged with the DAO method
+//that ran it.
+public final class JdbcTracer {
+    private static final int SLOWEST_CAPACITY = 50;
+    private static final Comparator<Trace> BY_TOTAL = Comparator.comparingLong(Trace::getTotalNanos);
+    
+    private static volatile long slowThresholdNanos =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("bank.jdbc.slowMillis", 100));
+    private static final ConcurrentHashMap<String, LatencyHistogram> bySql = new ConcurrentHashMap<>();
+    private static final PriorityQueue<Trace> slowest = new PriorityQueue<>(BY_TOTAL);
+    private static volatile long slowestFloor; // Fastest entry of a full slowest list
+    
+    private JdbcTracer() {
+    }
+    
+    //One completed statement execution
+    public static final class Trace {
+        private final String sql;
+        private final String parameters;
+        private final long executeNanos;
+        private final long fetchNanos;
+        private final long rows;
+        private final String caller;
+        private final LocalDateTime finished;
+        
+        Trace(String sql, String parameters, long executeNanos, long fetchNanos, long rows, String caller) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.executeNanos = executeNanos;
+            this.fetchNanos = fetchNanos;
+            this.rows = rows;
+            this.caller = caller;
+            this.finished = LocalDateTime.now();
+        }
+        
+        public String getSql() { return sql; }
+        public String getParameters() { return parameters; }
+        public long getExecuteNanos() { return executeNanos; }
+        public long getFetchNanos() { return fetchNanos; }
+        public long getTotalNanos() { return executeNanos + fetchNanos; }
+        public long getRows() { return rows; }
+        public String getCaller() { return caller; }
+        public LocalDateTime getFinished() { return finished; }
+        
+        @Override
+        public String toString() {
+            return String.format("%.1f ms (execute %.1f, fetch %.1f) rows=%d %s | %s %s at %s",
+                    getTotalNanos() / 1e6, executeNanos / 1e6, fetchNanos / 1e6, rows, caller, sql,
+                    parameters, finished);
+        }
+    }
+    
+    //Wrap a connection so every statement it creates is traced
+    public static Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(JdbcTracer.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, new ConnectionHandler(connection));
+    }
+    
+    public static void setSlowThresholdMillis(long millis) {
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+    
+    //Slowest executions seen so far, slowest first
+    public static List<Trace> getSlowest() {
+        List<Trace> traces;
+        synchronized (slowest) {
+            traces = new ArrayList<>(slowest);
+        }
+        traces.sort(BY_TOTAL.reversed());
+        return traces;
+    }
+    
+    //Latency per SQL statement, to spot which query regressed
+    public static Map<String, LatencyHistogram> getStatementLatencies() {
+        return new TreeMap<>(bySql);
+    }
+    
+    public static String report() {
+        StringBuilder text = new StringBuilder("=== SQL Statements ===\n");
+        for (Map.Entry<String, LatencyHistogram> entry : getStatementLatencies().entrySet()) {
+            LatencyHistogram latency = entry.getValue();
+            text.append(String.format("calls=%-8d p50=%8.1fus p99=%8.1fus max=%8.1fus  %s%n",
+                    latency.getCount(), latency.getValueAtQuantile(0.5) / 1e3,
+                    latency.getValueAtQuantile(0.99) / 1e3, latency.getMax() / 1e3, entry.getKey()));
+        }
+        text.append("=== Slowest Executions ===\n");
+        for (Trace trace : getSlowest()) {
+            text.append(trace).append('\n');
+        }
+        return text.toString();
+    }
+    
+    public static void reset() {
+        bySql.clear();
+        synchronized (slowest) {
+            slowest.clear();
+            slowestFloor = 0;
+        }
+    }
+    
+    //Record a finished execution; the caller is only looked up for slow ones
+    private static void record(String sql, String parameters, long executeNanos, long fetchNanos, long rows) {
+        long total = executeNanos + fetchNanos;
+        bySql.computeIfAbsent(sql, k -> new LatencyHistogram()).record(total);
+        
+        boolean slow = total >= slowThresholdNanos;
+        if (!slow && total <= slowestFloor) {
+            return;
+        }
+        Trace trace = new Trace(sql, parameters, executeNanos, fetchNanos, rows, caller());
+        if (slow) {
+            System.err.println("[slow-sql] " + trace);
+        }
+        synchronized (slowest) {
+            slowest.add(trace);
+            if (slowest.size() > SLOWEST_CAPACITY) {
+                slowest.poll();
+            }
+            if (slowest.size() == SLOWEST_CAPACITY) {
+                slowestFloor = slowest.peek().getTotalNanos();
+            }
+        }
+    }
+    
+    //First application frame below the JDBC layer, e.g. CustomerDAO.getCustomerById
+    private static String caller() {
+        return StackWalker.getInstance().walk(frames -> frames
+            .filter(f -> !f.getClassName().startsWith("JdbcTracer") &&
+                         !f.getClassName().startsWith("java.") &&
+                         !f.getClassName().startsWith("jdk.") &&
+                         !f.getClassName().startsWith("com.sun.proxy") &&
+                         !f.getClassName().startsWith("$Proxy"))
+            .findFirst()
+            .map(f -> f.getClassName() + "." + f.getMethodName())
+            .orElse("unknown"));
+    }
+    
+    //Parameter shown as its type and size only, so logs never carry customer data or amounts
+    private static String redact(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof CharSequence) {
+            return "'***'(" + ((CharSequence) value).length() + ")";
+        }
+        return "<" + value.getClass().getSimpleName() + ">";
+    }
+    
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+        
+        ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = JdbcTracer.invoke(target, method, args);
+            if (result instanceof Statement) {
+                // prepareStatement/prepareCall carry their SQL; createStatement gets it at execute time
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                return Proxy.newProxyInstance(JdbcTracer.class.getClassLoader(),
+                    new Class<?>[] {method.getReturnType()}, new StatementHandler((Statement) result, sql));
+            }
+            return result;
+        }
+    }
+    
+    private static class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final String preparedSql;
+        private final Map<Integer, String> parameters = new TreeMap<>();
+        private ResultSetHandler open; // Result set whose fetch time is still being measured
+        
+        StatementHandler(Statement target, String preparedSql) {
+            this.target = target;
+            this.preparedSql = preparedSql;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameters.put((Integer) args[0], name.equals("setNull") ? "NULL" : redact(args[1]));
+            } else if (name.equals("clearParameters")) {
+                parameters.clear();
+            } else if (name.equals("close")) {
+                finishOpen();
+            } else if (name.startsWith("execute")) {
+                finishOpen();
+                String sql = preparedSql != null ? preparedSql :
+                             args != null && args.length > 0 ? String.valueOf(args[0]) : "?";
+                String bound = parameters.values().toString();
+                
+                long start = System.nanoTime();
+                Object result = JdbcTracer.invoke(target, method, args);
+                long executeNanos = System.nanoTime() - start;
+                
+                if (result instanceof ResultSet) {
+                    open = new ResultSetHandler(sql, bound, executeNanos);
+                    return Proxy.newProxyInstance(JdbcTracer.class.getClassLoader(),
+                        new Class<?>[] {ResultSet.class}, open.attach((ResultSet) result));
+                }
+                long rows = result instanceof Integer ? (Integer) result :
+                            result instanceof Long ? (Long) result :
+                            result instanceof int[] ? ((int[]) result).length : 0;
+                record(sql, bound, executeNanos, 0, rows);
+                return result;
+            }
+            return JdbcTracer.invoke(target, method, args);
+        }
+        
+        private void finishOpen() {
+            if (open != null) {
+                open.finish();
+                open = null;
+            }
+        }
+    }
+    
+    private static class ResultSetHandler implements InvocationHandler {
+        private final String sql;
+        private final String parameters;
+        private final long executeNanos;
+        private ResultSet target;
+        private long fetchNanos;
+        private long rows;
+        private boolean finished;
+        
+        ResultSetHandler(String sql, String parameters, long executeNanos) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.executeNanos = executeNanos;
+        }
+        
+        ResultSetHandler attach(ResultSet target) {
+            this.target = target;
+            return this;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("next")) {
+                long start = System.nanoTime();
+                Object result = JdbcTracer.invoke(target, method, args);
+                fetchNanos += System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result)) {
+                    rows++;
+                }
+                return result;
+            }
+            if (method.getName().equals("close")) {
+                finish();
+            }
+            return JdbcTracer.invoke(target, method, args);
+        }
+        
+        //Result sets the DAOs never close are finished when their statement closes
+        void finish() {
+            if (!finished) {
+                finished = true;
+                record(sql, parameters, executeNanos, fetchNanos, rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Open-loop load generator for the whole stack.
+//
+//Client threads issue a weighted mix of logins, deposits, withdrawals, transfers, history
+//reads and interest runs at a fixed total arrival rate. Arrivals follow a seeded Poisson
+//schedule per thread, and latency is measured from each request's scheduled start rather
+//than from when the thread got round to sending it, so a stall shows up as queueing delay
+//on every request behind it instead of silently lowering the offered load (coordinated
+//omission). Accounts are picked from a Zipfian distribution so a few hot accounts take most
+//of the traffic, as in production.
+//
+//Usage: LoadGenerator [--target=dao|memory] [--rate=500] [--duration=60] [--warmup=10]
+//                     [--threads=8] [--accounts=1000] [--zipf=0.99] [--output=file.json]
+//                     [--mix=login=10,deposit=30,withdraw=25,transfer=20,history=15,interest=0.01]
+//Results are printed (or written to --output) as JSON, per operation.
+//
+//The DAO target runs on a scratch in-memory database unless -Dbank.db.url is given, and
+//creates its schema with SchemaManager. Every load-test customer has a cheque account for
+//the money movements and a savings account, and each interest operation is a new
+//interest run, so it posts to those savings accounts instead of resuming a finished run.
+//The cheque accounts get a daily withdrawal limit of LOAD_DAILY_LIMIT: under a Zipfian mix
+//the hot accounts would otherwise reach the usual limit within seconds and the run would
+//measure refusals rather than debits.
+public class LoadGenerator {
+    private static final String SCRATCH_DB_URL = "jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1";
+    private static final double LOAD_DAILY_LIMIT = 1e9;
+    
+    enum Operation { LOGIN, DEPOSIT, WITHDRAW, TRANSFER, HISTORY, INTEREST }
+    
+    //The system under load; each call returns false when the operation was refused or failed
+    interface Target {
+        boolean login(int account);
+        boolean deposit(int account, double amount);
+        boolean withdraw(int account, double amount);
+        boolean transfer(int from, int to, double amount);
+        boolean history(int account);
+        boolean interest();
+    }
+    
+    //Drives BankSystemWithDAO; reuses the load-test customers left by an earlier run
+    static class DaoTarget implements Target {
+        private final BankSystemWithDAO bank;
+        private final String[] emails;
+        private final String[] accountNumbers;
+        private final String interestRunPrefix = "LOADTEST-" + System.currentTimeMillis() + "-";
+        private final AtomicInteger interestRuns = new AtomicInteger();
+        
+        DaoTarget(BankSystemWithDAO bank, int accounts) {
+            this.bank = bank;
+            this.emails = new String[accounts];
+            this.accountNumbers = new String[accounts];
+            AccountDAO accountDAO = new AccountDAO();
+            for (int i = 0; i < accounts; i++) {
+                emails[i] = "load" + i + "@example.com";
+                CustomerClass customer = bank.findCustomerByEmail(emails[i]);
+                if (customer == null) {
+                    customer = bank.createCustomer("Load", "Client" + i, emails[i], "555-0100", "1 Main St");
+                }
+                customer = bank.getCustomerWithAccounts(customer.getCustomerId());
+                boolean savings = false;
+                for (AccountClass account : customer.getAccounts()) {
+                    if (account instanceof ChequeAccountClass) {
+                        accountNumbers[i] = account.getAccountNumber();
+                    } else if (account instanceof SavingsAccountClass) {
+                        savings = true;
+                    }
+                }
+                if (accountNumbers[i] == null) {
+                    AccountClass account = bank.createChequeAccount(customer.getCustomerId());
+                    bank.deposit(account.getAccountNumber(), 100_000);
+                    accountNumbers[i] = account.getAccountNumber();
+                }
+                if (!savings) {
+                    bank.createSavingsAccount(customer.getCustomerId(), 1_000);
+                }
+                ChequeAccountClass cheque = (ChequeAccountClass) accountDAO.getAccountByNumber(accountNumbers[i]);
+                if (cheque.getWithdrawalLimit() < LOAD_DAILY_LIMIT) {
+                    cheque.setWithdrawalLimit(LOAD_DAILY_LIMIT);
+                    accountDAO.updateAccount(cheque);
+                }
+            }
+        }
+        
+        public boolean login(int account) {
+            return bank.findCustomerByEmail(emails[account]) != null;
+        }
+        
+        public boolean deposit(int account, double amount) {
+            return bank.deposit(accountNumbers[account], amount);
+        }
+        
+        public boolean withdraw(int account, double amount) {
+            return bank.withdraw(accountNumbers[account], amount);
+        }
+        
+        public boolean transfer(int from, int to, double amount) {
+            return bank.transfer(accountNumbers[from], accountNumbers[to], amount);
+        }
+        
+        public boolean history(int account) {
+            return bank.getRecentTransactions(accountNumbers[account], 20) != null;
+        }
+        
+        public boolean interest() {
+            return bank.calculateInterestForAllAccounts(interestRunPrefix + interestRuns.incrementAndGet())
+                       .isCompleted();
+        }
+    }
+    
+    //Drives the in-memory BankSystemClass, which has no ledger: history reads the customer's accounts
+    static class MemoryTarget implements Target {
+        private final BankSystemClass bank;
+        private final String[] emails;
+        private final String[] accountNumbers;
+        private final CustomerClass[] customers;
+        
+        MemoryTarget(BankSystemClass bank, int accounts) {
+            this.bank = bank;
+            this.emails = new String[accounts];
+            this.accountNumbers = new String[accounts];
+            this.customers = new CustomerClass[accounts];
+            for (int i = 0; i < accounts; i++) {
+                emails[i] = "load" + i + "@example.com";
+                customers[i] = bank.createCustomer("Load", "Client" + i, emails[i], "555-0100", "1 Main St");
+                AccountClass account = bank.createChequeAccount(customers[i].getCustomerId());
+                account.deposit(100_000);
+                accountNumbers[i] = account.getAccountNumber();
+            }
+        }
+        
+        public boolean login(int account) {
+            for (CustomerClass customer : bank.getCustomers()) {
+                if (emails[account].equalsIgnoreCase(customer.getEmail())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        public boolean deposit(int account, double amount) {
+            return bank.deposit(accountNumbers[account], amount);
+        }
+        
+        public boolean withdraw(int account, double amount) {
+            return bank.withdraw(accountNumbers[account], amount);
+        }
+        
+        public boolean transfer(int from, int to, double amount) {
+            return bank.transfer(accountNumbers[from], accountNumbers[to], amount);
+        }
+        
+        public boolean history(int account) {
+            return !customers[account].getAccounts().isEmpty();
+        }
+        
+        public boolean interest() {
+            bank.calculateInterestForAllAccounts();
+            return true;
+        }
+    }
+    
+    //Zipfian sampler over ranks 0..n-1 (rank 0 is the hottest) using a precomputed CDF
+    static class Zipf {
+        private final double[] cdf;
+        
+        Zipf(int n, double exponent) {
+            cdf = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1.0 / Math.pow(i + 1, exponent);
+                cdf[i] = total;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= total;
+            }
+        }
+        
+        int next(SplittableRandom random) {
+            double u = random.nextDouble();
+            int low = 0;
+            int high = cdf.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cdf[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+    
+    //Counters and latencies for one operation type
+    static class OperationStats {
+        final LatencyHistogram response = new LatencyHistogram(); // From scheduled start
+        final LatencyHistogram service = new LatencyHistogram();  // From actual start
+        final LongAdder errors = new LongAdder();
+    }
+    
+    private final Target target;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int threads;
+    private final int accounts;
+    private final Zipf zipf;
+    private final Operation[] operations;
+    private final double[] mixCdf;
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final LongAdder missedDeadline = new LongAdder(); // Requests sent after their slot
+    
+    public LoadGenerator(Target target, int accounts, double zipfExponent, Map<Operation, Double> mix,
+                         double rate, long durationSeconds, long warmupSeconds, int threads) {
+        this.target = target;
+        this.accounts = accounts;
+        this.zipf = new Zipf(accounts, zipfExponent);
+        this.rate = rate;
+        this.durationNanos = durationSeconds * 1_000_000_000L;
+        this.warmupNanos = warmupSeconds * 1_000_000_000L;
+        this.threads = threads;
+        
+        operations = mix.keySet().toArray(new Operation[0]);
+        mixCdf = new double[operations.length];
+        double total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += mix.get(operations[i]);
+            mixCdf[i] = total;
+        }
+        for (int i = 0; i < operations.length; i++) {
+            mixCdf[i] /= total;
+        }
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+    }
+    
+    //Run warmup plus measurement and return the report as JSON
+    public String run() throws InterruptedException {
+        long start = System.nanoTime() + 100_000_000; // Give every client time to start
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            SplittableRandom random = new SplittableRandom(42 + i);
+            Thread client = new Thread(() -> clientLoop(random, start, measureFrom, end), "load-client-" + i);
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return toJson();
+    }
+    
+    //Send requests at this client's share of the rate until end, each at its scheduled time
+    private void clientLoop(SplittableRandom random, long start, long measureFrom, long end) {
+        double meanGapNanos = 1e9 * threads / rate;
+        long scheduled = start;
+        while (true) {
+            scheduled += (long) (-Math.log(1.0 - random.nextDouble()) * meanGapNanos);
+            if (scheduled >= end) {
+                return;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                // Park for most of the gap and spin the rest, since parking overshoots by tens of micros
+                if (scheduled - now > 100_000) {
+                    LockSupport.parkNanos(scheduled - now - 50_000);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            
+            Operation operation = pickOperation(random);
+            boolean ok;
+            try {
+                ok = execute(operation, random);
+            } catch (RuntimeException e) {
+                ok = false;
+            }
+            long finished = System.nanoTime();
+            
+            if (scheduled >= measureFrom) {
+                OperationStats operationStats = stats.get(operation);
+                operationStats.response.record(finished - scheduled);
+                operationStats.service.record(finished - now);
+                if (!ok) {
+                    operationStats.errors.increment();
+                }
+                if (now - scheduled > 1_000_000) {
+                    missedDeadline.increment();
+                }
+            }
+        }
+    }
+    
+    private Operation pickOperation(SplittableRandom random) {
+        double u = random.nextDouble();
+        for (int i = 0; i < operations.length; i++) {
+            if (u < mixCdf[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+    
+    private boolean execute(Operation operation, SplittableRandom random) {
+        int account = zipf.next(random);
+        double amount = 1 + random.nextInt(100);
+        switch (operation) {
+            case LOGIN:
+                return target.login(account);
+            case DEPOSIT:
+                return target.deposit(account, amount);
+            case WITHDRAW:
+                return target.withdraw(account, amount);
+            case TRANSFER:
+                int to = zipf.next(random);
+                if (to == account) {
+                    to = (account + 1) % accounts;
+                }
+                return target.transfer(account, to, amount);
+            case HISTORY:
+                return target.history(account);
+            default:
+                return target.interest();
+        }
+    }
+    
+    private String toJson() {
+        double seconds = durationNanos / 1e9;
+        long completed = 0;
+        for (OperationStats operationStats : stats.values()) {
+            completed += operationStats.response.getCount();
+        }
+        
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"offeredRate\": %.1f,%n", rate));
+        json.append(String.format(Locale.ROOT, "  \"throughput\": %.1f,%n", completed / seconds));
+        json.append(String.format(Locale.ROOT, "  \"durationSeconds\": %.1f,%n", seconds));
+        json.append(String.format(Locale.ROOT, "  \"threads\": %d,%n", threads));
+        json.append(String.format(Locale.ROOT, "  \"accounts\": %d,%n", accounts));
+        json.append(String.format(Locale.ROOT, "  \"completed\": %d,%n", completed));
+        json.append(String.format(Locale.ROOT, "  \"sentLate\": %d,%n", missedDeadline.sum()));
+        json.append("  \"operations\": {");
+        
+        String separator = "\n";
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            OperationStats operationStats = entry.getValue();
+            long count = operationStats.response.getCount();
+            if (count == 0) {
+                continue;
+            }
+            json.append(separator).append("    \"").append(entry.getKey().name().toLowerCase()).append("\": {\n");
+            json.append(String.format(Locale.ROOT, "      \"count\": %d,%n", count));
+            json.append(String.format(Locale.ROOT, "      \"errors\": %d,%n", operationStats.errors.sum()));
+            json.append(String.format(Locale.ROOT, "      \"throughput\": %.1f,%n", count / seconds));
+            json.append("      \"responseMillis\": ").append(percentiles(operationStats.response)).append(",\n");
+            json.append("      \"serviceMillis\": ").append(percentiles(operationStats.service)).append("\n");
+            json.append("    }");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+    
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "{\"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, " +
+                             "\"p999\": %.3f, \"max\": %.3f}",
+                             histogram.getMean() / 1e6,
+                             histogram.getValueAtQuantile(0.5) / 1e6,
+                             histogram.getValueAtQuantile(0.9) / 1e6,
+                             histogram.getValueAtQuantile(0.99) / 1e6,
+                             histogram.getValueAtQuantile(0.999) / 1e6,
+                             histogram.getMax() / 1e6);
+    }
+    
+    //Parse "login=10,deposit=30,..." into operation weights
+    static Map<Operation, Double> parseMix(String value) {
+        Map<Operation, Double> mix = new LinkedHashMap<>();
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=");
+            double weight = Double.parseDouble(pair[1].trim());
+            if (weight > 0) {
+                mix.put(Operation.valueOf(pair[0].trim().toUpperCase()), weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Operation mix is empty");
+        }
+        return mix;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("target", "dao");
+        options.put("rate", "500");
+        options.put("duration", "60");
+        options.put("warmup", "10");
+        options.put("threads", "8");
+        options.put("accounts", "1000");
+        options.put("zipf", "0.99");
+        options.put("mix", "login=10,deposit=30,withdraw=25,transfer=20,history=15,interest=0.01");
+        options.put("output", "");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = arg.startsWith("--") && eq > 2 ? arg.substring(2, eq) : null;
+            if (key == null || !options.containsKey(key)) {
+                System.err.println("Usage: LoadGenerator [--target=dao|memory] [--rate=500] [--duration=60] " +
+                                   "[--warmup=10] [--threads=8] [--accounts=1000] [--zipf=0.99] " +
+                                   "[--mix=login=10,deposit=30,...] [--output=file.json]");
+                return;
+            }
+            options.put(key, arg.substring(eq + 1));
+        }
+        
+        BankLogger.setLevel(BankLogger.Level.ERROR);
+        int accounts = Integer.parseInt(options.get("accounts"));
+        Target target;
+        if (options.get("target").equals("memory")) {
+            target = new MemoryTarget(new BankSystemClass("Load Test Bank"), accounts);
+        } else {
+            // Set before DatabaseConnection is first touched, which reads it once
+            if (System.getProperty("bank.db.url") == null) {
+                System.setProperty("bank.db.url", SCRATCH_DB_URL);
+            }
+            SchemaManager.ensureSchema();
+            BankSystemWithDAO bank = new BankSystemWithDAO("Load Test Bank");
+            // Measure the engine itself; hot accounts would otherwise be mostly rate limited
+            bank.setAdmissionControl(null);
+            target = new DaoTarget(bank, accounts);
+        }
+        
+        LoadGenerator generator = new LoadGenerator(target, accounts, Double.parseDouble(options.get("zipf")),
+                                                    parseMix(options.get("mix")),
+                                                    Double.parseDouble(options.get("rate")),
+                                                    Long.parseLong(options.get("duration")),
+                                                    Long.parseLong(options.get("warmup")),
+                                                    Integer.parseInt(options.get("threads")));
+        String report = generator.run();
+        
+        if (options.get("output").isEmpty()) {
+            System.out.print(report);
+        } else {
+            try {
+                Files.write(Paths.get(options.get("output")), report.getBytes(StandardCharsets.UTF_8));
+                System.out.println("Load test report written to " + options.get("output"));
+            } catch (IOException e) {
+                System.err.println("Error writing report: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+//In-memory queue of upcoming investment maturities, backed by idx_accounts_maturity.
+//Only a rolling horizon of maturities is held in memory; the end-of-day job pops the
+//accounts due on the business date and posts their compound interest in batches, one shard
+//at a time, each batch in a single transaction on the shard holding its accounts.
+//The maturity payout is the only interest an investment earns: any periodic interest posted
+//during the term (by runs from before investments were excluded) is deducted from it.
+public class MaturityScheduler {
+    private static final int DEFAULT_HORIZON_DAYS = 31;
+    private static final int BATCH_SIZE = 500;
+    private static final LocalDate EARLIEST_MATURITY = LocalDate.of(1970, 1, 1);
+    
+    private final AccountDAO accountDAO;
+    private final int horizonDays;
+    private final PriorityQueue<Maturity> queue;
+    private LocalDate loadedThrough; // Last maturity date covered by the queue
+    
+    //Queue entry: an account and the date its current term ends
+    private static class Maturity implements Comparable<Maturity> {
+        final LocalDate maturityDate;
+        final String accountNumber;
+        
+        Maturity(LocalDate maturityDate, String accountNumber) {
+            this.maturityDate = maturityDate;
+            this.accountNumber = accountNumber;
+        }
+        
+        @Override
+        public int compareTo(Maturity other) {
+            int byDate = maturityDate.compareTo(other.maturityDate);
+            return byDate != 0 ? byDate : accountNumber.compareTo(other.accountNumber);
+        }
+    }
+    
+    public MaturityScheduler(AccountDAO accountDAO) {
+        this(accountDAO, DEFAULT_HORIZON_DAYS);
+    }
+    
+    public MaturityScheduler(AccountDAO accountDAO, int horizonDays) {
+        this.accountDAO = accountDAO;
+        this.horizonDays = Math.max(1, horizonDays);
+        this.queue = new PriorityQueue<>();
+    }
+    
+    //Track a newly opened or rolled-over account if it matures inside the loaded horizon
+    public synchronized void register(InvestmentAccountClass account) {
+        if (loadedThrough != null && !account.getMaturityDate().isAfter(loadedThrough)) {
+            queue.add(new Maturity(account.getMaturityDate(), account.getAccountNumber()));
+        }
+    }
+    
+    public synchronized int getPendingCount() {
+        return queue.size();
+    }
+    
+    //Post compound interest for every account maturing on or before businessDate
+    //Returns the number of accounts credited
+    public int runEndOfDay(LocalDate businessDate) {
+        List<String> due = popDue(businessDate);
+        if (due.isEmpty()) {
+            BankLogger.info("No investment maturities due on {}", businessDate);
+            return 0;
+        }
+        
+        List<List<String>> byShard = new ArrayList<>();
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (String accountNumber : due) {
+            byShard.get(ShardRouter.shardOf(accountNumber)).add(accountNumber);
+        }
+        
+        int credited = 0;
+        for (int shard = 0; shard < byShard.size(); shard++) {
+            List<String> onShard = byShard.get(shard);
+            for (int i = 0; i < onShard.size(); i += BATCH_SIZE) {
+                credited += postBatch(shard, onShard.subList(i, Math.min(i + BATCH_SIZE, onShard.size())),
+                                      businessDate);
+            }
+        }
+        
+        BankLogger.info("Maturity interest posted for {} accounts on {}", credited, businessDate);
+        return credited;
+    }
+    
+    //Remove and return the accounts due by businessDate, extending the horizon as needed
+    private synchronized List<String> popDue(LocalDate businessDate) {
+        if (loadedThrough == null || loadedThrough.isBefore(businessDate)) {
+            // Catch-up loads start from the earliest possible date so missed days are not lost
+            LocalDate from = loadedThrough == null ? EARLIEST_MATURITY : loadedThrough.plusDays(1);
+            LocalDate to = businessDate.plusDays(horizonDays);
+            for (AccountClass account : accountDAO.getAccountsMaturingBetween(from, to)) {
+                InvestmentAccountClass investment = (InvestmentAccountClass) account;
+                queue.add(new Maturity(investment.getMaturityDate(), investment.getAccountNumber()));
+            }
+            loadedThrough = to;
+        }
+        
+        List<String> due = new ArrayList<>();
+        while (!queue.isEmpty() && !queue.peek().maturityDate.isAfter(businessDate)) {
+            due.add(queue.poll().accountNumber);
+        }
+        return due;
+    }
+    
+    //Put a failed batch back so the next run retries it
+    private synchronized void requeue(List<String> accountNumbers, LocalDate businessDate) {
+        for (String accountNumber : accountNumbers) {
+            queue.add(new Maturity(businessDate, accountNumber));
+        }
+    }
+    
+    //Credit one batch of due accounts on one shard in a single transaction and roll their terms over
+    private int postBatch(int shard, List<String> accountNumbers, LocalDate businessDate) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < accountNumbers.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        // Re-check maturity under the row lock: a rerun of the same day finds nothing due
+        String selectSql = "SELECT * FROM accounts WHERE account_number IN (" + placeholders + ") " +
+                           "AND maturity_date <= ? ORDER BY interest_rate, term_months FOR UPDATE";
+        String updateSql = "UPDATE accounts SET balance = ?, start_date = ?, maturity_date = ?, " +
+                           "version = version + 1 WHERE account_number = ?";
+        String insertSql = "INSERT INTO transactions (account_number, transaction_type, amount, " +
+                           "balance_after, description) VALUES (?, 'INTEREST', ?, ?, ?)";
+        
+        List<InvestmentAccountClass> rolled = new ArrayList<>();
+        try (Connection conn = DatabaseConnection.openConnection(shard)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(selectSql);
+                 PreparedStatement update = conn.prepareStatement(updateSql);
+                 PreparedStatement insert = conn.prepareStatement(insertSql);
+                 ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+                
+                int index = 1;
+                for (String accountNumber : accountNumbers) {
+                    select.setString(index++, accountNumber);
+                }
+                select.setDate(index, Date.valueOf(businessDate));
+                
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        AccountClass account = accountDAO.extractAccountFromResultSet(rs);
+                        if (account instanceof InvestmentAccountClass) {
+                            rolled.add((InvestmentAccountClass) account);
+                        }
+                    }
+                }
+                
+                // Rows arrive grouped by product, so the bulk pass is one multiply-add per account
+                int count = rolled.size();
+                double[] balances = new double[count];
+                double[] rates = new double[count];
+                int[] terms = new int[count];
+                double[] interest = new double[count];
+                double[] alreadyPaid = periodicInterestThisTerm(conn, rolled);
+                for (int i = 0; i < count; i++) {
+                    InvestmentAccountClass investment = rolled.get(i);
+                    // Compound on the principal, then pay only what periodic postings have not
+                    balances[i] = investment.getBalance() - alreadyPaid[i];
+                    rates[i] = investment.getInterestRate();
+                    terms[i] = investment.getTermMonths();
+                }
+                CompoundFactorTable.applyInterest(balances, rates, terms, 
+                                                  CompoundFactorTable.MONTHLY, interest);
+                for (int i = 0; i < count; i++) {
+                    interest[i] = Math.max(0.0, interest[i] - alreadyPaid[i]);
+                }
+                
+                for (int i = 0; i < count; i++) {
+                    InvestmentAccountClass investment = rolled.get(i);
+                    investment.deposit(interest[i]);
+                    investment.rollOver();
+                    
+                    update.setDouble(1, investment.getBalance());
+                    update.setDate(2, Date.valueOf(investment.getStartDate()));
+                    update.setDate(3, Date.valueOf(investment.getMaturityDate()));
+                    update.setString(4, investment.getAccountNumber());
+                    update.addBatch();
+                    ChangeLog.addBatch(changes, ChangeLog.ACCOUNTS, investment.getAccountNumber());
+                    
+                    if (interest[i] > 0) {
+                        insert.setString(1, investment.getAccountNumber());
+                        insert.setDouble(2, interest[i]);
+                        insert.setDouble(3, investment.getBalance());
+                        insert.setString(4, "Compound interest at maturity");
+                        insert.addBatch();
+                    }
+                }
+                
+                update.executeBatch();
+                insert.executeBatch();
+                ChangeLog.executeBatch(changes);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            BankLogger.error("Error posting maturity interest: {}", e.getMessage());
+            requeue(accountNumbers, businessDate);
+            return 0;
+        }
+        
+        for (InvestmentAccountClass investment : rolled) {
+            register(investment);
+        }
+        return rolled.size();
+    }
+    
+    //Periodic interest posted to each account since its current term started, in both ledger tiers
+    private double[] periodicInterestThisTerm(Connection conn, List<InvestmentAccountClass> accounts) throws SQLException {
+        String sql = "SELECT SUM(amount) FROM (" +
+                     "SELECT amount FROM transactions WHERE account_number = ? AND transaction_type = 'INTEREST' " +
+                     "AND description = ? AND transaction_date >= ? UNION ALL " +
+                     "SELECT amount FROM transactions_archive WHERE account_number = ? AND transaction_type = 'INTEREST' " +
+                     "AND description = ? AND transaction_date >= ?) t";
+        double[] paid = new double[accounts.size()];
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < accounts.size(); i++) {
+                InvestmentAccountClass investment = accounts.get(i);
+                Timestamp termStart = Timestamp.valueOf(investment.getStartDate().atStartOfDay());
+                for (int tier = 0; tier < 2; tier++) {
+                    pstmt.setString(tier * 3 + 1, investment.getAccountNumber());
+                    pstmt.setString(tier * 3 + 2, InterestBatchEngine.PERIODIC_DESCRIPTION);
+                    pstmt.setTimestamp(tier * 3 + 3, termStart);
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    paid[i] = rs.next() ? rs.getDouble(1) : 0.0;
+                }
+            }
+        }
+        return paid;
+    }
+}
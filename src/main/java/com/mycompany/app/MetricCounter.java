@@ -0,0 +1,34 @@
+import java.util.concurrent.atomic.LongAdder;
+
+//Count of events that have no latency of their own, such as retries, for one named counter
+public class MetricCounter implements MetricCounterMBean {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    
+    public MetricCounter(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void increment() {
+        count.increment();
+    }
+    
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+    
+    @Override
+    public void reset() {
+        count.reset();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%-45s count=%d", name, getCount());
+    }
+}
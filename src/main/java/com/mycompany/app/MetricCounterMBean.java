@@ -0,0 +1,5 @@
+//JMX view of one event counter
+public interface MetricCounterMBean {
+    long getCount();
+    void reset();
+}
@@ -0,0 +1,142 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+//Process-wide registry of per-operation metrics.
+//Instrumented methods open a Sample in try-with-resources; closing it records the latency,
+//and failures and row counts are added through the sample. Events without a latency of their
+//own, such as retries, are counted with counter(). Every operation is registered as an MBean
+//under com.mycompany.app:type=Operations, every counter under type=Counters, and both can be
+//dumped as text periodically.
+public final class MetricsRegistry {
+    private static final ConcurrentHashMap<String, OperationMetrics> OPERATIONS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, MetricCounter> COUNTERS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService reporter;
+    
+    private MetricsRegistry() {
+    }
+    
+    //One timed call of an operation
+    public static final class Sample implements AutoCloseable {
+        private final OperationMetrics metrics;
+        private final long start;
+        
+        private Sample(OperationMetrics metrics) {
+            this.metrics = metrics;
+            this.start = System.nanoTime();
+        }
+        
+        public void error() {
+            metrics.recordError();
+        }
+        
+        public void rows(long count) {
+            metrics.recordRows(count);
+        }
+        
+        //Count the rows of a returned collection and hand it back
+        public <T extends Collection<?>> T rows(T result) {
+            metrics.recordRows(result.size());
+            return result;
+        }
+        
+        @Override
+        public void close() {
+            metrics.recordCall(System.nanoTime() - start);
+        }
+    }
+    
+    public static Sample start(String operation) {
+        return new Sample(metrics(operation));
+    }
+    
+    public static OperationMetrics metrics(String operation) {
+        OperationMetrics metrics = OPERATIONS.get(operation);
+        return metrics != null ? metrics : OPERATIONS.computeIfAbsent(operation, MetricsRegistry::register);
+    }
+    
+    public static MetricCounter counter(String name) {
+        MetricCounter counter = COUNTERS.get(name);
+        return counter != null ? counter : COUNTERS.computeIfAbsent(name, MetricsRegistry::registerCounter);
+    }
+    
+    private static MetricCounter registerCounter(String name) {
+        MetricCounter counter = new MetricCounter(name);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(counter,
+                new ObjectName("com.mycompany.app:type=Counters,name=" + name));
+        } catch (JMException e) {
+            System.err.println("Error registering counter MBean for " + name + ": " + e.getMessage());
+        }
+        return counter;
+    }
+    
+    private static OperationMetrics register(String operation) {
+        OperationMetrics metrics = new OperationMetrics(operation);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                new ObjectName("com.mycompany.app:type=Operations,name=" + operation));
+        } catch (JMException e) {
+            System.err.println("Error registering metrics MBean for " + operation + ": " + e.getMessage());
+        }
+        return metrics;
+    }
+    
+    //All operations sorted by name
+    public static List<OperationMetrics> snapshot() {
+        List<OperationMetrics> all = new ArrayList<>(OPERATIONS.values());
+        all.sort(Comparator.comparing(OperationMetrics::getName));
+        return all;
+    }
+    
+    //All counters sorted by name
+    public static List<MetricCounter> counters() {
+        List<MetricCounter> all = new ArrayList<>(COUNTERS.values());
+        all.sort(Comparator.comparing(MetricCounter::getName));
+        return all;
+    }
+    
+    //Text table of every operation that has been called and every counter that has counted
+    public static String dump() {
+        StringBuilder text = new StringBuilder("=== Operation Metrics ===\n");
+        for (OperationMetrics metrics : snapshot()) {
+            if (metrics.getCalls() > 0) {
+                text.append(metrics).append('\n');
+            }
+        }
+        for (MetricCounter counter : counters()) {
+            if (counter.getCount() > 0) {
+                text.append(counter).append('\n');
+            }
+        }
+        return text.toString();
+    }
+    
+    //Print the dump every period on a daemon thread
+    public static synchronized void startReporter(long period, TimeUnit unit) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.print(dump()), period, period, unit);
+    }
+    
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.LongAdder;
+
+//Call, error and row counters plus a latency histogram for one DAO or service operation
+public class OperationMetrics implements OperationMetricsMBean {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    
+    public OperationMetrics(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    void recordCall(long nanos) {
+        latency.record(nanos);
+    }
+    
+    void recordError() {
+        errors.increment();
+    }
+    
+    void recordRows(long count) {
+        rows.add(count);
+    }
+    
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+    
+    @Override
+    public long getCalls() {
+        return latency.getCount();
+    }
+    
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+    
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+    
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1000.0;
+    }
+    
+    @Override
+    public double getP50Micros() {
+        return latency.getValueAtQuantile(0.5) / 1000.0;
+    }
+    
+    @Override
+    public double getP99Micros() {
+        return latency.getValueAtQuantile(0.99) / 1000.0;
+    }
+    
+    @Override
+    public double getP999Micros() {
+        return latency.getValueAtQuantile(0.999) / 1000.0;
+    }
+    
+    @Override
+    public double getMaxMicros() {
+        return latency.getMax() / 1000.0;
+    }
+    
+    @Override
+    public void reset() {
+        latency.reset();
+        errors.reset();
+        rows.reset();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%-45s calls=%-8d errors=%-6d rows=%-9d p50=%9.1fus p99=%9.1fus " +
+                             "p99.9=%9.1fus max=%9.1fus",
+                name, getCalls(), getErrors(), getRows(), getP50Micros(), getP99Micros(),
+                getP999Micros(), getMaxMicros());
+    }
+}
@@ -0,0 +1,12 @@
+//JMX view of one instrumented operation; latencies are in microseconds
+public interface OperationMetricsMBean {
+    long getCalls();
+    long getErrors();
+    long getRows();
+    double getMeanMicros();
+    double getP50Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+    void reset();
+}
@@ -0,0 +1,386 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Checks accounts.balance against the transactions ledger in parallel account partitions.
+//Every ledger row must equal the previous balance_after plus or minus its amount, and each
+//account's balance must equal its last balance_after. The state of every account is kept in
+//reconciliation_watermarks, so a run reads only ledger rows added since the previous run.
+//
+//Transaction IDs are assigned when a row is inserted, not when it commits, so the newest
+//rows are left for the next run: a run only goes up to the highest ID written at least
+//-Dbank.reconcile.lagMillis ago (60000 by default), by when any lower ID still uncommitted
+//has committed or rolled back. Each partition reads balances and ledger from one snapshot;
+//an account with rows after that ID is compared with its newest row instead.
+//Rows of a type the ledger does not know cannot be chained and are counted separately.
+//
+//Every shard has its own transaction IDs, so each keeps its own high-water mark in its
+//reconciliation_runs, and a shard's mark only moves when all of its partitions completed.
+public class ReconciliationEngine {
+    private static final double TOLERANCE = 0.005;
+    private static final long LAG_MILLIS = Long.getLong("bank.reconcile.lagMillis", 60_000);
+    
+    private final AccountDAO accountDAO;
+    private final int partitions;
+    
+    //One account whose ledger or balance does not add up
+    public static class Mismatch {
+        private final String accountNumber;
+        private final long transactionId; // First offending ledger row, 0 for a balance-only mismatch
+        private final double expected;
+        private final double actual;
+        private final String reason;
+        
+        public Mismatch(String accountNumber, long transactionId, double expected, double actual, String reason) {
+            this.accountNumber = accountNumber;
+            this.transactionId = transactionId;
+            this.expected = expected;
+            this.actual = actual;
+            this.reason = reason;
+        }
+        
+        public String getAccountNumber() { return accountNumber; }
+        public long getTransactionId() { return transactionId; }
+        public double getExpected() { return expected; }
+        public double getActual() { return actual; }
+        public String getReason() { return reason; }
+        
+        @Override
+        public String toString() {
+            return String.format("%s: %s (expected %.2f, found %.2f)%s", accountNumber, reason,
+                    expected, actual, transactionId > 0 ? " at transaction " + transactionId : "");
+        }
+    }
+    
+    //Summary of a reconciliation run
+    public static class RunResult {
+        private final int rowsChecked;
+        private final int accountsChecked;
+        private final List<Mismatch> mismatches;
+        private final Map<String, Integer> unknownTypes;
+        private final long elapsedMillis;
+        
+        public RunResult(int rowsChecked, int accountsChecked, List<Mismatch> mismatches,
+                         Map<String, Integer> unknownTypes, long elapsedMillis) {
+            this.rowsChecked = rowsChecked;
+            this.accountsChecked = accountsChecked;
+            this.mismatches = mismatches;
+            this.unknownTypes = unknownTypes;
+            this.elapsedMillis = elapsedMillis;
+        }
+        
+        public int getRowsChecked() { return rowsChecked; }
+        public int getAccountsChecked() { return accountsChecked; }
+        public List<Mismatch> getMismatches() { return mismatches; }
+        //Rows skipped because their transaction type is unknown, by type
+        public Map<String, Integer> getUnknownTypes() { return unknownTypes; }
+        public long getElapsedMillis() { return elapsedMillis; }
+        
+        @Override
+        public String toString() {
+            return String.format("Reconciliation: %d ledger rows, %d accounts, %d mismatches%s in %d ms",
+                    rowsChecked, accountsChecked, mismatches.size(),
+                    unknownTypes.isEmpty() ? "" : ", unknown transaction types " + unknownTypes, elapsedMillis);
+        }
+    }
+    
+    //Last verified point of an account's ledger
+    private static class Watermark {
+        long transactionId;
+        double balance;
+        boolean stored;
+        
+        Watermark(long transactionId, double balance, boolean stored) {
+            this.transactionId = transactionId;
+            this.balance = balance;
+            this.stored = stored;
+        }
+    }
+    
+    public ReconciliationEngine(AccountDAO accountDAO) {
+        this(accountDAO, Runtime.getRuntime().availableProcessors());
+    }
+    
+    public ReconciliationEngine(AccountDAO accountDAO, int partitions) {
+        this.accountDAO = accountDAO;
+        this.partitions = Math.max(1, partitions);
+    }
+    
+    //Verify the ledger rows added since the last run and every account balance
+    public RunResult run() {
+        long start = System.nanoTime();
+        int shards = ShardRouter.shardCount();
+        long[] fromIds = new long[shards];
+        long[] toIds = new long[shards];
+        List<AccountRange> ranges;
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                fromIds[shard] = lastHighWater(shard);
+                toIds[shard] = currentHighWater(shard, fromIds[shard]);
+            }
+            ranges = accountDAO.getAccountRanges("1 = 1", partitions);
+        } catch (SQLException e) {
+            System.err.println("Error preparing reconciliation: " + e.getMessage());
+            return new RunResult(0, 0, new ArrayList<>(), new TreeMap<>(), 0);
+        }
+        
+        AtomicInteger rows = new AtomicInteger();
+        AtomicInteger accounts = new AtomicInteger();
+        List<Mismatch> mismatches = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Integer> unknownTypes = new ConcurrentHashMap<>();
+        boolean[] complete = new boolean[shards];
+        Arrays.fill(complete, true);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(partitions, ranges.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (AccountRange range : ranges) {
+                long fromId = fromIds[range.getShard()];
+                long toId = toIds[range.getShard()];
+                futures.add(executor.submit(() -> {
+                    reconcilePartition(range, fromId, toId, rows, accounts, mismatches, unknownTypes);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println("Reconciliation partition failed: " + e.getCause().getMessage());
+                    complete[ranges.get(i).getShard()] = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Arrays.fill(complete, false);
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        RunResult result = new RunResult(rows.get(), accounts.get(), new ArrayList<>(mismatches),
+                                         new TreeMap<>(unknownTypes), elapsedMillis);
+        for (int shard = 0; shard < shards; shard++) {
+            if (complete[shard]) {
+                // Only a run that covered every partition of a shard moves its high-water mark forward
+                recordRun(shard, toIds[shard], result);
+            }
+        }
+        for (Mismatch mismatch : result.getMismatches()) {
+            System.err.println("Reconciliation mismatch: " + mismatch);
+        }
+        for (Map.Entry<String, Integer> unknown : result.getUnknownTypes().entrySet()) {
+            System.err.println("Reconciliation skipped " + unknown.getValue() + " rows of unknown type " +
+                               unknown.getKey());
+        }
+        return result;
+    }
+    
+    //Reconcile one account partition on its own connection
+    private void reconcilePartition(AccountRange range, long fromId, long toId, AtomicInteger rows,
+                                    AtomicInteger accounts, List<Mismatch> mismatches,
+                                    Map<String, Integer> unknownTypes) throws SQLException {
+        String branch = " WHERE transaction_id > ? AND transaction_id <= ? AND " + range.toSql("account_number");
+        String ledgerSql = "SELECT * FROM (" +
+                           "SELECT transaction_id, account_number, transaction_type, amount, balance_after, " +
+                           "transaction_date FROM transactions" + branch + " UNION ALL " +
+                           "SELECT transaction_id, account_number, transaction_type, amount, balance_after, " +
+                           "transaction_date FROM transactions_archive" + branch + ") t " +
+                           "ORDER BY account_number, transaction_date, transaction_id";
+        // Newest row after the high-water mark, when the account has moved on since it
+        String balanceSql = "SELECT a.account_number, a.balance, " +
+                            "(SELECT t.balance_after FROM transactions t WHERE t.account_number = a.account_number " +
+                            "AND t.transaction_id > ? ORDER BY t.transaction_date DESC, t.transaction_id DESC " +
+                            "LIMIT 1) AS newer_balance FROM accounts a WHERE " +
+                            range.toSql("a.account_number") + " ORDER BY a.account_number";
+        
+        try (Connection conn = DatabaseConnection.openConnection(range.getShard())) {
+            conn.setAutoCommit(false);
+            // Balances and ledger rows are read from the same snapshot
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                Map<String, Watermark> watermarks = loadWatermarks(conn, range);
+                
+                // Walk the new ledger rows of each account from its watermark
+                try (PreparedStatement pstmt = conn.prepareStatement(ledgerSql)) {
+                    pstmt.setFetchSize(1000);
+                    int index = 1;
+                    for (int tier = 0; tier < 2; tier++) {
+                        pstmt.setLong(index++, fromId);
+                        pstmt.setLong(index++, toId);
+                        index = range.bind(pstmt, index);
+                    }
+                    
+                    String reported = null;
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            String accountNumber = rs.getString("account_number");
+                            long transactionId = rs.getLong("transaction_id");
+                            double amount = rs.getDouble("amount");
+                            double balanceAfter = rs.getDouble("balance_after");
+                            Watermark mark = watermarks.computeIfAbsent(accountNumber,
+                                k -> new Watermark(0, 0.0, false));
+                            if (mark.stored && transactionId <= mark.transactionId) {
+                                // Already verified by a partition of an earlier, incomplete run
+                                continue;
+                            }
+                            
+                            String type = rs.getString("transaction_type");
+                            Integer sign = sign(type);
+                            if (sign == null) {
+                                unknownTypes.merge(type, 1, Integer::sum);
+                            } else if (!accountNumber.equals(reported) &&
+                                       Math.abs(mark.balance + sign * amount - balanceAfter) > TOLERANCE) {
+                                // Only the first offending row per account is reported
+                                mismatches.add(new Mismatch(accountNumber, transactionId, mark.balance + sign * amount,
+                                                            balanceAfter, "ledger chain broken"));
+                                reported = accountNumber;
+                            }
+                            // Continue from the recorded value so one bad row is reported once
+                            mark.transactionId = Math.max(mark.transactionId, transactionId);
+                            mark.balance = balanceAfter;
+                            rows.incrementAndGet();
+                        }
+                    }
+                }
+                
+                // Every account's balance must equal the end of its ledger
+                try (PreparedStatement pstmt = conn.prepareStatement(balanceSql)) {
+                    pstmt.setFetchSize(1000);
+                    pstmt.setLong(1, toId);
+                    range.bind(pstmt, 2);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            String accountNumber = rs.getString("account_number");
+                            double balance = rs.getDouble("balance");
+                            double newer = rs.getDouble("newer_balance");
+                            boolean movedOn = !rs.wasNull();
+                            Watermark mark = watermarks.get(accountNumber);
+                            double ledgerBalance = movedOn ? newer : mark != null ? mark.balance : 0.0;
+                            if (Math.abs(balance - ledgerBalance) > TOLERANCE) {
+                                mismatches.add(new Mismatch(accountNumber, 0, ledgerBalance, balance,
+                                                            "balance differs from ledger"));
+                            }
+                            accounts.incrementAndGet();
+                        }
+                    }
+                }
+                
+                saveWatermarks(conn, watermarks);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    //+1 for credits, -1 for debits, null for a type the ledger does not know
+    private static Integer sign(String transactionType) {
+        switch (transactionType) {
+            case "DEPOSIT":
+            case "INTEREST":
+            case "TRANSFER_IN":
+            case "TRANSFER_REVERSAL":
+                return 1;
+            case "WITHDRAWAL":
+            case "TRANSFER_OUT":
+                return -1;
+            default:
+                return null;
+        }
+    }
+    
+    private Map<String, Watermark> loadWatermarks(Connection conn, AccountRange range) throws SQLException {
+        String sql = "SELECT account_number, last_transaction_id, last_balance FROM reconciliation_watermarks " +
+                     "WHERE " + range.toSql("account_number");
+        Map<String, Watermark> watermarks = new HashMap<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            range.bind(pstmt, 1);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    watermarks.put(rs.getString("account_number"),
+                                   new Watermark(rs.getLong("last_transaction_id"),
+                                                 rs.getDouble("last_balance"), true));
+                }
+            }
+        }
+        return watermarks;
+    }
+    
+    private void saveWatermarks(Connection conn, Map<String, Watermark> watermarks) throws SQLException {
+        String updateSql = "UPDATE reconciliation_watermarks SET last_transaction_id = ?, last_balance = ?, " +
+                           "checked_date = CURRENT_TIMESTAMP WHERE account_number = ?";
+        String insertSql = "INSERT INTO reconciliation_watermarks (account_number, last_transaction_id, " +
+                           "last_balance) VALUES (?, ?, ?)";
+        
+        try (PreparedStatement update = conn.prepareStatement(updateSql);
+             PreparedStatement insert = conn.prepareStatement(insertSql)) {
+            for (Map.Entry<String, Watermark> entry : watermarks.entrySet()) {
+                Watermark mark = entry.getValue();
+                if (mark.stored) {
+                    update.setLong(1, mark.transactionId);
+                    update.setDouble(2, mark.balance);
+                    update.setString(3, entry.getKey());
+                    update.addBatch();
+                } else {
+                    insert.setString(1, entry.getKey());
+                    insert.setLong(2, mark.transactionId);
+                    insert.setDouble(3, mark.balance);
+                    insert.addBatch();
+                }
+            }
+            update.executeBatch();
+            insert.executeBatch();
+        }
+    }
+    
+    //Highest ledger ID of a shard covered by the last completed run
+    private long lastHighWater(int shard) throws SQLException {
+        String sql = "SELECT MAX(high_water_id) FROM reconciliation_runs";
+        try (Connection conn = DatabaseConnection.openConnection(shard);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+    
+    //Highest ledger ID of a shard written at least the configured lag ago, never below the last run's
+    private long currentHighWater(int shard, long fromId) throws SQLException {
+        String sql = "SELECT MAX(transaction_id) FROM transactions WHERE transaction_date <= ?";
+        try (Connection conn = DatabaseConnection.openConnection(shard);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - LAG_MILLIS));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return Math.max(fromId, rs.next() ? rs.getLong(1) : 0);
+            }
+        }
+    }
+    
+    //Record a run on one shard; the counts are those of the whole run
+    private void recordRun(int shard, long highWater, RunResult result) {
+        String sql = "INSERT INTO reconciliation_runs (high_water_id, rows_checked, accounts_checked, " +
+                     "mismatches) VALUES (?, ?, ?, ?)";
+        try (Connection conn = DatabaseConnection.openConnection(shard);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, highWater);
+            pstmt.setInt(2, result.getRowsChecked());
+            pstmt.setInt(3, result.getAccountsChecked());
+            pstmt.setInt(4, result.getMismatches().size());
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Error recording reconciliation run: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,363 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Keeps the read replica behind DatabaseConnection.getReadConnection current with the primary.
+//
+//On start the replica's tables are recreated and filled with a snapshot of customers, accounts
+//and both transaction tiers. After that a daemon thread polls change_log (see ChangeLog) every
+//-Dbank.db.replicaPollMillis (100 by default) and, for each key logged, copies that row's
+//current state from the primary, or removes it if it is gone. Applying a change twice is
+//harmless, so the snapshot and the log may overlap.
+//
+//Change IDs are handed out at insert but become visible at commit, so a later ID can appear
+//first. The applied position only moves over contiguous IDs; a missing ID is passed over
+//once a later entry is older than -Dbank.db.replicaGapMillis, but it is not forgotten: a
+//long transaction may still commit it, so passed-over IDs are looked up again on every poll
+//for -Dbank.db.replicaGapRecheckMillis (10 minutes by default) before they are taken to be
+//rolled back or skipped by the identity. Sessions compare their own last change ID with this
+//position, and with the IDs still being looked for, for read-your-writes. Applied entries are
+//purged from change_log every minute.
+class ReplicaFeeder {
+    private static final long POLL_MILLIS = Long.getLong("bank.db.replicaPollMillis", 100);
+    private static final long GAP_MILLIS = Long.getLong("bank.db.replicaGapMillis", 5000);
+    private static final long GAP_RECHECK_MILLIS = Long.getLong("bank.db.replicaGapRecheckMillis", 600_000);
+    private static final long PURGE_INTERVAL_MILLIS = 60_000;
+    private static final int BATCH_SIZE = 500;
+    
+    private ScheduledExecutorService scheduler;
+    private Connection primary;
+    private Connection replica;
+    private volatile long appliedChangeId = -1;
+    // Change IDs passed over below appliedChangeId, with when that happened
+    private final ConcurrentSkipListMap<Long, Long> missing = new ConcurrentSkipListMap<>();
+    private long lastPurgeMillis;
+    
+    //Snapshot the primary and follow its change log on a daemon thread
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-feeder");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        closeConnections();
+    }
+    
+    //Highest change ID the replica reflects along with everything before it, or -1 before the snapshot
+    long getAppliedChangeId() {
+        return appliedChangeId;
+    }
+    
+    //Whether a change ID below the applied position was passed over and has not turned up yet
+    boolean isMissing(long changeId) {
+        return missing.containsKey(changeId);
+    }
+    
+    //One pass on the feeder thread; a failure reconnects and retries on the next pass
+    private void poll() {
+        try {
+            if (primary == null) {
+                primary = DatabaseConnection.openConnection();
+                replica = DatabaseConnection.openReplicaConnection();
+                replica.setAutoCommit(false);
+            }
+            if (appliedChangeId < 0) {
+                snapshot();
+            }
+            while (applyBatch() == BATCH_SIZE) {
+                // Keep going while there is a backlog
+            }
+            recheckMissing();
+            purgeIfDue();
+        } catch (SQLException e) {
+            BankLogger.error("Read replica feed failed, retrying: {}", e.getMessage());
+            closeConnections();
+        }
+    }
+    
+    //Rebuild the replica from the primary and start following the log from where the snapshot began
+    private void snapshot() throws SQLException {
+        long start = System.nanoTime();
+        
+        // Everything in change_log may postdate the snapshot, so it is all replayed afterwards
+        long from = 0;
+        try (Statement stmt = primary.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(change_id) FROM change_log")) {
+            if (rs.next() && rs.getObject(1) != null) {
+                from = rs.getLong(1) - 1;
+            }
+        }
+        
+        try (Statement stmt = replica.createStatement()) {
+            // Rows are copied key by key, not in foreign key order, so the replica does not check them
+            stmt.execute("SET REFERENTIAL_INTEGRITY FALSE");
+            DatabaseConnection.dropTables(stmt);
+            DatabaseConnection.createTables(stmt);
+            DatabaseConnection.createIndexes(stmt);
+        }
+        long rows = copy("customers", "customer_id", "1 = 1")
+                  + copy("accounts", "account_number", "1 = 1")
+                  + copy("transactions", "transaction_id", "1 = 1")
+                  + copy("transactions_archive", "transaction_id", "1 = 1");
+        replica.commit();
+        
+        appliedChangeId = from;
+        missing.clear();
+        lastPurgeMillis = System.currentTimeMillis();
+        BankLogger.info("Read replica loaded {} rows in {} ms", rows, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    //Apply the next entries of the log, returns the number read
+    private int applyBatch() throws SQLException {
+        Set<String> changed = new LinkedHashSet<>();
+        long applied = appliedChangeId;
+        boolean contiguous = true;
+        int read = 0;
+        long now = System.currentTimeMillis();
+        long gapCutoff = now - GAP_MILLIS;
+        List<Long> passedOver = new ArrayList<>();
+        
+        try (PreparedStatement pstmt = primary.prepareStatement(
+                 "SELECT change_id, table_name, row_key, change_date FROM change_log " +
+                 "WHERE change_id > ? ORDER BY change_id LIMIT " + BATCH_SIZE)) {
+            pstmt.setLong(1, applied);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    read++;
+                    long changeId = rs.getLong("change_id");
+                    changed.add(rs.getString("table_name") + ":" + rs.getString("row_key"));
+                    if (contiguous && (changeId == applied + 1 ||
+                                       rs.getTimestamp("change_date").getTime() < gapCutoff)) {
+                        // A large jump is the identity skipping ahead, not transactions in flight
+                        for (long id = applied + 1; id < changeId && id <= applied + BATCH_SIZE; id++) {
+                            passedOver.add(id);
+                        }
+                        applied = changeId;
+                    } else {
+                        contiguous = false;
+                    }
+                }
+            }
+        }
+        if (read == 0) {
+            return 0;
+        }
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("ReplicaFeeder.apply");
+        try (sample) {
+            for (String change : changed) {
+                int colon = change.indexOf(':');
+                apply(change.substring(0, colon), change.substring(colon + 1));
+            }
+            replica.commit();
+        } catch (SQLException e) {
+            sample.error();
+            replica.rollback();
+            throw e;
+        }
+        for (long id : passedOver) {
+            missing.put(id, now);
+        }
+        appliedChangeId = applied;
+        // Entries past a gap were applied but are read again until the gap closes
+        return contiguous ? read : 0;
+    }
+    
+    //Apply passed-over entries that have committed since, and stop looking for the oldest ones
+    private void recheckMissing() throws SQLException {
+        long cutoff = System.currentTimeMillis() - GAP_RECHECK_MILLIS;
+        missing.values().removeIf(passedAt -> passedAt < cutoff);
+        if (missing.isEmpty()) {
+            return;
+        }
+        
+        Set<String> changed = new LinkedHashSet<>();
+        Set<Long> found = new LinkedHashSet<>();
+        Iterator<Long> ids = missing.keySet().iterator();
+        while (ids.hasNext()) {
+            StringBuilder in = new StringBuilder();
+            for (int i = 0; i < BATCH_SIZE && ids.hasNext(); i++) {
+                in.append(i > 0 ? ", " : "").append(ids.next());
+            }
+            try (Statement stmt = primary.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT change_id, table_name, row_key FROM change_log " +
+                                                  "WHERE change_id IN (" + in + ") ORDER BY change_id")) {
+                while (rs.next()) {
+                    found.add(rs.getLong("change_id"));
+                    changed.add(rs.getString("table_name") + ":" + rs.getString("row_key"));
+                }
+            }
+        }
+        if (found.isEmpty()) {
+            return;
+        }
+        
+        try {
+            for (String change : changed) {
+                int colon = change.indexOf(':');
+                apply(change.substring(0, colon), change.substring(colon + 1));
+            }
+            replica.commit();
+        } catch (SQLException e) {
+            replica.rollback();
+            throw e;
+        }
+        missing.keySet().removeAll(found);
+        BankLogger.debug("Applied {} late change log entries", found.size());
+    }
+    
+    //Make one logged row on the replica match the primary
+    private void apply(String table, String key) throws SQLException {
+        switch (table) {
+            case ChangeLog.CUSTOMERS:
+                if (copy("customers", "customer_id", "customer_id = ?", key) == 0) {
+                    // Deleting a customer cascades on the primary; do the same here
+                    for (String tier : new String[] {"transactions", "transactions_archive"}) {
+                        update("DELETE FROM " + tier + " WHERE account_number IN " +
+                               "(SELECT account_number FROM accounts WHERE customer_id = ?)", key);
+                    }
+                    update("DELETE FROM accounts WHERE customer_id = ?", key);
+                    update("DELETE FROM customers WHERE customer_id = ?", key);
+                }
+                break;
+            
+            case ChangeLog.ACCOUNTS:
+                if (copy("accounts", "account_number", "account_number = ?", key) == 0) {
+                    deleteTransactions(key);
+                    update("DELETE FROM accounts WHERE account_number = ?", key);
+                } else {
+                    // Transactions are only ever appended, so copy the ones newer than the replica has
+                    long lastId = 0;
+                    try (PreparedStatement pstmt = replica.prepareStatement(
+                             "SELECT MAX(transaction_id) FROM (" +
+                             "SELECT transaction_id FROM transactions WHERE account_number = ? UNION ALL " +
+                             "SELECT transaction_id FROM transactions_archive WHERE account_number = ?) t")) {
+                        pstmt.setString(1, key);
+                        pstmt.setString(2, key);
+                        try (ResultSet rs = pstmt.executeQuery()) {
+                            if (rs.next()) {
+                                lastId = rs.getLong(1);
+                            }
+                        }
+                    }
+                    String where = "account_number = ? AND transaction_id > ?";
+                    copy("transactions", "transaction_id", where, key, lastId);
+                    copy("transactions_archive", "transaction_id", where, key, lastId);
+                }
+                break;
+            
+            case ChangeLog.TRANSACTIONS:
+                deleteTransactions(key);
+                copy("transactions", "transaction_id", "account_number = ?", key);
+                copy("transactions_archive", "transaction_id", "account_number = ?", key);
+                break;
+            
+            default:
+                BankLogger.warn("Ignoring change to unknown table {}", table);
+        }
+    }
+    
+    private void deleteTransactions(String accountNumber) throws SQLException {
+        update("DELETE FROM transactions WHERE account_number = ?", accountNumber);
+        update("DELETE FROM transactions_archive WHERE account_number = ?", accountNumber);
+    }
+    
+    //Copy the primary's rows of a table matching the condition into the replica, returns rows copied
+    private int copy(String table, String keyColumn, String where, Object... params) throws SQLException {
+        try (PreparedStatement select = primary.prepareStatement("SELECT * FROM " + table + " WHERE " + where)) {
+            for (int i = 0; i < params.length; i++) {
+                select.setObject(i + 1, params[i]);
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int columns = meta.getColumnCount();
+                StringBuilder names = new StringBuilder();
+                StringBuilder values = new StringBuilder();
+                for (int c = 1; c <= columns; c++) {
+                    names.append(c > 1 ? ", " : "").append(meta.getColumnName(c));
+                    values.append(c > 1 ? ", ?" : "?");
+                }
+                
+                int rows = 0;
+                try (PreparedStatement merge = replica.prepareStatement(
+                         "MERGE INTO " + table + " (" + names + ") KEY (" + keyColumn + ") VALUES (" + values + ")")) {
+                    while (rs.next()) {
+                        for (int c = 1; c <= columns; c++) {
+                            merge.setObject(c, rs.getObject(c));
+                        }
+                        merge.addBatch();
+                        if (++rows % BATCH_SIZE == 0) {
+                            merge.executeBatch();
+                        }
+                    }
+                    if (rows % BATCH_SIZE != 0) {
+                        merge.executeBatch();
+                    }
+                }
+                return rows;
+            }
+        }
+    }
+    
+    private void update(String sql, String key) throws SQLException {
+        try (PreparedStatement pstmt = replica.prepareStatement(sql)) {
+            pstmt.setString(1, key);
+            pstmt.executeUpdate();
+        }
+    }
+    
+    //Drop applied entries from change_log, keeping the last so the next start knows where to begin
+    //and everything from the oldest passed-over ID on, so a late commit is still there to find
+    private void purgeIfDue() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastPurgeMillis < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPurgeMillis = now;
+        try (PreparedStatement pstmt = primary.prepareStatement("DELETE FROM change_log WHERE change_id < ?")) {
+            long keepFrom = appliedChangeId;
+            if (!missing.isEmpty()) {
+                keepFrom = Math.min(keepFrom, missing.firstKey());
+            }
+            pstmt.setLong(1, keepFrom);
+            BankLogger.debug("Purged {} applied change log entries", pstmt.executeUpdate());
+        }
+    }
+    
+    private void closeConnections() {
+        for (Connection conn : new Connection[] {primary, replica}) {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    // Already broken; nothing more to do
+                }
+            }
+        }
+        primary = null;
+        replica = null;
+    }
+}
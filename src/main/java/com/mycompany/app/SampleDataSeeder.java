@@ -0,0 +1,121 @@
+import java.sql.*;
+
+//Loads the demo customers, accounts and their opening ledger into an empty database.
+//Everything goes in as three statement batches inside one transaction, instead of the
+//dozen or so separate DAO round trips opening them through BankSystemWithDAO would take.
+//IDs come from the same sequences the bank uses, so later customers and accounts never clash.
+//With a sharded database every shard gets the customers and each account goes to its own shard.
+public class SampleDataSeeder {
+    
+    //Seed the sample data if the database has no customers yet
+    //Returns true if data was seeded
+    public static boolean seedIfEmpty() throws SQLException {
+        try (Connection conn = DatabaseConnection.openConnection()) {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM customers")) {
+                if (rs.next() && rs.getLong(1) > 0) {
+                    return false;
+                }
+            }
+            
+            long customerId = new IdBlockAllocator("CUSTOMER", 1001, 1).reserve(2);
+            long accountNumber = new IdBlockAllocator("ACCOUNT", 10001, 1).reserve(5);
+            if (customerId == IdBlockAllocator.UNAVAILABLE || accountNumber == IdBlockAllocator.UNAVAILABLE) {
+                throw new SQLException("Unable to reserve IDs for the sample data");
+            }
+            
+            CustomerClass john = new CustomerClass("CUST" + customerId, "John", "Doe",
+                                                   "john.doe@email.com", "555-0101",
+                                                   "123 Main Street, Cityville");
+            CustomerClass jane = new CustomerClass("CUST" + (customerId + 1), "Jane", "Smith",
+                                                   "jane.smith@email.com", "555-0102",
+                                                   "456 Oak Avenue, Townsburg");
+            
+            // Balances are the result of the opening transactions recorded below
+            AccountClass johnCheque = new ChequeAccountClass("CHQ" + accountNumber, john.getCustomerId(), 1500.0);
+            AccountClass johnSavings = new SavingsAccountClass("SAV" + (accountNumber + 1),
+                                                               john.getCustomerId(), 1000.0);
+            AccountClass johnInvestment = new InvestmentAccountClass("INV" + (accountNumber + 2),
+                                                                     john.getCustomerId(), "Fixed Deposit", 5000.0);
+            AccountClass janeCheque = new ChequeAccountClass("CHQ" + (accountNumber + 3), jane.getCustomerId(), 1500.0);
+            AccountClass janeSavings = new SavingsAccountClass("SAV" + (accountNumber + 4),
+                                                               jane.getCustomerId(), 500.0);
+            
+            // Shard 0 is written last, since the check above looks only at it
+            for (int shard = ShardRouter.shardCount() - 1; shard > 0; shard--) {
+                try (Connection shardConn = DatabaseConnection.openConnection(shard)) {
+                    seedShard(shardConn, shard, john, jane, johnCheque, johnSavings, johnInvestment,
+                              janeCheque, janeSavings);
+                }
+            }
+            seedShard(conn, 0, john, jane, johnCheque, johnSavings, johnInvestment, janeCheque, janeSavings);
+        }
+        CustomerSearchIndex.getInstance().invalidate();
+        
+        System.out.println("Sample users created:");
+        System.out.println("  - john.doe@email.com (password: any)");
+        System.out.println("  - jane.smith@email.com (password: any)");
+        return true;
+    }
+    
+    //Write both customers, and the accounts placed on this shard with their ledger, in one transaction
+    private static void seedShard(Connection conn, int shard, CustomerClass john, CustomerClass jane,
+                                  AccountClass johnCheque, AccountClass johnSavings, AccountClass johnInvestment,
+                                  AccountClass janeCheque, AccountClass janeSavings) throws SQLException {
+        CustomerDAO customerDAO = new CustomerDAO();
+        AccountDAO accountDAO = new AccountDAO();
+        
+        conn.setAutoCommit(false);
+        try (PreparedStatement customers = conn.prepareStatement(CustomerDAO.INSERT_CUSTOMER_SQL);
+             PreparedStatement accounts = conn.prepareStatement(AccountDAO.INSERT_ACCOUNT_SQL);
+             PreparedStatement ledger = conn.prepareStatement(
+                 "INSERT INTO transactions (account_number, transaction_type, amount, " +
+                 "balance_after, description) VALUES (?, ?, ?, ?, ?)");
+             ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+            
+            for (CustomerClass customer : new CustomerClass[] {john, jane}) {
+                customerDAO.bindCustomer(customers, customer);
+                customers.addBatch();
+                ChangeLog.addBatch(changes, ChangeLog.CUSTOMERS, customer.getCustomerId());
+            }
+            for (AccountClass account : new AccountClass[] {johnCheque, johnSavings, johnInvestment,
+                                                            janeCheque, janeSavings}) {
+                if (ShardRouter.shardOf(account.getAccountNumber()) != shard) {
+                    continue;
+                }
+                accountDAO.bindAccount(accounts, account);
+                accounts.addBatch();
+                ChangeLog.addBatch(changes, ChangeLog.ACCOUNTS, account.getAccountNumber());
+            }
+            
+            addLedgerRow(ledger, shard, johnCheque, "DEPOSIT", 2000.0, 2000.0, "Deposit");
+            addLedgerRow(ledger, shard, johnCheque, "WITHDRAWAL", 500.0, 1500.0, "Withdrawal");
+            addLedgerRow(ledger, shard, johnSavings, "DEPOSIT", 1000.0, 1000.0, "Initial deposit");
+            addLedgerRow(ledger, shard, johnInvestment, "DEPOSIT", 5000.0, 5000.0, "Initial investment");
+            addLedgerRow(ledger, shard, janeCheque, "DEPOSIT", 1500.0, 1500.0, "Deposit");
+            addLedgerRow(ledger, shard, janeSavings, "DEPOSIT", 500.0, 500.0, "Initial deposit");
+            
+            customers.executeBatch();
+            accounts.executeBatch();
+            ledger.executeBatch();
+            ChangeLog.executeBatch(changes);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+    
+    private static void addLedgerRow(PreparedStatement ledger, int shard, AccountClass account, String type,
+                                     double amount, double balanceAfter, String description) throws SQLException {
+        if (ShardRouter.shardOf(account.getAccountNumber()) != shard) {
+            return;
+        }
+        ledger.setString(1, account.getAccountNumber());
+        ledger.setString(2, type);
+        ledger.setDouble(3, amount);
+        ledger.setDouble(4, balanceAfter);
+        ledger.setString(5, description);
+        ledger.addBatch();
+    }
+}
@@ -0,0 +1,245 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.Set;
+
+//Brings the database schema up to date at startup without touching existing data.
+//
+//The schema_version table holds one row per version applied. An empty database gets the
+//current schema. A database with tables but no version predates versioning (the old startup
+//built customers, accounts and transactions); it is upgraded in place by adding the columns
+//accounts lacks, backfilling investment terms, widening transaction IDs to BIGINT and creating
+//whichever tables and indexes are missing, and no table is ever dropped. Databases at an older version get the missing migrations applied in order.
+//When the schema changes, bump CURRENT_VERSION, change createTables for new databases and
+//add the matching step to MIGRATIONS for existing ones.
+public class SchemaManager {
+    static final int CURRENT_VERSION = 6;
+    
+    // Shared with DatabaseConnection.createTables so new and migrated databases match
+    static final String CREATE_IDEMPOTENCY_KEYS_SQL =
+        "CREATE TABLE idempotency_keys (" +
+        "idempotency_key VARCHAR(100) PRIMARY KEY, " +
+        "operation VARCHAR(20) NOT NULL, " +
+        "succeeded BOOLEAN NOT NULL, " +
+        "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+    static final String CREATE_IDEMPOTENCY_KEYS_INDEX_SQL =
+        "CREATE INDEX idx_idempotency_created ON idempotency_keys (created_date)";
+    static final String CREATE_CHANGE_LOG_SQL =
+        "CREATE TABLE change_log (" +
+        "change_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+        "table_name VARCHAR(30) NOT NULL, " +
+        "row_key VARCHAR(50) NOT NULL, " +
+        "change_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+    static final String CREATE_TRANSFER_SAGAS_SQL =
+        "CREATE TABLE transfer_sagas (" +
+        "saga_id VARCHAR(50) PRIMARY KEY, " +
+        "from_account VARCHAR(50) NOT NULL, " +
+        "to_account VARCHAR(50) NOT NULL, " +
+        "amount DECIMAL(15, 2) NOT NULL, " +
+        "state VARCHAR(20) NOT NULL, " +
+        "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+        "finished_date TIMESTAMP)";
+    static final String CREATE_TRANSFER_SAGAS_INDEX_SQL =
+        "CREATE INDEX idx_transfer_sagas_state ON transfer_sagas (state, created_date)";
+    static final String CREATE_TRANSFER_CREDITS_SQL =
+        "CREATE TABLE transfer_credits (" +
+        "saga_id VARCHAR(50) PRIMARY KEY, " +
+        "to_account VARCHAR(50) NOT NULL, " +
+        "amount DECIMAL(15, 2) NOT NULL, " +
+        "applied BOOLEAN NOT NULL, " +
+        "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+    static final String CREATE_OUTBOX_EVENTS_SQL =
+        "CREATE TABLE outbox_events (" +
+        "event_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+        "customer_id VARCHAR(50) NOT NULL, " +
+        "event_type VARCHAR(30) NOT NULL, " +
+        "created_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+    static final String CREATE_CUSTOMER_SUMMARY_SQL =
+        "CREATE TABLE customer_summary (" +
+        "customer_id VARCHAR(50) PRIMARY KEY, " +
+        "first_name VARCHAR(50), " +
+        "last_name VARCHAR(50), " +
+        "email VARCHAR(100), " +
+        "account_count INT NOT NULL, " +
+        "total_balance DECIMAL(15, 2) NOT NULL, " +
+        "cheque_balance DECIMAL(15, 2) NOT NULL, " +
+        "savings_balance DECIMAL(15, 2) NOT NULL, " +
+        "investment_balance DECIMAL(15, 2) NOT NULL, " +
+        "last_activity TIMESTAMP, " +
+        "accounts CLOB, " +
+        "recent_transactions CLOB, " +
+        "updated_date TIMESTAMP NOT NULL)";
+    
+    // MIGRATIONS[i] upgrades a database from version i + 1 to version i + 2
+    private static final String[][] MIGRATIONS = {
+        // 2: idempotency keys for money movements
+        {CREATE_IDEMPOTENCY_KEYS_SQL, CREATE_IDEMPOTENCY_KEYS_INDEX_SQL},
+        // 3: row versions on accounts for optimistic balance updates
+        {"ALTER TABLE accounts ADD COLUMN version BIGINT DEFAULT 0 NOT NULL"},
+        // 4: change log feeding the read replica
+        {CREATE_CHANGE_LOG_SQL},
+        // 5: cross-shard transfer sagas
+        {CREATE_TRANSFER_SAGAS_SQL, CREATE_TRANSFER_SAGAS_INDEX_SQL, CREATE_TRANSFER_CREDITS_SQL},
+        // 6: outbox and read model for customer summaries
+        {CREATE_OUTBOX_EVENTS_SQL, CREATE_CUSTOMER_SUMMARY_SQL},
+    };
+    
+    // Columns accounts gained after the original startup but before versioning, with their types
+    private static final String[][] UNVERSIONED_ACCOUNT_COLUMNS = {
+        {"start_date", "DATE"},
+        {"maturity_date", "DATE"},
+        {"version", "BIGINT DEFAULT 0 NOT NULL"},
+    };
+    
+    //Create or migrate the schema as needed on every shard
+    //Returns the version found on shard 0, 0 if the schema had to be created
+    public static int ensureSchema() throws SQLException {
+        for (int shard = DatabaseConnection.SHARD_COUNT - 1; shard > 0; shard--) {
+            ensureSchema(shard);
+        }
+        return ensureSchema(0);
+    }
+    
+    private static int ensureSchema(int shard) throws SQLException {
+        try (Connection conn = DatabaseConnection.openConnection(shard);
+             Statement stmt = conn.createStatement()) {
+            
+            int version = readVersion(conn, stmt);
+            if (version == 0) {
+                upgradeUnversioned(conn, stmt);
+                return 0;
+            }
+            if (version > CURRENT_VERSION) {
+                throw new SQLException("Database schema version " + version +
+                                       " is newer than this application supports (" + CURRENT_VERSION + ")");
+            }
+            
+            conn.setAutoCommit(false);
+            for (int v = version; v < CURRENT_VERSION; v++) {
+                try {
+                    for (String sql : MIGRATIONS[v - 1]) {
+                        stmt.execute(sql);
+                    }
+                    stamp(stmt, v + 1);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw new SQLException("Migration to schema version " + (v + 1) + " failed: " +
+                                           e.getMessage(), e);
+                }
+            }
+            return version;
+        }
+    }
+    
+    //Bring a database without a recorded version to the current schema, keeping every existing table
+    private static void upgradeUnversioned(Connection conn, Statement stmt) throws SQLException {
+        Set<String> existing = existingObjects(conn);
+        if (existing.contains("accounts")) {
+            for (String[] column : UNVERSIONED_ACCOUNT_COLUMNS) {
+                if (!columnExists(conn, "accounts", column[0])) {
+                    stmt.execute("ALTER TABLE accounts ADD COLUMN " + column[0] + " " + column[1]);
+                }
+            }
+            backfillInvestmentTerms(conn);
+        }
+        // The original startup used INT; SET DATA TYPE keeps the column's auto-increment
+        if (existing.contains("transactions") && columnType(conn, "transactions", "transaction_id") != Types.BIGINT) {
+            stmt.execute("ALTER TABLE transactions ALTER COLUMN transaction_id SET DATA TYPE BIGINT");
+        }
+        DatabaseConnection.createTables(stmt, existing);
+        DatabaseConnection.createIndexes(stmt, existing);
+        stamp(stmt, CURRENT_VERSION);
+        if (existing.contains("accounts")) {
+            BankLogger.info("Upgraded unversioned database in place to schema version {}", CURRENT_VERSION);
+        }
+    }
+    
+    //Give investments without a maturity date one term from when they were opened, so they mature
+    private static void backfillInvestmentTerms(Connection conn) throws SQLException {
+        String selectSql = "SELECT account_number, created_date, term_months FROM accounts " +
+                           "WHERE account_type = 'Investment' AND maturity_date IS NULL";
+        String updateSql = "UPDATE accounts SET start_date = ?, maturity_date = ? WHERE account_number = ?";
+        
+        int count = 0;
+        try (PreparedStatement select = conn.prepareStatement(selectSql);
+             PreparedStatement update = conn.prepareStatement(updateSql);
+             ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                Timestamp created = rs.getTimestamp("created_date");
+                LocalDate start = created != null ? created.toLocalDateTime().toLocalDate() : LocalDate.now();
+                update.setDate(1, Date.valueOf(start));
+                update.setDate(2, Date.valueOf(start.plusMonths(rs.getInt("term_months"))));
+                update.setString(3, rs.getString("account_number"));
+                update.addBatch();
+                count++;
+            }
+            if (count > 0) {
+                update.executeBatch();
+                BankLogger.info("Backfilled maturity dates for {} investment accounts", count);
+            }
+        }
+    }
+    
+    //Schema version recorded in the database, or 0 if it was never versioned
+    static int readVersion(Connection conn, Statement stmt) throws SQLException {
+        if (!existingObjects(conn).contains("schema_version")) {
+            return 0;
+        }
+        try (ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+    
+    //Record that the schema is at version
+    static void stamp(Statement stmt, int version) throws SQLException {
+        stmt.execute("INSERT INTO schema_version (version) VALUES (" + version + ")");
+    }
+    
+    //Lower-case names of the tables in the connection's schema and of their indexes
+    private static Set<String> existingObjects(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        Set<String> tables = new HashSet<>();
+        try (ResultSet rs = metaData.getTables(null, conn.getSchema(), "%", null)) {
+            while (rs.next()) {
+                String type = rs.getString("TABLE_TYPE");
+                if (type != null && type.endsWith("TABLE") && !type.startsWith("SYSTEM")) {
+                    tables.add(rs.getString("TABLE_NAME"));
+                }
+            }
+        }
+        
+        Set<String> names = new HashSet<>();
+        for (String table : tables) {
+            names.add(table.toLowerCase());
+            try (ResultSet rs = metaData.getIndexInfo(null, conn.getSchema(), table, false, false)) {
+                while (rs.next()) {
+                    String index = rs.getString("INDEX_NAME");
+                    if (index != null) {
+                        names.add(index.toLowerCase());
+                    }
+                }
+            }
+        }
+        return names;
+    }
+    
+    private static boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        return columnType(conn, table, column) != Types.NULL;
+    }
+    
+    //java.sql.Types code of a column, Types.NULL if the table has no such column
+    private static int columnType(Connection conn, String table, String column) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (String name : new String[] {table, table.toUpperCase()}) {
+            try (ResultSet rs = metaData.getColumns(null, conn.getSchema(), name, null)) {
+                while (rs.next()) {
+                    if (rs.getString("COLUMN_NAME").equalsIgnoreCase(column)) {
+                        return rs.getInt("DATA_TYPE");
+                    }
+                }
+            }
+        }
+        return Types.NULL;
+    }
+}
@@ -0,0 +1,103 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//Places data on the shards configured in DatabaseConnection (-Dbank.db.shards).
+//
+//An account, its ledger, balance checkpoints and idempotency keys live on the shard its
+//account number hashes to, so every single-account operation is one local transaction on one
+//database and write throughput grows with the number of shards. Customers are small and
+//read-mostly; every shard holds all of them so each shard's accounts reference a local row,
+//and customer reads are served by shard 0. Queries that span accounts (a customer's accounts,
+//counts and totals) run on every shard at once and the results are merged. Transfers between
+//shards are sagas, see TransferSaga.
+//
+//Placement uses String.hashCode, which is fixed by the language, so it never changes between
+//runs; the shard count must stay the same once data is stored. Batch jobs (interest,
+//maturities, archiving, reconciliation, statements, imports, backups) work shard by shard;
+//only the ID sequences of IdBlockAllocator are kept on shard 0 alone.
+public class ShardRouter {
+    private static final int SHARDS = DatabaseConnection.SHARD_COUNT;
+    
+    // Scatter-gather runs shard 0 on the caller's thread and the others here
+    private static final ExecutorService SCATTER = SHARDS == 1 ? null :
+        Executors.newFixedThreadPool((SHARDS - 1) * DatabaseConnection.POOL_SIZE, r -> {
+            Thread t = new Thread(r, "shard-scatter");
+            t.setDaemon(true);
+            return t;
+        });
+    
+    //Query run on one shard's connection
+    public interface ShardQuery<T> {
+        T run(Connection conn) throws SQLException;
+    }
+    
+    private ShardRouter() {
+    }
+    
+    public static int shardCount() {
+        return SHARDS;
+    }
+    
+    //Shard holding an account and its ledger
+    public static int shardOf(String accountNumber) {
+        return SHARDS == 1 ? 0 : Math.floorMod(accountNumber.hashCode(), SHARDS);
+    }
+    
+    //Borrow a connection to the shard holding an account
+    public static Connection getConnection(String accountNumber) throws SQLException {
+        return DatabaseConnection.getConnection(shardOf(accountNumber));
+    }
+    
+    //Borrow a connection for reading an account's data
+    public static Connection getReadConnection(String accountNumber) throws SQLException {
+        return DatabaseConnection.getReadConnection(shardOf(accountNumber));
+    }
+    
+    //Run a read-only query on every shard in parallel and return the results in shard order
+    //Shard 0 runs on the caller's thread, so its read-your-writes session applies there
+    public static <T> List<T> scatter(ShardQuery<T> query) throws SQLException {
+        if (SHARDS == 1) {
+            return Collections.singletonList(runOn(0, query));
+        }
+        
+        List<Future<T>> others = new ArrayList<>(SHARDS - 1);
+        for (int shard = 1; shard < SHARDS; shard++) {
+            int s = shard;
+            others.add(SCATTER.submit(() -> runOn(s, query)));
+        }
+        
+        List<T> results = new ArrayList<>(SHARDS);
+        try {
+            results.add(runOn(0, query));
+            for (Future<T> future : others) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Shard query failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for shard results");
+        } finally {
+            for (Future<T> future : others) {
+                future.cancel(true);
+            }
+        }
+    }
+    
+    private static <T> T runOn(int shard, ShardQuery<T> query) throws SQLException {
+        try (Connection conn = DatabaseConnection.getReadConnection(shard)) {
+            return query.run(conn);
+        }
+    }
+}
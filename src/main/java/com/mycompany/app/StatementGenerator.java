@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Writes one statement file per account for the whole book.
+//Accounts are split into many small key ranges on every shard and processed on a work-stealing pool;
+//each range streams its accounts and their transactions through cursors into buffered
+//FileChannel writers, so memory use does not grow with the number of accounts or rows.
+public class StatementGenerator {
+    private static final int RANGES_PER_THREAD = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final AccountDAO accountDAO;
+    private final TransactionDAO transactionDAO;
+    private final int parallelism;
+    private final boolean csv;
+    
+    //One reusable output buffer and encoder per worker thread
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<CharsetEncoder> ENCODERS =
+        ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+    
+    public StatementGenerator(AccountDAO accountDAO, TransactionDAO transactionDAO, boolean csv) {
+        this(accountDAO, transactionDAO, Runtime.getRuntime().availableProcessors(), csv);
+    }
+    
+    public StatementGenerator(AccountDAO accountDAO, TransactionDAO transactionDAO,
+                              int parallelism, boolean csv) {
+        this.accountDAO = accountDAO;
+        this.transactionDAO = transactionDAO;
+        this.parallelism = Math.max(1, parallelism);
+        this.csv = csv;
+    }
+    
+    //Generate statements for every account into outputDir, returns the number written
+    public int generateAll(Path outputDir) throws IOException, SQLException {
+        Files.createDirectories(outputDir);
+        int total = accountDAO.getAccountCount();
+        List<AccountRange> ranges = accountDAO.getAccountRanges("1 = 1", parallelism * RANGES_PER_THREAD);
+        AtomicInteger written = new AtomicInteger();
+        long start = System.nanoTime();
+        
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "statement-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        progress.scheduleAtFixedRate(() -> reportProgress(written.get(), total, start),
+                                     1, 1, TimeUnit.SECONDS);
+        
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RangeTask(ranges, 0, ranges.size(), outputDir, written));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedSQLException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+            progress.shutdownNow();
+        }
+        
+        reportProgress(written.get(), total, start);
+        return written.get();
+    }
+    
+    private void reportProgress(int done, int total, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        BankLogger.info("Statements: {}/{} ({}%) {} accounts/s", done, total,
+                        Math.round(total > 0 ? done * 100.0 / total : 100.0),
+                        Math.round(seconds > 0 ? done / seconds : 0.0));
+    }
+    
+    //Carries a range's SQLException out of the pool, like UncheckedIOException does for I/O
+    private static class UncheckedSQLException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        UncheckedSQLException(SQLException cause) {
+            super(cause);
+        }
+        
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+    
+    //Splits the range list in halves until a single range is left, then processes it
+    private class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<AccountRange> ranges;
+        private final int from;
+        private final int to;
+        private final Path outputDir;
+        private final AtomicInteger written;
+        
+        RangeTask(List<AccountRange> ranges, int from, int to, Path outputDir, AtomicInteger written) {
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+            this.outputDir = outputDir;
+            this.written = written;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(ranges, from, mid, outputDir, written),
+                          new RangeTask(ranges, mid, to, outputDir, written));
+                return;
+            }
+            if (to > from) {
+                try {
+                    writeRange(ranges.get(from), outputDir, written);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (SQLException e) {
+                    throw new UncheckedSQLException(new SQLException(
+                        "Error generating statements for " + ranges.get(from) + ": " + e.getMessage(), e));
+                }
+            }
+        }
+    }
+    
+    //Stream the accounts of one range and write each one's statement
+    private void writeRange(AccountRange range, Path outputDir, AtomicInteger written)
+            throws IOException, SQLException {
+        String sql = "SELECT * FROM accounts WHERE " + range.toSql("account_number") +
+                     " ORDER BY account_number";
+        
+        try (Connection conn = DatabaseConnection.openReadConnection(range.getShard());
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setFetchSize(200);
+            range.bind(pstmt, 1);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    AccountClass account = accountDAO.extractAccountFromResultSet(rs);
+                    if (account != null) {
+                        writeStatement(conn, account, outputDir);
+                        written.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+    
+    //Write a single account's statement file
+    private void writeStatement(Connection conn, AccountClass account, Path outputDir)
+            throws IOException, SQLException {
+        Path file = outputDir.resolve(account.getAccountNumber() + (csv ? ".csv" : ".txt"));
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = BUFFERS.get();
+            buffer.clear();
+            
+            if (csv) {
+                write(channel, buffer, "transaction_id,transaction_date,transaction_type,amount," +
+                                       "balance_after,description,to_account_number\n");
+            } else {
+                write(channel, buffer, "=== Account Statement ===\n" +
+                                       "Account Number: " + account.getAccountNumber() + "\n" +
+                                       "Account Type: " + account.getAccountType() + "\n" +
+                                       "Current Balance: " + String.format("%.2f", account.getBalance()) +
+                                       "\n\nTransaction History:\n");
+            }
+            
+            int rows;
+            try {
+                rows = transactionDAO.streamTransactionsByAccountNumber(conn, account.getAccountNumber(),
+                    transaction -> {
+                        try {
+                            write(channel, buffer, csv ? toCsv(transaction) : transaction + "\n");
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            
+            if (!csv) {
+                write(channel, buffer, (rows == 0 ? "No transactions found.\n" : "") +
+                                       "========================\n");
+            }
+            flush(channel, buffer);
+        }
+    }
+    
+    private String toCsv(TransactionDAO.Transaction transaction) {
+        return transaction.getTransactionId() + "," +
+               transaction.getTransactionDate() + "," +
+               transaction.getTransactionType() + "," +
+               String.format("%.2f", transaction.getAmount()) + "," +
+               String.format("%.2f", transaction.getBalanceAfter()) + "," +
+               quote(transaction.getDescription()) + "," +
+               (transaction.getToAccountNumber() != null ? transaction.getToAccountNumber() : "") + "\n";
+    }
+    
+    private String quote(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+    
+    //Encode text into the buffer, draining it to the channel whenever it fills up
+    private void write(FileChannel channel, ByteBuffer buffer, String text) throws IOException {
+        CharsetEncoder encoder = ENCODERS.get().reset();
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                flush(channel, buffer);
+            } else {
+                break;
+            }
+        }
+    }
+    
+    private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,141 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Background job that moves transactions older than the hot window into transactions_archive.
+//Rows move in small ID-ordered chunks, each copied and deleted in its own short transaction,
+//so writers appending to the hot table are never blocked for long and an interrupted run
+//simply continues from wherever it stopped. Shards are archived one after another. Each chunk logs its accounts to ChangeLog as
+//TRANSACTIONS changes, so the read replica moves the same rows between its tiers.
+public class TransactionArchiver {
+    private static final int DEFAULT_HOT_MONTHS = 3;
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    
+    private final int hotMonths;
+    private final int chunkSize;
+    private ScheduledExecutorService scheduler;
+    
+    public TransactionArchiver() {
+        this(DEFAULT_HOT_MONTHS, DEFAULT_CHUNK_SIZE);
+    }
+    
+    public TransactionArchiver(int hotMonths, int chunkSize) {
+        this.hotMonths = Math.max(1, hotMonths);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+    
+    //Run the archiver periodically on a daemon thread
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transaction-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::archiveNow, 0, period, unit);
+    }
+    
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    //Archive everything before the first day of the oldest hot month, returns rows moved
+    public long archiveNow() {
+        LocalDate cutoff = LocalDate.now().withDayOfMonth(1).minusMonths(hotMonths - 1);
+        return archiveBefore(Timestamp.valueOf(cutoff.atStartOfDay()));
+    }
+    
+    //Move transactions dated before cutoff to the archive in chunks on every shard, returns rows moved
+    public long archiveBefore(Timestamp cutoff) {
+        long moved = 0;
+        long start = System.nanoTime();
+        for (int shard = 0; shard < ShardRouter.shardCount() && !Thread.currentThread().isInterrupted(); shard++) {
+            moved += archiveBefore(shard, cutoff);
+        }
+        
+        if (moved > 0) {
+            BankLogger.info("Archived {} transactions dated before {} in {} ms", moved, cutoff,
+                            (System.nanoTime() - start) / 1_000_000);
+        }
+        return moved;
+    }
+    
+    private long archiveBefore(int shard, Timestamp cutoff) {
+        // The newest row always stays hot so the identity column never restarts below archived IDs
+        String chunkEndSql = "SELECT MAX(transaction_id) FROM (" +
+                             "SELECT transaction_id FROM transactions " +
+                             "WHERE transaction_date < ? AND transaction_id > ? " +
+                             "AND transaction_id < (SELECT MAX(transaction_id) FROM transactions) " +
+                             "ORDER BY transaction_id LIMIT ?) t";
+        String copySql = "INSERT INTO transactions_archive (transaction_id, account_number, " +
+                         "transaction_type, amount, balance_after, description, transaction_date, " +
+                         "to_account_number) SELECT transaction_id, account_number, transaction_type, " +
+                         "amount, balance_after, description, transaction_date, to_account_number " +
+                         "FROM transactions WHERE transaction_id > ? AND transaction_id <= ? " +
+                         "AND transaction_date < ?";
+        String accountsSql = "SELECT DISTINCT account_number FROM transactions " +
+                             "WHERE transaction_id > ? AND transaction_id <= ? AND transaction_date < ?";
+        String deleteSql = "DELETE FROM transactions WHERE transaction_id > ? AND transaction_id <= ? " +
+                           "AND transaction_date < ?";
+        
+        long moved = 0;
+        long lastId = 0;
+        
+        try (Connection conn = DatabaseConnection.openConnection(shard);
+             PreparedStatement chunkEnd = conn.prepareStatement(chunkEndSql);
+             PreparedStatement accounts = conn.prepareStatement(accountsSql);
+             PreparedStatement copy = conn.prepareStatement(copySql);
+             PreparedStatement delete = conn.prepareStatement(deleteSql);
+             ChangeLog.Batch changes = ChangeLog.prepareBatch(conn)) {
+            conn.setAutoCommit(false);
+            
+            while (!Thread.currentThread().isInterrupted()) {
+                chunkEnd.setTimestamp(1, cutoff);
+                chunkEnd.setLong(2, lastId);
+                chunkEnd.setInt(3, chunkSize);
+                long endId;
+                try (ResultSet rs = chunkEnd.executeQuery()) {
+                    rs.next();
+                    endId = rs.getLong(1);
+                    if (rs.wasNull()) {
+                        break;
+                    }
+                }
+                
+                try {
+                    for (PreparedStatement pstmt : new PreparedStatement[] {accounts, copy, delete}) {
+                        pstmt.setLong(1, lastId);
+                        pstmt.setLong(2, endId);
+                        pstmt.setTimestamp(3, cutoff);
+                    }
+                    if (changes != null) {
+                        try (ResultSet rs = accounts.executeQuery()) {
+                            while (rs.next()) {
+                                ChangeLog.addBatch(changes, ChangeLog.TRANSACTIONS, rs.getString(1));
+                            }
+                        }
+                    }
+                    copy.executeUpdate();
+                    moved += delete.executeUpdate();
+                    ChangeLog.executeBatch(changes);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                lastId = endId;
+            }
+        
+        } catch (SQLException e) {
+            BankLogger.error("Error archiving transactions on shard {}: {}", shard, e.getMessage());
+        }
+        return moved;
+    }
+}
@@ -1,13 +1,17 @@
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.time.LocalDateTime;
+import java.util.function.Consumer;
 
+//Ledger access. Recent rows live in the hot transactions table; TransactionArchiver moves
+//older months to transactions_archive. Reads go to both tiers so callers see one ledger.
+//An account's ledger lives on the account's shard (see ShardRouter).
 public class TransactionDAO {
     
     //Transaction class to store transaction details
     public static class Transaction {
-        private int transactionId;
+        private long transactionId;
         private String accountNumber;
         private String transactionType;
         private double amount;
@@ -16,7 +20,7 @@ public class TransactionDAO {
         private Timestamp transactionDate;
         private String toAccountNumber;
         
-        public Transaction(int transactionId, String accountNumber, String transactionType,
+        public Transaction(long transactionId, String accountNumber, String transactionType,
                           double amount, double balanceAfter, String description,
                           Timestamp transactionDate, String toAccountNumber) {
             this.transactionId = transactionId;
@@ -30,7 +34,7 @@ public class TransactionDAO {
         }
         
         // Getters
-        public int getTransactionId() { return transactionId; }
+        public long getTransactionId() { return transactionId; }
         public String getAccountNumber() { return accountNumber; }
         public String getTransactionType() { return transactionType; }
         public double getAmount() { return amount; }
@@ -58,11 +62,30 @@ public class TransactionDAO {
     public boolean recordTransaction(String accountNumber, String transactionType,
                                     double amount, double balanceAfter, String description,
                                     String toAccountNumber) {
+        try (Connection conn = ShardRouter.getConnection(accountNumber)) {
+            conn.setAutoCommit(false);
+            recordTransaction(conn, accountNumber, transactionType, amount, balanceAfter,
+                              description, toAccountNumber);
+            conn.commit();
+            return true;
+        
+        } catch (SQLException e) {
+            System.err.println("Error recording transaction: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    //Record a transaction on the caller's connection, so it commits or rolls back with the balance update
+    //Returns the new transaction ID
+    public long recordTransaction(Connection conn, String accountNumber, String transactionType,
+                                  double amount, double balanceAfter, String description,
+                                  String toAccountNumber) throws SQLException {
         String sql = "INSERT INTO transactions (account_number, transaction_type, amount, " +
                      "balance_after, description, to_account_number) VALUES (?, ?, ?, ?, ?, ?)";
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.recordTransaction");
+        try (sample;
+             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             
             pstmt.setString(1, accountNumber);
             pstmt.setString(2, transactionType);
@@ -75,30 +98,45 @@ public class TransactionDAO {
                 pstmt.setNull(6, Types.VARCHAR);
             }
             
-            int rowsAffected = pstmt.executeUpdate();
-            return rowsAffected > 0;
-            
+            pstmt.executeUpdate();
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                if (!keys.next()) {
+                    throw new SQLException("No transaction ID generated");
+                }
+                long transactionId = keys.getLong(1);
+                BalanceCheckpointWriter.onTransaction(conn, accountNumber, transactionId);
+                ChangeLog.record(conn, ChangeLog.ACCOUNTS, accountNumber);
+                return transactionId;
+            }
+        
         } catch (SQLException e) {
-            System.err.println("Error recording transaction: " + e.getMessage());
-            return false;
+            sample.error();
+            throw e;
         }
     }
     
     //Get transaction by ID
-    public Transaction getTransactionById(int transactionId) {
-        String sql = "SELECT * FROM transactions WHERE transaction_id = ?";
+    //IDs are only unique within a shard; with several shards the lowest shard holding the ID wins
+    public Transaction getTransactionById(long transactionId) {
+        String sql = acrossTiers("SELECT *", "transaction_id = ?");
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setInt(1, transactionId);
-            ResultSet rs = pstmt.executeQuery();
-            
-            if (rs.next()) {
-                return extractTransactionFromResultSet(rs);
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTransactionById");
+        try (sample) {
+            for (Transaction found : ShardRouter.scatter(conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    bindAcrossTiers(pstmt, transactionId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        return rs.next() ? extractTransactionFromResultSet(rs) : null;
+                    }
+                }
+            })) {
+                if (found != null) {
+                    return found;
+                }
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving transaction: " + e.getMessage());
         }
         
@@ -108,24 +146,27 @@ public class TransactionDAO {
     //Get all transactions for a specific account
     public List<Transaction> getTransactionsByAccountNumber(String accountNumber) {
         List<Transaction> transactions = new ArrayList<>();
-        String sql = "SELECT * FROM transactions WHERE account_number = ? " +
+        String sql = "SELECT * FROM (" + acrossTiers("SELECT *", "account_number = ?") + ") t " +
                      "ORDER BY transaction_date DESC";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTransactionsByAccountNumber");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
+            bindAcrossTiers(pstmt, accountNumber);
             ResultSet rs = pstmt.executeQuery();
             
             while (rs.next()) {
                 transactions.add(extractTransactionFromResultSet(rs));
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving transactions: " + e.getMessage());
         }
         
-        return transactions;
+        return sample.rows(transactions);
     }
     
     //Get all transactions for a specific account within a date range
@@ -133,115 +174,256 @@ public class TransactionDAO {
                                                         Timestamp startDate,
                                                         Timestamp endDate) {
         List<Transaction> transactions = new ArrayList<>();
-        String sql = "SELECT * FROM transactions WHERE account_number = ? " +
-                     "AND transaction_date BETWEEN ? AND ? ORDER BY transaction_date DESC";
+        String sql = "SELECT * FROM (" +
+                     acrossTiers("SELECT *", "account_number = ? AND transaction_date BETWEEN ? AND ?") +
+                     ") t ORDER BY transaction_date DESC";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTransactionsByDateRange");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
-            pstmt.setTimestamp(2, startDate);
-            pstmt.setTimestamp(3, endDate);
+            bindAcrossTiers(pstmt, accountNumber, startDate, endDate);
             ResultSet rs = pstmt.executeQuery();
             
             while (rs.next()) {
                 transactions.add(extractTransactionFromResultSet(rs));
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving transactions by date: " + e.getMessage());
         }
         
-        return transactions;
+        return sample.rows(transactions);
     }
     
     //Get all transactions by type
     public List<Transaction> getTransactionsByType(String accountNumber, String transactionType) {
         List<Transaction> transactions = new ArrayList<>();
-        String sql = "SELECT * FROM transactions WHERE account_number = ? " +
-                     "AND transaction_type = ? ORDER BY transaction_date DESC";
+        String sql = "SELECT * FROM (" +
+                     acrossTiers("SELECT *", "account_number = ? AND transaction_type = ?") +
+                     ") t ORDER BY transaction_date DESC";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTransactionsByType");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
-            pstmt.setString(2, transactionType);
+            bindAcrossTiers(pstmt, accountNumber, transactionType);
             ResultSet rs = pstmt.executeQuery();
             
             while (rs.next()) {
                 transactions.add(extractTransactionFromResultSet(rs));
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving transactions by type: " + e.getMessage());
         }
         
-        return transactions;
+        return sample.rows(transactions);
     }
     
     //Get recent transactions (last N transactions)
     public List<Transaction> getRecentTransactions(String accountNumber, int limit) {
         List<Transaction> transactions = new ArrayList<>();
-        String sql = "SELECT * FROM transactions WHERE account_number = ? " +
-                     "ORDER BY transaction_date DESC LIMIT ?";
+        // Each tier returns at most limit rows, so the archive is only touched through its index
+        String branch = " WHERE account_number = ? ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
+        String sql = "SELECT * FROM ((SELECT * FROM transactions" + branch + ") UNION ALL " +
+                     "(SELECT * FROM transactions_archive" + branch + ")) t " +
+                     "ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getRecentTransactions");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
-            pstmt.setInt(2, limit);
+            int next = bindAcrossTiers(pstmt, accountNumber, limit);
+            pstmt.setInt(next, limit);
             ResultSet rs = pstmt.executeQuery();
             
             while (rs.next()) {
                 transactions.add(extractTransactionFromResultSet(rs));
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving recent transactions: " + e.getMessage());
         }
         
-        return transactions;
+        return sample.rows(transactions);
     }
     
-    //Get all transactions for all accounts of a customer
-    public List<Transaction> getCustomerTransactions(String customerId) {
+    //Most recent transactions across a customer's accounts on the caller's connection, newest first
+    //Only the accounts on that connection's shard are seen
+    public List<Transaction> getRecentCustomerTransactions(Connection conn, String customerId,
+                                                           int limit) throws SQLException {
         List<Transaction> transactions = new ArrayList<>();
-        String sql = "SELECT t.* FROM transactions t " +
-                     "JOIN accounts a ON t.account_number = a.account_number " +
-                     "WHERE a.customer_id = ? ORDER BY t.transaction_date DESC";
+        String branch = " WHERE account_number IN (SELECT account_number FROM accounts WHERE customer_id = ?)" +
+                        " ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
+        String sql = "SELECT * FROM ((SELECT * FROM transactions" + branch + ") UNION ALL " +
+                     "(SELECT * FROM transactions_archive" + branch + ")) t " +
+                     "ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getRecentCustomerTransactions");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int next = bindAcrossTiers(pstmt, customerId, limit);
+            pstmt.setInt(next, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    transactions.add(extractTransactionFromResultSet(rs));
+                }
+            }
+            return sample.rows(transactions);
+        }
+    }
+    
+    //One page of an account's history, newest first, starting after the last row of the previous page
+    //Pass null/0 for the first page, then the date and ID of the last transaction returned
+    public List<Transaction> getTransactionHistoryPage(String accountNumber, Timestamp beforeDate,
+                                                       long beforeId, int pageSize) {
+        List<Transaction> transactions = new ArrayList<>();
+        String keyset = beforeDate == null ? "" :
+            " AND (transaction_date < ? OR (transaction_date = ? AND transaction_id < ?))";
+        String branch = " WHERE account_number = ?" + keyset +
+                        " ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
+        String sql = "SELECT * FROM ((SELECT * FROM transactions" + branch + ") UNION ALL " +
+                     "(SELECT * FROM transactions_archive" + branch + ")) t " +
+                     "ORDER BY transaction_date DESC, transaction_id DESC LIMIT ?";
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTransactionHistoryPage");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, customerId);
+            int next = beforeDate == null ?
+                bindAcrossTiers(pstmt, accountNumber, pageSize) :
+                bindAcrossTiers(pstmt, accountNumber, beforeDate, beforeDate, beforeId, pageSize);
+            pstmt.setInt(next, pageSize);
             ResultSet rs = pstmt.executeQuery();
             
             while (rs.next()) {
                 transactions.add(extractTransactionFromResultSet(rs));
             }
-            
+        
+        } catch (SQLException e) {
+            sample.error();
+            System.err.println("Error retrieving transaction history page: " + e.getMessage());
+        }
+        
+        return sample.rows(transactions);
+    }
+    
+    //Get all transactions for all accounts of a customer, gathered from every shard
+    public List<Transaction> getCustomerTransactions(String customerId) {
+        List<Transaction> transactions = new ArrayList<>();
+        String sql = "SELECT * FROM (" +
+                     acrossTiers("SELECT *", "account_number IN " +
+                                 "(SELECT account_number FROM accounts WHERE customer_id = ?)") +
+                     ") t ORDER BY transaction_date DESC";
+        
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getCustomerTransactions");
+        try (sample) {
+            for (List<Transaction> part : ShardRouter.scatter(conn -> {
+                List<Transaction> found = new ArrayList<>();
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    bindAcrossTiers(pstmt, customerId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            found.add(extractTransactionFromResultSet(rs));
+                        }
+                    }
+                }
+                return found;
+            })) {
+                transactions.addAll(part);
+            }
+            if (ShardRouter.shardCount() > 1) {
+                transactions.sort(Comparator.comparing(Transaction::getTransactionDate).reversed());
+            }
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error retrieving customer transactions: " + e.getMessage());
         }
         
-        return transactions;
+        return sample.rows(transactions);
+    }
+    
+    //Stream an account's transactions in date order through a cursor on the caller's connection
+    //Rows are handed to the consumer one at a time, so memory stays constant for any history length
+    public int streamTransactionsByAccountNumber(Connection conn, String accountNumber,
+                                                 Consumer<Transaction> consumer) throws SQLException {
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.streamTransactionsByAccountNumber")) {
+            String sql = "SELECT * FROM (" + acrossTiers("SELECT *", "account_number = ?") + ") t " +
+                         "ORDER BY transaction_date, transaction_id";
+            int count = 0;
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setFetchSize(500);
+                bindAcrossTiers(pstmt, accountNumber);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(extractTransactionFromResultSet(rs));
+                        count++;
+                    }
+                }
+            }
+            
+            sample.rows(count);
+            return count;
+        }
+    }
+    
+    //Stream every debit (withdrawal or outgoing transfer) and every transfer reversal recorded
+    //since a point in time, in ledger order
+    //Used to rebuild in-memory withdrawal totals; reads only the hot table, which always holds the recent past
+    public int streamDebitsSince(Connection conn, Timestamp since,
+                                 Consumer<Transaction> consumer) throws SQLException {
+        try (MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.streamDebitsSince")) {
+            String sql = "SELECT * FROM transactions WHERE transaction_date >= ? " +
+                         "AND transaction_type IN ('WITHDRAWAL', 'TRANSFER_OUT', 'TRANSFER_REVERSAL') " +
+                         "ORDER BY transaction_id";
+            int count = 0;
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setFetchSize(500);
+                pstmt.setTimestamp(1, since);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(extractTransactionFromResultSet(rs));
+                        count++;
+                    }
+                }
+            }
+            
+            sample.rows(count);
+            return count;
+        }
     }
     
     //Get transaction count for an account
     public int getTransactionCount(String accountNumber) {
-        String sql = "SELECT COUNT(*) FROM transactions WHERE account_number = ?";
+        String sql = "SELECT SUM(n) FROM (" +
+                     acrossTiers("SELECT COUNT(*) AS n", "account_number = ?") + ") t";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTransactionCount");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
+            bindAcrossTiers(pstmt, accountNumber);
             ResultSet rs = pstmt.executeQuery();
             
             if (rs.next()) {
                 return rs.getInt(1);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error counting transactions: " + e.getMessage());
         }
         
@@ -250,20 +432,24 @@ public class TransactionDAO {
     
     //Calculate total deposits for an account
     public double getTotalDeposits(String accountNumber) {
-        String sql = "SELECT SUM(amount) FROM transactions " +
-                     "WHERE account_number = ? AND transaction_type = 'DEPOSIT'";
+        String sql = "SELECT SUM(total) FROM (" +
+                     acrossTiers("SELECT SUM(amount) AS total",
+                                 "account_number = ? AND transaction_type = 'DEPOSIT'") + ") t";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTotalDeposits");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
+            bindAcrossTiers(pstmt, accountNumber);
             ResultSet rs = pstmt.executeQuery();
             
             if (rs.next()) {
                 return rs.getDouble(1);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error calculating total deposits: " + e.getMessage());
         }
         
@@ -272,20 +458,24 @@ public class TransactionDAO {
     
     //Calculate total withdrawals for an account
     public double getTotalWithdrawals(String accountNumber) {
-        String sql = "SELECT SUM(amount) FROM transactions " +
-                     "WHERE account_number = ? AND transaction_type = 'WITHDRAWAL'";
+        String sql = "SELECT SUM(total) FROM (" +
+                     acrossTiers("SELECT SUM(amount) AS total",
+                                 "account_number = ? AND transaction_type = 'WITHDRAWAL'") + ") t";
         
-        try (Connection conn = DatabaseConnection.getConnection();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.getTotalWithdrawals");
+        try (sample;
+             Connection conn = ShardRouter.getReadConnection(accountNumber);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setString(1, accountNumber);
+            bindAcrossTiers(pstmt, accountNumber);
             ResultSet rs = pstmt.executeQuery();
             
             if (rs.next()) {
                 return rs.getDouble(1);
             }
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error calculating total withdrawals: " + e.getMessage());
         }
         
@@ -294,24 +484,48 @@ public class TransactionDAO {
     
     //Delete all transactions for an account (used when closing an account)
     public boolean deleteTransactionsByAccount(String accountNumber) {
-        String sql = "DELETE FROM transactions WHERE account_number = ?";
-        
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, accountNumber);
-            pstmt.executeUpdate();
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransactionDAO.deleteTransactionsByAccount");
+        try (sample;
+             Connection conn = ShardRouter.getConnection(accountNumber);
+             PreparedStatement hot = conn.prepareStatement(
+                 "DELETE FROM transactions WHERE account_number = ?");
+             PreparedStatement archived = conn.prepareStatement(
+                 "DELETE FROM transactions_archive WHERE account_number = ?")) {
+            
+            conn.setAutoCommit(false);
+            hot.setString(1, accountNumber);
+            hot.executeUpdate();
+            archived.setString(1, accountNumber);
+            archived.executeUpdate();
+            ChangeLog.record(conn, ChangeLog.TRANSACTIONS, accountNumber);
+            conn.commit();
             return true;
-            
+        
         } catch (SQLException e) {
+            sample.error();
             System.err.println("Error deleting transactions: " + e.getMessage());
             return false;
         }
     }
     
+    //The same select and condition against the hot table and the archive, combined with UNION ALL
+    private static String acrossTiers(String select, String where) {
+        return select + " FROM transactions WHERE " + where +
+               " UNION ALL " + select + " FROM transactions_archive WHERE " + where;
+    }
+    
+    //Bind the parameters of an acrossTiers query once per tier, returns the next free index
+    private static int bindAcrossTiers(PreparedStatement pstmt, Object... values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            pstmt.setObject(i + 1, values[i]);
+            pstmt.setObject(i + 1 + values.length, values[i]);
+        }
+        return values.length * 2 + 1;
+    }
+    
     //Helper method to extract transaction from ResultSet
     private Transaction extractTransactionFromResultSet(ResultSet rs) throws SQLException {
-        int transactionId = rs.getInt("transaction_id");
+        long transactionId = rs.getLong("transaction_id");
         String accountNumber = rs.getString("account_number");
         String transactionType = rs.getString("transaction_type");
         double amount = rs.getDouble("amount");
@@ -0,0 +1,294 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Transfers between accounts on different shards, which no single database transaction covers.
+//
+//Such a transfer runs as a saga of local transactions, each committed before the next starts:
+//  1. debit   - on the source shard the debit, its TRANSFER_OUT row and a transfer_sagas row in
+//               state DEBITED commit together (BankSystemWithDAO does this, calling begin)
+//  2. credit  - on the destination shard the credit and its TRANSFER_IN row commit together with
+//               a transfer_credits row for the saga; if the account is gone or refuses the
+//               deposit only that row is written, marked not applied. Its primary key makes the
+//               credit happen at most once, however often the step is repeated
+//  3. finish  - on the source shard the saga moves to COMPLETED, or, when the credit was not
+//               applied, the debit is refunded with a TRANSFER_REVERSAL row and the saga moves to
+//               COMPENSATED, in one transaction
+//Every step can be repeated safely, so a saga interrupted anywhere after step 1 is finished by
+//running it again; recover() does that for sagas still DEBITED after a grace period, at
+//startup and then periodically. A transfer with an idempotency key gets a saga ID derived from
+//the key, so a repeated call finds the saga and reports, or drives on, what actually happened.
+//Whichever run makes a refund tells the RefundListener, so limits counted for the debit are
+//given back once however the saga was finished.
+public class TransferSaga {
+    public enum Outcome { COMPLETED, COMPENSATED, PENDING }
+    
+    //Told once per compensated saga, after its refund commits
+    public interface RefundListener {
+        void refunded(AccountClass account, double amount, long debitedAtMillis);
+    }
+    
+    private static final int MAX_ATTEMPTS = Integer.getInteger("bank.occ.maxAttempts", 8);
+    private static final String DUPLICATE_KEY_STATE = "23505";
+    // Sagas younger than this are still being finished by the transfer that started them
+    private static final long RECOVERY_GRACE_MILLIS = 30_000;
+    
+    private final AccountDAO accountDAO;
+    private final TransactionDAO transactionDAO;
+    private ScheduledExecutorService scheduler;
+    private volatile RefundListener refundListener;
+    
+    public TransferSaga(AccountDAO accountDAO, TransactionDAO transactionDAO) {
+        this.accountDAO = accountDAO;
+        this.transactionDAO = transactionDAO;
+    }
+    
+    public void setRefundListener(RefundListener refundListener) {
+        this.refundListener = refundListener;
+    }
+    
+    //Saga ID for a transfer, derived from its idempotency key when it has one
+    public static String sagaIdFor(String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return UUID.randomUUID().toString();
+        }
+        return UUID.nameUUIDFromBytes(("transfer:" + idempotencyKey).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+    
+    //Outcome of a saga so far, or null if the source shard has no such saga
+    //DEBITED reads as PENDING: the transfer is still being finished
+    public Outcome readOutcome(String sagaId, String fromAccount) throws SQLException {
+        try (Connection conn = ShardRouter.getConnection(fromAccount);
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT state FROM transfer_sagas WHERE saga_id = ?")) {
+            pstmt.setString(1, sagaId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                String state = rs.getString(1);
+                return state.equals("DEBITED") ? Outcome.PENDING : Outcome.valueOf(state);
+            }
+        }
+    }
+    
+    //Step 1: record the saga on the source shard's connection, in the transaction making the debit
+    public void begin(Connection conn, String sagaId, String fromAccount, String toAccount,
+                      double amount) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                 "INSERT INTO transfer_sagas (saga_id, from_account, to_account, amount, state) " +
+                 "VALUES (?, ?, ?, ?, 'DEBITED')")) {
+            pstmt.setString(1, sagaId);
+            pstmt.setString(2, fromAccount);
+            pstmt.setString(3, toAccount);
+            pstmt.setDouble(4, amount);
+            pstmt.executeUpdate();
+        }
+    }
+    
+    //Steps 2 and 3 for a saga whose debit has committed
+    //PENDING means a shard could not be reached; the saga is left for recover()
+    public Outcome finish(String sagaId, String fromAccount, String toAccount, double amount) {
+        MetricsRegistry.Sample sample = MetricsRegistry.start("TransferSaga.finish");
+        try (sample) {
+            if (credit(sagaId, fromAccount, toAccount, amount)) {
+                markCompleted(sagaId, fromAccount);
+                return Outcome.COMPLETED;
+            }
+            refund(sagaId, fromAccount, toAccount, amount);
+            BankLogger.warn("Transfer {} to {} was refused by the destination and refunded", sagaId, toAccount);
+            return Outcome.COMPENSATED;
+        
+        } catch (SQLException e) {
+            sample.error();
+            BankLogger.warn("Transfer {} left for recovery: {}", sagaId, e.getMessage());
+            return Outcome.PENDING;
+        }
+    }
+    
+    //Step 2, returns whether the destination was credited, now or by an earlier run
+    private boolean credit(String sagaId, String fromAccount, String toAccount, double amount) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = ShardRouter.getConnection(toAccount)) {
+                conn.setAutoCommit(false);
+                try {
+                    Boolean recorded = readCredit(conn, sagaId);
+                    if (recorded != null) {
+                        conn.rollback();
+                        return recorded;
+                    }
+                    
+                    AccountClass account = accountDAO.readAccount(conn, toAccount);
+                    boolean applied = account != null && account.deposit(amount);
+                    if (applied) {
+                        accountDAO.updateAccountBalance(conn, account);
+                        transactionDAO.recordTransaction(conn, toAccount, "TRANSFER_IN", amount,
+                                                         account.getBalance(),
+                                                         "Transfer from " + fromAccount, fromAccount);
+                    }
+                    try (PreparedStatement pstmt = conn.prepareStatement(
+                             "INSERT INTO transfer_credits (saga_id, to_account, amount, applied) VALUES (?, ?, ?, ?)")) {
+                        pstmt.setString(1, sagaId);
+                        pstmt.setString(2, toAccount);
+                        pstmt.setDouble(3, amount);
+                        pstmt.setBoolean(4, applied);
+                        pstmt.executeUpdate();
+                    }
+                    conn.commit();
+                    return applied;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (AccountDAO.VersionConflictException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            } catch (SQLException e) {
+                // Another run of the same saga credited it first; the next pass reads its result
+                if (!DUPLICATE_KEY_STATE.equals(e.getSQLState()) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    //Whether the saga's credit was applied, or null if step 2 has not run
+    private Boolean readCredit(Connection conn, String sagaId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT applied FROM transfer_credits WHERE saga_id = ?")) {
+            pstmt.setString(1, sagaId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getBoolean(1) : null;
+            }
+        }
+    }
+    
+    private void markCompleted(String sagaId, String fromAccount) throws SQLException {
+        try (Connection conn = ShardRouter.getConnection(fromAccount);
+             PreparedStatement pstmt = conn.prepareStatement(
+                 "UPDATE transfer_sagas SET state = 'COMPLETED', finished_date = CURRENT_TIMESTAMP " +
+                 "WHERE saga_id = ? AND state = 'DEBITED'")) {
+            pstmt.setString(1, sagaId);
+            pstmt.executeUpdate();
+        }
+    }
+    
+    //Step 3 when the credit was refused: give the money back unless another run already did
+    //The refund is not a deposit, so it bypasses the account's deposit rules
+    private void refund(String sagaId, String fromAccount, String toAccount, double amount) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = ShardRouter.getConnection(fromAccount)) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                         "UPDATE transfer_sagas SET state = 'COMPENSATED', finished_date = CURRENT_TIMESTAMP " +
+                         "WHERE saga_id = ? AND state = 'DEBITED'")) {
+                    pstmt.setString(1, sagaId);
+                    if (pstmt.executeUpdate() == 0) {
+                        conn.rollback();
+                        return;
+                    }
+                    
+                    AccountClass account = accountDAO.readAccount(conn, fromAccount);
+                    if (account != null) {
+                        account.setBalance(account.getBalance() + amount);
+                        accountDAO.updateAccountBalance(conn, account);
+                        transactionDAO.recordTransaction(conn, fromAccount, "TRANSFER_REVERSAL", amount,
+                                                         account.getBalance(),
+                                                         "Refund of transfer to " + toAccount, toAccount);
+                    }
+                    long debitedAt = readDebitedAt(conn, sagaId);
+                    conn.commit();
+                    
+                    RefundListener listener = refundListener;
+                    if (account != null && listener != null) {
+                        listener.refunded(account, amount, debitedAt);
+                    }
+                    return;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (AccountDAO.VersionConflictException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    //When the saga's debit was made, as recorded with the saga
+    private long readDebitedAt(Connection conn, String sagaId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                 "SELECT created_date FROM transfer_sagas WHERE saga_id = ?")) {
+            pstmt.setString(1, sagaId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getTimestamp(1).getTime() : System.currentTimeMillis();
+            }
+        }
+    }
+    
+    //Finish every saga on any shard that has been DEBITED for longer than the grace period
+    //Returns the number finished
+    public int recover() {
+        int finished = 0;
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - RECOVERY_GRACE_MILLIS);
+        
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            List<String[]> pending = new ArrayList<>();
+            List<Double> amounts = new ArrayList<>();
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(
+                     "SELECT saga_id, from_account, to_account, amount FROM transfer_sagas " +
+                     "WHERE state = 'DEBITED' AND created_date < ? ORDER BY created_date")) {
+                pstmt.setTimestamp(1, cutoff);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        pending.add(new String[] {rs.getString("saga_id"), rs.getString("from_account"),
+                                                  rs.getString("to_account")});
+                        amounts.add(rs.getDouble("amount"));
+                    }
+                }
+            } catch (SQLException e) {
+                BankLogger.error("Could not read pending transfers on shard {}: {}", shard, e.getMessage());
+                continue;
+            }
+            
+            for (int i = 0; i < pending.size(); i++) {
+                String[] saga = pending.get(i);
+                if (finish(saga[0], saga[1], saga[2], amounts.get(i)) != Outcome.PENDING) {
+                    finished++;
+                }
+            }
+        }
+        if (finished > 0) {
+            BankLogger.info("Recovered {} interrupted cross-shard transfers", finished);
+        }
+        return finished;
+    }
+    
+    //Run recovery now and then periodically on a daemon thread
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transfer-saga-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::recover, 0, period, unit);
+    }
+    
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//In-memory velocity screening for debits (withdrawals and outgoing transfers).
+//
+//Every account and customer that has debited recently gets a Window of fixed-size ring
+//buckets over 1 minute, 1 hour and 24 hours, holding debit counts and sums in a primitive
+//array with running totals per period. Expired buckets are subtracted as time moves on, so
+//checking a rule is a few array reads and recording a debit allocates nothing. Windows slide
+//at bucket granularity: 5 s for the minute, 5 min for the hour, 1 h for the day.
+//
+//Rules cap the count or the total amount per scope and period, e.g. "account:1m:count=5".
+//They are read from -Dbank.velocity.rules (rules separated by ';') or set with setRules; there
+//are none by default, so nothing is blocked until a deployment chooses its limits.
+//Windows idle for a day are dropped by an hourly sweep on a daemon thread.
+public class VelocityEngine {
+    public enum Scope { ACCOUNT, CUSTOMER }
+    
+    public enum Period {
+        MINUTE("1m", 12, 5_000),
+        HOUR("1h", 12, 300_000),
+        DAY("24h", 24, 3_600_000);
+        
+        final String label;
+        final int buckets;
+        final long bucketMillis;
+        
+        Period(String label, int buckets, long bucketMillis) {
+            this.label = label;
+            this.buckets = buckets;
+            this.bucketMillis = bucketMillis;
+        }
+    }
+    
+    private static final Period[] PERIODS = Period.values();
+    private static final int[] OFFSETS = new int[PERIODS.length];
+    private static final int TOTAL_BUCKETS;
+    private static final long IDLE_MILLIS = Period.DAY.buckets * Period.DAY.bucketMillis;
+    private static final long SWEEP_INTERVAL_MILLIS = 3_600_000;
+    
+    static {
+        int offset = 0;
+        for (Period period : PERIODS) {
+            OFFSETS[period.ordinal()] = offset;
+            offset += period.buckets;
+        }
+        TOTAL_BUCKETS = offset;
+    }
+    
+    private static final VelocityEngine INSTANCE =
+        new VelocityEngine(parseRules(System.getProperty("bank.velocity.rules", "")),
+                           System::currentTimeMillis);
+    
+    static {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "velocity-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(INSTANCE::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS,
+                                       TimeUnit.MILLISECONDS);
+    }
+    
+    private final ConcurrentHashMap<String, Window> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> customers = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private volatile Rule[] rules;
+    
+    //A limit on debits within one period for an account or a customer
+    public static final class Rule {
+        final Scope scope;
+        final Period period;
+        final long maxCount;
+        final long maxCents;
+        
+        public Rule(Scope scope, Period period, long maxCount, double maxAmount) {
+            this.scope = scope;
+            this.period = period;
+            this.maxCount = maxCount;
+            this.maxCents = maxAmount == Double.MAX_VALUE ? Long.MAX_VALUE : Math.round(maxAmount * 100);
+        }
+        
+        @Override
+        public String toString() {
+            String limit = maxCount != Long.MAX_VALUE ? maxCount + " debits" :
+                           String.format(Locale.ROOT, "%.2f", maxCents / 100.0);
+            return scope.name().toLowerCase() + " limit of " + limit + " per " + period.label;
+        }
+    }
+    
+    //Debit counts and sums for one account or customer, all periods packed into one array:
+    //per period the newest bucket number, running count and running cents, then every
+    //bucket's count and cents side by side, so a check touches only a few cache lines
+    private static final class Window {
+        static final int COUNT_TOTALS = PERIODS.length;
+        static final int CENT_TOTALS = 2 * PERIODS.length;
+        static final int BUCKETS = 3 * PERIODS.length;
+        
+        final long[] data = new long[BUCKETS + 2 * TOTAL_BUCKETS];
+        long lastEventMillis;
+        boolean evicted;
+        
+        //Move every period forward to now, dropping the buckets that fell out of it
+        void advance(long now) {
+            for (Period period : PERIODS) {
+                int p = period.ordinal();
+                long head = data[p];
+                long bucket = now / period.bucketMillis;
+                if (bucket <= head) {
+                    continue;
+                }
+                long steps = Math.min(bucket - head, period.buckets);
+                for (long b = head + 1; b <= head + steps; b++) {
+                    int slot = BUCKETS + 2 * (OFFSETS[p] + (int) (b % period.buckets));
+                    data[COUNT_TOTALS + p] -= data[slot];
+                    data[CENT_TOTALS + p] -= data[slot + 1];
+                    data[slot] = 0;
+                    data[slot + 1] = 0;
+                }
+                data[p] = bucket;
+            }
+        }
+        
+        void add(int count, long cents) {
+            for (Period period : PERIODS) {
+                int p = period.ordinal();
+                int slot = BUCKETS + 2 * (OFFSETS[p] + (int) (data[p] % period.buckets));
+                data[slot] += count;
+                data[slot + 1] += cents;
+                data[COUNT_TOTALS + p] += count;
+                data[CENT_TOTALS + p] += cents;
+            }
+        }
+        
+        //Take back a debit added when the window's clock read atMillis, if its bucket is still in the period
+        void remove(long atMillis, long cents) {
+            for (Period period : PERIODS) {
+                int p = period.ordinal();
+                long bucket = atMillis / period.bucketMillis;
+                if (bucket > data[p] || bucket <= data[p] - period.buckets) {
+                    continue;
+                }
+                int slot = BUCKETS + 2 * (OFFSETS[p] + (int) (bucket % period.buckets));
+                data[slot] -= 1;
+                data[slot + 1] -= cents;
+                data[COUNT_TOTALS + p] -= 1;
+                data[CENT_TOTALS + p] -= cents;
+            }
+        }
+        
+        boolean allows(Rule rule, long cents) {
+            int p = rule.period.ordinal();
+            return data[COUNT_TOTALS + p] + 1 <= rule.maxCount && data[CENT_TOTALS + p] + cents <= rule.maxCents;
+        }
+    }
+    
+    public VelocityEngine(List<Rule> rules, LongSupplier clock) {
+        this.rules = rules.toArray(new Rule[0]);
+        this.clock = clock;
+    }
+    
+    public static VelocityEngine getInstance() {
+        return INSTANCE;
+    }
+    
+    public void setRules(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[0]);
+    }
+    
+    public List<Rule> getRules() {
+        return List.of(rules);
+    }
+    
+    public long currentTimeMillis() {
+        return clock.getAsLong();
+    }
+    
+    //Check a debit against every rule and count it if all pass
+    //Returns null if allowed, otherwise the first rule it would break (nothing is counted then)
+    public Rule tryAcquire(String accountNumber, String customerId, double amount) {
+        return tryAcquire(accountNumber, customerId, amount, clock.getAsLong());
+    }
+    
+    //As above with the time read by the caller, who passes the same time to release if the debit fails
+    public Rule tryAcquire(String accountNumber, String customerId, double amount, long now) {
+        long cents = Math.round(amount * 100);
+        
+        while (true) {
+            Window account = accounts.computeIfAbsent(accountNumber, k -> new Window());
+            Window customer = customerId == null ? null : customers.computeIfAbsent(customerId, k -> new Window());
+            
+            // Always account before customer, so concurrent debits cannot deadlock
+            synchronized (account) {
+                if (account.evicted) {
+                    continue;
+                }
+                if (customer == null) {
+                    return acquire(account, null, now, cents);
+                }
+                synchronized (customer) {
+                    if (customer.evicted) {
+                        continue;
+                    }
+                    return acquire(account, customer, now, cents);
+                }
+            }
+        }
+    }
+    
+    private Rule acquire(Window account, Window customer, long now, long cents) {
+        account.advance(now);
+        if (customer != null) {
+            customer.advance(now);
+        }
+        for (Rule rule : rules) {
+            Window window = rule.scope == Scope.ACCOUNT ? account : customer;
+            if (window != null && !window.allows(rule, cents)) {
+                return rule;
+            }
+        }
+        account.add(1, cents);
+        account.lastEventMillis = now;
+        if (customer != null) {
+            customer.add(1, cents);
+            customer.lastEventMillis = now;
+        }
+        return null;
+    }
+    
+    //Take back a debit counted by tryAcquire at acquiredAt whose write then failed
+    //It comes out of the buckets it was added to; any that have since expired already dropped it
+    public void release(String accountNumber, String customerId, double amount, long acquiredAt) {
+        long cents = Math.round(amount * 100);
+        long now = clock.getAsLong();
+        Window account = accounts.get(accountNumber);
+        Window customer = customerId == null ? null : customers.get(customerId);
+        if (account != null) {
+            synchronized (account) {
+                account.advance(now);
+                account.remove(acquiredAt, cents);
+            }
+        }
+        if (customer != null) {
+            synchronized (customer) {
+                customer.advance(now);
+                customer.remove(acquiredAt, cents);
+            }
+        }
+    }
+    
+    //Drop windows with no debits for a day; run hourly by the sweeper thread
+    void sweep() {
+        long now = clock.getAsLong();
+        for (ConcurrentHashMap<String, Window> windows : List.of(accounts, customers)) {
+            windows.forEach((key, window) -> {
+                synchronized (window) {
+                    if (now - window.lastEventMillis > IDLE_MILLIS) {
+                        window.evicted = true;
+                        windows.remove(key, window);
+                    }
+                }
+            });
+        }
+    }
+    
+    //Parse rules of the form scope:period:count=N or scope:period:amount=X, separated by ';'
+    static List<Rule> parseRules(String text) {
+        List<Rule> parsed = new ArrayList<>();
+        for (String part : text.split(";")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            String[] fields = part.split(":");
+            String[] limit = fields.length == 3 ? fields[2].split("=") : new String[0];
+            if (limit.length != 2) {
+                throw new IllegalArgumentException("Invalid velocity rule: " + part);
+            }
+            
+            Scope scope = Scope.valueOf(fields[0].trim().toUpperCase());
+            Period period = null;
+            for (Period candidate : PERIODS) {
+                if (candidate.label.equals(fields[1].trim())) {
+                    period = candidate;
+                }
+            }
+            if (period == null) {
+                throw new IllegalArgumentException("Invalid velocity period in rule: " + part);
+            }
+            
+            switch (limit[0].trim()) {
+                case "count":
+                    parsed.add(new Rule(scope, period, Long.parseLong(limit[1].trim()), Double.MAX_VALUE));
+                    break;
+                case "amount":
+                    parsed.add(new Rule(scope, period, Long.MAX_VALUE, Double.parseDouble(limit[1].trim())));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid velocity limit in rule: " + part);
+            }
+        }
+        return parsed;
+    }
+}
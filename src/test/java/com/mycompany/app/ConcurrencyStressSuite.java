@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Concurrency stress suite for the banking engines.
+//
+//Many threads fire randomized transfers, deposits and withdrawals at a small set of accounts
+//so the same accounts are hit concurrently. Every operation that reports success is tallied
+//per account, and once all threads finish the suite checks:
+//  - money is conserved: the bank total equals the opening total plus successful deposits
+//    minus successful withdrawals (transfers must net to zero)
+//  - every account's balance equals its opening balance plus its tallied changes (no lost updates)
+//  - no Savings account is below its minimum balance
+//  - no Cheque account is past its overdraft limit
+//  - (database engine) each account's ledger sums to its balance and its newest row carries it
+//  - (database engine) the daily withdrawal totals match the debits in the ledger
+//Amounts are whole numbers so balances stay exact in double arithmetic.
+//
+//The database engine recreates the schema, so it must only be given a scratch database such as
+//jdbc:h2:mem:stress;DB_CLOSE_DELAY=-1 (-Dbank.db.url). It runs with the daily withdrawal limits
+//and velocity rules in force (STRESS_VELOCITY_RULES unless -Dbank.velocity.rules is set), so
+//debits they refuse are simply not tallied while their reserve and release paths are exercised.
+//
+//ConcurrencyStressSuiteTest runs both engines under mvn test.
+public class ConcurrencyStressSuite {
+    private static final double OPENING_BALANCE = 1000.0;
+    private static final int MAX_AMOUNT = 300;
+    // Loose enough that most debits pass, tight enough that some are refused during a run
+    static final String STRESS_VELOCITY_RULES = "account:1m:count=150;customer:24h:amount=25000";
+    
+    //Operations under test, common to every engine
+    interface Engine {
+        String name();
+        String openAccount(int index);
+        boolean deposit(String accountNumber, double amount);
+        boolean withdraw(String accountNumber, double amount);
+        boolean transfer(String from, String to, double amount);
+        AccountClass load(String accountNumber);
+        //Check the engine's own ledger against balances; returns a description of each problem
+        List<String> checkLedger(List<String> accountNumbers);
+    }
+    
+    static class MemoryEngine implements Engine {
+        private final BankSystemClass bank = new BankSystemClass("Stress Bank");
+        
+        public String name() {
+            return "BankSystemClass";
+        }
+        
+        public String openAccount(int index) {
+            CustomerClass customer = bank.createCustomer("Stress", "Client" + index,
+                                                         "stress" + index + "@example.com", "555-0100", "1 Main St");
+            switch (index % 3) {
+                case 0:
+                    AccountClass cheque = bank.createChequeAccount(customer.getCustomerId());
+                    bank.deposit(cheque.getAccountNumber(), OPENING_BALANCE);
+                    return cheque.getAccountNumber();
+                case 1:
+                    return bank.createSavingsAccount(customer.getCustomerId(), OPENING_BALANCE).getAccountNumber();
+                default:
+                    return bank.createInvestmentAccount(customer.getCustomerId(), "Bond", OPENING_BALANCE)
+                               .getAccountNumber();
+            }
+        }
+        
+        public boolean deposit(String accountNumber, double amount) {
+            return bank.deposit(accountNumber, amount);
+        }
+        
+        public boolean withdraw(String accountNumber, double amount) {
+            return bank.withdraw(accountNumber, amount);
+        }
+        
+        public boolean transfer(String from, String to, double amount) {
+            return bank.transfer(from, to, amount);
+        }
+        
+        public AccountClass load(String accountNumber) {
+            return bank.findAccountByNumber(accountNumber);
+        }
+        
+        public List<String> checkLedger(List<String> accountNumbers) {
+            return new ArrayList<>(); // No ledger kept in memory
+        }
+    }
+    
+    static class DaoEngine implements Engine {
+        private final BankSystemWithDAO bank;
+        private final TransactionDAO transactionDAO = new TransactionDAO();
+        
+        DaoEngine() {
+            DatabaseConnection.initializeDatabase();
+            if (System.getProperty("bank.velocity.rules") == null) {
+                VelocityEngine.getInstance().setRules(VelocityEngine.parseRules(STRESS_VELOCITY_RULES));
+            }
+            bank = new BankSystemWithDAO("Stress Bank");
+            // The point is to collide on a few accounts, which per-account rate limits would prevent
+            bank.setAdmissionControl(null);
+        }
+        
+        public String name() {
+            return "BankSystemWithDAO";
+        }
+        
+        public String openAccount(int index) {
+            CustomerClass customer = bank.createCustomer("Stress", "Client" + index,
+                                                         "stress" + index + "@example.com", "555-0100", "1 Main St");
+            switch (index % 3) {
+                case 0:
+                    AccountClass cheque = bank.createChequeAccount(customer.getCustomerId());
+                    bank.deposit(cheque.getAccountNumber(), OPENING_BALANCE);
+                    return cheque.getAccountNumber();
+                case 1:
+                    return bank.createSavingsAccount(customer.getCustomerId(), OPENING_BALANCE).getAccountNumber();
+                default:
+                    return bank.createInvestmentAccount(customer.getCustomerId(), "Bond", OPENING_BALANCE)
+                               .getAccountNumber();
+            }
+        }
+        
+        public boolean deposit(String accountNumber, double amount) {
+            return bank.deposit(accountNumber, amount);
+        }
+        
+        public boolean withdraw(String accountNumber, double amount) {
+            return bank.withdraw(accountNumber, amount);
+        }
+        
+        public boolean transfer(String from, String to, double amount) {
+            return bank.transfer(from, to, amount);
+        }
+        
+        public AccountClass load(String accountNumber) {
+            return bank.findAccountByNumber(accountNumber);
+        }
+        
+        public List<String> checkLedger(List<String> accountNumbers) {
+            List<String> problems = new ArrayList<>();
+            for (String accountNumber : accountNumbers) {
+                double balance = load(accountNumber).getBalance();
+                double ledgerTotal = 0;
+                double debited = 0;
+                TransactionDAO.Transaction newest = null;
+                for (TransactionDAO.Transaction transaction : transactionDAO.getTransactionsByAccountNumber(accountNumber)) {
+                    ledgerTotal += signOf(transaction.getTransactionType()) * transaction.getAmount();
+                    if (isDebit(transaction.getTransactionType())) {
+                        debited += transaction.getAmount();
+                    }
+                    if (newest == null || transaction.getTransactionId() > newest.getTransactionId()) {
+                        newest = transaction;
+                    }
+                }
+                if (ledgerTotal != balance) {
+                    problems.add(accountNumber + ": ledger sums to " + ledgerTotal + " but balance is " + balance);
+                }
+                if (newest == null || newest.getBalanceAfter() != balance) {
+                    problems.add(accountNumber + ": newest ledger row shows " +
+                                 (newest == null ? "nothing" : String.valueOf(newest.getBalanceAfter())) +
+                                 " but balance is " + balance);
+                }
+                // Every debit in the run is within the last day, so the tracker must hold all of them
+                double tracked = DailyWithdrawalTracker.getInstance().getWithdrawnToday(accountNumber);
+                if (load(accountNumber) instanceof WithdrawableInterface && tracked != debited) {
+                    problems.add(accountNumber + ": daily withdrawal total is " + tracked + " but ledger debits are " +
+                                 debited);
+                }
+            }
+            return problems;
+        }
+        
+        private static boolean isDebit(String transactionType) {
+            return transactionType.equals("WITHDRAWAL") || transactionType.equals("TRANSFER_OUT");
+        }
+        
+        private static int signOf(String transactionType) {
+            switch (transactionType) {
+                case "DEPOSIT":
+                case "INTEREST":
+                case "TRANSFER_IN":
+                case "TRANSFER_REVERSAL":
+                    return 1;
+                default:
+                    return -1;
+            }
+        }
+    }
+    
+    private final Engine engine;
+    private final int threads;
+    private final int accountCount;
+    private final int operations;
+    
+    public ConcurrencyStressSuite(Engine engine, int threads, int accountCount, int operations) {
+        this.engine = engine;
+        this.threads = threads;
+        this.accountCount = accountCount;
+        this.operations = operations;
+    }
+    
+    //Run the workload and check every invariant; returns true if all hold
+    public boolean run() throws InterruptedException {
+        List<String> accountNumbers = new ArrayList<>();
+        double[] opening = new double[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accountNumbers.add(engine.openAccount(i));
+            opening[i] = engine.load(accountNumbers.get(i)).getBalance();
+        }
+        
+        AtomicLongArray changes = new AtomicLongArray(accountCount);
+        AtomicLong deposited = new AtomicLong();
+        AtomicLong withdrawn = new AtomicLong();
+        AtomicLong succeeded = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(1000 + t);
+            int share = operations / threads + (t < operations % threads ? 1 : 0);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < share; n++) {
+                    int from = random.nextInt(accountCount);
+                    long amount = 1 + random.nextInt(MAX_AMOUNT);
+                    int kind = random.nextInt(4);
+                    if (kind < 2) {
+                        int to = (from + 1 + random.nextInt(accountCount - 1)) % accountCount;
+                        if (engine.transfer(accountNumbers.get(from), accountNumbers.get(to), amount)) {
+                            changes.addAndGet(from, -amount);
+                            changes.addAndGet(to, amount);
+                            succeeded.incrementAndGet();
+                        }
+                    } else if (kind == 2) {
+                        if (engine.deposit(accountNumbers.get(from), amount)) {
+                            changes.addAndGet(from, amount);
+                            deposited.addAndGet(amount);
+                            succeeded.incrementAndGet();
+                        }
+                    } else if (engine.withdraw(accountNumbers.get(from), amount)) {
+                        changes.addAndGet(from, -amount);
+                        withdrawn.addAndGet(amount);
+                        succeeded.incrementAndGet();
+                    }
+                }
+            }, "stress-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        
+        List<String> problems = new ArrayList<>();
+        double openingTotal = 0;
+        double closingTotal = 0;
+        for (int i = 0; i < accountCount; i++) {
+            AccountClass account = engine.load(accountNumbers.get(i));
+            double balance = account.getBalance();
+            openingTotal += opening[i];
+            closingTotal += balance;
+            
+            double expected = opening[i] + changes.get(i);
+            if (balance != expected) {
+                problems.add(account.getAccountNumber() + ": balance " + balance + " but successful operations give " +
+                             expected + " (lost update)");
+            }
+            if (account instanceof SavingsAccountClass &&
+                balance < ((SavingsAccountClass) account).getMinimumBalance()) {
+                problems.add(account.getAccountNumber() + ": savings balance " + balance + " below minimum " +
+                             ((SavingsAccountClass) account).getMinimumBalance());
+            }
+            if (account instanceof ChequeAccountClass &&
+                balance < -((ChequeAccountClass) account).getOverdraftLimit()) {
+                problems.add(account.getAccountNumber() + ": cheque balance " + balance + " past overdraft " +
+                             ((ChequeAccountClass) account).getOverdraftLimit());
+            }
+        }
+        
+        double expectedTotal = openingTotal + deposited.get() - withdrawn.get();
+        if (closingTotal != expectedTotal) {
+            problems.add("Money not conserved: bank holds " + closingTotal + ", expected " + expectedTotal);
+        }
+        problems.addAll(engine.checkLedger(accountNumbers));
+        
+        System.out.println(String.format("%s: %d threads, %d accounts, %d operations (%d succeeded) in %d ms",
+                                         engine.name(), threads, accountCount, operations, succeeded.get(),
+                                         elapsedMillis));
+        if (problems.isEmpty()) {
+            System.out.println("  PASS: all invariants hold");
+        } else {
+            for (String problem : problems) {
+                System.out.println("  FAIL: " + problem);
+            }
+        }
+        return problems.isEmpty();
+    }
+}
@@ -0,0 +1,29 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+
+//Same (default) package as the application classes, which a named package cannot import
+public class ConcurrencyStressSuiteTest {
+    public ConcurrencyStressSuiteTest() {
+    }
+
+    @Test
+    public void testMemoryEngineKeepsInvariants() throws InterruptedException {
+        BankLogger.setLevel(BankLogger.Level.OFF);
+        assertTrue(new ConcurrencyStressSuite(new ConcurrencyStressSuite.MemoryEngine(), 8, 10, 20_000).run());
+    }
+
+    @Test
+    public void testDaoEngineKeepsInvariants() throws InterruptedException {
+        // The engine recreates the schema; surefire points bank.db.url at an in-memory database
+        assumeTrue(System.getProperty("bank.db.url", "").startsWith("jdbc:h2:mem:"));
+        BankLogger.setLevel(BankLogger.Level.OFF);
+        try {
+            assertTrue(new ConcurrencyStressSuite(new ConcurrencyStressSuite.DaoEngine(), 8, 10, 1_000).run());
+        } finally {
+            DatabaseConnection.closeConnection();
+        }
+    }
+}